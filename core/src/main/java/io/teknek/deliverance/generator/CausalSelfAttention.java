@@ -1,13 +1,14 @@
 package io.teknek.deliverance.generator;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import io.teknek.deliverance.math.PhysicalCoreTuningExecutor;
 import io.teknek.deliverance.math.VectorMath;
 import io.teknek.deliverance.model.AbstractModel;
 import io.teknek.deliverance.safetensors.DistributedContext;
 import io.teknek.deliverance.safetensors.Config;
 import io.teknek.deliverance.tensor.AbstractTensor;
 import io.teknek.deliverance.tensor.KvBufferCache;
-import io.teknek.deliverance.tensor.VectorTensorMathUtils;
 import io.teknek.deliverance.tensor.operations.ConfigurableTensorProvider;
 
 import net.jafama.FastMath;
@@ -22,10 +23,10 @@ import static io.teknek.deliverance.tensor.DebugSupport.debug;
 public class CausalSelfAttention {
     private static final Logger logger = LoggerFactory.getLogger(CausalSelfAttention.class);
 
-    private final AbstractModel m;
-    private final Config config;
-    private final int layerIndex;
-    private final DistributedContext dctx;
+    protected final AbstractModel m;
+    protected final Config config;
+    protected final int layerIndex;
+    protected final DistributedContext dctx;
     private final Optional<AbstractTensor> queryAttnBias;
     private final Optional<AbstractTensor> keyAttnBias;
 
@@ -39,12 +40,18 @@ public class CausalSelfAttention {
 
     private final AbstractTensor outputProjectionWeights;
 
-    private final float attentionScale;
-    private final int attentionLength;
+    /** query rows attended together by {@link #attendTiled} */
+    static final int PREFILL_TILE = 32;
+    /** the fewest keys a decode row is split into, see {@link #decodeSplits} */
+    static final int MIN_SPLIT_KEYS = 512;
+
+    protected final float attentionScale;
+    protected final int attentionLength;
+    private final int attentionWindow;
 
     private final AbstractTensor[] qkvResults;
     private final AbstractTensor[] qkvWeights;
-    private final ConfigurableTensorProvider configurableTensorProvider;
+    protected final ConfigurableTensorProvider configurableTensorProvider;
 
     public CausalSelfAttention(
             AbstractModel m,
@@ -97,6 +104,7 @@ public class CausalSelfAttention {
         this.outputProjectionBias = outputProjectionBias;
         this.outputProjectionWeights = outputProjectionWeights;
         this.attentionLength = config.numberOfHeads * config.headSize;
+        this.attentionWindow = config.attentionWindow(layerIndex);
 
         this.attentionScale = config.attentionMultiplier != null ? config.attentionMultiplier : (float) (1.0 / StrictMath.sqrt(config.headSize));
 
@@ -112,71 +120,47 @@ public class CausalSelfAttention {
 
     public AbstractTensor forward(AbstractTensor input, int startPosition, KvBufferCache.KvBuffer kvMem,
             Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        int batchSize = input.shape().first();
+        int[] positions = new int[batchSize];
+        KvBufferCache.KvBuffer[] kvMems = new KvBufferCache.KvBuffer[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            positions[i] = startPosition + i;
+            kvMems[i] = kvMem;
+        }
+        return forward(input, positions, kvMems, tensorReducer);
+    }
+
+    /**
+     * Forward pass where every row of the input can belong to a different session. Row bi is written to
+     * kvMems[bi] at positions[bi] and attends over that buffer only, so rows of a continuous batch never see each
+     * other. Rows of the same session must appear in increasing position order.
+     */
+    public AbstractTensor forward(AbstractTensor input, int[] positions, KvBufferCache.KvBuffer[] kvMems,
+            Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
         Preconditions.checkArgument(input.dims() == 2 && input.shape().last() == config.embeddingLength);
         int batchSize = input.shape().first();
-        int splitSize = configurableTensorProvider.get().parallelSplitSize();
+        Preconditions.checkArgument(positions.length == batchSize && kvMems.length == batchSize,
+                "Expected a position and kv buffer for every row");
         try (AbstractTensor queryBatch = m.makeDenseTensor(batchSize, attentionLength);
                 AbstractTensor tmpKeyBatch = m.makeDenseTensor(batchSize, config.kvLength);
                 AbstractTensor tmpValBatch = m.makeDenseTensor(batchSize, config.kvLength);
                 AbstractTensor valueBatch = m.makeDenseTensor(batchSize, attentionLength)) {
 
-            if (config.isGQA) {
-                /*
-                DistributedContext{c=io.teknek.deliverance.model.llama.LlamaConfig@5df417a7, modelShard=0,
-                numModelShards=1, layerShard=0, numLayerShards=1, embeddingSegmentStart=0, embeddingSegmentLength=2048,
-                embeddingSegmentEnd=2048, attentionSegmentStart=0, attentionSegmentLength=2048, attentionSegmentEnd=2048,
-                hiddenSegmentStart=0, hiddenSegmentLength=5632, hiddenSegmentEnd=5632, kvSegmentStart=0, kvSegmentLength=256,
-                kvSegmentEnd=256, headStart=0, headEnd=32, groupHeadStart=0, groupHeadEnd=4, numberOfLayers=22, layerStart=0, layerEnd=22}
-                 */
-                VectorMath.pchunk(dctx.attentionSegmentStart, dctx.attentionSegmentLength, (chunkStart, chunkLength) -> {
-                    configurableTensorProvider.get()
-                            .dotProductChunk(queryBatch, input, queryAttnWeights, 0, config.embeddingLength, chunkStart, chunkLength);
-                }, splitSize);
-                VectorMath.pchunk(dctx.kvSegmentStart, dctx.kvSegmentLength, (chunkStart, chunkLength) -> {
-                    configurableTensorProvider.get()
-                            .dotProductChunk(tmpKeyBatch, input, keyAttnWeights, 0, config.embeddingLength, chunkStart, chunkLength);
-                    configurableTensorProvider.get()
-                            .dotProductChunk(tmpValBatch, input, valueAttnWeights, 0, config.embeddingLength, chunkStart, chunkLength);
-                }, splitSize);
-            } else {
-                qkvResults[0] = queryBatch;
-                qkvResults[1] = tmpKeyBatch;
-                qkvResults[2] = tmpValBatch;
-
-                // compute the query vector
-                VectorMath.pchunk(dctx.attentionSegmentStart, dctx.attentionSegmentLength, (chunkStart, chunkLength) -> {
-                    configurableTensorProvider.get()
-                            .dotProductBatchChunk(qkvResults, input, qkvWeights, 0, config.embeddingLength, chunkStart, chunkLength);
-                }, splitSize);
-            }
-
-            queryAttnBias.ifPresent(
-                    bias -> configurableTensorProvider.get().accumulate(queryBatch, bias, dctx.attentionSegmentStart, dctx.attentionSegmentLength)
-            );
-            keyAttnBias.ifPresent(
-                    bias -> configurableTensorProvider.get().accumulate(tmpKeyBatch, bias, dctx.kvSegmentStart, dctx.kvSegmentLength)
-            );
-            valueAttnBias.ifPresent(
-                    bias -> configurableTensorProvider.get().accumulate(tmpValBatch, bias, dctx.kvSegmentStart, dctx.kvSegmentLength)
-            );
-
-            debug("query", queryBatch, layerIndex);
-            debug("key", tmpKeyBatch, layerIndex);
-            debug("value", tmpValBatch, layerIndex);
+            projectQkv(input, queryBatch, tmpKeyBatch, tmpValBatch);
+            applyRope(queryBatch, tmpKeyBatch, positions);
 
             // This is our memory of the key and value vectors for each position
-            for (int position = startPosition, bi = 0; position < startPosition + batchSize; position++, bi++) {
-                int finalPosition = position;
-                AbstractTensor key = kvMem.getKeyTensorForPosition(layerIndex, position);
-                AbstractTensor val = kvMem.getValTensorForPosition(layerIndex, position);
-
-                AbstractTensor[] kvp = kvMem.getKeyTensorsUptoPosition(layerIndex, position);
-                AbstractTensor[] vvp = kvMem.getValTensorsUptoPosition(layerIndex, position);
+            for (int bi = 0; bi < batchSize; bi++) {
+                int finalPosition = positions[bi];
+                KvBufferCache.KvBuffer kvMem = kvMems[bi];
+                AbstractTensor key = kvMem.getKeyTensorForPosition(layerIndex, finalPosition);
+                AbstractTensor val = kvMem.getValTensorForPosition(layerIndex, finalPosition);
 
                 AbstractTensor tmpKey = tmpKeyBatch.slice(bi);
                 AbstractTensor tmpVal = tmpValBatch.slice(bi);
-                AbstractTensor query = queryBatch.slice(bi);
-                AbstractTensor value = valueBatch.slice(bi);
+                if (kvMem.isTrackingAttention()) {
+                    kvMem.clearAttention(layerIndex, finalPosition);
+                }
 
                 if (key.dType() != tmpKey.dType()) {
                     try (
@@ -210,145 +194,461 @@ public class CausalSelfAttention {
                             dctx.kvSegmentLength
                     );
                 }
+            }
+
+            // Every row is written before any attends, a run of consecutive positions of one session (a prompt being
+            // prefilled, a speculative proposal) is attended in tiles, single rows (decode) one at a time.
+            for (int first = 0, end; first < batchSize; first = end) {
+                end = first + 1;
+                while (end < batchSize && kvMems[end] == kvMems[first] && positions[end] == positions[end - 1] + 1) {
+                    end++;
+                }
+                if (end - first == 1) {
+                    attend(queryBatch.slice(first), valueBatch.slice(first), positions[first], kvMems[first]);
+                } else {
+                    attendTiled(queryBatch, valueBatch, first, end - first, positions[first], kvMems[first]);
+                }
+            }
+
+            debug("after_attention", valueBatch, layerIndex);
+
+            return projectOutput(valueBatch, tensorReducer);
+        }
+    }
+
+    /**
+     * Projects every row of input to its query, key and value, biases included.
+     */
+    protected void projectQkv(AbstractTensor input, AbstractTensor queryBatch, AbstractTensor tmpKeyBatch,
+            AbstractTensor tmpValBatch) {
+        int splitSize = configurableTensorProvider.get().parallelSplitSize();
+        if (config.isGQA) {
+            /*
+            DistributedContext{c=io.teknek.deliverance.model.llama.LlamaConfig@5df417a7, modelShard=0,
+            numModelShards=1, layerShard=0, numLayerShards=1, embeddingSegmentStart=0, embeddingSegmentLength=2048,
+            embeddingSegmentEnd=2048, attentionSegmentStart=0, attentionSegmentLength=2048, attentionSegmentEnd=2048,
+            hiddenSegmentStart=0, hiddenSegmentLength=5632, hiddenSegmentEnd=5632, kvSegmentStart=0, kvSegmentLength=256,
+            kvSegmentEnd=256, headStart=0, headEnd=32, groupHeadStart=0, groupHeadEnd=4, numberOfLayers=22, layerStart=0, layerEnd=22}
+             */
+            VectorMath.pchunk(dctx.attentionSegmentStart, dctx.attentionSegmentLength, (chunkStart, chunkLength) -> {
+                configurableTensorProvider.get()
+                        .dotProductChunk(queryBatch, input, queryAttnWeights, 0, config.embeddingLength, chunkStart, chunkLength);
+            }, splitSize);
+            VectorMath.pchunk(dctx.kvSegmentStart, dctx.kvSegmentLength, (chunkStart, chunkLength) -> {
+                configurableTensorProvider.get()
+                        .dotProductChunk(tmpKeyBatch, input, keyAttnWeights, 0, config.embeddingLength, chunkStart, chunkLength);
+                configurableTensorProvider.get()
+                        .dotProductChunk(tmpValBatch, input, valueAttnWeights, 0, config.embeddingLength, chunkStart, chunkLength);
+            }, splitSize);
+        } else {
+            qkvResults[0] = queryBatch;
+            qkvResults[1] = tmpKeyBatch;
+            qkvResults[2] = tmpValBatch;
+
+            // compute the query vector
+            VectorMath.pchunk(dctx.attentionSegmentStart, dctx.attentionSegmentLength, (chunkStart, chunkLength) -> {
+                configurableTensorProvider.get()
+                        .dotProductBatchChunk(qkvResults, input, qkvWeights, 0, config.embeddingLength, chunkStart, chunkLength);
+            }, splitSize);
+        }
+
+        queryAttnBias.ifPresent(
+                bias -> configurableTensorProvider.get().accumulate(queryBatch, bias, dctx.attentionSegmentStart, dctx.attentionSegmentLength)
+        );
+        keyAttnBias.ifPresent(
+                bias -> configurableTensorProvider.get().accumulate(tmpKeyBatch, bias, dctx.kvSegmentStart, dctx.kvSegmentLength)
+        );
+        valueAttnBias.ifPresent(
+                bias -> configurableTensorProvider.get().accumulate(tmpValBatch, bias, dctx.kvSegmentStart, dctx.kvSegmentLength)
+        );
+
+        debug("query", queryBatch, layerIndex);
+        debug("key", tmpKeyBatch, layerIndex);
+        debug("value", tmpValBatch, layerIndex);
+    }
+
+    protected void applyRope(AbstractTensor queryBatch, AbstractTensor tmpKeyBatch, int[] positions) {
+        // apply RoPE if present (accounting for huggingface permutation)
+        // https://github.com/huggingface/transformers/blob/d533465150532b0c5de167b574e59f64c68b1154/src/transformers/models/llama/convert_llama_weights_to_hf.py#L114
+        config.ropeTable.ifPresent(rope -> {
+            int queryStart = dctx.headStart * config.headSize;
+            int queryEnd = Math.min(dctx.headEnd * config.headSize, attentionLength);
+            int keyStart = dctx.groupHeadStart * config.headSize;
+            int keyEnd = Math.min(dctx.groupHeadEnd * config.headSize, config.kvLength);
+            configurableTensorProvider.get().rope(queryBatch, positions, rope, queryStart, queryEnd - queryStart);
+            configurableTensorProvider.get().rope(tmpKeyBatch, positions, rope, keyStart, keyEnd - keyStart);
+            debug("query+rope", queryBatch, layerIndex);
+            debug("key+rope", tmpKeyBatch, layerIndex);
+        });
+    }
+
+    /**
+     * The output projection of the attended values, a new [batch, embeddingLength] tensor.
+     */
+    protected AbstractTensor projectOutput(AbstractTensor valueBatch,
+            Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        int batchSize = valueBatch.shape().first();
+        int splitSize = configurableTensorProvider.get().parallelSplitSize();
+        // matmul the projection and sum into input
+        // input += c_proj_weight @ ybuf + c_proj_bias
+        AbstractTensor result = m.makeDenseTensor(batchSize, config.embeddingLength);
+        try (AbstractTensor vq = m.maybeQuantize(valueBatch)) {
+            VectorMath.pchunk(0, config.embeddingLength, (chunkStart, chunkSize) -> {
+                configurableTensorProvider.get()
+                        .dotProductChunk(
+                                result,
+                                vq,
+                                outputProjectionWeights,
+                                dctx.attentionSegmentStart,
+                                dctx.attentionSegmentLength,
+                                chunkStart,
+                                chunkSize
+                        );
+            }, splitSize);
+            tensorReducer.ifPresent(func -> func.accept(Collections.singletonList(result)));
+            outputProjectionBias.ifPresent(bias -> configurableTensorProvider.get().accumulate(result, bias, 0, config.embeddingLength));
+        }
+        return result;
+    }
+
+    /**
+     * @return the first position a query at position attends to, 0 unless this is a sliding window layer
+     */
+    private int windowStart(int position) {
+        return Math.max(0, position - attentionWindow + 1);
+    }
+
+    /**
+     * @return how many query heads share a kv head, 1 unless this is a GQA model
+     */
+    private int groupSize() {
+        return config.isGQA ? config.headGroupSize : 1;
+    }
+
+    /**
+     * @return the first of the query heads of group g (those sharing kv head g) that this node computes
+     */
+    private int groupHeadFrom(int g) {
+        return Math.max(dctx.headStart, g * groupSize());
+    }
+
+    /**
+     * @return one past the last of the query heads of group g that this node computes
+     */
+    private int groupHeadTo(int g) {
+        return Math.min(Math.min(dctx.headEnd, (g + 1) * groupSize()), attentionLength / config.headSize);
+    }
+
+    /**
+     * Attention of one query row at position over the keys and values in its window. The query heads sharing a kv
+     * head are attended together so every key and value is read once for the whole group. With few kv heads and a
+     * long context the groups alone do not keep every core busy, the keys are then also split, see
+     * {@link #attendSplit}. A buffer tracking attention for heavy hitter eviction keeps its keys few, they are not
+     * split then so the weights of every key are known without merging.
+     */
+    @VisibleForTesting
+    void attend(AbstractTensor query, AbstractTensor value, int position, KvBufferCache.KvBuffer kvMem) {
+        AbstractTensor[] kvp = kvMem.getKeyTensorsUptoPosition(layerIndex, position);
+        AbstractTensor[] vvp = kvMem.getValTensorsUptoPosition(layerIndex, position);
+        int lo = windowStart(position);
+        int firstGroup = dctx.headStart / groupSize();
+        int groups = (dctx.headEnd + groupSize() - 1) / groupSize() - firstGroup;
+
+        if (kvMem.isTrackingAttention()) {
+            attendSplit(query, value, lo, position, kvp, vvp, 1, kvMem);
+            return;
+        }
+        int splits = decodeSplits(position + 1 - lo, groups, PhysicalCoreTuningExecutor.instance.get().getCoreCount());
+        attendSplit(query, value, lo, position, kvp, vvp, splits, null);
+    }
+
+    /**
+     * How many parts to split the keys of a decode row into, enough for about two tasks per core across all kv head
+     * groups but never parts shorter than MIN_SPLIT_KEYS, below that merging costs more than it saves.
+     */
+    static int decodeSplits(int keys, int groups, int cores) {
+        int wanted = (2 * cores + groups - 1) / groups;
+        return Math.max(1, Math.min(wanted, keys / MIN_SPLIT_KEYS));
+    }
+
+    /**
+     * Attention of one query row over the keys lo..position, one task per kv head group and split of the keys
+     * (split-K, "flash decoding"). The query heads of a group are a small [heads, headSize] matrix, its scores
+     * against a key page are a single matmul and the weighted values a single {@code batchSaxpy}, so each key and
+     * value row is streamed once for the group instead of once per head. Every split keeps the max and sum of its
+     * scores next to the values weighted by exp(score - max), the splits of a head are then merged by rescaling
+     * each to the overall max, exactly as if the softmax had been over all keys. With a single split the weights of
+     * every key are added to tracked, when it is not null.
+     */
+    @VisibleForTesting
+    void attendSplit(AbstractTensor query, AbstractTensor value, int lo, int position, AbstractTensor[] kvp,
+            AbstractTensor[] vvp, int splits, KvBufferCache.KvBuffer tracked) {
+        int groupSize = groupSize();
+        int firstGroup = dctx.headStart / groupSize;
+        int groups = (dctx.headEnd + groupSize - 1) / groupSize - firstGroup;
+        int keys = position + 1 - lo;
+        int pageLength = kvp[kvp.length - 1].shape().first();
+        int splitLength = (keys + splits - 1) / splits;
+        // per head of every task, a task's heads are at task * groupSize onwards
+        float[] max = new float[groups * splits * groupSize];
+        float[] sum = new float[groups * splits * groupSize];
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+
+        try (AbstractTensor partials = splits > 1 ? m.makeDenseTensor(groups * splits * groupSize, config.headSize) : null) {
+            VectorMath.pfor(0, groups * splits, task -> {
+                int g = firstGroup + task / splits;
+                int headFrom = groupHeadFrom(g);
+                int heads = groupHeadTo(g) - headFrom;
+                int xoffset = config.maybeMapToGroupHead(headFrom) * config.headSize;
+                int splitStart = lo + (task % splits) * splitLength;
+                int splitEnd = Math.min(position + 1, splitStart + splitLength);
+
+                if (heads <= 0 || splitStart >= splitEnd) {
+                    return;
+                }
+
+                int firstPage = splitStart / pageLength;
+                int lastPage = (splitEnd - 1) / pageLength;
+                // scores are kept at their offset from the first page so each page lands at a whole page boundary
+                int base = firstPage * pageLength;
+                int from = splitStart - base;
+                int to = splitEnd - base;
+                try (AbstractTensor queries = m.makeDenseTensor(heads, config.headSize);
+                        AbstractTensor attn = m.makeDenseTensor(heads, (lastPage - firstPage + 1) * pageLength);
+                        AbstractTensor acc = m.makeDenseTensor(heads, config.headSize)) {
+                    // the heads of a group are adjacent in the query row
+                    queries.copyFrom(query, query.getOffset(0, headFrom * config.headSize), 0, heads * config.headSize);
+
+                    for (int i = firstPage; i <= lastPage; i++) {
+                        int offset = i * pageLength;
+                        int row = Math.max(splitStart, offset) - offset;
+                        int size = Math.min(splitEnd, offset + pageLength) - offset - row;
+                        configurableTensorProvider.get()
+                                .batchDotProduct(attn, queries, kvp[i], 0, xoffset, config.headSize, offset - base, row, size);
+                    }
+
+                    configurableTensorProvider.get().scale(attentionScale, attn, from, to - from);
 
-                // apply RoPE if present (accounting for huggingface permutation)
-                // https://github.com/huggingface/transformers/blob/d533465150532b0c5de167b574e59f64c68b1154/src/transformers/models/llama/convert_llama_weights_to_hf.py#L114
-                config.ropeFreqs.ifPresent(rf -> {
-                    int headPiece = config.headSize / 2;
-                    int poffset = finalPosition * headPiece;
-
-                    if (config.isGQA) {
-                        // apply RoPE rotation to the q and k vectors for each head
-                        for (int h = dctx.headStart; h < dctx.headEnd; h++) {
-                            // get the q vectors for this head
-                            int offset = h * config.headSize;
-
-                            // skip if we are out of bounds
-                            if (offset >= query.shape().last()) break;
-
-                            int goffset = config.maybeMapToGroupHead(h) * config.headSize;
-                            // rotate q by the freq theta and freq r
-                            for (int i = offset, g = goffset; i < (offset + headPiece); i++, g++) {
-                                float q0 = query.get(0, i);
-                                float q1 = query.get(0, i + headPiece); // hf permutation is 0,64,1,65 etc...
-                                float[] f = rf[poffset + g];
-                                float fcr = f[0];
-                                float fci = f[1];
-                                query.set(q0 * fcr - q1 * fci, 0, i);
-                                query.set(q0 * fci + q1 * fcr, 0, i + headPiece);
+                    for (int r = 0; r < heads; r++) {
+                        float headMax = Float.NEGATIVE_INFINITY;
+                        for (int i = from; i < to; i++) {
+                            float v = attn.get(r, i);
+                            if (config.attnLogitSoftCapping != null) {
+                                v = softCap(v);
+                                attn.set(v, r, i);
                             }
+                            headMax = Math.max(headMax, v);
+                        }
+                        float headSum = 0.0f;
+                        for (int i = from; i < to; i++) {
+                            float e = (float) FastMath.exp(attn.get(r, i) - headMax);
+                            attn.set(e, r, i);
+                            headSum += e;
                         }
+                        max[task * groupSize + r] = headMax;
+                        sum[task * groupSize + r] = headSum;
+                    }
 
-                        for (int h = dctx.groupHeadStart; h < dctx.groupHeadEnd; h++) {
-                            // get the k vectors for this head
-                            int offset = h * config.headSize;
-                            if (offset >= key.shape().last()) break;
-                            // rotate k by the freq theta and freq r
-                            for (int i = offset; i < (offset + headPiece); i++) {
-                                float k00 = key.get(0, i);
-                                float k1 = key.get(0, i + headPiece); // hf permutation is 0,64,1,65 etc...
-                                float[] f = rf[poffset + i];
-                                float fcr = f[0];
-                                float fci = f[1];
-                                key.set(k00 * fcr - k1 * fci, 0, i);
-                                key.set(k00 * fci + k1 * fcr, 0, i + headPiece);
+                    if (tracked != null && splits == 1) {
+                        float[] weights = new float[to - from];
+                        for (int r = 0; r < heads; r++) {
+                            float headSum = sum[task * groupSize + r];
+                            for (int i = from; i < to; i++) {
+                                weights[i - from] += attn.get(r, i) / headSum;
                             }
                         }
+                        tracked.addAttention(layerIndex, splitStart, weights);
+                    }
+
+                    for (int i = firstPage; i <= lastPage; i++) {
+                        int offset = i * pageLength;
+                        int row = Math.max(splitStart, offset) - offset;
+                        int size = Math.min(splitEnd, offset + pageLength) - offset - row;
+                        configurableTensorProvider.get()
+                                .batchSaxpy(attn, vvp[i], acc, xoffset, 0, config.headSize, offset - base + row, row, size);
+                    }
+
+                    if (splits == 1) {
+                        for (int r = 0; r < heads; r++) {
+                            configurableTensorProvider.get().scale(1.0f / sum[task * groupSize + r], acc.slice(r), 0, config.headSize);
+                        }
+                        value.copyFrom(acc, 0, value.getOffset(0, headFrom * config.headSize), heads * config.headSize);
                     } else {
-                        // apply RoPE rotation to the q and k vectors for each head
-                        for (int h = dctx.headStart; h < dctx.headEnd; h++) {
-                            // get the q and k vectors for this head
-                            int offset = h * config.headSize;
-                            // rotate q and k by the freq theta and freq r
-                            for (int i = offset; i < (offset + headPiece); i++) {
-                                float q0 = query.get(0, i);
-                                float q1 = query.get(0, i + headPiece); // hf permutation is 0,64,1,65 etc...
-                                float k00 = key.get(0, i);
-                                float k1 = key.get(0, i + headPiece);
-                                float[] f = rf[poffset + i];
-                                float fcr = f[0];
-                                float fci = f[1];
-                                query.set(q0 * fcr - q1 * fci, 0, i);
-                                query.set(q0 * fci + q1 * fcr, 0, i + headPiece);
-                                key.set(k00 * fcr - k1 * fci, 0, i);
-                                key.set(k00 * fci + k1 * fcr, 0, i + headPiece);
-                            }
+                        partials.copyFrom(acc, 0, partials.getOffset(task * groupSize, 0), heads * config.headSize);
+                    }
+                }
+            });
+
+            if (splits == 1) {
+                return;
+            }
+
+            // log-sum-exp merge of the splits of every head
+            for (int gi = 0; gi < groups; gi++) {
+                int headFrom = groupHeadFrom(firstGroup + gi);
+                int heads = groupHeadTo(firstGroup + gi) - headFrom;
+                for (int r = 0; r < heads; r++) {
+                    int yoffset = (headFrom + r) * config.headSize;
+                    float headMax = Float.NEGATIVE_INFINITY;
+                    for (int s = 0; s < splits; s++) {
+                        headMax = Math.max(headMax, max[(gi * splits + s) * groupSize + r]);
+                    }
+                    float total = 0.0f;
+                    for (int s = 0; s < splits; s++) {
+                        int i = (gi * splits + s) * groupSize + r;
+                        if (max[i] != Float.NEGATIVE_INFINITY) {
+                            total += sum[i] * (float) FastMath.exp(max[i] - headMax);
                         }
                     }
-                    debug("query+rope", query, finalPosition);
-                    debug("key+rope", key, finalPosition);
-                });
-
-                // Attention
-                VectorMath.pfor(dctx.headStart, dctx.headEnd, h -> {
-                    int xoffset = config.maybeMapToGroupHead(h) * config.headSize;
-                    int yoffset = h * config.headSize;
-
-                    if (yoffset >= query.shape().last()) return;
-
-                    try (AbstractTensor attn = m.makeDenseTensor(1, kvp[0].shape().first() * kvp.length)) { // chunky so the cache isn't
-                        // thrashed
-                        // compute attention scores by multiplying query and key for every position
-                        // do this for each position since the pages are not contiguous
-                        for (int i = 0; i < kvp.length; i++) {
-                            int len = kvp[i].shape().first();
-                            int offset = i * len;
-                            int size = i == kvp.length - 1 ? (finalPosition + 1) - offset : len;
-                            configurableTensorProvider.get()
-                                    .batchDotProduct(attn, query, kvp[i], yoffset, xoffset, config.headSize, offset, 0, size);
+                    for (int s = 0; s < splits; s++) {
+                        int i = (gi * splits + s) * groupSize + r;
+                        if (max[i] != Float.NEGATIVE_INFINITY) {
+                            float weight = (float) FastMath.exp(max[i] - headMax) / total;
+                            configurableTensorProvider.get().saxpy(weight, partials.slice(i), value, 0, yoffset, config.headSize);
                         }
+                    }
+                }
+            }
+        }
+    }
 
-                        configurableTensorProvider.get().scale(attentionScale, attn, 0, finalPosition + 1);
+    /**
+     * Causal attention of the rows first..first+rows of queryBatch, at the consecutive positions start..start+rows of
+     * kvMem, into the same rows of valueBatch. Queries are taken PREFILL_TILE at a time, together with the other query
+     * heads sharing their kv head, and multiplied with a whole key page in one matmul, so each key page is loaded
+     * once per tile and group instead of once per query and head. The softmax is computed online, every row keeps
+     * the running max and sum of its scores and rescales what it accumulated so far when the max grows, so the
+     * scores of only one page are ever held. When kvMem tracks attention the weights the last tile gives every key
+     * are added to it (the observation window of SnapKV), see {@link #trackLastTile}.
+     */
+    @VisibleForTesting
+    void attendTiled(AbstractTensor queryBatch, AbstractTensor valueBatch, int first, int rows, int start,
+            KvBufferCache.KvBuffer kvMem) {
+        AbstractTensor[] kvp = kvMem.getKeyTensorsUptoPosition(layerIndex, start + rows - 1);
+        AbstractTensor[] vvp = kvMem.getValTensorsUptoPosition(layerIndex, start + rows - 1);
+        int pageLength = kvp[kvp.length - 1].shape().first();
+        int firstGroup = dctx.headStart / groupSize();
+        int lastGroup = (dctx.headEnd + groupSize() - 1) / groupSize();
+
+        for (int tile = 0; tile < rows; tile += PREFILL_TILE) {
+            int tileRows = Math.min(PREFILL_TILE, rows - tile);
+            int tileStart = start + tile;
+            int tileEnd = tileStart + tileRows; // exclusive, the last row sees keys up to tileEnd - 1
+            int tileLo = windowStart(tileStart); // the first row sees the oldest keys
+            int tileFirst = first + tile;
+
+            VectorMath.pfor(firstGroup, lastGroup, g -> {
+                int headFrom = groupHeadFrom(g);
+                int heads = groupHeadTo(g) - headFrom;
+                int xoffset = config.maybeMapToGroupHead(headFrom) * config.headSize;
+
+                if (heads <= 0) return;
+
+                // row r * heads + k is the query of tile row r for head headFrom + k
+                int queryRows = tileRows * heads;
+                try (AbstractTensor queries = m.makeDenseTensor(queryRows, config.headSize);
+                        AbstractTensor scores = m.makeDenseTensor(queryRows, pageLength);
+                        AbstractTensor acc = m.makeDenseTensor(queryRows, config.headSize)) {
+                    for (int r = 0; r < tileRows; r++) {
+                        queries.copyFrom(queryBatch, queryBatch.getOffset(tileFirst + r, headFrom * config.headSize),
+                                queries.getOffset(r * heads, 0), heads * config.headSize);
+                    }
+                    float[] max = new float[queryRows];
+                    float[] sum = new float[queryRows];
+                    Arrays.fill(max, Float.NEGATIVE_INFINITY);
+
+                    for (int i = tileLo / pageLength; i * pageLength < tileEnd; i++) {
+                        int offset = i * pageLength;
+                        int row = Math.max(tileLo, offset) - offset;
+                        int size = Math.min(tileEnd, offset + pageLength) - offset - row;
+                        configurableTensorProvider.get()
+                                .batchDotProduct(scores, queries, kvp[i], 0, xoffset, config.headSize, 0, row, size);
+                        configurableTensorProvider.get().scale(attentionScale, scores, row, size);
+
+                        for (int q = 0; q < queryRows; q++) {
+                            int r = q / heads;
+                            // causal mask, the row at tileStart + r only sees the keys of its window up to its own
+                            // position, the keys it does not see get a weight of 0
+                            int from = Math.max(Math.max(windowStart(tileStart + r), offset) - offset, row);
+                            int to = Math.min(row + size, tileStart + r + 1 - offset);
+                            float pageMax = Float.NEGATIVE_INFINITY;
+                            for (int j = from; j < to; j++) {
+                                float v = scores.get(q, j);
+                                if (config.attnLogitSoftCapping != null) {
+                                    v = softCap(v);
+                                    scores.set(v, q, j);
+                                }
+                                pageMax = Math.max(pageMax, v);
+                            }
 
-                        if (config.attnLogitSoftCapping != null) {
-                            for (int i = 0; i < finalPosition + 1; i++) {
-                                float v = attn.get(0, i);
-                                v /= config.attnLogitSoftCapping;
-                                v = (float) FastMath.tanh(v);
-                                v *= config.attnLogitSoftCapping;
-                                attn.set(v, 0, i);
+                            if (pageMax > max[q]) {
+                                if (sum[q] > 0) {
+                                    float correction = (float) FastMath.exp(max[q] - pageMax);
+                                    configurableTensorProvider.get().scale(correction, acc.slice(q), 0, config.headSize);
+                                    sum[q] *= correction;
+                                }
+                                max[q] = pageMax;
+                            }
+                            for (int j = row; j < row + size; j++) {
+                                float e = j >= from && j < to ? (float) FastMath.exp(scores.get(q, j) - max[q]) : 0.0f;
+                                scores.set(e, q, j);
+                                sum[q] += e;
                             }
                         }
+                        configurableTensorProvider.get()
+                                .batchSaxpy(scores, vvp[i], acc, xoffset, 0, config.headSize, row, row, size);
+                    }
 
-                        // softmax the scores to get attention weights, from 0..pos inclusively
-                        VectorTensorMathUtils.softMax(attn, 0, finalPosition + 1);
-
-                        // apply adjusted attention weights to value vectors
-                        // do this for each position since the pages are not contiguous
-                        for (int i = 0; i < vvp.length; i++) {
-                            int len = vvp[i].shape().first(); // batch size
-                            int offset = i * len;
-                            int size = i == vvp.length - 1 ? (finalPosition + 1) - offset : len;
-                            configurableTensorProvider.get().saxpy(attn, vvp[i], value, xoffset, yoffset, config.headSize, offset, 0, size);
+                    for (int r = 0; r < tileRows; r++) {
+                        for (int k = 0; k < heads; k++) {
+                            configurableTensorProvider.get().scale(1.0f / sum[r * heads + k], acc.slice(r * heads + k), 0, config.headSize);
                         }
+                        valueBatch.copyFrom(acc, acc.getOffset(r * heads, 0),
+                                valueBatch.getOffset(tileFirst + r, headFrom * config.headSize), heads * config.headSize);
                     }
-                });
-            }
-
-            debug("after_attention", valueBatch, layerIndex);
 
+                    if (kvMem.isTrackingAttention() && tileEnd == start + rows) {
+                        trackLastTile(queries, scores, max, sum, heads, xoffset, tileStart, tileRows, kvp, kvMem);
+                    }
+                }
+            });
+        }
+    }
 
-            // matmul the projection and sum into input
-            // input += c_proj_weight @ ybuf + c_proj_bias
-            AbstractTensor result = m.makeDenseTensor(batchSize, config.embeddingLength);
-            try (AbstractTensor vq = m.maybeQuantize(valueBatch)) {
-                VectorMath.pchunk(0, config.embeddingLength, (chunkStart, chunkSize) -> {
-                    configurableTensorProvider.get()
-                            .dotProductChunk(
-                                    result,
-                                    vq,
-                                    outputProjectionWeights,
-                                    dctx.attentionSegmentStart,
-                                    dctx.attentionSegmentLength,
-                                    chunkStart,
-                                    chunkSize
-                            );
-                }, splitSize);
-                tensorReducer.ifPresent(func -> func.accept(Collections.singletonList(result)));
-                outputProjectionBias.ifPresent(bias -> configurableTensorProvider.get().accumulate(result, bias, 0, config.embeddingLength));
+    /**
+     * Adds the softmax weights of the rows of a tile to the keys they attend, the scores are computed again as
+     * {@link #attendTiled} only holds them a page at a time. max and sum are the final ones of each query row.
+     */
+    private void trackLastTile(AbstractTensor queries, AbstractTensor scores, float[] max, float[] sum, int heads,
+            int xoffset, int tileStart, int tileRows, AbstractTensor[] kvp, KvBufferCache.KvBuffer kvMem) {
+        int pageLength = kvp[kvp.length - 1].shape().first();
+        int tileLo = windowStart(tileStart);
+        int tileEnd = tileStart + tileRows;
+        float[] weights = new float[tileEnd - tileLo];
+        for (int i = tileLo / pageLength; i * pageLength < tileEnd; i++) {
+            int offset = i * pageLength;
+            int row = Math.max(tileLo, offset) - offset;
+            int size = Math.min(tileEnd, offset + pageLength) - offset - row;
+            configurableTensorProvider.get()
+                    .batchDotProduct(scores, queries, kvp[i], 0, xoffset, config.headSize, 0, row, size);
+            configurableTensorProvider.get().scale(attentionScale, scores, row, size);
+            for (int q = 0; q < tileRows * heads; q++) {
+                int r = q / heads;
+                int from = Math.max(Math.max(windowStart(tileStart + r), offset) - offset, row);
+                int to = Math.min(row + size, tileStart + r + 1 - offset);
+                for (int j = from; j < to; j++) {
+                    float v = scores.get(q, j);
+                    if (config.attnLogitSoftCapping != null) {
+                        v = softCap(v);
+                    }
+                    weights[offset + j - tileLo] += (float) FastMath.exp(v - max[q]) / sum[q];
+                }
             }
-
-            return result;
         }
+        kvMem.addAttention(layerIndex, tileLo, weights);
+    }
+
+    protected float softCap(float v) {
+        return (float) FastMath.tanh(v / config.attnLogitSoftCapping) * config.attnLogitSoftCapping;
     }
 }
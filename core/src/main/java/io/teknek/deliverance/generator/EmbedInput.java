@@ -20,10 +20,23 @@ public abstract class EmbedInput {
     public abstract AbstractTensor inputTokenToEmbedding(int inputToken, int position);
 
     public AbstractTensor batchInputsToEmbeddings(int[] inputTokens, int startPos) {
+        int[] positions = new int[inputTokens.length];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = startPos + i;
+        }
+        return batchInputsToEmbeddings(inputTokens, positions);
+    }
+
+    /**
+     * Embeds tokens whose positions are not contiguous, for example the current token of several sessions
+     * being decoded together.
+     */
+    public AbstractTensor batchInputsToEmbeddings(int[] inputTokens, int[] positions) {
         Preconditions.checkArgument(inputTokens.length > 0);
-        AbstractTensor zeroTokenEmbedding = inputTokenToEmbedding(inputTokens[0], startPos);
+        Preconditions.checkArgument(inputTokens.length == positions.length);
+        AbstractTensor zeroTokenEmbedding = inputTokenToEmbedding(inputTokens[0], positions[0]);
 
-        LOGGER.warn("tensor for 0th inputToken shape {} size {}", zeroTokenEmbedding.shape(), zeroTokenEmbedding.size());
+        LOGGER.debug("tensor for 0th inputToken shape {} size {}", zeroTokenEmbedding.shape(), zeroTokenEmbedding.size());
         if (inputTokens.length == 1) {
             return zeroTokenEmbedding;
         }
@@ -32,11 +45,10 @@ public abstract class EmbedInput {
         tb.copyFrom(zeroTokenEmbedding, 0, 0, zeroTokenEmbedding.shape().last());
         zeroTokenEmbedding.close();
         VectorMath.pfor(1, inputTokens.length, i -> {
-            AbstractTensor ti = inputTokenToEmbedding(inputTokens[i], startPos + i);
+            AbstractTensor ti = inputTokenToEmbedding(inputTokens[i], positions[i]);
             tb.copyFrom(ti, 0, i * ti.shape().last(), ti.shape().last());
             ti.close();
         });
         return tb;
     }
 }
-
@@ -0,0 +1,126 @@
+package io.teknek.deliverance.generator;
+
+import com.google.common.base.Preconditions;
+import io.teknek.deliverance.math.VectorMath;
+import io.teknek.deliverance.model.AbstractModel;
+import io.teknek.deliverance.tensor.AbstractTensor;
+import io.teknek.deliverance.tensor.KvBufferCache;
+import io.teknek.deliverance.tensor.VectorTensorMathUtils;
+import io.teknek.deliverance.tensor.operations.ConfigurableTensorProvider;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import static io.teknek.deliverance.tensor.DebugSupport.debug;
+
+/**
+ * Bidirectional self attention of an encoder (BERT and friends). Every token attends to every token of its own
+ * sequence and nothing is written to a kv buffer. Several sequences are encoded together padded to the same length,
+ * the keys past the length of a sequence are masked and the attention of its padding rows is left at zero.
+ */
+public class EncoderSelfAttention extends CausalSelfAttention {
+
+    public EncoderSelfAttention(
+            AbstractModel m,
+            int layerIndex,
+            Optional<AbstractTensor> queryAttnBias,
+            Optional<AbstractTensor> keyAttnBias,
+            Optional<AbstractTensor> valueAttnBias,
+            AbstractTensor queryAttnWeights,
+            AbstractTensor keyAttnWeights,
+            AbstractTensor valueAttnWeights,
+            Optional<AbstractTensor> outputProjectionBias,
+            AbstractTensor outputProjectionWeights,
+            ConfigurableTensorProvider configurableTensorProvider
+    ) {
+        super(m, layerIndex, queryAttnBias, keyAttnBias, valueAttnBias, queryAttnWeights, keyAttnWeights,
+                valueAttnWeights, outputProjectionBias, outputProjectionWeights, configurableTensorProvider);
+    }
+
+    /**
+     * An encoder has no kv cache, the rows are encoded as one sequence and kvMems is ignored.
+     */
+    @Override
+    public AbstractTensor forward(AbstractTensor input, int[] positions, KvBufferCache.KvBuffer[] kvMems,
+            Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        int batchSize = input.shape().first();
+        return forward(input, batchSize, new int[] { batchSize }, tensorReducer);
+    }
+
+    /**
+     * @param input [lengths.length * sequenceLength, embeddingLength], sequence s in the rows from s * sequenceLength
+     * @param lengths the number of real tokens of every sequence, the rest of its rows are padding
+     */
+    public AbstractTensor forward(AbstractTensor input, int sequenceLength, int[] lengths,
+            Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        Preconditions.checkArgument(input.dims() == 2 && input.shape().last() == config.embeddingLength);
+        int batchSize = input.shape().first();
+        Preconditions.checkArgument(batchSize == lengths.length * sequenceLength,
+                "Expected %s rows for %s sequences of %s", lengths.length * sequenceLength, lengths.length, sequenceLength);
+        int[] positions = new int[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            positions[i] = i % sequenceLength;
+        }
+        try (AbstractTensor queryBatch = m.makeDenseTensor(batchSize, attentionLength);
+                AbstractTensor keyBatch = m.makeDenseTensor(batchSize, config.kvLength);
+                AbstractTensor valBatch = m.makeDenseTensor(batchSize, config.kvLength);
+                AbstractTensor valueBatch = m.makeDenseTensor(batchSize, attentionLength)) {
+
+            projectQkv(input, queryBatch, keyBatch, valBatch);
+            applyRope(queryBatch, keyBatch, positions);
+
+            for (int s = 0; s < lengths.length; s++) {
+                Preconditions.checkArgument(lengths[s] > 0 && lengths[s] <= sequenceLength,
+                        "sequence %s has length %s, expected 1..%s", s, lengths[s], sequenceLength);
+                attendSequence(queryBatch, keyBatch, valBatch, valueBatch, s * sequenceLength, lengths[s]);
+            }
+
+            debug("after_attention", valueBatch, layerIndex);
+
+            return projectOutput(valueBatch, tensorReducer);
+        }
+    }
+
+    /**
+     * Attention of the rows first..first+length over each other. The scores of a head are a single
+     * [length, length] matmul of its queries and keys, softmaxed per row and multiplied into the values.
+     */
+    private void attendSequence(AbstractTensor queryBatch, AbstractTensor keyBatch, AbstractTensor valBatch,
+            AbstractTensor valueBatch, int first, int length) {
+        try (AbstractTensor queries = copyRows(queryBatch, first, length, attentionLength);
+                AbstractTensor keys = copyRows(keyBatch, first, length, config.kvLength);
+                AbstractTensor values = copyRows(valBatch, first, length, config.kvLength)) {
+            VectorMath.pfor(dctx.headStart, dctx.headEnd, h -> {
+                int xoffset = config.maybeMapToGroupHead(h) * config.headSize;
+                int yoffset = h * config.headSize;
+
+                if (yoffset >= attentionLength) return;
+
+                try (AbstractTensor scores = m.makeDenseTensor(length, length)) {
+                    configurableTensorProvider.get()
+                            .batchDotProduct(scores, queries, keys, yoffset, xoffset, config.headSize, 0, 0, length);
+                    configurableTensorProvider.get().scale(attentionScale, scores, 0, length);
+
+                    for (int r = 0; r < length; r++) {
+                        AbstractTensor row = scores.slice(r);
+                        if (config.attnLogitSoftCapping != null) {
+                            for (int j = 0; j < length; j++) {
+                                row.set(softCap(row.get(0, j)), 0, j);
+                            }
+                        }
+                        VectorTensorMathUtils.softMax(row, 0, length);
+                        configurableTensorProvider.get()
+                                .saxpy(row, values, valueBatch.slice(first + r), xoffset, yoffset, config.headSize, 0, 0, length);
+                    }
+                }
+            });
+        }
+    }
+
+    private AbstractTensor copyRows(AbstractTensor batch, int first, int rows, int width) {
+        AbstractTensor copy = m.makeDenseTensor(rows, width);
+        copy.copyFrom(batch, batch.getOffset(first, 0), 0, rows * width);
+        return copy;
+    }
+}
@@ -5,5 +5,6 @@ public enum FinishReason {
     MAX_TOKENS,
     STOP_TOKEN,
     TOOL_CALL,
-    ERROR
+    ERROR,
+    CANCELLED
 }
\ No newline at end of file
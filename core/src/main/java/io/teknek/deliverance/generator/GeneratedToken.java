@@ -0,0 +1,24 @@
+package io.teknek.deliverance.generator;
+
+/**
+ * One token delivered by a {@link GenerationPublisher}, the same values a {@link io.teknek.deliverance.model.GenerateEvent}
+ * receives.
+ */
+public class GeneratedToken {
+    public final int token;
+    public final String raw;
+    public final String text;
+    public final float timing;
+
+    public GeneratedToken(int token, String raw, String text, float timing) {
+        this.token = token;
+        this.raw = raw;
+        this.text = text;
+        this.timing = timing;
+    }
+
+    @Override
+    public String toString() {
+        return "GeneratedToken{" + "token=" + token + ", text='" + text + '\'' + ", timing=" + timing + '}';
+    }
+}
@@ -0,0 +1,224 @@
+package io.teknek.deliverance.generator;
+
+import com.google.common.base.Preconditions;
+import io.teknek.deliverance.safetensors.prompt.PromptContext;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A generation as a {@link Flow.Publisher} of its tokens. The generation starts on the executor when the (single)
+ * subscriber subscribes, tokens are delivered only as the subscriber requests them. Up to bufferSize tokens are
+ * buffered ahead of the demand, after that the generating thread waits, so a slow consumer pauses the generation
+ * between decode steps instead of growing a queue.
+ * <p>
+ * {@link Flow.Subscription#cancel()} or {@link #cancel()} stop the generation at the next decode step, it then
+ * completes {@link #response()} with {@link FinishReason#CANCELLED} and frees its thread. The subscriber is completed
+ * after the last token, or gets the error the generation failed with.
+ * <p>
+ * With a {@link io.teknek.deliverance.model.ContinuousBatchScheduler} tokens are produced on the scheduler thread,
+ * waiting there would stall every session in the batch, so use a bufferSize of at least the token limit.
+ */
+public class GenerationPublisher implements Flow.Publisher<GeneratedToken> {
+    public static final int DEFAULT_BUFFER_SIZE = 16;
+
+    private final Generator generator;
+    private final UUID session;
+    private final PromptContext promptContext;
+    private final GeneratorParameters generatorParameters;
+    private final Executor executor;
+    private final int bufferSize;
+    private final CompletableFuture<Response> response = new CompletableFuture<>();
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    private final AtomicInteger drains = new AtomicInteger();
+
+    private final ArrayDeque<GeneratedToken> buffer = new ArrayDeque<>();
+    private Flow.Subscriber<? super GeneratedToken> subscriber;
+    private long demand;
+    private boolean done;
+    private boolean terminated;
+    private Throwable failure;
+
+    /**
+     * The generation runs with a copy of generatorParameters whose cancellation also fires when this publisher is
+     * cancelled, generatorParameters itself is not changed.
+     */
+    public GenerationPublisher(Generator generator, UUID session, PromptContext promptContext,
+                               GeneratorParameters generatorParameters, Executor executor, int bufferSize) {
+        Preconditions.checkArgument(bufferSize > 0, "bufferSize must be positive");
+        this.generator = generator;
+        this.session = session;
+        this.promptContext = promptContext;
+        this.executor = executor;
+        this.bufferSize = bufferSize;
+        BooleanSupplier callerCancelled = generatorParameters.cancelled.orElse(() -> false);
+        this.generatorParameters = generatorParameters.copy().withCancellation(
+                () -> cancelled.get() || callerCancelled.getAsBoolean());
+    }
+
+    public GenerationPublisher(Generator generator, UUID session, PromptContext promptContext,
+                               GeneratorParameters generatorParameters, Executor executor) {
+        this(generator, session, promptContext, generatorParameters, executor, DEFAULT_BUFFER_SIZE);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super GeneratedToken> subscriber) {
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) { }
+
+                @Override
+                public void cancel() { }
+            });
+            subscriber.onError(new IllegalStateException("a generation can only be subscribed to once"));
+            return;
+        }
+        synchronized (this) {
+            this.subscriber = subscriber;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    fail(new IllegalArgumentException("request must be positive, was " + n));
+                    GenerationPublisher.this.cancel();
+                    return;
+                }
+                synchronized (GenerationPublisher.this) {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                GenerationPublisher.this.cancel();
+            }
+        });
+        try {
+            executor.execute(this::run);
+        } catch (RuntimeException e) {
+            response.completeExceptionally(e);
+            fail(e);
+        }
+    }
+
+    /** @return completes with the response once the generation ends, including when it was cancelled */
+    public CompletableFuture<Response> response() {
+        return response;
+    }
+
+    /** Stops the generation at the next decode step, tokens not delivered yet are dropped. */
+    public void cancel() {
+        cancelled.set(true);
+        synchronized (this) {
+            buffer.clear();
+            terminated = true;
+            notifyAll();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    private void run() {
+        try {
+            Response r = generator.generate(session, promptContext, generatorParameters, this::emit);
+            synchronized (this) {
+                done = true;
+            }
+            response.complete(r);
+            drain();
+        } catch (Throwable t) {
+            response.completeExceptionally(t);
+            fail(t);
+        }
+    }
+
+    private void emit(int next, String nextRaw, String nextCleaned, float timing) {
+        synchronized (this) {
+            while (buffer.size() >= bufferSize && !cancelled.get()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancelled.set(true);
+                }
+            }
+            if (cancelled.get() || done) {
+                return;
+            }
+            buffer.add(new GeneratedToken(next, nextRaw, nextCleaned, timing));
+        }
+        drain();
+    }
+
+    /** Drops what was not delivered yet and signals t to the subscriber instead. */
+    private void fail(Throwable t) {
+        synchronized (this) {
+            if (done && failure != null) {
+                return;
+            }
+            buffer.clear();
+            done = true;
+            failure = t;
+        }
+        drain();
+    }
+
+    /**
+     * Delivers buffered tokens while there is demand and signals the end once everything was delivered. Whichever
+     * thread gets here first (the generator or a requesting subscriber) delivers for all of them, so the subscriber
+     * is never called concurrently.
+     */
+    private void drain() {
+        if (drains.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            while (true) {
+                GeneratedToken next;
+                Throwable error = null;
+                boolean complete = false;
+                synchronized (this) {
+                    if (terminated) {
+                        break;
+                    }
+                    if (demand > 0 && !buffer.isEmpty()) {
+                        next = buffer.poll();
+                        demand--;
+                        notifyAll();
+                    } else if (done && buffer.isEmpty()) {
+                        next = null;
+                        terminated = true;
+                        error = failure;
+                        complete = error == null;
+                    } else {
+                        break;
+                    }
+                }
+                try {
+                    if (next != null) {
+                        subscriber.onNext(next);
+                    } else if (complete) {
+                        subscriber.onComplete();
+                    } else {
+                        subscriber.onError(error);
+                    }
+                } catch (RuntimeException e) {
+                    // a subscriber that throws is treated as cancelled
+                    cancel();
+                }
+            }
+        } while (drains.decrementAndGet() != 0);
+    }
+}
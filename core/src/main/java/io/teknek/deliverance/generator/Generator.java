@@ -6,6 +6,7 @@ import io.teknek.deliverance.safetensors.prompt.PromptContext;
 import java.io.Closeable;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 import java.util.function.BiConsumer;
 
 public interface Generator extends Closeable {
@@ -21,4 +22,15 @@ public interface Generator extends Closeable {
     Response generate(UUID session, PromptContext promptContext, GeneratorParameters generatorParameters,
             GenerateEvent onTokenWithTimings
     );
-}
\ No newline at end of file
+
+    /**
+     * Generate tokens from a prompt on the executor, delivered as the subscriber requests them and cancellable between
+     * decode steps
+     *
+     * @see GenerationPublisher
+     */
+    default GenerationPublisher generateAsync(UUID session, PromptContext promptContext,
+            GeneratorParameters generatorParameters, Executor executor) {
+        return new GenerationPublisher(this, session, promptContext, generatorParameters, executor);
+    }
+}
@@ -1,7 +1,10 @@
 package io.teknek.deliverance.generator;
 
+import io.teknek.deliverance.model.TokenProposer;
+
 import java.util.List;
 import java.util.Optional;
+import java.util.function.BooleanSupplier;
 
 /**
  * This class hopefully wont stay long, the prompt context doesnt hold all the possible request parameters at the moment
@@ -11,9 +14,46 @@ public class GeneratorParameters {
     public Optional<Float> temperature = Optional.of(0.0f);
     public Optional<Integer> ntokens = Optional.of(256);
     public Optional<Integer> seed = Optional.of(42);
+    public Optional<Integer> topK = Optional.empty();
+    public Optional<Float> topP = Optional.empty();
+    public Optional<Float> minP = Optional.empty();
     //public Optional<String> cacheSalt = Optional.of("sha1obetter");
     public Optional<List<String>> stopWords = Optional.empty();
     public Optional<Boolean> includeStopStrInOutput = Optional.empty();
+    public Optional<Boolean> holdBackStopWords = Optional.empty();
+    public Optional<TokenProposer.Factory> tokenProposer = Optional.empty();
+    public Optional<Integer> speculativeTokens = Optional.empty();
+    public Optional<Integer> promptLookupNgramSize = Optional.empty();
+    public Optional<Integer> n = Optional.empty();
+    public Optional<Integer> beamWidth = Optional.empty();
+    public Optional<BooleanSupplier> cancelled = Optional.empty();
+    public Optional<Integer> attentionSinks = Optional.empty();
+    public Optional<Integer> heavyHitterRecentTokens = Optional.empty();
+    public Optional<Integer> heavyHitterTokens = Optional.empty();
+
+    /** @return parameters that start out the same as these, changing them leaves these as they are */
+    public GeneratorParameters copy(){
+        GeneratorParameters copy = new GeneratorParameters();
+        copy.temperature = temperature;
+        copy.ntokens = ntokens;
+        copy.seed = seed;
+        copy.topK = topK;
+        copy.topP = topP;
+        copy.minP = minP;
+        copy.stopWords = stopWords;
+        copy.includeStopStrInOutput = includeStopStrInOutput;
+        copy.holdBackStopWords = holdBackStopWords;
+        copy.tokenProposer = tokenProposer;
+        copy.speculativeTokens = speculativeTokens;
+        copy.promptLookupNgramSize = promptLookupNgramSize;
+        copy.n = n;
+        copy.beamWidth = beamWidth;
+        copy.cancelled = cancelled;
+        copy.attentionSinks = attentionSinks;
+        copy.heavyHitterRecentTokens = heavyHitterRecentTokens;
+        copy.heavyHitterTokens = heavyHitterTokens;
+        return copy;
+    }
 
     public GeneratorParameters withSeed(int seed){
         this.seed = Optional.of(seed);
@@ -33,6 +73,33 @@ public class GeneratorParameters {
         return this;
     }
 
+    /** Sample only from the k most likely tokens, see {@link Sampler} */
+    public GeneratorParameters withTopK(int topK){
+        this.topK = Optional.of(topK);
+        return this;
+    }
+
+    /** Sample only from the most likely tokens whose probability adds up to topP, see {@link Sampler} */
+    public GeneratorParameters withTopP(float topP){
+        this.topP = Optional.of(topP);
+        return this;
+    }
+
+    /** Sample only from tokens at least minP times as likely as the most likely token, see {@link Sampler} */
+    public GeneratorParameters withMinP(float minP){
+        this.minP = Optional.of(minP);
+        return this;
+    }
+
+    /**
+     * Checked between decode steps, once it returns true the generation ends with {@link FinishReason#CANCELLED}
+     * and the tokens generated so far.
+     */
+    public GeneratorParameters withCancellation(BooleanSupplier cancelled){
+        this.cancelled = Optional.of(cancelled);
+        return this;
+    }
+
     public GeneratorParameters withStopWords(List<String> stopWords){
         this.stopWords = Optional.of(stopWords);
         return this;
@@ -42,4 +109,76 @@ public class GeneratorParameters {
         this.includeStopStrInOutput= Optional.of(include);
         return this;
     }
+
+    /**
+     * Delay emitting text that could be the start of a stop word until it is known not to be one, so a stop word is
+     * never partly streamed.
+     */
+    public GeneratorParameters withHoldBackStopWords(boolean holdBack){
+        this.holdBackStopWords = Optional.of(holdBack);
+        return this;
+    }
+
+    /**
+     * Speculative decoding, a proposer made by the factory for each generation proposes up to speculativeTokens tokens
+     * which the model verifies in a single forward pass. See
+     * {@link io.teknek.deliverance.model.DraftModelProposer#factory} for a draft model sharing the tokenizer.
+     */
+    public GeneratorParameters withTokenProposer(TokenProposer.Factory tokenProposer, int speculativeTokens){
+        this.tokenProposer = Optional.of(tokenProposer);
+        this.speculativeTokens = Optional.of(speculativeTokens);
+        return this;
+    }
+
+    /**
+     * Number of independent samples returned by {@link io.teknek.deliverance.model.AbstractModel#generateCompletions}
+     */
+    public GeneratorParameters withN(int n){
+        this.n = Optional.of(n);
+        return this;
+    }
+
+    /**
+     * Makes {@link io.teknek.deliverance.model.AbstractModel#generateCompletions} run a beam search keeping
+     * beamWidth candidates, the temperature is ignored
+     */
+    public GeneratorParameters withBeamWidth(int beamWidth){
+        this.beamWidth = Optional.of(beamWidth);
+        return this;
+    }
+
+    /**
+     * Speculative decoding without a draft model, the last tokens generated are looked up in the prompt (n-grams of
+     * up to maxNgramSize tokens) and up to speculativeTokens tokens that followed them are verified in a single
+     * forward pass. Ignored when a token proposer is set.
+     */
+    public GeneratorParameters withPromptLookup(int maxNgramSize, int speculativeTokens){
+        this.promptLookupNgramSize = Optional.of(maxNgramSize);
+        this.speculativeTokens = Optional.of(speculativeTokens);
+        return this;
+    }
+
+    /**
+     * Lets a generation go on past the context length of the model. When the kv buffer is full the oldest half of the
+     * positions after the first sinkTokens is dropped and the rest moved down, the first tokens are kept as attention
+     * sinks. ntokens is then no longer capped at the context length.
+     */
+    public GeneratorParameters withAttentionSinks(int sinkTokens){
+        this.attentionSinks = Optional.of(sinkTokens);
+        return this;
+    }
+
+    /**
+     * Bounds the kv buffer of a generation by evicting the positions attention uses least (H2O). Attention adds up the
+     * weight every position receives in each layer, from the end of the prompt and every decoded token, and once the
+     * buffer holds more than heavyHitterTokens + 2 * recentTokens positions each layer keeps only its latest
+     * recentTokens and the heavyHitterTokens older positions that received the most. Memory and the cost of a decode
+     * step then stay the same however long the prompt or generation is, ntokens is no longer capped at the context
+     * length. Can not be combined with attention sinks.
+     */
+    public GeneratorParameters withHeavyHitterKv(int recentTokens, int heavyHitterTokens){
+        this.heavyHitterRecentTokens = Optional.of(recentTokens);
+        this.heavyHitterTokens = Optional.of(heavyHitterTokens);
+        return this;
+    }
 }
@@ -0,0 +1,343 @@
+package io.teknek.deliverance.generator;
+
+import com.google.common.base.Preconditions;
+import io.teknek.deliverance.safetensors.Config;
+import io.teknek.deliverance.tensor.AbstractTensor;
+import io.teknek.deliverance.tensor.impl.FloatBufferTensor;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Picks the next token from a row of logits. Temperature 0 (or top-p 0) is argmax, otherwise the softmax at the temperature is
+ * sampled after optional filtering:
+ * <ul>
+ *     <li>min-p drops tokens less likely than minP times the most likely one, done on the logits before any exp</li>
+ *     <li>top-k keeps the k most likely, a quickselect partitions them out without sorting the vocabulary</li>
+ *     <li>top-p keeps the smallest set of most likely tokens whose probability reaches topP, a heap pops them in
+ *     order so only the nucleus is ordered</li>
+ * </ul>
+ * Soft capping, max, exp and sum use vector kernels. A sampler holds no per call state (scratch space is per thread)
+ * so one instance can be shared.
+ */
+public class Sampler {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final int vocabularySize;
+    private final Float finalLogitSoftCapping;
+    private final float temperature;
+    private final int topK;
+    private final float topP;
+    private final float minP;
+
+    /**
+     * @param topK keep only the k most likely tokens, 0 keeps every token
+     * @param topP keep the most likely tokens until their probability reaches topP, 1 keeps every token and 0 only
+     *             the most likely one
+     * @param minP drop tokens less likely than minP times the most likely token, 0 keeps every token
+     */
+    public Sampler(Config config, float temperature, int topK, float topP, float minP) {
+        Preconditions.checkArgument(temperature >= 0.0f, "temperature must not be negative");
+        Preconditions.checkArgument(topK >= 0, "top_k must not be negative");
+        Preconditions.checkArgument(topP >= 0.0f && topP <= 1.0f, "top_p must be in [0, 1]");
+        Preconditions.checkArgument(minP >= 0.0f && minP <= 1.0f, "min_p must be in [0, 1]");
+        this.vocabularySize = config.vocabularySize;
+        this.finalLogitSoftCapping = config.finalLogitSoftCapping;
+        this.temperature = temperature;
+        this.topK = topK;
+        this.topP = topP;
+        this.minP = minP;
+    }
+
+    public Sampler(Config config, float temperature) {
+        this(config, temperature, 0, 1.0f, 0.0f);
+    }
+
+    public static Sampler of(Config config, GeneratorParameters generatorParameters) {
+        return new Sampler(config, generatorParameters.temperature.orElse(0.0f), generatorParameters.topK.orElse(0),
+                generatorParameters.topP.orElse(1.0f), generatorParameters.minP.orElse(0.0f));
+    }
+
+    public float getTemperature() {
+        return temperature;
+    }
+
+    /**
+     * @param logits a single row of logits, it is not modified
+     * @param uniformSample a uniform random number in [0, 1), ignored for temperature 0
+     */
+    public int sample(AbstractTensor logits, float uniformSample) {
+        Scratch s = SCRATCH.get();
+        float[] values = s.values(vocabularySize);
+        load(logits, values);
+        float max = max(values);
+        if (temperature == 0.0f || topP == 0.0f) {
+            return argmax(values, max);
+        }
+        int n = filter(s, values, max);
+        float sum = s.sum;
+        if (topP < 1.0f) {
+            int popped = nucleus(s, n, topP * sum);
+            float target = uniformSample * s.nucleusSum;
+            float acc = 0;
+            for (int i = n - 1; i >= n - popped; i--) {
+                acc += s.probabilities[i];
+                if (acc >= target) {
+                    return s.indexes[i];
+                }
+            }
+            return s.indexes[n - popped];
+        }
+        float target = uniformSample * sum;
+        float acc = 0;
+        for (int i = 0; i < n; i++) {
+            acc += s.probabilities[i];
+            if (acc >= target) {
+                return s.indexes[i];
+            }
+        }
+        return s.indexes[n - 1];
+    }
+
+    /**
+     * @param logits a single row of logits, it is not modified
+     * @return the distribution sample draws from, tokens removed by the filters have probability 0
+     */
+    public float[] distribution(AbstractTensor logits) {
+        Preconditions.checkState(temperature > 0.0f, "temperature must be positive");
+        Scratch s = SCRATCH.get();
+        float[] values = s.values(vocabularySize);
+        load(logits, values);
+        float max = max(values);
+        float[] distribution = new float[vocabularySize];
+        if (topP == 0.0f) {
+            distribution[argmax(values, max)] = 1.0f;
+            return distribution;
+        }
+        int n = filter(s, values, max);
+        float total = s.sum;
+        int keep = n;
+        if (topP < 1.0f) {
+            keep = nucleus(s, n, topP * total);
+            total = s.nucleusSum;
+        }
+        for (int i = n - keep; i < n; i++) {
+            distribution[s.indexes[i]] = s.probabilities[i] / total;
+        }
+        return distribution;
+    }
+
+    /** Copies the row into values and applies the soft cap. */
+    private void load(AbstractTensor logits, float[] values) {
+        int upper = SPECIES.loopBound(vocabularySize);
+        int i = 0;
+        if (logits instanceof FloatBufferTensor f) {
+            for (; i < upper; i += SPECIES.length()) {
+                f.getVector(SPECIES, 0, i).intoArray(values, i);
+            }
+        }
+        for (; i < vocabularySize; i++) {
+            values[i] = logits.get(0, i);
+        }
+        if (finalLogitSoftCapping != null) {
+            float cap = finalLogitSoftCapping;
+            i = 0;
+            for (; i < upper; i += SPECIES.length()) {
+                FloatVector.fromArray(SPECIES, values, i).div(cap).lanewise(VectorOperators.TANH).mul(cap)
+                        .intoArray(values, i);
+            }
+            for (; i < vocabularySize; i++) {
+                values[i] = (float) Math.tanh(values[i] / cap) * cap;
+            }
+        }
+    }
+
+    private float max(float[] values) {
+        int upper = SPECIES.loopBound(vocabularySize);
+        FloatVector vmax = FloatVector.broadcast(SPECIES, Float.NEGATIVE_INFINITY);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            vmax = vmax.max(FloatVector.fromArray(SPECIES, values, i));
+        }
+        float max = vmax.reduceLanes(VectorOperators.MAX);
+        for (; i < vocabularySize; i++) {
+            max = Math.max(max, values[i]);
+        }
+        return max;
+    }
+
+    private int argmax(float[] values, float max) {
+        int upper = SPECIES.loopBound(vocabularySize);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            VectorMask<Float> m = FloatVector.fromArray(SPECIES, values, i).compare(VectorOperators.EQ, max);
+            if (m.anyTrue()) {
+                return i + m.firstTrue();
+            }
+        }
+        for (; i < vocabularySize; i++) {
+            if (values[i] == max) {
+                return i;
+            }
+        }
+        return vocabularySize - 1;
+    }
+
+    /**
+     * Applies min-p and top-k and computes the unnormalized probabilities of what is left.
+     * @return the number of candidates, their token ids are in indexes and probabilities in probabilities,
+     * their sum in {@link Scratch#sum}
+     */
+    private int filter(Scratch s, float[] values, float max) {
+        int[] indexes = s.indexes;
+        float[] kept = s.probabilities;
+        float threshold = minP > 0.0f ? max + temperature * (float) Math.log(minP) : Float.NEGATIVE_INFINITY;
+        int n = 0;
+        int upper = SPECIES.loopBound(vocabularySize);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            VectorMask<Float> m = FloatVector.fromArray(SPECIES, values, i).compare(VectorOperators.GE, threshold);
+            if (m.allTrue()) {
+                for (int j = 0; j < SPECIES.length(); j++) {
+                    indexes[n] = i + j;
+                    kept[n++] = values[i + j];
+                }
+            } else if (m.anyTrue()) {
+                for (int j = 0; j < SPECIES.length(); j++) {
+                    if (m.laneIsSet(j)) {
+                        indexes[n] = i + j;
+                        kept[n++] = values[i + j];
+                    }
+                }
+            }
+        }
+        for (; i < vocabularySize; i++) {
+            if (values[i] >= threshold) {
+                indexes[n] = i;
+                kept[n++] = values[i];
+            }
+        }
+        if (topK > 0 && topK < n) {
+            selectLargest(kept, indexes, n, topK);
+            n = topK;
+        }
+
+        float invTemperature = 1.0f / temperature;
+        int vupper = SPECIES.loopBound(n);
+        FloatVector vsum = FloatVector.zero(SPECIES);
+        i = 0;
+        for (; i < vupper; i += SPECIES.length()) {
+            FloatVector e = FloatVector.fromArray(SPECIES, kept, i).sub(max).mul(invTemperature)
+                    .lanewise(VectorOperators.EXP);
+            e.intoArray(kept, i);
+            vsum = vsum.add(e);
+        }
+        float sum = vsum.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            kept[i] = (float) Math.exp((kept[i] - max) * invTemperature);
+            sum += kept[i];
+        }
+        s.sum = sum;
+        return n;
+    }
+
+    /**
+     * Quickselect, afterwards the k largest values (and their indexes) are in [0, k) in no particular order. The
+     * partition is three way so runs of equal values (masked or tied logits) do not make it quadratic.
+     */
+    static void selectLargest(float[] values, int[] indexes, int n, int k) {
+        int lo = 0;
+        int hi = n - 1;
+        while (lo < hi) {
+            float a = values[lo];
+            float b = values[(lo + hi) >>> 1];
+            float c = values[hi];
+            float pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+            // afterwards [lo, gt) is larger than the pivot, [gt, lt] equal and (lt, hi] smaller
+            int gt = lo;
+            int lt = hi;
+            int i = lo;
+            while (i <= lt) {
+                if (values[i] > pivot) {
+                    swap(values, indexes, i++, gt++);
+                } else if (values[i] < pivot) {
+                    swap(values, indexes, i, lt--);
+                } else {
+                    i++;
+                }
+            }
+            if (k < gt) {
+                hi = gt - 1;
+            } else if (k <= lt + 1) {
+                return;
+            } else {
+                lo = lt + 1;
+            }
+        }
+    }
+
+    /**
+     * Heapifies the n candidates and pops the most likely until their sum reaches target. Popped candidates end up
+     * at the end of the arrays, the most likely last.
+     * @return the number of popped candidates, their sum is left in {@link Scratch#nucleusSum}
+     */
+    private static int nucleus(Scratch s, int n, float target) {
+        float[] probabilities = s.probabilities;
+        int[] indexes = s.indexes;
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(probabilities, indexes, i, n);
+        }
+        float acc = 0;
+        int size = n;
+        while (size > 0 && acc < target) {
+            acc += probabilities[0];
+            swap(probabilities, indexes, 0, --size);
+            siftDown(probabilities, indexes, 0, size);
+        }
+        s.nucleusSum = acc;
+        return n - size;
+    }
+
+    private static void siftDown(float[] values, int[] indexes, int i, int n) {
+        while (true) {
+            int largest = i;
+            int l = 2 * i + 1;
+            int r = l + 1;
+            if (l < n && values[l] > values[largest]) largest = l;
+            if (r < n && values[r] > values[largest]) largest = r;
+            if (largest == i) {
+                return;
+            }
+            swap(values, indexes, i, largest);
+            i = largest;
+        }
+    }
+
+    private static void swap(float[] values, int[] indexes, int a, int b) {
+        float v = values[a];
+        values[a] = values[b];
+        values[b] = v;
+        int x = indexes[a];
+        indexes[a] = indexes[b];
+        indexes[b] = x;
+    }
+
+    private static class Scratch {
+        float[] values = new float[0];
+        float[] probabilities = new float[0];
+        int[] indexes = new int[0];
+        float sum;
+        float nucleusSum;
+
+        float[] values(int size) {
+            if (values.length < size) {
+                values = new float[size];
+                probabilities = new float[size];
+                indexes = new int[size];
+            }
+            return values;
+        }
+    }
+}
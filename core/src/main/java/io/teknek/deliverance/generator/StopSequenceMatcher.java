@@ -0,0 +1,141 @@
+package io.teknek.deliverance.generator;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds stop sequences in text that arrives a few characters at a time. The stop sequences are compiled once into an
+ * Aho-Corasick automaton, after that every character costs amortized constant time no matter how many stop sequences
+ * there are or how long the text already is, and a match may span any number of {@link #feed} calls.
+ * <p>
+ * Between calls the matcher remembers how many trailing characters are the start of some stop sequence
+ * ({@link #pending()}), a caller streaming the text can hold those back until it knows whether they are part of a stop.
+ * The automaton is immutable, {@link #copy()} only copies the position in it.
+ */
+public class StopSequenceMatcher {
+    private final Automaton automaton;
+    private int state;
+    private int matchLength;
+
+    public StopSequenceMatcher(List<String> stopSequences) {
+        this.automaton = new Automaton(stopSequences);
+    }
+
+    private StopSequenceMatcher(StopSequenceMatcher parent) {
+        this.automaton = parent.automaton;
+        this.state = parent.state;
+        this.matchLength = parent.matchLength;
+    }
+
+    /** @return a matcher at the same position that continues independently */
+    public StopSequenceMatcher copy() {
+        return new StopSequenceMatcher(this);
+    }
+
+    /**
+     * Consumes text up to and including the end of the first stop sequence in it.
+     * @return the index in text just past the first completed stop sequence, or -1 when none completed
+     */
+    public int feed(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            state = automaton.next(state, text.charAt(i));
+            if (automaton.output[state] > 0) {
+                matchLength = automaton.output[state];
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /** @return the length of the stop sequence the last successful {@link #feed} found, the longest one ending there */
+    public int matchLength() {
+        return matchLength;
+    }
+
+    /** @return the number of trailing characters consumed so far that could still become a stop sequence */
+    public int pending() {
+        return automaton.depth[state];
+    }
+
+    private static class Automaton {
+        private final Map<Long, Integer> edges = new HashMap<>();
+        private final int[] fail;
+        private final int[] depth;
+        /** length of the longest stop sequence ending at a state, 0 for none */
+        private final int[] output;
+
+        Automaton(List<String> stopSequences) {
+            List<Integer> depths = new ArrayList<>();
+            List<Integer> outputs = new ArrayList<>();
+            depths.add(0);
+            outputs.add(0);
+            for (String stop : stopSequences) {
+                Preconditions.checkArgument(stop != null, "stop sequences can not be null");
+                if (stop.isEmpty()) {
+                    continue;
+                }
+                int s = 0;
+                for (int i = 0; i < stop.length(); i++) {
+                    Integer child = edges.get(key(s, stop.charAt(i)));
+                    if (child == null) {
+                        child = depths.size();
+                        edges.put(key(s, stop.charAt(i)), child);
+                        depths.add(i + 1);
+                        outputs.add(0);
+                    }
+                    s = child;
+                }
+                outputs.set(s, stop.length());
+            }
+            int states = depths.size();
+            this.fail = new int[states];
+            this.depth = depths.stream().mapToInt(Integer::intValue).toArray();
+            this.output = outputs.stream().mapToInt(Integer::intValue).toArray();
+
+            // breadth first so the failure state of a parent is known before its children
+            List<List<long[]>> children = new ArrayList<>();
+            for (int i = 0; i < states; i++) {
+                children.add(new ArrayList<>());
+            }
+            for (Map.Entry<Long, Integer> e : edges.entrySet()) {
+                children.get((int) (e.getKey() >>> 16)).add(new long[] { e.getKey() & 0xFFFF, e.getValue() });
+            }
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (long[] edge : children.get(0)) {
+                queue.add((int) edge[1]);
+            }
+            while (!queue.isEmpty()) {
+                int s = queue.poll();
+                for (long[] edge : children.get(s)) {
+                    char c = (char) edge[0];
+                    int child = (int) edge[1];
+                    fail[child] = next(fail[s], c);
+                    output[child] = Math.max(output[child], output[fail[child]]);
+                    queue.add(child);
+                }
+            }
+        }
+
+        int next(int s, char c) {
+            while (true) {
+                Integer child = edges.get(key(s, c));
+                if (child != null) {
+                    return child;
+                }
+                if (s == 0) {
+                    return 0;
+                }
+                s = fail[s];
+            }
+        }
+
+        private static long key(int state, char c) {
+            return ((long) state << 16) | c;
+        }
+    }
+}
@@ -3,7 +3,9 @@ package io.teknek.deliverance.generator;
 import java.util.List;
 import java.util.Optional;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
+import com.google.common.base.Preconditions;
 import io.teknek.deliverance.model.AbstractModel;
 import io.teknek.deliverance.tensor.AbstractTensor;
 import io.teknek.deliverance.tensor.KvBufferCache;
@@ -22,6 +24,7 @@ public class TransformerBlock {
     final Optional<LayerNorm> preAttentionNorm;
     final CausalSelfAttention attention;
     final Optional<LayerNorm> postAttentionNorm; // After attention, before the residual connection
+    final Optional<LayerNorm> postResidualNorm; // After residual connection, the normed sum is the residual of the FF (post-norm, BERT)
     final Optional<LayerNorm> preFFNorm; // After residual connection, before the FF
     final FeedForward ffBlock;
     final Optional<LayerNorm> postFFNorm; // After FF, before the residual connection
@@ -53,6 +56,7 @@ public class TransformerBlock {
                 attention,
                 Optional.empty(),
                 Optional.of(postAttentionNorm),
+                Optional.empty(),
                 ffBlock,
                 Optional.empty(),
                 Optional.of(postFFNorm),
@@ -123,12 +127,30 @@ public class TransformerBlock {
             Optional<LayerNorm> preResponseNorm,
             ConfigurableTensorProvider configurableTensorProvider
     ) {
+        this(model, layerIndex, preAttentionNorm, attention, postAttentionNorm, Optional.empty(), preFFNorm, ffBlock,
+                postFFNorm, preResponseNorm, configurableTensorProvider);
+    }
+
+    private TransformerBlock(
+            AbstractModel model,
+            int layerIndex,
+            Optional<LayerNorm> preAttentionNorm,
+            CausalSelfAttention attention,
+            Optional<LayerNorm> postAttentionNorm,
+            Optional<LayerNorm> postResidualNorm,
+            Optional<LayerNorm> preFFNorm,
+            FeedForward ffBlock,
+            Optional<LayerNorm> postFFNorm,
+            Optional<LayerNorm> preResponseNorm,
+            ConfigurableTensorProvider configurableTensorProvider
+    ) {
 
         this.model = model;
         this.layerIndex = layerIndex;
         this.preAttentionNorm = preAttentionNorm;
         this.attention = attention;
         this.postAttentionNorm = postAttentionNorm;
+        this.postResidualNorm = postResidualNorm;
         this.preFFNorm = preFFNorm;
         this.ffBlock = ffBlock;
         this.postFFNorm = postFFNorm;
@@ -146,6 +168,45 @@ public class TransformerBlock {
             KvBufferCache.KvBuffer kvBuffer,
             Optional<Consumer<List<AbstractTensor>>> tensorReducer
     ) {
+        int batchSize = embedding.shape().first();
+        int[] positions = new int[batchSize];
+        KvBufferCache.KvBuffer[] kvBuffers = new KvBufferCache.KvBuffer[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            positions[i] = position + i;
+            kvBuffers[i] = kvBuffer;
+        }
+        return forward(embedding, positions, kvBuffers, tensorReducer);
+    }
+
+    /**
+     * Runs the block over a batch whose rows may come from different sessions, see
+     * {@link CausalSelfAttention#forward(AbstractTensor, int[], KvBufferCache.KvBuffer[], Optional)}
+     */
+    public AbstractTensor forward(
+            AbstractTensor embedding,
+            int[] positions,
+            KvBufferCache.KvBuffer[] kvBuffers,
+            Optional<Consumer<List<AbstractTensor>>> tensorReducer
+    ) {
+        return forward(embedding, qlnemb -> attention.forward(qlnemb, positions, kvBuffers, tensorReducer), tensorReducer);
+    }
+
+    /**
+     * Runs the block over sequences padded to sequenceLength with bidirectional attention and no kv buffer, see
+     * {@link EncoderSelfAttention#forward(AbstractTensor, int, int[], Optional)}
+     */
+    public AbstractTensor forwardEncoder(AbstractTensor embedding, int sequenceLength, int[] lengths) {
+        Preconditions.checkState(attention instanceof EncoderSelfAttention, "layer %s is not an encoder", layerIndex);
+        EncoderSelfAttention encoder = (EncoderSelfAttention) attention;
+        return forward(embedding, qlnemb -> encoder.forward(qlnemb, sequenceLength, lengths, Optional.empty()),
+                Optional.empty());
+    }
+
+    private AbstractTensor forward(
+            AbstractTensor embedding,
+            Function<AbstractTensor, AbstractTensor> attend,
+            Optional<Consumer<List<AbstractTensor>>> tensorReducer
+    ) {
 
         debug("input_emb", embedding, layerIndex);
 
@@ -155,19 +216,20 @@ public class TransformerBlock {
 
         AbstractTensor postAttention;
         try (AbstractTensor qlnemb = model.maybeQuantize(lnemb)) {
-            postAttention = attention.forward(qlnemb, position, kvBuffer, tensorReducer);
+            postAttention = attend.apply(qlnemb);
         }
 
         debug("post_attn", postAttention, layerIndex);
-        AbstractTensor lnattn = maybeApplyNorm(postAttention, postAttentionNorm);
+        AbstractTensor postAttentionSum = maybeApplyNorm(postAttention, postAttentionNorm);
 
-        debug("post_attn_norm", lnattn, layerIndex);
+        debug("post_attn_norm", postAttentionSum, layerIndex);
 
         // residual connection
         if (model.getConfig().residualMultiplier != null) {
-            configurableTensorProvider.get().scale(model.getConfig().residualMultiplier, lnattn, 0, model.getConfig().embeddingLength);
+            configurableTensorProvider.get().scale(model.getConfig().residualMultiplier, postAttentionSum, 0, model.getConfig().embeddingLength);
         }
-        configurableTensorProvider.get().accumulate(lnattn, embedding, 0, model.getConfig().embeddingLength);
+        configurableTensorProvider.get().accumulate(postAttentionSum, embedding, 0, model.getConfig().embeddingLength);
+        AbstractTensor lnattn = maybeApplyNorm(postAttentionSum, postResidualNorm);
 
         AbstractTensor lnpreFF = preFFNorm.map(ln -> ln.forward(lnattn)).orElse(lnattn);
 
@@ -191,10 +253,8 @@ public class TransformerBlock {
 
         // Release any tmp buffers (embedding is released by caller)
         if (lnemb != embedding) lnemb.close();
-        if (lnattn != postAttention) lnattn.close();
-        else postAttention.close();
+        lnattn.close();
         if (lnpreFF != lnattn) lnpreFF.close();
-        else lnattn.close();
 
         return maybeApplyNorm(lnpostFF, preResponseNorm);
     }
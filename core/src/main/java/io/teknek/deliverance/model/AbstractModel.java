@@ -21,11 +21,12 @@ import io.teknek.deliverance.safetensors.WeightLoader;
 import io.teknek.deliverance.safetensors.prompt.PromptContext;
 import io.teknek.deliverance.safetensors.prompt.PromptSupport;
 import io.teknek.deliverance.tensor.*;
+import io.teknek.deliverance.tensor.impl.FloatBufferTensor;
 import io.teknek.deliverance.tensor.impl.Q8ByteBufferTensor;
 import io.teknek.deliverance.tensor.operations.ConfigurableTensorProvider;
 import io.teknek.deliverance.tokenizer.Tokenizer;
 import jdk.incubator.vector.FloatVector;
-import net.jafama.FastMath;
+import jdk.incubator.vector.VectorOperators;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,7 +36,8 @@ import static io.teknek.deliverance.tensor.DebugSupport.debug;
 public abstract class AbstractModel implements Generator {
     private static final Logger logger = LoggerFactory.getLogger(AbstractModel.class);
 
-    private static final Integer MAX_BATCH_SIZE = Integer.getInteger("jlama.max_batch_size", 256);
+    static final int DEFAULT_SPECULATIVE_TOKENS = 4;
+    public static final Integer MAX_BATCH_SIZE = Integer.getInteger("jlama.max_batch_size", 256);
 
     public enum InferenceType {
         // Used for distributed inference
@@ -97,9 +99,9 @@ public abstract class AbstractModel implements Generator {
         this.modelDType = w.getModelDType();
         this.workingDType = workingMemoryDType;
         this.modelQType = modelQType;
-        this.kvBufferCache = new KvBufferCache(this, kvBufferCacheSettings);
         this.configurableTensorProvider = provider;
         this.metricRegistry = metricRegistry;
+        this.kvBufferCache = new KvBufferCache(this, kvBufferCacheSettings);
         this.tensorCache = tensorCache;
         this.tokenRenderer = tokenRenderer;
 
@@ -177,6 +179,10 @@ public abstract class AbstractModel implements Generator {
         return config;
     }
 
+    public WeightLoader getWeights() {
+        return weights;
+    }
+
     public AbstractTensor makeTensor(int... shape) {
         TensorShape s = TensorShape.of(shape);
         return tensorCache.get(workingDType, s);
@@ -190,6 +196,14 @@ public abstract class AbstractModel implements Generator {
         return tensorCache.get(workingDType, s);
     }
 
+    public MetricRegistry getMetricRegistry() {
+        return metricRegistry;
+    }
+
+    public ConfigurableTensorProvider getConfigurableTensorProvider() {
+        return configurableTensorProvider;
+    }
+
     public DType getWorkingDType() {
         return workingDType;
     }
@@ -204,169 +218,246 @@ public abstract class AbstractModel implements Generator {
 
     public Response generate(UUID sessionId, PromptContext promptContext, GeneratorParameters generatorParameters,
                              GenerateEvent onTokenWithTimings) {
-        Random random = generatorParameters.seed.map(Random::new).orElseGet(Random::new);
-        long[] encoded = tokenizer.encode(promptContext.getPrompt());
-        if (encoded.length > 0 && encoded[0] == config.bosToken) {
-            encoded = Arrays.copyOfRange(encoded, 1, encoded.length);
-        }
-        int ntokens = generatorParameters.ntokens.orElse(256);
-        float temperature = generatorParameters.temperature.orElse(0.0f);
-        Preconditions.checkArgument(encoded.length < config.contextLength
-                && encoded.length < ntokens, "Prompt exceeds max tokens");
         try (KvBufferCache.KvBuffer kvmem = kvBufferCache.getKvBuffer(sessionId.toString())) { // k and v for context window
-            int startPos = kvmem.getCurrentContextPosition(); // Number of tokens in the buffer
-            if (ntokens > config.contextLength) {
-                ntokens = config.contextLength;
-            }
-            FinishReason reason = FinishReason.MAX_TOKENS;
-            int promptLength;
-            long promptBatchTime;
-            int tokensGenerated;
-            StringBuilder responseText = new StringBuilder();
-            StringBuilder responseTextWithSpecialTokens = new StringBuilder();
-
+            GenerationContext ctx = new GenerationContext(this, sessionId, promptContext, generatorParameters,
+                    onTokenWithTimings, kvmem);
+            Preconditions.checkState(ctx.reserveKvMemory(), "Not enough kv cache memory for session %s", sessionId);
             try (AbstractTensor logits = makeDenseTensor(config.vocabularySize)) {
-                int[] promptTokens;
-                if (addBosToken()) {
-                    promptTokens = new int[(1 + encoded.length)];
-                    promptTokens[0] = config.bosToken;
-                    for (int i = 1; i <= encoded.length; i++) {
-                        promptTokens[i] = Ints.checkedCast(encoded[i - 1]);
-                    }
-                } else {
-                    promptTokens = Arrays.stream(encoded).mapToInt(Ints::checkedCast).toArray();
-                }
-                promptLength = encoded.length;
+                int[] promptTokens = ctx.getPromptTokens();
                 long start = System.currentTimeMillis();
-                AbstractTensor last = batchForward(promptTokens, startPos, kvmem);
+                AbstractTensor last = batchForward(Arrays.copyOfRange(promptTokens, ctx.getPrefillOffset(),
+                        promptTokens.length), ctx.getPrefillPosition(), kvmem);
                 logger.debug("After batch forward size: {} shape: {}" , last.size(), last.shape());
-                promptBatchTime = System.currentTimeMillis() - start;
-                float batchMsPerToken = Math.round((((double) promptBatchTime) / (double) promptLength));
-                int next = sample(last.slice(last.shape().first() - 1), temperature, random.nextFloat(), logits);
-                float genMsPerToken = 0;
-                tokensGenerated = 0;
+                long promptBatchTime = System.currentTimeMillis() - start;
+                int next = nextToken(ctx, last.slice(last.shape().first() - 1), logits);
                 last.close();
-                String decoded = tokenizer.decode(next);
-                String cleaned = tokenRenderer.tokenizerToRendered(decoded);
-                if (tokenizer.getModel().isSpecialToken(next)) {
-                    responseTextWithSpecialTokens.append(cleaned);
-                } else {
-                    onTokenWithTimings.emit(next, decoded, cleaned, batchMsPerToken);
-                    responseText.append(cleaned);
-                    responseTextWithSpecialTokens.append(cleaned);
-                }
-                start = System.currentTimeMillis();
-                for (int i = startPos + promptTokens.length; i < ntokens; i++) {
-                    AbstractTensor output = forward(next, i, kvmem);
-                    tokensGenerated++;
-                    next = sample(output, temperature, random.nextFloat(), logits);
-                    output.close();
-                    kvmem.incrementContextPosition();
-                    if (config.eosTokens.contains(next)) {
-                        reason = FinishReason.STOP_TOKEN;
-                        break;
-                    }
-                    String decoded1 = tokenizer.decode(next);
-                    String cleaned1 = tokenRenderer.tokenizerToRendered(decoded1);
-                    if (tokenizer.getModel().isSpecialToken(next)) {
-                        responseTextWithSpecialTokens.append(cleaned1);
-                    } else {
-                        genMsPerToken = (System.currentTimeMillis() - start) / (float) (tokensGenerated);
-                        onTokenWithTimings.emit(next, decoded1, cleaned1, genMsPerToken);
-                        responseTextWithSpecialTokens.append(cleaned1);
-                        responseText.append(cleaned1);
-                    }
-
-                    if (generatorParameters.stopWords.isPresent()){
-                        List<String> stops = generatorParameters.stopWords.get();
-                        for (String stop: stops){
-                            if (responseTextWithSpecialTokens.indexOf(stop) != -1) {
-                                reason = FinishReason.STOP_TOKEN;
-                                if (generatorParameters.includeStopStrInOutput.isPresent() && generatorParameters.includeStopStrInOutput.get()){
-                                    long end = System.currentTimeMillis();
-                                    return new Response(responseText.toString(), responseTextWithSpecialTokens.toString(),
-                                        reason, promptLength, tokensGenerated, promptBatchTime, end - start);
-                                } else {
-                                    long end = System.currentTimeMillis();
-                                    int index = responseTextWithSpecialTokens.indexOf(stop);
-                                    responseTextWithSpecialTokens.delete(index, responseTextWithSpecialTokens.length());
-                                    int x = responseText.indexOf(stop);
-                                    responseText.delete(x, responseText.length());
-                                    return new Response(responseText.toString(), responseTextWithSpecialTokens.toString(),
-                                            reason, promptLength, tokensGenerated, promptBatchTime, end - start);
-                                }
-                            }
+                boolean done = ctx.onPromptComplete(next, promptBatchTime);
+                Optional<TokenProposer> proposer = newTokenProposer(generatorParameters);
+                if (proposer.isPresent()) {
+                    try (TokenProposer p = proposer.get()) {
+                        SpeculativeDecoder decoder = new SpeculativeDecoder(this, p,
+                                generatorParameters.speculativeTokens.orElse(DEFAULT_SPECULATIVE_TOKENS));
+                        while (!done) {
+                            done = decoder.step(ctx);
                         }
                     }
                 }
+                while (!done) {
+                    ctx.reserve(1);
+                    AbstractTensor output = forward(ctx.getNextToken(), ctx.getNextPosition(), kvmem);
+                    next = nextToken(ctx, output, logits);
+                    output.close();
+                    done = ctx.onTokenDecoded(next);
+                }
+                return ctx.toResponse();
+            }
+        }
+    }
+
+    private int nextToken(GenerationContext ctx, AbstractTensor output, AbstractTensor logits) {
+        if (ctx.getTemperature() == 0.0f) {
+            return greedyTokens(output)[0];
+        }
+        computeLogits(output, logits);
+        return ctx.sample(logits);
+    }
 
-                long end = System.currentTimeMillis();
-                //post process response is still missing
-                return new Response(responseText.toString(), responseTextWithSpecialTokens.toString(),
-                        reason, promptLength, tokensGenerated, promptBatchTime, end - start);
+    /**
+     * Several completions of one prompt, the prompt is prefilled once and shared copy on write by every branch. Runs a
+     * beam search when {@link GeneratorParameters#beamWidth} is set, otherwise {@link GeneratorParameters#n}
+     * independent samples.
+     * @return one response per sample, or the beams most likely first
+     */
+    public List<Response> generateCompletions(UUID sessionId, PromptContext promptContext,
+            GeneratorParameters generatorParameters, GenerateEvent onTokenWithTimings) {
+        try (KvBufferCache.KvBuffer kvmem = kvBufferCache.getKvBuffer(sessionId.toString())) {
+            GenerationContext ctx = new GenerationContext(this, sessionId, promptContext, generatorParameters,
+                    onTokenWithTimings, kvmem);
+            Preconditions.checkState(ctx.reserveKvMemory(), "Not enough kv cache memory for session %s", sessionId);
+            ForkedDecoder decoder = new ForkedDecoder(this);
+            if (generatorParameters.beamWidth.isPresent()) {
+                return decoder.beamSearch(ctx, generatorParameters.beamWidth.get());
             }
+            return decoder.sample(ctx, generatorParameters.n.orElse(1), onTokenWithTimings);
+        }
+    }
+
+    /**
+     * @return the proposer for speculative decoding requested by the parameters, if any
+     */
+    protected Optional<TokenProposer> newTokenProposer(GeneratorParameters generatorParameters) {
+        if (generatorParameters.tokenProposer.isPresent()) {
+            return Optional.of(generatorParameters.tokenProposer.get().create(this));
+        }
+        return generatorParameters.promptLookupNgramSize.map(n -> new PromptLookupProposer(metricRegistry, n));
+    }
+
+    /**
+     * Starts a generation without running it, the caller owns the kv buffer and drives the forward passes.
+     * See {@link ContinuousBatchScheduler}.
+     */
+    public GenerationContext newGenerationContext(UUID sessionId, PromptContext promptContext,
+            GeneratorParameters generatorParameters, GenerateEvent onTokenWithTimings) {
+        KvBufferCache.KvBuffer kvBuffer = kvBufferCache.getKvBuffer(sessionId.toString());
+        try {
+            return new GenerationContext(this, sessionId, promptContext, generatorParameters, onTokenWithTimings,
+                    kvBuffer);
+        } catch (RuntimeException e) {
+            kvBuffer.close();
+            throw e;
         }
     }
 
     public float[] embed(String input, PoolingType poolingType) {
-        CausualWhisperer.LOGGER.debug("embedding on {} using pooling type {}", input, poolingType);
-        int[] encoded = Arrays.stream(tokenizer.encode(input)).mapToInt(Ints::checkedCast).toArray();
-        Preconditions.checkArgument(encoded.length < config.contextLength);
-        float [] outputEmbedding = new float[config.embeddingLength];
-        CausualWhisperer.LOGGER.info("created float [] outputEmbedding of length {}", config.embeddingLength);
-
-        try (KvBufferCache.KvBuffer kvMem = kvBufferCache.getEphemeralKvBuffer()){
-            int promptLength = encoded.length;
-            float avgp = 1.0f / promptLength;
-            CausualWhisperer.LOGGER.info("1.0f / promptLength {} = avgp {}", promptLength, avgp);
-
-            try (AbstractTensor r = batchForward(encoded, 0, kvMem)){
-                if (poolingType == PoolingType.MODEL){
-                    if (poolingLayer.isEmpty()){
-                        throw new UnsupportedOperationException("no pooling layer for this model");
-                    }
-                    AbstractTensor output = r.slice(promptLength - 1);
-                    AbstractTensor pooled = makeDenseTensor(1, config.embeddingLength);
-                    configurableTensorProvider.get()
-                            .batchDotProduct(pooled, output, poolingLayer.get().getPoolingWeights(), 0, 0, config.embeddingLength);
+        return embed(List.of(input), poolingType).get(0);
+    }
 
-                    configurableTensorProvider.get()
-                            .batchDotProduct(pooled, output, poolingLayer.get().getPoolingWeights(), 0, 0, config.embeddingLength);
+    /**
+     * Embeds every input. An encoder model ({@link #isEncoder()}) encodes them together, sorted by length and padded
+     * to the longest of each group of up to MAX_BATCH_SIZE rows, other models run them one at a time.
+     */
+    public List<float[]> embed(List<String> inputs, PoolingType poolingType) {
+        CausualWhisperer.LOGGER.debug("embedding {} inputs using pooling type {}", inputs.size(), poolingType);
+        int[][] encoded = new int[inputs.size()][];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = Arrays.stream(tokenizer.encode(inputs.get(i))).mapToInt(Ints::checkedCast).toArray();
+            Preconditions.checkArgument(encoded[i].length > 0 && encoded[i].length < config.contextLength,
+                    "input %s has %s tokens", i, encoded[i].length);
+        }
+        float[][] outputEmbeddings = new float[encoded.length][];
 
-                    VectorMath.pfor(0, config.embeddingLength, i -> {
-                        // BERT seems to use tanh for pooling rather than gelu
+        if (!isEncoder()) {
+            for (int i = 0; i < encoded.length; i++) {
+                try (KvBufferCache.KvBuffer kvMem = kvBufferCache.getEphemeralKvBuffer();
+                        AbstractTensor r = batchForward(encoded[i], 0, kvMem)) {
+                    outputEmbeddings[i] = pool(r, 0, encoded[i].length, poolingType);
+                }
+            }
+            return Arrays.asList(outputEmbeddings);
+        }
 
-                        //outputEmbedding[i] = ActivationFunction.eval(ActivationFunction.Type.TANH, pooled.get(0, i));
-                        outputEmbedding[i] = ActivationFunction.eval(config.activationFunction, pooled.get(0, i));
-                    });
-                    return outputEmbedding;
+        // longest first, so the sequences padded together are of similar length
+        Integer[] order = new Integer[encoded.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (x, y) -> Integer.compare(encoded[y].length, encoded[x].length));
+        for (int start = 0, end; start < order.length; start = end) {
+            int sequenceLength = encoded[order[start]].length;
+            int maxSequences = Math.max(1, MAX_BATCH_SIZE / sequenceLength);
+            end = Math.min(order.length, start + maxSequences);
+            int[][] group = new int[end - start][];
+            for (int g = 0; g < group.length; g++) {
+                group[g] = encoded[order[start + g]];
+            }
+            try (AbstractTensor r = encode(group, sequenceLength)) {
+                for (int g = 0; g < group.length; g++) {
+                    outputEmbeddings[order[start + g]] = pool(r, g * sequenceLength, group[g].length, poolingType);
                 }
-                for (int i = 0; i < promptLength; i++) {
-                    AbstractTensor output = r.slice(i);
-                    // Pooling
-                    for (int ii = 0; ii < config.embeddingLength; ii++) {
-                        switch (poolingType) {
-                            case AVG:
-                                outputEmbedding[ii] += output.get(0, ii) * avgp;
-                                break;
-                            case MAX:
-                                outputEmbedding[ii] = Math.max(outputEmbedding[ii], output.get(0, ii));
-                                break;
-                            case SUM:
-                                outputEmbedding[ii] += output.get(0, ii);
-                                break;
-                        }
-                    }
+            }
+        }
+        return Arrays.asList(outputEmbeddings);
+    }
+
+    /**
+     * @return true when the transformer blocks are bidirectional encoders that can run {@link #encode}
+     */
+    public boolean isEncoder() {
+        return false;
+    }
+
+    /**
+     * One forward pass of an encoder over several sequences padded to sequenceLength, every token attends to every
+     * token of its own sequence and no kv buffer is used. Padding rows hold token 0 and are not attended to.
+     * @return the final hidden state [tokens.length * sequenceLength, embeddingLength], sequence s in the rows from
+     * s * sequenceLength
+     */
+    public AbstractTensor encode(int[][] tokens, int sequenceLength) {
+        Preconditions.checkState(isEncoder(), "%s is not an encoder", getClass().getSimpleName());
+        Preconditions.checkArgument(sequenceLength <= config.contextLength, "sequenceLength exceeds the context length");
+        int rows = tokens.length * sequenceLength;
+        int[] tokenIds = new int[rows];
+        int[] positions = new int[rows];
+        int[] lengths = new int[tokens.length];
+        for (int s = 0; s < tokens.length; s++) {
+            Preconditions.checkArgument(tokens[s].length <= sequenceLength, "sequence %s is longer than %s", s, sequenceLength);
+            lengths[s] = tokens[s].length;
+            System.arraycopy(tokens[s], 0, tokenIds, s * sequenceLength, tokens[s].length);
+            for (int p = 0; p < sequenceLength; p++) {
+                positions[s * sequenceLength + p] = p;
+            }
+        }
+        AbstractTensor embedding = embedInput.batchInputsToEmbeddings(tokenIds, positions);
+        for (int i = config.dctx().layerStart; i < config.dctx().layerEnd; i++) {
+            int relativeLayer = i - config.dctx().layerStart;
+            AbstractTensor ref = embedding; // reference so we can free
+            embedding = transformerBlocks[relativeLayer].forwardEncoder(embedding, sequenceLength, lengths);
+            ref.close();
+        }
+        return embedding;
+    }
+
+    /**
+     * Pools the length rows of r from firstRow into one embedding.
+     */
+    private float[] pool(AbstractTensor r, int firstRow, int length, PoolingType poolingType) {
+        float[] outputEmbedding = new float[config.embeddingLength];
+        if (poolingType == PoolingType.MODEL) {
+            if (poolingLayer.isEmpty()) {
+                throw new UnsupportedOperationException("no pooling layer for this model");
+            }
+            // an encoder pools its first ([CLS]) token, which attends to the whole sequence. In a causal model only
+            // the last token has seen every other
+            AbstractTensor output = r.slice(isEncoder() ? firstRow : firstRow + length - 1);
+            try (AbstractTensor pooled = makeDenseTensor(1, config.embeddingLength)) {
+                configurableTensorProvider.get()
+                        .batchDotProduct(pooled, output, poolingLayer.get().getPoolingWeights(), 0, 0, config.embeddingLength);
+                poolingLayer.get().getPoolingBias().ifPresent(bias ->
+                        configurableTensorProvider.get().accumulate(pooled, bias, 0, config.embeddingLength));
+
+                // the BERT pooler is tanh, whatever the activation of the feed forward
+                VectorMath.pfor(0, config.embeddingLength, i -> {
+                    outputEmbedding[i] = ActivationFunction.eval(ActivationFunction.Type.TANH, pooled.get(0, i));
+                });
+            }
+            return outputEmbedding;
+        }
+        float avgp = 1.0f / length;
+        for (int i = firstRow; i < firstRow + length; i++) {
+            AbstractTensor output = r.slice(i);
+            // Pooling
+            for (int ii = 0; ii < config.embeddingLength; ii++) {
+                switch (poolingType) {
+                    case AVG:
+                        outputEmbedding[ii] += output.get(0, ii) * avgp;
+                        break;
+                    case MAX:
+                        outputEmbedding[ii] = Math.max(outputEmbedding[ii], output.get(0, ii));
+                        break;
+                    case SUM:
+                        outputEmbedding[ii] += output.get(0, ii);
+                        break;
                 }
-                VectorMathUtils.l2normalize(outputEmbedding);
-                return outputEmbedding;
             }
         }
+        VectorMathUtils.l2normalize(outputEmbedding);
+        return outputEmbedding;
     }
 
     public int sample(AbstractTensor output, float temperature, float uniformSample, AbstractTensor logits) {
+        computeLogits(output, logits);
+        return sampleLogits(logits, temperature, uniformSample);
+    }
+
+    /**
+     * Projects every row of output onto the vocabulary. With a batch of rows the output weights are read once
+     * for all of them.
+     * @param output [batch, embeddingLength]
+     * @param logits [batch, vocabularySize]
+     */
+    public void computeLogits(AbstractTensor output, AbstractTensor logits) {
+        Preconditions.checkArgument(output.shape().first() == logits.shape().first(), "one logits row per output row");
         try (AbstractTensor embedding = sampleOutput.getOutputLayerNorm().forward(output)) {
-            // This is a mix of argmax and sampling with softmax
             VectorMath.pchunk(0, config.vocabularySize, (chunkStart, chunkSize) -> {
                 configurableTensorProvider.get()
                         .dotProductChunk(logits, embedding, sampleOutput.getOutputLogitsWeights(), 0, config.embeddingLength, chunkStart, chunkSize);
@@ -375,43 +466,101 @@ public abstract class AbstractModel implements Generator {
             if (config.logitMultiplier != null) {
                 configurableTensorProvider.get().scale(1.0f / config.logitMultiplier, logits, 0, config.vocabularySize);
             }
+        }
+    }
 
-            int maxi = Integer.MIN_VALUE;
-            double maxv = Double.NEGATIVE_INFINITY;
-            for (int i = 0; i < config.vocabularySize; i++) {
-                float v = logits.get(0, i);
-                if (config.finalLogitSoftCapping != null) {
-                    v /= config.finalLogitSoftCapping;
-                    v = (float) FastMath.tanh(v);
-                    v = v * config.finalLogitSoftCapping;
-                    logits.set(v, 0, i);
-                }
-                if (v > maxv) {
-                    maxi = i;
-                    maxv = v;
+    /**
+     * The argmax of the logits of every row of output without writing the logits out. Each {@link VectorMath#pchunk}
+     * worker projects its slice of the vocabulary into a buffer the size of the slice and keeps the best token of each
+     * row, only the winners of the slices are merged. Soft capping and the logit multiplier do not change the order
+     * of the logits so they are skipped.
+     * @param output [batch, embeddingLength]
+     * @return the most likely token of every row, the lowest id on ties like {@link #sampleLogits}
+     */
+    public int[] greedyTokens(AbstractTensor output) {
+        int rows = output.shape().first();
+        int[] best = new int[rows];
+        float[] bestValue = new float[rows];
+        Arrays.fill(bestValue, Float.NEGATIVE_INFINITY);
+        try (AbstractTensor embedding = sampleOutput.getOutputLayerNorm().forward(output)) {
+            VectorMath.pchunk(0, config.vocabularySize, (chunkStart, chunkSize) -> {
+                TensorShape shape = TensorShape.sparseColumn(new int[] { rows, config.vocabularySize },
+                        SparseOffset.of(chunkStart, chunkSize));
+                try (AbstractTensor chunk = makeDenseTensor(shape)) {
+                    configurableTensorProvider.get()
+                            .dotProductChunk(chunk, embedding, sampleOutput.getOutputLogitsWeights(), 0, config.embeddingLength, chunkStart, chunkSize);
+                    for (int r = 0; r < rows; r++) {
+                        int token = argmax(chunk, r, chunkStart, chunkSize);
+                        float value = chunk.get(r, token);
+                        synchronized (best) {
+                            if (value > bestValue[r] || (value == bestValue[r] && token < best[r])) {
+                                bestValue[r] = value;
+                                best[r] = token;
+                            }
+                        }
+                    }
                 }
-            }
+            }, configurableTensorProvider.get().parallelSplitSize());
+        }
+        return best;
+    }
 
-            if (temperature == 0.0) {
-                return maxi;
+    private static int argmax(AbstractTensor logits, int row, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        float max = Float.NEGATIVE_INFINITY;
+        if (logits instanceof FloatBufferTensor f) {
+            int upper = offset + FloatVector.SPECIES_PREFERRED.loopBound(length);
+            FloatVector vmax = FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, Float.NEGATIVE_INFINITY);
+            for (; i < upper; i += FloatVector.SPECIES_PREFERRED.length()) {
+                vmax = vmax.max(f.getVector(FloatVector.SPECIES_PREFERRED, row, i));
             }
-
-            float sum = 0;
-            for (int i = 0; i < config.vocabularySize; i++) {
-                float v = (float) FastMath.exp((logits.get(0, i) - maxv) / temperature);
-                sum += v;
-                logits.set(v, 0, i);
+            max = vmax.reduceLanes(VectorOperators.MAX);
+        }
+        for (; i < end; i++) {
+            max = Math.max(max, logits.get(row, i));
+        }
+        for (i = offset; i < end; i++) {
+            if (logits.get(row, i) == max) {
+                return i;
             }
+        }
+        return end - 1;
+    }
 
-            float acc = 0;
-            for (int i = 0; i < config.vocabularySize; i++) {
-                float v = logits.get(0, i) / sum;
-                acc += v;
-                if (acc >= uniformSample) return i;
-            }
+    /**
+     * This is a mix of argmax and sampling with softmax, see {@link Sampler}
+     * @param logits a single row of logits
+     */
+    public int sampleLogits(AbstractTensor logits, float temperature, float uniformSample) {
+        return new Sampler(config, temperature).sample(logits, uniformSample);
+    }
+
+    /**
+     * Softmax of a single row of logits at the given temperature, after final logit soft capping.
+     * @param logits a single row of logits
+     * @param temperature must be greater than 0
+     */
+    public float[] probabilities(AbstractTensor logits, float temperature) {
+        Preconditions.checkArgument(temperature > 0.0f, "temperature must be positive");
+        return new Sampler(config, temperature).distribution(logits);
+    }
 
-            return config.vocabularySize - 1;
+    /**
+     * @param weights non negative weights, they do not have to be normalized
+     * @param target a point in [0, sum of weights)
+     * @return the index whose cumulative weight first reaches target
+     */
+    static int sample(float[] weights, float target) {
+        float acc = 0;
+        for (int i = 0; i < weights.length; i++) {
+            acc += weights[i];
+            if (acc >= target && weights[i] > 0) return i;
         }
+        for (int i = weights.length - 1; i > 0; i--) {
+            if (weights[i] > 0) return i;
+        }
+        return 0;
     }
 
     public AbstractTensor batchForward(int[] token_ids, int startPos, KvBufferCache.KvBuffer kvbuf) {
@@ -423,6 +572,7 @@ public abstract class AbstractModel implements Generator {
         AbstractTensor embedding = null;
         CausualWhisperer.LOGGER.info("batchForward from 0 to token_ids.length {} max_batch_size {} per iteration",
                 token_ids.length, MAX_BATCH_SIZE);
+        kvbuf.recordTokens(token_ids, 0, token_ids.length, startPos);
         for (int i = 0; i < token_ids.length; i += MAX_BATCH_SIZE) {
             int[] batch = Arrays.copyOfRange(token_ids, i, Math.min(token_ids.length, i + MAX_BATCH_SIZE));
             //logger.warn("batch forward i: {} batch: {}", i, batch);
@@ -434,6 +584,27 @@ public abstract class AbstractModel implements Generator {
         return embedding;
     }
 
+    /**
+     * One forward pass over tokens that belong to different sessions. Row i is token_ids[i] at positions[i] using
+     * kvbufs[i]; every layer runs once for the whole batch so a single read of the weights serves every session.
+     * @return the final hidden state [token_ids.length, embeddingLength]
+     */
+    public AbstractTensor batchForward(int[] token_ids, int[] positions, KvBufferCache.KvBuffer[] kvbufs) {
+        Preconditions.checkArgument(token_ids.length == positions.length && token_ids.length == kvbufs.length);
+        Preconditions.checkArgument(token_ids.length <= MAX_BATCH_SIZE, "batch exceeds jlama.max_batch_size");
+        for (int i = 0; i < token_ids.length; i++) {
+            kvbufs[i].recordTokens(token_ids, i, 1, positions[i]);
+        }
+        AbstractTensor embedding = embedInput.batchInputsToEmbeddings(token_ids, positions);
+        for (int i = config.dctx().layerStart; i < config.dctx().layerEnd; i++) {
+            int relativeLayer = i - config.dctx().layerStart;
+            AbstractTensor ref = embedding; // reference so we can free
+            embedding = transformerBlocks[relativeLayer].forward(embedding, positions, kvbufs, Optional.empty());
+            ref.close();
+        }
+        return embedding;
+    }
+
     protected AbstractTensor forward(int token_id, int pos, KvBufferCache.KvBuffer kvbuf) {
         return forward(token_id, pos, kvbuf, Optional.empty());
     }
@@ -450,6 +621,7 @@ public abstract class AbstractModel implements Generator {
      */
     public AbstractTensor forward(int token_id, int pos, KvBufferCache.KvBuffer kvbuf,
             Optional<Consumer<List<AbstractTensor>>> tensorReducer) {
+        kvbuf.recordTokens(new int[] { token_id }, 0, 1, pos);
         AbstractTensor embedding = embedInput.inputTokenToEmbedding(token_id, pos);
         debug("EMBEDDING TOKEN", token_id);
         debug("TOKEN POSITION", pos);
@@ -0,0 +1,365 @@
+package io.teknek.deliverance.model;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.google.common.base.Preconditions;
+import io.teknek.deliverance.generator.FinishReason;
+import io.teknek.deliverance.generator.Generator;
+import io.teknek.deliverance.generator.GeneratorParameters;
+import io.teknek.deliverance.generator.Response;
+import io.teknek.deliverance.safetensors.prompt.PromptContext;
+import io.teknek.deliverance.tensor.AbstractTensor;
+import io.teknek.deliverance.tensor.KvBufferCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode is a GEMV per layer and is bound by how fast the weights stream from memory, so running sessions one at a
+ * time wastes most of each weight read. This scheduler owns a single worker thread that stacks the current token of
+ * every active session into one [numSessions, embeddingLength] batch and runs each layer once per step. Every row
+ * keeps its own {@link KvBufferCache.KvBuffer} and position. Sessions join and leave (when they finish) between steps.
+ * <p>
+ * Prompts are not prefilled in one go, that would stall every decoding session for as long as the longest prompt
+ * takes. Each step has a token budget: the decoding sessions take one token each and what is left is filled with
+ * chunks of at most prefillChunkSize tokens from the prompts still being prefilled, oldest first. Prefill and decode
+ * rows share the same forward pass, so a long prompt raises inter token latency by a bounded amount per step and its
+ * time to first token depends on the budget rather than on the other traffic.
+ * <p>
+ * Callers block in {@link #generate} or use {@link #submit}. {@link GenerateEvent}s are emitted from the worker
+ * thread so they should be quick, a slow listener delays every session in the batch.
+ */
+public class ContinuousBatchScheduler implements Generator {
+    private static final Logger logger = LoggerFactory.getLogger(ContinuousBatchScheduler.class);
+
+    private final AbstractModel model;
+    private final int maxActiveSessions;
+    private final int maxTokensPerStep;
+    private final int prefillChunkSize;
+    private final LinkedBlockingQueue<PendingGeneration> pending = new LinkedBlockingQueue<>();
+    private final Deque<PendingGeneration> waiting = new ArrayDeque<>();
+    private final List<PendingGeneration> active = new ArrayList<>();
+    private final Set<UUID> activeSessions = ConcurrentHashMap.newKeySet();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    private final Histogram batchSize;
+    private final Meter decodedTokens;
+    private final Meter prefillTokens;
+
+    public ContinuousBatchScheduler(AbstractModel model) {
+        this(model, AbstractModel.MAX_BATCH_SIZE);
+    }
+
+    /**
+     * @param maxActiveSessions the most sessions decoded in one forward pass, additional requests wait
+     */
+    public ContinuousBatchScheduler(AbstractModel model, int maxActiveSessions) {
+        this(model, maxActiveSessions, AbstractModel.MAX_BATCH_SIZE, AbstractModel.MAX_BATCH_SIZE);
+    }
+
+    /**
+     * @param maxActiveSessions the most sessions in the batch (decoding or prefilling), additional requests wait
+     * @param maxTokensPerStep the most rows in one forward pass, decode tokens plus prefill tokens
+     * @param prefillChunkSize the most prompt tokens of a single session in one forward pass
+     */
+    public ContinuousBatchScheduler(AbstractModel model, int maxActiveSessions, int maxTokensPerStep,
+                                    int prefillChunkSize) {
+        Preconditions.checkArgument(maxTokensPerStep > 0 && maxTokensPerStep <= AbstractModel.MAX_BATCH_SIZE,
+                "maxTokensPerStep must be between 1 and jlama.max_batch_size");
+        Preconditions.checkArgument(maxActiveSessions > 0 && maxActiveSessions <= maxTokensPerStep,
+                "maxActiveSessions must be between 1 and maxTokensPerStep");
+        Preconditions.checkArgument(prefillChunkSize > 0, "prefillChunkSize must be positive");
+        this.model = model;
+        this.maxActiveSessions = maxActiveSessions;
+        this.maxTokensPerStep = maxTokensPerStep;
+        this.prefillChunkSize = prefillChunkSize;
+        this.batchSize = model.metricRegistry.histogram("scheduler.batch_size");
+        this.decodedTokens = model.metricRegistry.meter("scheduler.decoded_tokens");
+        this.prefillTokens = model.metricRegistry.meter("scheduler.prefill_tokens");
+        this.worker = new Thread(this::run, "continuous-batch-scheduler");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    @Override
+    public Response generate(UUID session, PromptContext promptContext, GeneratorParameters generatorParameters,
+                             GenerateEvent onTokenWithTimings) {
+        try {
+            return submit(session, promptContext, generatorParameters, onTokenWithTimings).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Queues a generation, it joins the running batch at the start of the next step.
+     */
+    public CompletableFuture<Response> submit(UUID session, PromptContext promptContext,
+            GeneratorParameters generatorParameters, GenerateEvent onTokenWithTimings) {
+        Preconditions.checkState(running, "scheduler is closed");
+        PendingGeneration g = new PendingGeneration(session, promptContext, generatorParameters, onTokenWithTimings);
+        pending.add(g);
+        // closed since the check, the worker may have drained pending already. Whoever removes it fails it
+        if (!running && pending.remove(g)) {
+            g.fail(new IllegalStateException("scheduler is closed"));
+        }
+        return g.future;
+    }
+
+    /** @return the number of sessions in the current decode batch */
+    public int activeSessions() {
+        return activeSessions.size();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                if (active.isEmpty() && waiting.isEmpty()) {
+                    PendingGeneration g = pending.poll(100, TimeUnit.MILLISECONDS);
+                    if (g != null) {
+                        waiting.add(g);
+                    }
+                }
+                admit();
+                dropCancelled();
+                if (!active.isEmpty()) {
+                    step();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e) {
+                logger.error("decode step failed, failing {} active sessions", active.size(), e);
+                for (PendingGeneration g : active) {
+                    activeSessions.remove(g.session);
+                    g.fail(e);
+                }
+                active.clear();
+            }
+        }
+        RuntimeException closed = new IllegalStateException("scheduler is closed");
+        active.forEach(g -> g.fail(closed));
+        waiting.forEach(g -> g.fail(closed));
+        PendingGeneration g;
+        while ((g = pending.poll()) != null) {
+            g.fail(closed);
+        }
+    }
+
+    /**
+     * Moves queued requests into the batch. A session that is already decoding keeps its request waiting, its kv
+     * buffer can only be advanced by one generation at a time. A request whose kv memory does not fit in the budget
+     * of the kv cache waits (keeping its session) until running sessions finish, requests behind it wait too. It
+     * fails when nothing is running that could free memory.
+     */
+    private void admit() {
+        pending.drainTo(waiting);
+        Iterator<PendingGeneration> it = waiting.iterator();
+        while (it.hasNext() && active.size() < maxActiveSessions) {
+            PendingGeneration g = it.next();
+            if (g.ctx == null && activeSessions.contains(g.session)) {
+                continue;
+            }
+            try {
+                if (g.ctx == null) {
+                    g.ctx = model.newGenerationContext(g.session, g.promptContext, g.generatorParameters, g.onTokenWithTimings);
+                    activeSessions.add(g.session);
+                    Preconditions.checkArgument(g.ctx.isPrefilling(), "Prompt is empty");
+                }
+                if (!g.ctx.reserveKvMemory()) {
+                    Preconditions.checkState(!active.isEmpty(), "Not enough kv cache memory for session %s", g.session);
+                    break;
+                }
+                it.remove();
+                active.add(g);
+            } catch (RuntimeException e) {
+                it.remove();
+                activeSessions.remove(g.session);
+                g.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Completes the cancelled sessions before the next step, a session still prefilling would otherwise only see the
+     * cancellation once its whole prompt went through the model.
+     */
+    private void dropCancelled() {
+        Iterator<PendingGeneration> it = active.iterator();
+        while (it.hasNext()) {
+            PendingGeneration g = it.next();
+            if (g.ctx.isCancelled()) {
+                g.ctx.finish(FinishReason.CANCELLED);
+                it.remove();
+                activeSessions.remove(g.session);
+                g.complete();
+            }
+        }
+    }
+
+    /**
+     * One forward pass over every decoding session plus as much pending prompt as fits in the token budget. Rows that
+     * produce a token (decodes and the last row of a finished prompt) are gathered and sampled together.
+     */
+    private void step() {
+        List<PendingGeneration> decoding = new ArrayList<>();
+        for (PendingGeneration g : active) {
+            if (!g.ctx.isPrefilling()) {
+                decoding.add(g);
+            }
+        }
+        int budget = maxTokensPerStep - decoding.size();
+        List<PendingGeneration> prefilling = new ArrayList<>();
+        List<Integer> chunks = new ArrayList<>();
+        for (PendingGeneration g : active) {
+            if (budget == 0) {
+                break;
+            }
+            if (g.ctx.isPrefilling()) {
+                int chunk = Math.min(budget, Math.min(prefillChunkSize, g.ctx.getRemainingPromptTokens()));
+                prefilling.add(g);
+                chunks.add(chunk);
+                budget -= chunk;
+            }
+        }
+
+        int n = maxTokensPerStep - budget;
+        int[] tokens = new int[n];
+        int[] positions = new int[n];
+        KvBufferCache.KvBuffer[] kvBuffers = new KvBufferCache.KvBuffer[n];
+        List<PendingGeneration> sampled = new ArrayList<>();
+        List<Integer> sampledRows = new ArrayList<>();
+        int row = 0;
+        for (PendingGeneration g : decoding) {
+            g.ctx.reserve(1);
+            tokens[row] = g.ctx.getNextToken();
+            positions[row] = g.ctx.getNextPosition();
+            kvBuffers[row] = g.ctx.getKvBuffer();
+            sampled.add(g);
+            sampledRows.add(row);
+            row++;
+        }
+        int prefillRows = 0;
+        for (int i = 0; i < prefilling.size(); i++) {
+            GenerationContext ctx = prefilling.get(i).ctx;
+            int chunk = chunks.get(i);
+            int[] prompt = ctx.getPromptTokens();
+            for (int j = 0; j < chunk; j++) {
+                tokens[row] = prompt[ctx.getPrefillOffset() + j];
+                positions[row] = ctx.getPrefillPosition() + j;
+                kvBuffers[row] = ctx.getKvBuffer();
+                row++;
+            }
+            prefillRows += chunk;
+            if (chunk == ctx.getRemainingPromptTokens()) {
+                sampled.add(prefilling.get(i));
+                sampledRows.add(row - 1);
+            }
+        }
+        batchSize.update(n);
+
+        long start = System.currentTimeMillis();
+        AbstractTensor output = model.batchForward(tokens, positions, kvBuffers);
+        long elapsed = System.currentTimeMillis() - start;
+        for (int i = 0; i < prefilling.size(); i++) {
+            prefilling.get(i).ctx.onPrefillChunk(chunks.get(i), elapsed);
+        }
+        prefillTokens.mark(prefillRows);
+        if (sampled.isEmpty()) {
+            output.close();
+            return;
+        }
+
+        int embeddingLength = model.getConfig().embeddingLength;
+        int s = sampled.size();
+        List<PendingGeneration> finished = new ArrayList<>();
+        try (AbstractTensor hidden = model.makeDenseTensor(s, embeddingLength)) {
+            for (int i = 0; i < s; i++) {
+                hidden.copyFrom(output, output.getOffset(sampledRows.get(i), 0), hidden.getOffset(i, 0), embeddingLength);
+            }
+            output.close();
+            int[] next = sampled.stream().allMatch(g -> g.ctx.getTemperature() == 0.0f)
+                    ? model.greedyTokens(hidden)
+                    : sample(sampled, hidden);
+            for (int i = 0; i < s; i++) {
+                PendingGeneration g = sampled.get(i);
+                // decode rows come first, the rest are prompts that were completed by this step
+                boolean done = i < decoding.size() ? g.ctx.onTokenDecoded(next[i]) : g.ctx.onPromptComplete(next[i]);
+                if (done) {
+                    finished.add(g);
+                }
+            }
+        }
+        decodedTokens.mark(decoding.size());
+        for (PendingGeneration g : finished) {
+            active.remove(g);
+            activeSessions.remove(g.session);
+            g.complete();
+        }
+    }
+
+    private int[] sample(List<PendingGeneration> sampled, AbstractTensor hidden) {
+        int[] next = new int[sampled.size()];
+        try (AbstractTensor logits = model.makeDenseTensor(sampled.size(), model.getConfig().vocabularySize)) {
+            model.computeLogits(hidden, logits);
+            for (int i = 0; i < next.length; i++) {
+                next[i] = sampled.get(i).ctx.sample(logits.slice(i));
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Stops the worker, requests that have not finished complete exceptionally. The model is not closed.
+     */
+    @Override
+    public void close() {
+        running = false;
+        worker.interrupt();
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class PendingGeneration {
+        final UUID session;
+        final PromptContext promptContext;
+        final GeneratorParameters generatorParameters;
+        final GenerateEvent onTokenWithTimings;
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+        GenerationContext ctx;
+
+        PendingGeneration(UUID session, PromptContext promptContext, GeneratorParameters generatorParameters,
+                          GenerateEvent onTokenWithTimings) {
+            this.session = session;
+            this.promptContext = promptContext;
+            this.generatorParameters = generatorParameters;
+            this.onTokenWithTimings = onTokenWithTimings;
+        }
+
+        void complete() {
+            ctx.getKvBuffer().close();
+            future.complete(ctx.toResponse());
+        }
+
+        void fail(Throwable t) {
+            if (ctx != null) {
+                ctx.finish(FinishReason.ERROR);
+                ctx.getKvBuffer().close();
+            }
+            future.completeExceptionally(t);
+        }
+    }
+}
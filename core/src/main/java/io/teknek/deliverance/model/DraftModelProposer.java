@@ -0,0 +1,92 @@
+package io.teknek.deliverance.model;
+
+import com.google.common.base.Preconditions;
+import io.teknek.deliverance.tensor.AbstractTensor;
+import io.teknek.deliverance.tensor.KvBufferCache;
+
+import java.util.Arrays;
+
+/**
+ * Proposes tokens by running a smaller model that shares the tokenizer of the target, for example a 0.5B Qwen2 in
+ * front of a 7B one. The draft keeps its own kv buffer for the generation, at the positions the target uses: the
+ * earlier turns of a session (read from the kv buffer of the target) come first, then the generation. Tokens it
+ * proposed that the target rejected are rolled back by moving the position back to the last token both agree on, the
+ * entries past it are overwritten.
+ */
+public class DraftModelProposer implements TokenProposer {
+    private final AbstractModel draft;
+    private final KvBufferCache.KvBuffer kvBuffer;
+    /** the tokens whose keys and values are in the kv buffer, entry i is position i */
+    private int[] cached = new int[64];
+    private int cachedLength;
+    /** the tokens of the session before the generation, null until the first proposal */
+    private int[] history;
+
+    /** @return a factory of proposers running draft in front of the model of each generation */
+    public static TokenProposer.Factory factory(AbstractModel draft) {
+        return target -> new DraftModelProposer(target, draft);
+    }
+
+    public DraftModelProposer(AbstractModel target, AbstractModel draft) {
+        Preconditions.checkArgument(draft.getConfig().vocabularySize <= target.getConfig().vocabularySize,
+                "draft vocabulary is larger than the target vocabulary");
+        this.draft = draft;
+        this.kvBuffer = draft.kvBufferCache.getEphemeralKvBuffer();
+    }
+
+    @Override
+    public Proposal propose(GenerationContext ctx, int maxTokens) {
+        if (history == null) {
+            history = Arrays.copyOf(ctx.getKvBuffer().getTokens(), ctx.getStartPosition());
+        }
+        int length = history.length + ctx.getTokenCount();
+        if (length + maxTokens > draft.getConfig().contextLength) {
+            return Proposal.EMPTY;
+        }
+        int[] tokens = Arrays.copyOf(history, length);
+        System.arraycopy(ctx.getTokens(), 0, tokens, history.length, ctx.getTokenCount());
+        // keep what the draft already computed for the tokens the target accepted, the last token is always
+        // fed again so there is a hidden state to sample from
+        int common = 0;
+        while (common < cachedLength && common < length - 1 && cached[common] == tokens[common]) {
+            common++;
+        }
+        ensureCapacity(length + maxTokens);
+        System.arraycopy(tokens, common, cached, common, length - common);
+        cachedLength = length;
+
+        float temperature = ctx.getTemperature();
+        int[] proposed = new int[maxTokens];
+        float[][] distributions = temperature == 0.0f ? null : new float[maxTokens][];
+        AbstractTensor hidden = draft.batchForward(Arrays.copyOfRange(tokens, common, length), common, kvBuffer);
+        try (AbstractTensor logits = draft.makeDenseTensor(1, draft.getConfig().vocabularySize)) {
+            for (int i = 0; i < maxTokens; i++) {
+                if (i > 0) {
+                    hidden = draft.forward(proposed[i - 1], cachedLength, kvBuffer);
+                    cached[cachedLength++] = proposed[i - 1];
+                }
+                draft.computeLogits(hidden.slice(hidden.shape().first() - 1), logits);
+                hidden.close();
+                if (distributions == null) {
+                    proposed[i] = draft.sampleLogits(logits, 0.0f, 0.0f);
+                } else {
+                    distributions[i] = draft.probabilities(logits, temperature);
+                    proposed[i] = AbstractModel.sample(distributions[i], ctx.nextUniformSample());
+                }
+            }
+        }
+        kvBuffer.setCurrentContextPosition(cachedLength);
+        return new Proposal(proposed, distributions);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (cached.length < capacity) {
+            cached = Arrays.copyOf(cached, Math.max(capacity, cached.length * 2));
+        }
+    }
+
+    @Override
+    public void close() {
+        kvBuffer.close();
+    }
+}
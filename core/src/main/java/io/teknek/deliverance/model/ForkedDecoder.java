@@ -0,0 +1,209 @@
+package io.teknek.deliverance.model;
+
+import com.google.common.base.Preconditions;
+import io.teknek.deliverance.generator.Response;
+import io.teknek.deliverance.tensor.AbstractTensor;
+import io.teknek.deliverance.tensor.KvBufferCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Several completions of one prompt. The prompt is prefilled once, then every branch gets a
+ * {@link KvBufferCache.KvBuffer#fork()} of its kv buffer so the prompt pages are shared and a branch only copies the
+ * pages its own tokens are written to. All live branches advance together in one batched forward pass per step.
+ */
+public class ForkedDecoder {
+    private final AbstractModel model;
+    private final int vocabularySize;
+
+    public ForkedDecoder(AbstractModel model) {
+        this.model = model;
+        this.vocabularySize = model.getConfig().vocabularySize;
+    }
+
+    /**
+     * n independent samples of the prompt, tokens of all branches are emitted to onTokenWithTimings as they are
+     * sampled so they interleave.
+     * @param prompt a generation that has not been prefilled yet, it is only used to fork the branches
+     * @return one response per branch
+     */
+    public List<Response> sample(GenerationContext prompt, int n, GenerateEvent onTokenWithTimings) {
+        Preconditions.checkArgument(n > 0 && n <= AbstractModel.MAX_BATCH_SIZE, "n must be between 1 and jlama.max_batch_size");
+        List<GenerationContext> branches = new ArrayList<>();
+        try (AbstractTensor promptLogits = prefill(prompt)) {
+            List<GenerationContext> active = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                GenerationContext branch = prompt.fork(prompt.getKvBuffer().fork(), onTokenWithTimings);
+                branches.add(branch);
+                int first = branch.sample(promptLogits);
+                if (!branch.onPromptComplete(first)) {
+                    active.add(branch);
+                }
+            }
+            while (!active.isEmpty()) {
+                try (AbstractTensor logits = forward(active)) {
+                    List<GenerationContext> stillActive = new ArrayList<>();
+                    for (int i = 0; i < active.size(); i++) {
+                        GenerationContext branch = active.get(i);
+                        int next = branch.sample(logits.slice(i));
+                        if (!branch.onTokenDecoded(next)) {
+                            stillActive.add(branch);
+                        }
+                    }
+                    active = stillActive;
+                }
+            }
+            List<Response> responses = new ArrayList<>();
+            for (GenerationContext branch : branches) {
+                responses.add(branch.toResponse());
+            }
+            return responses;
+        } finally {
+            branches.forEach(b -> b.getKvBuffer().close());
+        }
+    }
+
+    /**
+     * Beam search keeping the beamWidth most likely sequences. Each step expands every beam with its beamWidth most
+     * likely tokens and keeps the best beamWidth of all candidates, a kept candidate forks the kv buffer of its beam.
+     * Finished beams are ranked by their log probability divided by their length.
+     * @param prompt a generation that has not been prefilled yet, it is only used to fork the beams
+     * @return up to beamWidth responses, most likely first
+     */
+    public List<Response> beamSearch(GenerationContext prompt, int beamWidth) {
+        Preconditions.checkArgument(beamWidth > 0 && beamWidth <= AbstractModel.MAX_BATCH_SIZE,
+                "beam width must be between 1 and jlama.max_batch_size");
+        List<Beam> finished = new ArrayList<>();
+        List<Beam> alive = new ArrayList<>();
+        try {
+            try (AbstractTensor promptLogits = prefill(prompt)) {
+                float[] logProbabilities = logSoftmax(promptLogits);
+                for (int token : topK(logProbabilities, beamWidth)) {
+                    GenerationContext ctx = prompt.fork(prompt.getKvBuffer().fork(), new DoNothingGenerateEvent());
+                    Beam beam = new Beam(ctx, logProbabilities[token]);
+                    (ctx.onPromptComplete(token) ? finished : alive).add(beam);
+                }
+            }
+            while (!alive.isEmpty() && finished.size() < beamWidth) {
+                List<Candidate> candidates = new ArrayList<>();
+                try (AbstractTensor logits = forward(alive.stream().map(b -> b.ctx).toList())) {
+                    for (int i = 0; i < alive.size(); i++) {
+                        float[] logProbabilities = logSoftmax(logits.slice(i));
+                        for (int token : topK(logProbabilities, beamWidth)) {
+                            candidates.add(new Candidate(alive.get(i), token, alive.get(i).score + logProbabilities[token]));
+                        }
+                    }
+                }
+                candidates.sort(Comparator.comparingDouble((Candidate c) -> c.score).reversed());
+                List<Beam> next = new ArrayList<>();
+                for (Candidate c : candidates.subList(0, Math.min(beamWidth, candidates.size()))) {
+                    GenerationContext ctx = c.parent.ctx.fork(c.parent.ctx.getKvBuffer().fork(), new DoNothingGenerateEvent());
+                    Beam beam = new Beam(ctx, c.score);
+                    (ctx.onTokenDecoded(c.token) ? finished : next).add(beam);
+                }
+                alive.forEach(b -> b.ctx.getKvBuffer().close());
+                alive = next;
+            }
+            List<Beam> ranked = new ArrayList<>(finished);
+            ranked.addAll(alive);
+            ranked.sort(Comparator.comparingDouble(Beam::normalizedScore).reversed());
+            List<Response> responses = new ArrayList<>();
+            for (Beam beam : ranked.subList(0, Math.min(beamWidth, ranked.size()))) {
+                responses.add(beam.ctx.toResponse());
+            }
+            return responses;
+        } finally {
+            finished.forEach(b -> b.ctx.getKvBuffer().close());
+            alive.forEach(b -> b.ctx.getKvBuffer().close());
+        }
+    }
+
+    /** Prefills what is left of the prompt and returns the logits of its last token, [1, vocabularySize]. */
+    private AbstractTensor prefill(GenerationContext prompt) {
+        int[] promptTokens = prompt.getPromptTokens();
+        long start = System.currentTimeMillis();
+        AbstractTensor logits = model.makeDenseTensor(1, vocabularySize);
+        try (AbstractTensor last = model.batchForward(Arrays.copyOfRange(promptTokens, prompt.getPrefillOffset(),
+                promptTokens.length), prompt.getPrefillPosition(), prompt.getKvBuffer())) {
+            model.computeLogits(last.slice(last.shape().first() - 1), logits);
+        }
+        prompt.onPrefillChunk(prompt.getRemainingPromptTokens(), System.currentTimeMillis() - start);
+        return logits;
+    }
+
+    /** One batched decode step over the next token of every branch, returns [branches, vocabularySize] logits. */
+    private AbstractTensor forward(List<GenerationContext> branches) {
+        int n = branches.size();
+        int[] tokens = new int[n];
+        int[] positions = new int[n];
+        KvBufferCache.KvBuffer[] kvBuffers = new KvBufferCache.KvBuffer[n];
+        for (int i = 0; i < n; i++) {
+            GenerationContext ctx = branches.get(i);
+            ctx.reserve(1);
+            tokens[i] = ctx.getNextToken();
+            positions[i] = ctx.getNextPosition();
+            kvBuffers[i] = ctx.getKvBuffer();
+        }
+        AbstractTensor logits = model.makeDenseTensor(n, vocabularySize);
+        try (AbstractTensor output = model.batchForward(tokens, positions, kvBuffers)) {
+            model.computeLogits(output, logits);
+        }
+        return logits;
+    }
+
+    private float[] logSoftmax(AbstractTensor logits) {
+        float[] p = model.probabilities(logits, 1.0f);
+        for (int i = 0; i < p.length; i++) {
+            p[i] = (float) Math.log(p[i]);
+        }
+        return p;
+    }
+
+    /** @return the indexes of the k largest values, largest first */
+    static int[] topK(float[] values, int k) {
+        k = Math.min(k, values.length);
+        int[] best = new int[k];
+        int size = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (size == k && values[i] <= values[best[k - 1]]) {
+                continue;
+            }
+            int j = size < k ? size++ : k - 1;
+            while (j > 0 && values[best[j - 1]] < values[i]) {
+                best[j] = best[j - 1];
+                j--;
+            }
+            best[j] = i;
+        }
+        return best;
+    }
+
+    private static class Beam {
+        final GenerationContext ctx;
+        final double score;
+
+        Beam(GenerationContext ctx, double score) {
+            this.ctx = ctx;
+            this.score = score;
+        }
+
+        double normalizedScore() {
+            return score / Math.max(1, ctx.getSampledTokenCount());
+        }
+    }
+
+    private static class Candidate {
+        final Beam parent;
+        final int token;
+        final double score;
+
+        Candidate(Beam parent, int token, double score) {
+            this.parent = parent;
+            this.token = token;
+            this.score = score;
+        }
+    }
+}
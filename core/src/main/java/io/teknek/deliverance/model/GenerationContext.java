@@ -0,0 +1,498 @@
+package io.teknek.deliverance.model;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
+import io.teknek.deliverance.generator.FinishReason;
+import io.teknek.deliverance.generator.GeneratorParameters;
+import io.teknek.deliverance.generator.Response;
+import io.teknek.deliverance.generator.Sampler;
+import io.teknek.deliverance.generator.StopSequenceMatcher;
+import io.teknek.deliverance.tensor.AbstractTensor;
+import io.teknek.deliverance.safetensors.Config;
+import io.teknek.deliverance.safetensors.prompt.PromptContext;
+import io.teknek.deliverance.tensor.KvBufferCache;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Per request state of a generation: the prompt tokens, the kv buffer, the text produced so far and why it
+ * finished. Both {@link AbstractModel#generate} and {@link ContinuousBatchScheduler} drive one of these so the token
+ * handling (special tokens, eos, stop words, events) is the same no matter how the forward passes are scheduled.
+ */
+public class GenerationContext {
+    private final AbstractModel model;
+    private final UUID sessionId;
+    private final GeneratorParameters generatorParameters;
+    private final GenerateEvent onTokenWithTimings;
+    private final KvBufferCache.KvBuffer kvBuffer;
+    private final Random random;
+    private final float temperature;
+    private final Sampler sampler;
+    private final int[] promptTokens;
+    private final int promptLength;
+    private final int startPosition;
+    private final int ntokens;
+    private final int sinkTokens;
+    /** see {@link GeneratorParameters#withHeavyHitterKv}, recentTokens is -1 without heavy hitter eviction */
+    private final int recentTokens;
+    private final int heavyHitterTokens;
+
+    private final StringBuilder responseText;
+    private final StringBuilder responseTextWithSpecialTokens;
+    private final StopSequenceMatcher stopMatcher;
+    private final boolean holdBackStops;
+    /**
+     * tokens whose text may be the start of a stop sequence, see {@link #release(int)}. They are only emitted once
+     * released when holdBackStops is set.
+     */
+    private final ArrayDeque<DecodedToken> held;
+    private FinishReason reason = FinishReason.MAX_TOKENS;
+    private boolean finished;
+    private int tokensGenerated;
+    private int nextToken;
+    private int prefilled;
+    /** positions dropped from the kv buffer by {@link #reserve(int)} */
+    private int shifted;
+    /** grown as tokens are sampled, ntokens does not bound a generation with attention sinks or heavy hitters */
+    private int[] tokens;
+    private int tokenCount;
+    private long promptBatchTime;
+    private long generateStart;
+    private long generateEnd;
+
+    GenerationContext(AbstractModel model, UUID sessionId, PromptContext promptContext,
+                      GeneratorParameters generatorParameters, GenerateEvent onTokenWithTimings,
+                      KvBufferCache.KvBuffer kvBuffer) {
+        this.model = model;
+        this.sessionId = sessionId;
+        this.generatorParameters = generatorParameters;
+        this.onTokenWithTimings = onTokenWithTimings;
+        this.kvBuffer = kvBuffer;
+        this.responseText = new StringBuilder();
+        this.responseTextWithSpecialTokens = new StringBuilder();
+        Config config = model.getConfig();
+        this.random = generatorParameters.seed.map(Random::new).orElseGet(Random::new);
+        this.temperature = generatorParameters.temperature.orElse(0.0f);
+        this.sampler = Sampler.of(config, generatorParameters);
+        this.stopMatcher = generatorParameters.stopWords.map(StopSequenceMatcher::new).orElse(null);
+        this.holdBackStops = generatorParameters.holdBackStopWords.orElse(false);
+        this.held = new ArrayDeque<>();
+        long[] encoded = model.getTokenizer().encode(promptContext.getPrompt());
+        if (encoded.length > 0 && encoded[0] == config.bosToken) {
+            encoded = Arrays.copyOfRange(encoded, 1, encoded.length);
+        }
+        int requested = generatorParameters.ntokens.orElse(256);
+        Preconditions.checkArgument(encoded.length < config.contextLength
+                && encoded.length < requested, "Prompt exceeds max tokens");
+        this.sinkTokens = generatorParameters.attentionSinks.orElse(-1);
+        if (sinkTokens >= 0) {
+            Preconditions.checkArgument(sinkTokens < config.contextLength / 2,
+                    "%s attention sinks leave no room in a context of %s", sinkTokens, config.contextLength);
+            Preconditions.checkArgument(!config.hasSlidingWindowLayers(),
+                    "Attention sinks are not supported with sliding window layers");
+        }
+        this.recentTokens = generatorParameters.heavyHitterRecentTokens.orElse(-1);
+        this.heavyHitterTokens = generatorParameters.heavyHitterTokens.orElse(0);
+        if (recentTokens >= 0) {
+            Preconditions.checkArgument(sinkTokens < 0, "Attention sinks and heavy hitter eviction can not be combined");
+            Preconditions.checkArgument(recentTokens > 0 && heavyHitterTokens >= 0
+                    && heavyHitterTokens + 2 * recentTokens < config.contextLength,
+                    "%s heavy hitters and %s recent tokens do not fit a context of %s", heavyHitterTokens, recentTokens,
+                    config.contextLength);
+            Preconditions.checkArgument(!config.hasSlidingWindowLayers(),
+                    "Heavy hitter eviction is not supported with sliding window layers");
+            kvBuffer.trackAttention();
+        }
+        this.ntokens = sinkTokens >= 0 || recentTokens >= 0 ? requested : Math.min(requested, config.contextLength);
+        if (model.addBosToken()) {
+            promptTokens = new int[(1 + encoded.length)];
+            promptTokens[0] = config.bosToken;
+            for (int i = 1; i <= encoded.length; i++) {
+                promptTokens[i] = Ints.checkedCast(encoded[i - 1]);
+            }
+        } else {
+            promptTokens = Arrays.stream(encoded).mapToInt(Ints::checkedCast).toArray();
+        }
+        this.promptLength = encoded.length;
+        this.tokens = Arrays.copyOf(promptTokens, promptTokens.length + Math.min(ntokens, config.contextLength) + 1);
+        this.tokenCount = promptTokens.length;
+        this.startPosition = kvBuffer.getCurrentContextPosition();
+        if (startPosition == 0) {
+            this.prefilled = kvBuffer.attachCachedPrefix(promptTokens, promptTokens.length);
+        }
+    }
+
+    private GenerationContext(GenerationContext parent, KvBufferCache.KvBuffer kvBuffer,
+                              GenerateEvent onTokenWithTimings) {
+        this.model = parent.model;
+        this.sessionId = parent.sessionId;
+        this.generatorParameters = parent.generatorParameters;
+        this.onTokenWithTimings = onTokenWithTimings;
+        this.kvBuffer = kvBuffer;
+        this.random = new Random(parent.random.nextLong());
+        this.temperature = parent.temperature;
+        this.sampler = parent.sampler;
+        this.promptTokens = parent.promptTokens;
+        this.promptLength = parent.promptLength;
+        this.startPosition = parent.startPosition;
+        this.ntokens = parent.ntokens;
+        this.sinkTokens = parent.sinkTokens;
+        this.recentTokens = parent.recentTokens;
+        this.heavyHitterTokens = parent.heavyHitterTokens;
+        this.shifted = parent.shifted;
+        this.responseText = new StringBuilder(parent.responseText);
+        this.responseTextWithSpecialTokens = new StringBuilder(parent.responseTextWithSpecialTokens);
+        this.stopMatcher = parent.stopMatcher == null ? null : parent.stopMatcher.copy();
+        this.holdBackStops = parent.holdBackStops;
+        this.held = new ArrayDeque<>(parent.held);
+        this.reason = parent.reason;
+        this.finished = parent.finished;
+        this.tokensGenerated = parent.tokensGenerated;
+        this.nextToken = parent.nextToken;
+        this.prefilled = parent.prefilled;
+        this.tokens = Arrays.copyOf(parent.tokens, parent.tokens.length);
+        this.tokenCount = parent.tokenCount;
+        this.promptBatchTime = parent.promptBatchTime;
+        this.generateStart = parent.generateStart;
+        this.generateEnd = parent.generateEnd;
+    }
+
+    /**
+     * A copy of this generation that continues independently on kvBuffer, usually a
+     * {@link KvBufferCache.KvBuffer#fork()} of this one's. The copy samples from its own random derived from this one.
+     */
+    public GenerationContext fork(KvBufferCache.KvBuffer kvBuffer, GenerateEvent onTokenWithTimings) {
+        return new GenerationContext(this, kvBuffer, onTokenWithTimings);
+    }
+
+    /**
+     * Reserves the kv memory of every position this generation can reach, see
+     * {@link KvBufferCache.KvBuffer#tryReserve}.
+     * @return false when the memory budget of the kv cache can not hold them
+     */
+    public boolean reserveKvMemory() {
+        // ntokens is the position generation stops at, the last token is written to ntokens - 1 unless the prompt
+        // reaches past it. A speculative pass proposes no more than the tokens left, so it stops there too. It is not
+        // capped with attention sinks or heavy hitters
+        long positions = Math.max((long) startPosition + promptTokens.length, ntokens);
+        if (recentTokens >= 0) {
+            // compacted before a decode step, which writes at most a batch of positions past the budget
+            positions = Math.min(positions, Math.max(startPosition + promptTokens.length,
+                    heavyHitterTokens + 2 * recentTokens) + AbstractModel.MAX_BATCH_SIZE);
+        }
+        return kvBuffer.tryReserve((int) Math.min(model.getConfig().contextLength, positions));
+    }
+
+    public UUID getSessionId() {
+        return sessionId;
+    }
+
+    public KvBufferCache.KvBuffer getKvBuffer() {
+        return kvBuffer;
+    }
+
+    public int[] getPromptTokens() {
+        return promptTokens;
+    }
+
+    public int getStartPosition() {
+        return startPosition;
+    }
+
+    /** @return true until every prompt token has been written to the kv buffer */
+    public boolean isPrefilling() {
+        return prefilled < promptTokens.length;
+    }
+
+    /** @return the number of prompt tokens that still have to go through the model */
+    public int getRemainingPromptTokens() {
+        return promptTokens.length - prefilled;
+    }
+
+    /** @return the position of the first prompt token that has not been prefilled yet */
+    public int getPrefillPosition() {
+        return startPosition + prefilled;
+    }
+
+    /** @return the index into {@link #getPromptTokens()} of the first prompt token that has not been prefilled yet */
+    public int getPrefillOffset() {
+        return prefilled;
+    }
+
+    /**
+     * Called after the next count prompt tokens were pushed through the model, used when the prompt is prefilled
+     * in chunks. The time is added to the prompt batch time of the response.
+     */
+    public void onPrefillChunk(int count, long elapsedMillis) {
+        Preconditions.checkArgument(count > 0 && count <= getRemainingPromptTokens(), "Invalid prefill chunk %s", count);
+        prefilled += count;
+        promptBatchTime += elapsedMillis;
+        kvBuffer.setCurrentContextPosition(startPosition + prefilled);
+    }
+
+    /**
+     * @return the prompt followed by every token sampled so far, only the first {@link #getTokenCount()} entries are
+     * valid. Entry i belongs to position {@link #getStartPosition()} + i, less the positions dropped once the
+     * context was shifted, see {@link #reserve(int)}.
+     */
+    public int[] getTokens() {
+        return tokens;
+    }
+
+    public int getTokenCount() {
+        return tokenCount;
+    }
+
+    /** @return the number of tokens sampled so far, including the one sampled from the prompt */
+    public int getSampledTokenCount() {
+        return tokenCount - promptTokens.length;
+    }
+
+    /** @return how many more tokens can be sampled before the generation stops on max tokens */
+    public int getRemainingTokens() {
+        return ntokens - getLogicalPosition();
+    }
+
+    public float getTemperature() {
+        return temperature;
+    }
+
+    public float nextUniformSample() {
+        return random.nextFloat();
+    }
+
+    /**
+     * Picks the next token with the temperature and filters of the request.
+     * @param logits a single row of logits
+     */
+    public int sample(AbstractTensor logits) {
+        return sampler.sample(logits, nextUniformSample());
+    }
+
+    public Sampler getSampler() {
+        return sampler;
+    }
+
+    /** @return the last sampled token, which is the input of the next decode step */
+    public int getNextToken() {
+        return nextToken;
+    }
+
+    /** @return the position the next token will be written to */
+    public int getNextPosition() {
+        return kvBuffer.getCurrentContextPosition();
+    }
+
+    /** @return the position the next token would have without the positions dropped by {@link #reserve(int)} */
+    private int getLogicalPosition() {
+        return getNextPosition() + shifted;
+    }
+
+    /**
+     * Makes room in the kv buffer for the next count positions, called before every forward pass. With
+     * {@link GeneratorParameters#withAttentionSinks} a full buffer keeps its first sink tokens and drops the older half
+     * of the rest, so the shift is paid once every few hundred tokens. With
+     * {@link GeneratorParameters#withHeavyHitterKv} a buffer past its budget is compacted to its heavy hitters and
+     * recent tokens, once every recentTokens tokens. Otherwise nothing is done.
+     */
+    public void reserve(int count) {
+        int contextLength = model.getConfig().contextLength;
+        int position = getNextPosition();
+        if (recentTokens >= 0) {
+            if (position + count > Math.min(contextLength, heavyHitterTokens + 2 * recentTokens)) {
+                shifted += kvBuffer.compactHeavyHitters(recentTokens, heavyHitterTokens);
+                Preconditions.checkArgument(getNextPosition() + count <= contextLength,
+                        "Can not make room for %s positions in a context of %s", count, contextLength);
+            }
+            return;
+        }
+        if (sinkTokens < 0 || position + count <= contextLength) {
+            return;
+        }
+        int discard = (position - sinkTokens) / 2;
+        Preconditions.checkArgument(position - discard + count <= contextLength,
+                "Can not make room for %s positions in a context of %s", count, contextLength);
+        kvBuffer.shiftContext(sinkTokens, discard);
+        shifted += discard;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Called once the prompt has been pushed through the model and the first token sampled from it.
+     * @return true if generation is already complete
+     */
+    public boolean onPromptComplete(int firstToken, long promptBatchTime) {
+        this.promptBatchTime = promptBatchTime;
+        this.prefilled = promptTokens.length;
+        return onPromptComplete(firstToken);
+    }
+
+    /**
+     * Called once the last prefill chunk has been pushed through the model and the first token sampled from it.
+     * @see #onPrefillChunk(int, long)
+     * @return true if generation is already complete
+     */
+    public boolean onPromptComplete(int firstToken) {
+        Preconditions.checkState(!isPrefilling(), "Prompt has %s tokens left to prefill", getRemainingPromptTokens());
+        this.generateStart = System.currentTimeMillis();
+        kvBuffer.setCurrentContextPosition(startPosition + promptTokens.length);
+        publishPrefix();
+        float batchMsPerToken = Math.round((((double) promptBatchTime) / (double) promptLength));
+        return accept(firstToken, batchMsPerToken);
+    }
+
+    /**
+     * Called after a decode step wrote the kv entries of {@link #getNextToken()} and sampled the following token.
+     * @return true if generation is complete
+     */
+    public boolean onTokenDecoded(int token) {
+        kvBuffer.incrementContextPosition();
+        tokensGenerated++;
+        return accept(token, (System.currentTimeMillis() - generateStart) / (float) tokensGenerated);
+    }
+
+    /** @return true once the caller asked to stop, see {@link GeneratorParameters#withCancellation} */
+    public boolean isCancelled() {
+        return generatorParameters.cancelled.isPresent() && generatorParameters.cancelled.get().getAsBoolean();
+    }
+
+    private boolean accept(int next, float timing) {
+        if (isCancelled()) {
+            return finish(FinishReason.CANCELLED);
+        }
+        nextToken = next;
+        if (tokenCount == tokens.length) {
+            tokens = Arrays.copyOf(tokens, tokens.length + Math.max(tokens.length / 2, 1));
+        }
+        tokens[tokenCount++] = next;
+        if (model.getConfig().eosTokens.contains(next)) {
+            return finish(FinishReason.STOP_TOKEN);
+        }
+        String decoded = model.getTokenizer().decode(next);
+        String cleaned = model.getTokenRenderer().tokenizerToRendered(decoded);
+        DecodedToken token = new DecodedToken(next, decoded, cleaned, timing,
+                model.getTokenizer().getModel().isSpecialToken(next), responseTextWithSpecialTokens.length(),
+                responseText.length());
+        responseTextWithSpecialTokens.append(cleaned);
+        if (!token.special) {
+            responseText.append(cleaned);
+        }
+        if (stopMatcher == null || !holdBackStops) {
+            token.emit(onTokenWithTimings);
+        }
+        if (stopMatcher != null) {
+            held.add(token);
+            int end = stopMatcher.feed(cleaned);
+            if (end != -1) {
+                if (generatorParameters.includeStopStrInOutput.orElse(false)) {
+                    release(Integer.MAX_VALUE);
+                } else {
+                    truncate(token.specialOffset + end - stopMatcher.matchLength());
+                }
+                return finish(FinishReason.STOP_TOKEN);
+            }
+            release(responseTextWithSpecialTokens.length() - stopMatcher.pending());
+        }
+        if (getLogicalPosition() >= ntokens) {
+            return finish(FinishReason.MAX_TOKENS);
+        }
+        return false;
+    }
+
+    /** Ends the generation early, for example because the model or the caller failed. */
+    public boolean finish(FinishReason finishReason) {
+        if (!finished) {
+            this.reason = finishReason;
+            this.finished = true;
+            this.generateEnd = System.currentTimeMillis();
+            release(Integer.MAX_VALUE);
+            if (finishReason != FinishReason.ERROR) {
+                publishPrefix();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Shares the full kv pages written so far with later sessions. Token i is only known to be at position i when
+     * this generation started on an empty buffer and the context was never shifted.
+     */
+    private void publishPrefix() {
+        if (startPosition == 0 && shifted == 0 && !isPrefilling()) {
+            kvBuffer.publishPrefix(tokens, getNextPosition());
+        }
+    }
+
+    /** Drops the held tokens whose text ends at or before limit, an offset into the text with special tokens. */
+    private void release(int limit) {
+        while (!held.isEmpty() && held.peek().specialOffset + held.peek().cleaned.length() <= limit) {
+            DecodedToken token = held.poll();
+            if (holdBackStops) {
+                token.emit(onTokenWithTimings);
+            }
+        }
+    }
+
+    /**
+     * Cuts the response at the start of a stop sequence, an offset into the text with special tokens. The stop
+     * sequence began in a held token, when holding back the text of the held tokens before it is still emitted.
+     */
+    private void truncate(int stopOffset) {
+        for (DecodedToken token : held) {
+            int keep = stopOffset - token.specialOffset;
+            if (keep >= token.cleaned.length()) {
+                if (holdBackStops) {
+                    token.emit(onTokenWithTimings);
+                }
+            } else {
+                if (holdBackStops && keep > 0 && !token.special) {
+                    onTokenWithTimings.emit(token.id, token.raw, token.cleaned.substring(0, keep), token.timing);
+                }
+                responseText.setLength(token.textOffset + (token.special ? 0 : Math.max(0, keep)));
+                break;
+            }
+        }
+        held.clear();
+        responseTextWithSpecialTokens.setLength(stopOffset);
+    }
+
+    public Response toResponse() {
+        //post process response is still missing
+        return new Response(responseText.toString(), responseTextWithSpecialTokens.toString(), reason, promptLength,
+                tokensGenerated, promptBatchTime, generateEnd - generateStart);
+    }
+
+    /** A token with where its text starts in the response, with and without special tokens. */
+    private static class DecodedToken {
+        final int id;
+        final String raw;
+        final String cleaned;
+        final float timing;
+        final boolean special;
+        final int specialOffset;
+        final int textOffset;
+
+        DecodedToken(int id, String raw, String cleaned, float timing, boolean special, int specialOffset,
+                     int textOffset) {
+            this.id = id;
+            this.raw = raw;
+            this.cleaned = cleaned;
+            this.timing = timing;
+            this.special = special;
+            this.specialOffset = specialOffset;
+            this.textOffset = textOffset;
+        }
+
+        void emit(GenerateEvent onTokenWithTimings) {
+            if (!special) {
+                onTokenWithTimings.emit(id, raw, cleaned, timing);
+            }
+        }
+    }
+}
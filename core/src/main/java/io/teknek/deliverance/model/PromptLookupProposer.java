@@ -0,0 +1,66 @@
+package io.teknek.deliverance.model;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * Proposes tokens without a draft model. The last n tokens of the generation are looked up in the earlier tokens
+ * (the prompt and what was generated before them) and the tokens that followed the match are proposed. Code edits
+ * and answers grounded in retrieved documents copy long spans of the prompt, so the guesses are often right and
+ * cost nothing but the lookup. The longest n up to maxNgramSize that matches wins.
+ * <p>
+ * Hits are recorded under prompt_lookup.*, the accept rate under speculative.*.
+ */
+public class PromptLookupProposer implements TokenProposer {
+    private final int maxNgramSize;
+    private final Meter lookups;
+    private final Meter hits;
+    private final Histogram matchedNgramSize;
+
+    public PromptLookupProposer(MetricRegistry metricRegistry, int maxNgramSize) {
+        Preconditions.checkArgument(maxNgramSize > 0, "ngram size must be positive");
+        this.maxNgramSize = maxNgramSize;
+        this.lookups = metricRegistry.meter("prompt_lookup.lookups");
+        this.hits = metricRegistry.meter("prompt_lookup.hits");
+        this.matchedNgramSize = metricRegistry.histogram("prompt_lookup.matched_ngram_size");
+    }
+
+    @Override
+    public Proposal propose(GenerationContext ctx, int maxTokens) {
+        lookups.mark();
+        int[] tokens = ctx.getTokens();
+        int length = ctx.getTokenCount();
+        for (int n = Math.min(maxNgramSize, length - 1); n > 0; n--) {
+            int[] proposed = lookup(tokens, length, n, maxTokens);
+            if (proposed.length > 0) {
+                hits.mark();
+                matchedNgramSize.update(n);
+                return new Proposal(proposed, null);
+            }
+        }
+        return Proposal.EMPTY;
+    }
+
+    /**
+     * @return the tokens that follow the first earlier occurrence of the last n tokens, at most maxTokens of them,
+     * or an empty array when the last n tokens do not occur earlier
+     */
+    static int[] lookup(int[] tokens, int length, int n, int maxTokens) {
+        int suffix = length - n;
+        for (int start = 0; start < suffix; start++) {
+            int i = 0;
+            while (i < n && tokens[start + i] == tokens[suffix + i]) {
+                i++;
+            }
+            if (i == n) {
+                int from = start + n;
+                return Arrays.copyOfRange(tokens, from, Math.min(from + maxTokens, length));
+            }
+        }
+        return new int[0];
+    }
+}
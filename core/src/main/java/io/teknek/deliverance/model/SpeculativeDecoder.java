@@ -0,0 +1,123 @@
+package io.teknek.deliverance.model;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.google.common.base.Preconditions;
+import io.teknek.deliverance.tensor.AbstractTensor;
+import io.teknek.deliverance.tensor.KvBufferCache;
+
+/**
+ * Decode is bound by reading the weights, so checking k tokens in one batched forward pass costs about the same as
+ * generating one. Each step asks a {@link TokenProposer} for up to k tokens, runs the model once over the current
+ * token followed by the proposal and keeps the longest prefix the model agrees with, plus one token sampled by the
+ * model itself. With temperature 0 a proposed token is kept when it is the argmax. Otherwise the standard rejection
+ * rule keeps it with probability min(1, p/q) and a rejection samples from the normalized max(0, p - q), so the output
+ * follows the same distribution as plain sampling.
+ * <p>
+ * Rejected tokens still had their keys and values written, the kv position only moves past the kept tokens so the
+ * next step overwrites them.
+ */
+public class SpeculativeDecoder {
+    private final AbstractModel model;
+    private final TokenProposer proposer;
+    private final int maxProposedTokens;
+
+    private final Meter proposedTokens;
+    private final Meter acceptedTokens;
+    private final Histogram tokensPerPass;
+
+    /**
+     * @param maxProposedTokens the most tokens verified in one step, must leave room in jlama.max_batch_size for the
+     *                          current token
+     */
+    public SpeculativeDecoder(AbstractModel model, TokenProposer proposer, int maxProposedTokens) {
+        Preconditions.checkArgument(maxProposedTokens > 0 && maxProposedTokens < AbstractModel.MAX_BATCH_SIZE,
+                "speculative tokens must be between 1 and jlama.max_batch_size - 1");
+        this.model = model;
+        this.proposer = proposer;
+        this.maxProposedTokens = maxProposedTokens;
+        this.proposedTokens = model.metricRegistry.meter("speculative.proposed_tokens");
+        this.acceptedTokens = model.metricRegistry.meter("speculative.accepted_tokens");
+        this.tokensPerPass = model.metricRegistry.histogram("speculative.tokens_per_pass");
+        model.metricRegistry.gauge("speculative.acceptance_rate", () -> () -> {
+            long proposed = proposedTokens.getCount();
+            return proposed == 0 ? 0.0 : (double) acceptedTokens.getCount() / proposed;
+        });
+    }
+
+    /**
+     * One verification pass.
+     * @return true if the generation is complete
+     */
+    public boolean step(GenerationContext ctx) {
+        ctx.reserve(maxProposedTokens + 1);
+        int position = ctx.getNextPosition();
+        int budget = Math.min(maxProposedTokens, ctx.getRemainingTokens() - 1);
+        TokenProposer.Proposal proposal = budget > 0 ? proposer.propose(ctx, budget) : TokenProposer.Proposal.EMPTY;
+        int[] proposed = proposal.getTokens();
+        int m = proposed.length;
+        proposedTokens.mark(m);
+
+        int[] inputs = new int[m + 1];
+        inputs[0] = ctx.getNextToken();
+        System.arraycopy(proposed, 0, inputs, 1, m);
+        KvBufferCache.KvBuffer kvBuffer = ctx.getKvBuffer();
+        float temperature = ctx.getTemperature();
+
+        int accepted = 0;
+        int next = -1;
+        if (temperature == 0.0f) {
+            int[] best;
+            try (AbstractTensor output = model.batchForward(inputs, position, kvBuffer)) {
+                best = model.greedyTokens(output);
+            }
+            while (accepted < m && best[accepted] == proposed[accepted]) {
+                accepted++;
+            }
+            next = best[accepted];
+        } else {
+            try (AbstractTensor logits = model.makeDenseTensor(m + 1, model.getConfig().vocabularySize)) {
+                try (AbstractTensor output = model.batchForward(inputs, position, kvBuffer)) {
+                    model.computeLogits(output, logits);
+                }
+                for (int i = 0; i < m && next == -1; i++) {
+                    int token = proposed[i];
+                    float[] p = ctx.getSampler().distribution(logits.slice(i));
+                    float q = proposal.probability(i, token);
+                    if (ctx.nextUniformSample() * q < p[token]) {
+                        accepted++;
+                    } else {
+                        next = sampleResidual(p, proposal, i, ctx.nextUniformSample());
+                    }
+                }
+                if (next == -1) {
+                    next = ctx.sample(logits.slice(m));
+                }
+            }
+        }
+        acceptedTokens.mark(accepted);
+        tokensPerPass.update(accepted + 1);
+
+        // the pass wrote positions up to position + m, only position + accepted are kept
+        kvBuffer.setCurrentContextPosition(position);
+        for (int i = 0; i < accepted; i++) {
+            if (ctx.onTokenDecoded(proposed[i])) {
+                return true;
+            }
+        }
+        return ctx.onTokenDecoded(next);
+    }
+
+    private static int sampleResidual(float[] p, TokenProposer.Proposal proposal, int index, float uniformSample) {
+        float sum = 0;
+        for (int t = 0; t < p.length; t++) {
+            p[t] = Math.max(0.0f, p[t] - proposal.probability(index, t));
+            sum += p[t];
+        }
+        if (sum == 0.0f) {
+            // p == q, any rejection is rounding, fall back to the proposed token
+            return proposal.getTokens()[index];
+        }
+        return AbstractModel.sample(p, uniformSample * sum);
+    }
+}
@@ -0,0 +1,60 @@
+package io.teknek.deliverance.model;
+
+/**
+ * Guesses the tokens that follow a generation so far, used by {@link SpeculativeDecoder}. A proposer is created
+ * for a single generation and may keep state (like a kv buffer) between calls. Guesses that the model rejects
+ * are simply dropped, the next call sees the corrected tokens in {@link GenerationContext#getTokens()}.
+ */
+public interface TokenProposer extends AutoCloseable {
+
+    /**
+     * @param ctx the generation, its tokens end with the token the proposal continues from
+     * @param maxTokens the most tokens to propose
+     * @return between 0 and maxTokens tokens
+     */
+    Proposal propose(GenerationContext ctx, int maxTokens);
+
+    @Override
+    default void close() {
+    }
+
+    /** Makes the proposer of each generation, passed to {@link io.teknek.deliverance.generator.GeneratorParameters} */
+    @FunctionalInterface
+    interface Factory {
+        TokenProposer create(AbstractModel target);
+    }
+
+    class Proposal {
+        public static final Proposal EMPTY = new Proposal(new int[0], null);
+
+        private final int[] tokens;
+        private final float[][] distributions;
+
+        /**
+         * @param tokens the proposed tokens
+         * @param distributions the distribution each token was sampled from, or null when the tokens were picked
+         *                      deterministically (greedy or looked up)
+         */
+        public Proposal(int[] tokens, float[][] distributions) {
+            this.tokens = tokens;
+            this.distributions = distributions;
+        }
+
+        public int[] getTokens() {
+            return tokens;
+        }
+
+        public int size() {
+            return tokens.length;
+        }
+
+        /** @return the probability the proposer gave token at index i of the proposal */
+        public float probability(int i, int token) {
+            if (distributions == null) {
+                return token == tokens[i] ? 1.0f : 0.0f;
+            }
+            float[] d = distributions[i];
+            return token < d.length ? d[token] : 0.0f;
+        }
+    }
+}
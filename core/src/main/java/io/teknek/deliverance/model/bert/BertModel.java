@@ -94,14 +94,14 @@ public class BertModel extends AbstractModel {
 
             AbstractTensor outputBias = loadWeight(prefix + "output.dense.bias");
             AbstractTensor outputWeight = loadWeight(prefix + "output.dense.weight");
-            CausalSelfAttention attention = new CausalSelfAttention(
+            EncoderSelfAttention attention = new EncoderSelfAttention(
                     this,
                     i,
-                    Optional.of(keyBias),
                     Optional.of(queryBias),
+                    Optional.of(keyBias),
                     Optional.of(valueBias),
-                    keyWeight,
                     queryWeight,
+                    keyWeight,
                     valueWeight,
                     Optional.of(outputBias),
                     outputWeight,
@@ -131,6 +131,11 @@ public class BertModel extends AbstractModel {
         return transformerBlocks;
     }
 
+    @Override
+    public boolean isEncoder() {
+        return true;
+    }
+
     @Override
     protected SampleOutput loadOutputWeights() {
         throw new UnsupportedOperationException();
@@ -8,6 +8,9 @@ import java.util.List;
 import java.util.Map;
 
 public class Gemma2Config extends Config {
+    /** the window of the local attention layers, every other layer starting with the first */
+    public final Integer slidingWindow;
+
     @JsonCreator
     public Gemma2Config(
             @JsonProperty("max_position_embeddings") int contextLength,
@@ -25,7 +28,8 @@ public class Gemma2Config extends Config {
             @JsonProperty("rope_scaling") Map<String, String> ropeScaling,
             @JsonProperty("head_dim") Integer headDim,
             @JsonProperty("final_logit_softcapping") Float finalLogitSoftCapping,
-            @JsonProperty("attn_logit_softcapping") Float attnLogitSoftCapping
+            @JsonProperty("attn_logit_softcapping") Float attnLogitSoftCapping,
+            @JsonProperty("sliding_window") Integer slidingWindow
     ) {
         super(
                 contextLength,
@@ -45,5 +49,14 @@ public class Gemma2Config extends Config {
                 finalLogitSoftCapping,
                 attnLogitSoftCapping
         );
+        this.slidingWindow = slidingWindow;
+    }
+
+    @Override
+    public int attentionWindow(int layerIndex) {
+        if (slidingWindow == null || layerIndex % 2 != 0) {
+            return contextLength;
+        }
+        return Math.min(slidingWindow, contextLength);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,145 @@
+package io.teknek.deliverance.tensor;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Preconditions;
+import io.teknek.deliverance.DType;
+import io.teknek.deliverance.tensor.impl.Q4ByteBufferTensor;
+import io.teknek.deliverance.tensor.impl.Q8ByteBufferTensor;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The memory of the kv pages of every session of a model, kept within a byte budget. Memory is committed before a
+ * page is taken, either up front when a generation is admitted or when a page is allocated, and a released page goes
+ * on a free list for its shape until it is taken again. When a commit does not fit, evictor is asked to release
+ * memory nobody is reading (idle sessions, unused prefix blocks) until it fits or there is nothing left to evict.
+ * <p>
+ * Committed bytes are pages in use plus reservations not taken yet, free bytes are the pages on the free lists. A
+ * page that is not on a free list is only allocated after dropping free pages until committed + free fits the budget,
+ * so the pages in use and on the free lists never take more than the budget.
+ */
+class KvBlockPool {
+    private final long budgetBytes;
+    private final BooleanSupplier evictor;
+    private final Map<ShapeKey, ArrayDeque<AbstractTensor>> free = new HashMap<>();
+    private long committedBytes;
+    private long freeBytes;
+
+    private final Meter evictions;
+    private final Meter rejections;
+
+    KvBlockPool(long budgetBytes, BooleanSupplier evictor, MetricRegistry metricRegistry) {
+        Preconditions.checkArgument(budgetBytes > 0, "budgetBytes must be positive");
+        this.budgetBytes = budgetBytes;
+        this.evictor = evictor;
+        this.evictions = metricRegistry.meter("kvcache.pool.evictions");
+        this.rejections = metricRegistry.meter("kvcache.pool.rejections");
+        metricRegistry.gauge("kvcache.pool.budget_bytes", () -> () -> budgetBytes);
+        metricRegistry.gauge("kvcache.pool.committed_bytes", () -> this::committedBytes);
+        metricRegistry.gauge("kvcache.pool.free_bytes", () -> this::freeBytes);
+    }
+
+    /** @return the bytes a page of this type and shape takes, with the block scales of quantized types */
+    static long bytes(DType dType, TensorShape shape) {
+        long elements = shape.size();
+        return switch (dType) {
+            case I8 -> elements + elements / Q8ByteBufferTensor.BLOCK_SIZE * Float.BYTES;
+            case Q4 -> elements / 2 + elements / Q4ByteBufferTensor.BLOCK_SIZE * Float.BYTES;
+            default -> elements * dType.size();
+        };
+    }
+
+    /**
+     * Commits bytes, evicting what the evictor can release until they fit. The evictor runs without the pool lock
+     * held as releasing pages gives them back to this pool.
+     * @return false when the budget can not hold them even with nothing left to evict, nothing is committed then
+     */
+    boolean reserve(long bytes) {
+        while (true) {
+            synchronized (this) {
+                if (committedBytes + bytes <= budgetBytes) {
+                    committedBytes += bytes;
+                    return true;
+                }
+            }
+            if (!evictor.getAsBoolean()) {
+                rejections.mark();
+                return false;
+            }
+            evictions.mark();
+        }
+    }
+
+    /** Gives back committed bytes no page was taken for. */
+    synchronized void unreserve(long bytes) {
+        Preconditions.checkArgument(bytes >= 0 && bytes <= committedBytes, "Can not give back %s of %s bytes",
+                bytes, committedBytes);
+        committedBytes -= bytes;
+    }
+
+    /**
+     * A cleared tensor for a page, from the free list of its shape when there is one. Its bytes must have been
+     * committed with {@link #reserve}.
+     */
+    synchronized AbstractTensor take(DType dType, TensorShape shape) {
+        ArrayDeque<AbstractTensor> available = free.get(new ShapeKey(dType, shape));
+        AbstractTensor t = available == null ? null : available.poll();
+        if (t != null) {
+            freeBytes -= bytes(dType, shape);
+            t.clear();
+            return t;
+        }
+        trimFreeLists();
+        return TensorCache.allocate(dType, shape);
+    }
+
+    /** Puts the tensor of a released page on the free list of its shape, its bytes are no longer committed. */
+    synchronized void give(AbstractTensor t) {
+        long bytes = bytes(t.dType(), t.shape());
+        committedBytes -= bytes;
+        free.computeIfAbsent(new ShapeKey(t.dType(), t.shape()), k -> new ArrayDeque<>()).add(t);
+        freeBytes += bytes;
+    }
+
+    /**
+     * Puts the tensor of a released page on the free list of its shape but keeps its bytes committed, for the caller
+     * to take another page with.
+     */
+    synchronized void recycle(AbstractTensor t) {
+        free.computeIfAbsent(new ShapeKey(t.dType(), t.shape()), k -> new ArrayDeque<>()).add(t);
+        freeBytes += bytes(t.dType(), t.shape());
+    }
+
+    /** Drops free tensors until committed and free memory fit the budget again, their memory is left to the gc. */
+    private void trimFreeLists() {
+        Iterator<Map.Entry<ShapeKey, ArrayDeque<AbstractTensor>>> it = free.entrySet().iterator();
+        while (committedBytes + freeBytes > budgetBytes && it.hasNext()) {
+            Map.Entry<ShapeKey, ArrayDeque<AbstractTensor>> e = it.next();
+            long bytes = bytes(e.getKey().dType, e.getKey().shape);
+            while (committedBytes + freeBytes > budgetBytes && !e.getValue().isEmpty()) {
+                e.getValue().poll();
+                freeBytes -= bytes;
+            }
+            if (e.getValue().isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    long budgetBytes() {
+        return budgetBytes;
+    }
+
+    synchronized long committedBytes() {
+        return committedBytes;
+    }
+
+    synchronized long freeBytes() {
+        return freeBytes;
+    }
+}
@@ -1,14 +1,21 @@
 package io.teknek.deliverance.tensor;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.codahale.metrics.Meter;
 import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
+import com.google.common.hash.Hashing;
 import io.teknek.deliverance.DType;
+import io.teknek.deliverance.JsonUtils;
 
 import io.teknek.deliverance.model.AbstractModel;
 import io.teknek.deliverance.safetensors.DistributedContext;
 import io.teknek.deliverance.safetensors.Config;
+import io.teknek.deliverance.safetensors.WeightLoader;
 import io.teknek.deliverance.tensor.impl.BFloat16BufferTensor;
 import io.teknek.deliverance.tensor.impl.FloatBufferTensor;
+import io.teknek.deliverance.tensor.impl.Q8ByteBufferTensor;
+import io.teknek.deliverance.tensor.operations.TensorOperations;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,13 +24,21 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -32,18 +47,104 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class KvBufferCache implements Closeable {
     private static final Logger logger = LoggerFactory.getLogger(KvBufferCache.class);
+    /** spilled pages read back after the one a session uses */
+    private static final int SPILL_READ_AHEAD_PAGES = 4;
+    /**
+     * the most positions of a contiguous region handed to attention as one tensor. The kernels hold scores for a
+     * whole page, a block bounds them however long the region grows
+     */
+    static final int REGION_BLOCK_POSITIONS = 256;
     private final ConcurrentMap<String, KvBuffer> kvBufferCache;
     private final AbstractModel model;
     private final KvBufferCacheSettings kvBufferCacheSettings;
+    private final KvPrefixCache prefixCache;
+    /** the full prefix blocks kept on disk across restarts, null without a persistent prefix cache */
+    private final KvPrefixStore prefixStore;
+    private final Meter copyOnWrites;
+    /** the type of the kv pages, the working type of the model unless the cache is quantized */
+    private final DType kvDType;
+    /** the memory of in memory pages when there is a budget, otherwise pages come from the tensor cache */
+    private final KvBlockPool blockPool;
+    /** orders the sessions by last use for eviction, guarded by kvBufferCache */
+    private long clock;
+    /** writes idle sessions to disk once the pool is over the spill threshold, null without a spill directory */
+    private final ExecutorService spiller;
+    private final AtomicBoolean spillScheduled = new AtomicBoolean();
+    private final Meter spillWrites;
+    private final Meter spillReads;
+    /** see {@link #modelFingerprint()}, null until it is first used */
+    private volatile String fingerprint;
 
     public KvBufferCache(AbstractModel model, KvBufferCacheSettings kvBufferCacheSettings) {
         this.kvBufferCache = new ConcurrentHashMap<>();
         this.model = model;
         this.kvBufferCacheSettings = kvBufferCacheSettings;
+        Preconditions.checkArgument(!kvBufferCacheSettings.isContiguousLayout() || !kvBufferCacheSettings.isPrefixCacheEnabled(),
+                "The prefix cache shares pages, it can not be used with the contiguous layout");
+        kvBufferCacheSettings.getKvDType().ifPresent(kvDType -> {
+            Config c = model.getConfig();
+            Preconditions.checkArgument(model.getWorkingDType() == DType.F32, "A %s kv cache needs an F32 working type", kvDType);
+            Preconditions.checkArgument(c.headSize % Q8ByteBufferTensor.BLOCK_SIZE == 0 && c.kvLength == c.dctx().kvSegmentLength,
+                    "A %s kv cache needs whole blocks per head and the kv heads of the model on one node", kvDType);
+        });
+        this.kvDType = kvBufferCacheSettings.getKvDType().orElse(model.getWorkingDType());
+        this.prefixCache = kvBufferCacheSettings.isPrefixCacheEnabled()
+                ? new KvPrefixCache(kvBufferCacheSettings.getPrefixCacheBlocks(), model.getMetricRegistry())
+                : null;
+        this.copyOnWrites = model.getMetricRegistry().meter("kvcache.copy_on_write");
+        this.blockPool = kvBufferCacheSettings.getMemoryBudgetBytes()
+                .map(budget -> new KvBlockPool(budget, this::evictIdle, model.getMetricRegistry()))
+                .orElse(null);
+        if (blockPool != null) {
+            model.getMetricRegistry().gauge("kvcache.sessions", () -> kvBufferCache::size);
+        }
+        if (kvBufferCacheSettings.getSpillDirectory() != null || kvBufferCacheSettings.getSnapshotDirectory() != null
+                || kvBufferCacheSettings.getPrefixStoreDirectory() != null) {
+            Preconditions.checkArgument(kvDType == DType.F32 || kvDType == DType.BF16,
+                    "Only F32/BF16 kv pages can be written to disk");
+            Preconditions.checkArgument(model.getConfig().kvLength == model.getConfig().dctx().kvSegmentLength,
+                    "Kv pages split across nodes can not be written to disk");
+        }
+        this.prefixStore = kvBufferCacheSettings.getPrefixStoreDirectory() == null ? null
+                : new KvPrefixStore(kvBufferCacheSettings.getPrefixStoreDirectory(),
+                        kvBufferCacheSettings.getPrefixStoreBytes(), kvDType, model.getMetricRegistry());
+        this.spiller = kvBufferCacheSettings.getSpillDirectory() == null ? null : Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "kv-cache-spiller");
+            t.setDaemon(true);
+            return t;
+        });
+        this.spillWrites = model.getMetricRegistry().meter("kvcache.spill.page_writes");
+        this.spillReads = model.getMetricRegistry().meter("kvcache.spill.page_reads");
     }
 
+    /**
+     * @return the buffer of a session. With a memory budget the session keeps its pages when the buffer is closed, so
+     * the next generation of the session continues after them, until it is evicted for memory while idle.
+     */
     public KvBuffer getKvBuffer(String session) {
-        return kvBufferCache.computeIfAbsent(session, s -> new KvBuffer(s, 1 << 23)); // 8MB per page
+        if (blockPool == null) {
+            return kvBufferCache.computeIfAbsent(session, s -> new KvBuffer(s, 1 << 23)); // 8MB per page
+        }
+        KvBuffer buffer;
+        synchronized (kvBufferCache) {
+            buffer = kvBufferCache.computeIfAbsent(session, s -> {
+                KvBuffer created = new KvBuffer(s, 1 << 23);
+                if (kvBufferCacheSettings.getSnapshotDirectory() != null) {
+                    created.restore();
+                }
+                return created;
+            });
+            buffer.retained = true;
+            buffer.users++;
+            buffer.lastUsed = ++clock;
+        }
+        if (spiller != null) {
+            // a spill that started before the session was taken finishes first, see KvBuffer#spill
+            synchronized (buffer) {
+                logger.trace("Resuming session {}", session);
+            }
+        }
+        return buffer;
     }
 
     /**just orphans less memory :) */
@@ -51,13 +152,147 @@ public class KvBufferCache implements Closeable {
         return new KvBuffer(UUID.randomUUID().toString(), 1 << 20);
     }
 
+    /**
+     * @return a hash of what the keys and values of a session depend on: the model, its geometry, its rotary
+     * embedding, its weights and the part of it this node runs. The weights are identified by their names and layout
+     * and a sample of the values of the first and last of them. A snapshot is only restored into a model with the
+     * same fingerprint. Computed once, on first use.
+     */
+    String modelFingerprint() {
+        String fingerprint = this.fingerprint;
+        if (fingerprint == null) {
+            Config c = model.getConfig();
+            DistributedContext dctx = c.dctx();
+            List<Object> parts = new ArrayList<>(List.of(model.getClass().getName(), c.contextLength, c.embeddingLength,
+                    c.attentionLength, c.hiddenLength, c.numberOfHeads, c.numberOfKeyValueHeads, c.headSize,
+                    c.numberOfLayers, c.vocabularySize, c.layerNormEps, c.bosToken, c.eosTokens, c.activationFunction,
+                    String.valueOf(c.attnLogitSoftCapping), String.valueOf(c.finalLogitSoftCapping),
+                    String.valueOf(c.residualMultiplier), String.valueOf(c.attentionMultiplier),
+                    String.valueOf(c.embeddingMultiplier), String.valueOf(c.logitMultiplier),
+                    c.ropeTable.map(rope -> Arrays.toString(rope.frequencies())).orElse("no rope"),
+                    dctx.layerStart, dctx.layerEnd, dctx.kvSegmentStart, dctx.kvSegmentEnd));
+            for (int l = 0; l < c.numberOfLayers; l++) {
+                parts.add(c.attentionWindow(l));
+            }
+            WeightLoader weights = model.getWeights();
+            TreeMap<String, TensorInfo> tensors = new TreeMap<>(weights.tensorInfoMap());
+            parts.add(weights.getModelDType());
+            parts.add(tensors.toString());
+            if (!tensors.isEmpty()) {
+                parts.add(Arrays.toString(sample(weights.load(tensors.firstKey()), 16)));
+                parts.add(Arrays.toString(sample(weights.load(tensors.lastKey()), 16)));
+            }
+            fingerprint = Hashing.sha256().hashString(parts.toString(), StandardCharsets.UTF_8).toString();
+            this.fingerprint = fingerprint;
+        }
+        return fingerprint;
+    }
+
+    /** @return count values spread evenly over the elements of t */
+    private static float[] sample(AbstractTensor t, int count) {
+        float[] values = new float[count];
+        int[] cursor = new int[t.dims()];
+        for (int i = 0; i < count; i++) {
+            long index = t.size() * i / count;
+            for (int d = cursor.length - 1; d >= 0; d--) {
+                cursor[d] = (int) (index % t.shape().dim(d));
+                index /= t.shape().dim(d);
+            }
+            values[i] = t.get(cursor);
+        }
+        return values;
+    }
+
+    /**
+     * Releases the least recently used memory nobody is reading, an unused prefix block or else the pages of the
+     * session idle the longest, which is forgotten.
+     * @return false when there was nothing to release
+     */
+    private boolean evictIdle() {
+        if (prefixCache != null && prefixCache.evictLeastRecentlyUsed()) {
+            return true;
+        }
+        if (spiller != null) {
+            // a session that is in use again by the time it would be written is skipped the next time round
+            KvBuffer victim = leastRecentlyUsedIdle();
+            if (victim != null) {
+                victim.spill();
+            }
+            return victim != null;
+        }
+        KvBuffer victim = null;
+        synchronized (kvBufferCache) {
+            for (KvBuffer buffer : kvBufferCache.values()) {
+                if (buffer.users == 0 && (victim == null || buffer.lastUsed < victim.lastUsed)) {
+                    victim = buffer;
+                }
+            }
+            if (victim == null) {
+                return false;
+            }
+            kvBufferCache.remove(victim.session);
+        }
+        logger.debug("Evicting idle session {}", victim.session);
+        victim.releasePages();
+        return true;
+    }
+
+    /** @return the idle session used the longest ago that still has pages in memory */
+    private KvBuffer leastRecentlyUsedIdle() {
+        KvBuffer victim = null;
+        synchronized (kvBufferCache) {
+            for (KvBuffer buffer : kvBufferCache.values()) {
+                if (buffer.users == 0 && (victim == null || buffer.lastUsed < victim.lastUsed) && buffer.holdsPages()) {
+                    victim = buffer;
+                }
+            }
+        }
+        return victim;
+    }
+
+    private boolean overSpillThreshold() {
+        return blockPool.committedBytes() > kvBufferCacheSettings.getSpillThreshold() * blockPool.budgetBytes();
+    }
+
+    /** Starts writing idle sessions to disk in the background when the pages in use are over the spill threshold. */
+    private void maybeSpill() {
+        if (spiller != null && overSpillThreshold() && spillScheduled.compareAndSet(false, true)) {
+            spiller.execute(() -> {
+                spillScheduled.set(false);
+                KvBuffer victim;
+                while (overSpillThreshold() && (victim = leastRecentlyUsedIdle()) != null) {
+                    victim.spill();
+                }
+            });
+        }
+    }
+
     @Override
     public void close() {
         Iterator<Map.Entry<String, KvBuffer>> it = kvBufferCache.entrySet().iterator();
         while (it.hasNext()) {
-            it.next().getValue().close();
+            KvBuffer buffer = it.next().getValue();
+            if (kvBufferCacheSettings.getSnapshotDirectory() != null && buffer.users == 0
+                    && buffer.getCurrentContextPosition() > 0) {
+                try {
+                    buffer.snapshot();
+                } catch (IOError e) {
+                    logger.warn("Could not snapshot session {}", buffer.session, e);
+                }
+            }
+            buffer.releaseReservation();
+            buffer.releasePages();
             it.remove();
         }
+        if (spiller != null) {
+            spiller.shutdownNow();
+        }
+        if (prefixCache != null) {
+            prefixCache.clear();
+        }
+        if (prefixStore != null) {
+            prefixStore.close();
+        }
     }
 
     @VisibleForTesting
@@ -71,6 +306,8 @@ public class KvBufferCache implements Closeable {
         private final int layersPerPage;
         private final int contextLengthPerPage;
         private final String session;
+        /** context pages of every layer page, fewer than numberOfContextPages for a sliding window ring */
+        private final int[] contextPagesInUse;
 
         public final TensorShape pageShape;
 
@@ -89,19 +326,97 @@ public class KvBufferCache implements Closeable {
 
             if (contextLengthPerPage < 1) throw new IllegalArgumentException("contextLengthPerPage must be >= 1");
 
-            TensorShape s;
+            Config c = model.getConfig();
+            this.pageShape = shapeFor(contextLengthPerPage);
+
+            this.contextPagesInUse = new int[numberOfLayerPages];
+            Arrays.fill(contextPagesInUse, numberOfContextPages);
+            if (layersPerPage == 1) {
+                for (int l = 0; l < numberOfLayerPages; l++) {
+                    // the oldest position a batch attends to can be its rows and the window before the first row
+                    int positions = c.attentionWindow(l) + AbstractModel.MAX_BATCH_SIZE - 1;
+                    int ring = (positions + contextLengthPerPage - 1) / contextLengthPerPage + 1;
+                    contextPagesInUse[l] = Math.min(ring, numberOfContextPages);
+                }
+            }
+        }
+
+        /** @return the shape of a page holding positions positions of each of its layers */
+        TensorShape shapeFor(int positions) {
             Config c = model.getConfig();
             DistributedContext dctx = c.dctx();
-            int[] rawShape = new int[] { layersPerPage, 2, contextLengthPerPage, c.kvLength };
+            int[] rawShape = new int[] { layersPerPage, 2, positions, c.kvLength };
 
             // Adjust the shape to be relative to the kv cache size (in case of GQA)
             if (c.kvLength != dctx.kvSegmentLength) {
                 SparseOffset<Integer> kvOffset = SparseOffset.of(dctx.kvSegmentStart, dctx.kvSegmentEnd);
-                s = TensorShape.sparseColumn(rawShape, kvOffset);
-            } else {
-                s = TensorShape.of(rawShape);
+                return TensorShape.sparseColumn(rawShape, kvOffset);
             }
-            this.pageShape = s;
+            return TensorShape.of(rawShape);
+        }
+
+        /** @return the page holding position in the layers of layerPageIndex */
+        int contextPageIndex(int layerPageIndex, int position) {
+            return (position / contextLengthPerPage) % contextPagesInUse[layerPageIndex];
+        }
+
+        /** @return how many positions every layer keeps before a ring wraps around, MAX_VALUE without a ring */
+        int positionsKept() {
+            int fewest = Arrays.stream(contextPagesInUse).min().orElse(numberOfContextPages);
+            return fewest < numberOfContextPages ? fewest * contextLengthPerPage : Integer.MAX_VALUE;
+        }
+    }
+
+    /** Maps a page file of the working type, the file is sized to the shape first. */
+    private AbstractTensor mapPageFile(RandomAccessFile raf, TensorShape pageShape) throws IOException {
+        return mapPageFile(raf, pageShape, model.getWorkingDType(), FileChannel.MapMode.READ_WRITE);
+    }
+
+    /**
+     * Maps a page file of dType, the file is sized to the shape first. With {@link FileChannel.MapMode#PRIVATE}
+     * writes to the tensor stay in memory and never reach the file.
+     */
+    static AbstractTensor mapPageFile(RandomAccessFile raf, TensorShape pageShape, DType dType, FileChannel.MapMode mode)
+            throws IOException {
+        long bytes = pageShape.size() * dType.size();
+        if (raf.length() != bytes) {
+            raf.setLength(bytes);
+        }
+
+        AbstractTensor<?,?> t;
+        if (dType == DType.F32) {
+            FloatBuffer fb = raf.getChannel()
+                    .map(mode, 0, bytes)
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .asFloatBuffer();
+
+            t = new FloatBufferTensor(fb, pageShape, true);
+        } else if (dType == DType.BF16) {
+            ShortBuffer sb = raf.getChannel()
+                    .map(mode, 0, bytes)
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .asShortBuffer();
+
+            t = new BFloat16BufferTensor("kvmem", sb, pageShape, true);
+        } else {
+            throw new UnsupportedOperationException("Only F32/BF16 is supported for now");
+        }
+        return t;
+    }
+
+    /**
+     * A page on disk, written by {@link KvBuffer#spill} or part of a snapshot. Spill files are owned by the buffer and
+     * deleted once read back, snapshot files are left for the next snapshot to replace.
+     */
+    private static class SpilledPage {
+        final File file;
+        final TensorShape shape;
+        final boolean owned;
+
+        SpilledPage(File file, TensorShape shape, boolean owned) {
+            this.file = file;
+            this.shape = shape;
+            this.owned = owned;
         }
     }
 
@@ -114,15 +429,29 @@ public class KvBufferCache implements Closeable {
         private final AbstractTensor tensor;
 
         private final AtomicBoolean closed = new AtomicBoolean(false);
+        private final AtomicInteger references = new AtomicInteger(1);
         private final RandomAccessFile raf;
+        private final boolean pooled;
 
         KvBufferPage(KvPageContext pageCtx, String pageId) {
+            this(pageCtx, pageId, pageCtx.pageShape);
+        }
+
+        /** A page of memory taken from the block pool, it goes back to the pool when closed. */
+        KvBufferPage(AbstractTensor pooledTensor) {
+            this.raf = null;
+            this.tensor = pooledTensor;
+            this.pooled = true;
+        }
+
+        KvBufferPage(KvPageContext pageCtx, String pageId, TensorShape pageShape) {
+            this.pooled = false;
             //this looks more and more like two subclasses vs an if statement
             if (kvBufferCacheSettings.isEphemeral()) {
                 this.raf = null;
                 TensorCache tc = kvBufferCacheSettings.getDedicatedCache() == null ?
                         model.getTensorCache(): kvBufferCacheSettings.getDedicatedCache();
-                this.tensor = tc.get(model.getWorkingDType(), pageCtx.pageShape);
+                this.tensor = tc.get(kvDType, pageShape);
             } else {
                 try {
                     raf = new RandomAccessFile(
@@ -132,31 +461,8 @@ public class KvBufferCache implements Closeable {
                             ).toFile(),
                             "rw"
                     );
-                    long bytes = pageCtx.pageShape.size() * model.getWorkingDType().size();
-                    logger.debug("Allocating page {} with {} bytes {}", pageId, bytes, raf.length());
-                    if (raf.length() != bytes) {
-                        raf.setLength(bytes);
-                    }
-
-                    AbstractTensor<?,?> t;
-                    if (model.getWorkingDType() == DType.F32) {
-                        FloatBuffer fb = raf.getChannel()
-                                .map(FileChannel.MapMode.READ_WRITE, 0, bytes)
-                                .order(ByteOrder.LITTLE_ENDIAN)
-                                .asFloatBuffer();
-
-                        t = new FloatBufferTensor(fb, pageCtx.pageShape, true);
-                    } else if (model.getWorkingDType() == DType.BF16) {
-                        ShortBuffer sb = raf.getChannel()
-                                .map(FileChannel.MapMode.READ_WRITE, 0, bytes)
-                                .order(ByteOrder.LITTLE_ENDIAN)
-                                .asShortBuffer();
-
-                        t = new BFloat16BufferTensor("kvmem", sb, pageCtx.pageShape, true);
-                    } else {
-                        throw new UnsupportedOperationException("Only F32/BF16 is supported for now");
-                    }
-                    this.tensor = t;
+                    logger.debug("Allocating page {} with {} bytes", pageId, raf.length());
+                    this.tensor = mapPageFile(raf, pageShape);
                 } catch (IOException e) {
                     throw new IOError(e);
                 }
@@ -172,13 +478,54 @@ public class KvBufferCache implements Closeable {
             return closed.get();
         }
 
+        /** @return the positions of each layer this page holds */
+        int capacity() {
+            return tensor.shape().dim(2);
+        }
+
+        /** Adds a reader, pages shared through the prefix cache are closed when the last reference is released. */
+        void retain() {
+            references.incrementAndGet();
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                try {
+                    close();
+                } catch (IOException e) {
+                    logger.debug("Error closing page", e);
+                }
+            }
+        }
+
+        int references() {
+            return references.get();
+        }
+
+        /**
+         * Closes a pool page nobody else references, its bytes stay committed for the caller.
+         * @return false when the page is shared or not from the pool, it is only released then
+         */
+        boolean recycle() {
+            if (pooled && references.compareAndSet(1, 0) && closed.compareAndSet(false, true)) {
+                blockPool.recycle(tensor);
+                return true;
+            }
+            release();
+            return false;
+        }
+
         @Override
         public void close() throws IOException {
             if (closed.compareAndSet(false, true)) {
                 if (raf != null) {
                     raf.close();
                 }
-                tensor.close();
+                if (pooled) {
+                    blockPool.give(tensor);
+                } else {
+                    tensor.close();
+                }
             }
         }
     }
@@ -189,11 +536,79 @@ public class KvBufferCache implements Closeable {
         private final KvBufferPage[][] pages;
 
         private final KvPageContext pageContext;
+        /**
+         * With the contiguous layout the key and value tensors of every layer as views of blocks of its region, handed
+         * out by {@link #getKeyTensorsUptoPosition} without slicing them again, and the page they are views of.
+         */
+        private final AbstractTensor[][][] regions;
+        private final KvBufferPage[][] regionPages;
+        /** pool memory committed to this buffer that no page holds yet, see {@link #tryReserve} */
+        private long reservedBytes;
+        /** a session buffer of a cache with a memory budget, closing it keeps the pages. Guarded by kvBufferCache */
+        private boolean retained;
+        private int users;
+        private long lastUsed;
+        /** the pages on disk, spilled or restored from a snapshot, null until there are any */
+        private SpilledPage[][] spilled;
+        /** the token at each position written, see {@link #recordTokens} */
+        private int[] tokens = new int[0];
+        /**
+         * the attention weight every position of every layer of this node received so far, summed over heads and
+         * queries, null unless {@link #trackAttention()} was called. Guarded by itself
+         */
+        private float[][] attentionMass;
 
             KvBuffer(String session, int maxPageSizeInBytes) {
             this.session = session;
-            this.pageContext = computePageSize(maxPageSizeInBytes);
+            if (kvBufferCacheSettings.isContiguousLayout()) {
+                // a single page per layer, it only grows to the context length as positions are written
+                Config c = model.getConfig();
+                this.pageContext = new KvPageContext(session, c.dctx().numberOfLayers, 1, 1, c.contextLength);
+            } else {
+                this.pageContext = computePageSize(maxPageSizeInBytes, prefixCache == null
+                        ? model.getConfig().contextLength : kvBufferCacheSettings.getPrefixBlockTokens());
+            }
+            this.pages = new KvBufferPage[pageContext.numberOfLayerPages][pageContext.numberOfContextPages];
+            this.regions = kvBufferCacheSettings.isContiguousLayout() ? new AbstractTensor[pageContext.numberOfLayerPages][2][] : null;
+            this.regionPages = kvBufferCacheSettings.isContiguousLayout() ? new KvBufferPage[pageContext.numberOfLayerPages][2] : null;
+        }
+
+        private KvBuffer(String session, KvPageContext parent) {
+            this.session = session;
+            this.pageContext = new KvPageContext(session, parent.numberOfLayerPages, parent.numberOfContextPages,
+                    parent.layersPerPage, parent.contextLengthPerPage);
             this.pages = new KvBufferPage[pageContext.numberOfLayerPages][pageContext.numberOfContextPages];
+            this.regions = kvBufferCacheSettings.isContiguousLayout() ? new AbstractTensor[pageContext.numberOfLayerPages][2][] : null;
+            this.regionPages = kvBufferCacheSettings.isContiguousLayout() ? new KvBufferPage[pageContext.numberOfLayerPages][2] : null;
+        }
+
+        /**
+         * A buffer at the same position that shares every page with this one, so parallel samples or beams of one
+         * prompt do not prefill or store it again. A shared page is copied by whichever buffer writes to it first,
+         * a branch only allocates the pages its own tokens land in. Both buffers have to be closed.
+         */
+        public KvBuffer fork() {
+            KvBuffer fork = new KvBuffer(session + "-" + UUID.randomUUID(), pageContext);
+            for (int l = 0; l < pages.length; l++) {
+                for (int c = 0; c < pages[l].length; c++) {
+                    KvBufferPage page = page(l, c);
+                    if (page != null && !page.isClosed()) {
+                        page.retain();
+                        fork.pages[l][c] = page;
+                    }
+                }
+            }
+            fork.tokens = Arrays.copyOf(tokens, tokens.length);
+            if (attentionMass != null) {
+                synchronized (attentionMass) {
+                    fork.attentionMass = new float[attentionMass.length][];
+                    for (int l = 0; l < attentionMass.length; l++) {
+                        fork.attentionMass[l] = Arrays.copyOf(attentionMass[l], attentionMass[l].length);
+                    }
+                }
+            }
+            fork.setCurrentContextPosition(getCurrentContextPosition());
+            return fork;
         }
 
         public int getCurrentContextPosition() {
@@ -209,6 +624,13 @@ public class KvBufferCache implements Closeable {
         }
 
         public KvPageContext computePageSize(long maxPageSizeInBytes) {
+            return computePageSize(maxPageSizeInBytes, model.getConfig().contextLength);
+        }
+
+        /**
+         * @param maxContextLengthPerPage upper bound of positions in one page, the prefix cache shares whole pages
+         */
+        public KvPageContext computePageSize(long maxPageSizeInBytes, int maxContextLengthPerPage) {
             Config c = model.getConfig();
             DType workingDType = model.getWorkingDType();
             long s = 2L * workingDType.size() * c.dctx().kvSegmentLength; // Size per layer per context
@@ -216,17 +638,18 @@ public class KvBufferCache implements Closeable {
             Preconditions.checkArgument(maxPageSizeInBytes > s, "maxPageSizeInBytes must be greater than the size of a single layer");
 
             int N = c.dctx().numberOfLayers;
-            int C = c.contextLength;
+            int C = Math.min(c.contextLength, maxContextLengthPerPage);
 
             int optimalLayersPerPage = 1;
             int optimalContextLengthPerPage = 1;
             long maxProduct = 0;
 
-            // Try partitioning by layers
-            for (int x = N; x >= 1; x--) {
-                long y = maxPageSizeInBytes / (x * s);
+            // Try partitioning by layers, layers with a sliding window reuse their pages so they can not share them
+            for (int x = c.hasSlidingWindowLayers() ? 1 : N; x >= 1; x--) {
+                // a page never needs more positions than C, clamp rather than skip so small models get whole pages
+                long y = Math.min(maxPageSizeInBytes / (x * s), C);
 
-                if (y >= 1 && y <= C) {
+                if (y >= 1) {
                     long product = x * y;
 
                     if (product > maxProduct) {
@@ -243,7 +666,7 @@ public class KvBufferCache implements Closeable {
 
             // Calculate the number of pages needed
             int numberOfLayerPages = (int) Math.ceil((double) N / optimalLayersPerPage);
-            int numberOfContextPages = (int) Math.ceil((double) C / optimalContextLengthPerPage);
+            int numberOfContextPages = (int) Math.ceil((double) c.contextLength / optimalContextLengthPerPage);
 
             // Calculate the size of each page
             long pageSize = optimalLayersPerPage * optimalContextLengthPerPage * s;
@@ -266,17 +689,561 @@ public class KvBufferCache implements Closeable {
             return new KvPageContext(session, numberOfLayerPages, numberOfContextPages, optimalLayersPerPage, optimalContextLengthPerPage);
         }
 
+        /**
+         * Attaches the pages of the longest prompt prefix another session already computed. Only full pages are
+         * shared and at least the last token is left to prefill so there is a hidden state to sample from. Only an
+         * empty buffer can attach a prefix. With a persistent prefix cache the blocks after the match in memory are
+         * read from disk into pages of this buffer, as long as they are stored and fit the memory budget.
+         * @return the number of tokens whose keys and values are already in place, the position is moved past them
+         */
+        public int attachCachedPrefix(int[] tokens, int length) {
+            if (prefixCache == null || getCurrentContextPosition() != 0 || length < 2) {
+                return 0;
+            }
+            int blockTokens = pageContext.contextLengthPerPage;
+            int maxBlocks = (length - 1) / blockTokens;
+            List<KvBufferPage[]> columns = prefixCache.acquire(tokens, maxBlocks, blockTokens,
+                    pageContext.numberOfLayerPages);
+            for (int c = 0; c < columns.size(); c++) {
+                for (int l = 0; l < pageContext.numberOfLayerPages; l++) {
+                    if (pages[l][c] != null) {
+                        pages[l][c].release();
+                    }
+                    pages[l][c] = columns.get(c)[l];
+                }
+            }
+            int blocks = columns.size();
+            if (prefixStore != null) {
+                String[] keys = prefixStore.keys(modelFingerprint(), tokens, maxBlocks, blockTokens,
+                        pageContext.numberOfLayerPages);
+                for (; blocks < maxBlocks; blocks++) {
+                    AbstractTensor[] stored = prefixStore.read(keys[blocks], pageContext.numberOfLayerPages,
+                            pageContext.pageShape);
+                    if (stored == null || !tryReserve((blocks + 1) * blockTokens)) {
+                        break;
+                    }
+                    for (int l = 0; l < pageContext.numberOfLayerPages; l++) {
+                        KvBufferPage page = allocatePage("L" + l + "C" + blocks, pageContext.pageShape);
+                        page.getTensor().copyFrom(stored[l], 0, 0, Ints.checkedCast(stored[l].size()));
+                        stored[l].close();
+                        pages[l][blocks] = page;
+                    }
+                }
+            }
+            int reused = blocks * blockTokens;
+            recordTokens(tokens, 0, reused, 0);
+            setCurrentContextPosition(reused);
+            return reused;
+        }
+
+        /**
+         * Offers the full pages covering tokens [0, length) to the prefix cache, and the persistent prefix cache when
+         * it does not hold them yet, tokens[i] must be the token at position i. Those positions must never be written
+         * again.
+         */
+        public void publishPrefix(int[] tokens, int length) {
+            // once a sliding window ring wrapped (or a rejected speculative write may have) its first pages are gone
+            if (prefixCache == null || length > pageContext.positionsKept() - AbstractModel.MAX_BATCH_SIZE) {
+                return;
+            }
+            int blockTokens = pageContext.contextLengthPerPage;
+            prefixCache.publish(tokens, length / blockTokens, blockTokens, pageContext.numberOfLayerPages,
+                    this::fullColumn);
+            if (prefixStore != null) {
+                String[] keys = prefixStore.keys(modelFingerprint(), tokens, length / blockTokens, blockTokens,
+                        pageContext.numberOfLayerPages);
+                for (int b = 0; b < keys.length; b++) {
+                    KvBufferPage[] column;
+                    if (!prefixStore.contains(keys[b]) && (column = fullColumn(b)) != null) {
+                        prefixStore.write(keys[b], column);
+                    }
+                }
+            }
+        }
+
+        /** @return the pages of every layer page at contextPageIndex, null when one of them was never written */
+        private KvBufferPage[] fullColumn(int contextPageIndex) {
+            KvBufferPage[] column = new KvBufferPage[pageContext.numberOfLayerPages];
+            for (int l = 0; l < column.length; l++) {
+                column[l] = page(l, contextPageIndex);
+                if (column[l] == null || column[l].isClosed()) {
+                    return null;
+                }
+            }
+            return column;
+        }
+
+        /**
+         * Drops the positions keep..keep+discard and moves every position after them discard positions down, so a
+         * session can go on past the context length with its first keep ("attention sink") tokens and its latest
+         * ones. With RoPE the moved keys are rotated again for their new positions instead of being computed again.
+         * A sliding window ring can not be shifted.
+         */
+        public void shiftContext(int keep, int discard) {
+            int position = getCurrentContextPosition();
+            Preconditions.checkArgument(keep >= 0 && discard > 0 && keep + discard <= position,
+                    "Can not drop %s positions after %s of %s", discard, keep, position);
+            Preconditions.checkState(pageContext.positionsKept() == Integer.MAX_VALUE,
+                    "A sliding window ring can not be shifted");
+            Config c = model.getConfig();
+            DistributedContext dctx = c.dctx();
+            int keyStart = dctx.groupHeadStart * c.headSize;
+            int keyEnd = Math.min(dctx.groupHeadEnd * c.headSize, c.kvLength);
+            for (int layer = dctx.layerStart; layer < dctx.layerEnd; layer++) {
+                // increasing positions, a position is read before anything is moved onto it
+                for (int p = keep + discard; p < position; p++) {
+                    for (int index = 0; index < 2; index++) {
+                        AbstractTensor from = getTensorForPosition(layer, p, index);
+                        AbstractTensor to = getTensorForPosition(layer, p - discard, index);
+                        to.copyFrom(from, from.getOffset(0, dctx.kvSegmentStart), to.getOffset(0, dctx.kvSegmentStart),
+                                dctx.kvSegmentLength);
+                        if (index == 0) {
+                            c.ropeTable.ifPresent(rope -> ropeShift(to, discard, rope, keyStart, keyEnd - keyStart));
+                        }
+                    }
+                }
+            }
+            if (tokens.length > keep + discard) {
+                System.arraycopy(tokens, keep + discard, tokens, keep, Math.min(position, tokens.length) - keep - discard);
+            }
+            setCurrentContextPosition(position - discard);
+        }
+
+        /**
+         * Starts adding up the attention weight each position receives, see {@link #addAttention}, for
+         * {@link #compactHeavyHitters}.
+         */
+        public void trackAttention() {
+            if (attentionMass == null) {
+                attentionMass = new float[model.getConfig().dctx().numberOfLayers][0];
+            }
+        }
+
+        public boolean isTrackingAttention() {
+            return attentionMass != null;
+        }
+
+        /** Adds weights[i], the softmax weight of query heads on the key at position from + i, to that position. */
+        public void addAttention(int layerIndex, int from, float[] weights) {
+            synchronized (attentionMass) {
+                int layer = layerIndex - model.getConfig().dctx().layerStart;
+                float[] mass = attentionMass[layer];
+                if (mass.length < from + weights.length) {
+                    mass = attentionMass[layer] = Arrays.copyOf(mass, Math.min(Math.max(from + weights.length,
+                            2 * mass.length), model.getConfig().contextLength));
+                }
+                for (int i = 0; i < weights.length; i++) {
+                    mass[from + i] += weights[i];
+                }
+            }
+        }
+
+        /** Forgets the weight of a position that is written again, a rejected speculative token for example. */
+        public void clearAttention(int layerIndex, int position) {
+            synchronized (attentionMass) {
+                float[] mass = attentionMass[layerIndex - model.getConfig().dctx().layerStart];
+                if (position < mass.length) {
+                    mass[position] = 0;
+                }
+            }
+        }
+
+        /**
+         * Keeps the latest recentTokens positions and, per layer, the heavyHitters older positions that received the
+         * most attention so far (H2O). The kept positions of every layer are moved down in order so the buffer is
+         * heavyHitters + recentTokens long and, with RoPE, their keys rotated again for their new positions like
+         * {@link #shiftContext}. Layers keep different positions, the token history follows the first layer.
+         * @return the number of positions dropped
+         */
+        public int compactHeavyHitters(int recentTokens, int heavyHitters) {
+            Preconditions.checkState(attentionMass != null, "Attention is not tracked");
+            Preconditions.checkState(pageContext.positionsKept() == Integer.MAX_VALUE,
+                    "A sliding window ring can not be compacted");
+            int position = getCurrentContextPosition();
+            int kept = recentTokens + heavyHitters;
+            if (position <= kept) {
+                return 0;
+            }
+            Config c = model.getConfig();
+            DistributedContext dctx = c.dctx();
+            int keyStart = dctx.groupHeadStart * c.headSize;
+            int keyEnd = Math.min(dctx.groupHeadEnd * c.headSize, c.kvLength);
+            synchronized (attentionMass) {
+                for (int layer = dctx.layerStart; layer < dctx.layerEnd; layer++) {
+                    float[] mass = Arrays.copyOf(attentionMass[layer - dctx.layerStart], position);
+                    int[] keep = heavyHitters(mass, position - recentTokens, heavyHitters, recentTokens);
+                    // increasing positions, keep[i] >= i so a position is read before anything is moved onto it
+                    for (int i = 0; i < keep.length; i++) {
+                        int p = keep[i];
+                        mass[i] = mass[p];
+                        if (p == i) {
+                            continue;
+                        }
+                        for (int index = 0; index < 2; index++) {
+                            AbstractTensor from = getTensorForPosition(layer, p, index);
+                            AbstractTensor to = getTensorForPosition(layer, i, index);
+                            to.copyFrom(from, from.getOffset(0, dctx.kvSegmentStart), to.getOffset(0, dctx.kvSegmentStart),
+                                    dctx.kvSegmentLength);
+                            if (index == 0) {
+                                int delta = p - i;
+                                c.ropeTable.ifPresent(rope -> ropeShift(to, delta, rope, keyStart, keyEnd - keyStart));
+                            }
+                        }
+                    }
+                    Arrays.fill(mass, kept, position, 0);
+                    attentionMass[layer - dctx.layerStart] = mass;
+                    if (layer == dctx.layerStart) {
+                        for (int i = 0; i < keep.length && keep[i] < tokens.length; i++) {
+                            tokens[i] = tokens[keep[i]];
+                        }
+                    }
+                }
+            }
+            setCurrentContextPosition(kept);
+            return position - kept;
+        }
+
+        /**
+         * @return the count positions before end with the most mass (the earliest of equals) followed by the
+         * recentTokens positions from end, in increasing order
+         */
+        private int[] heavyHitters(float[] mass, int end, int count, int recentTokens) {
+            Integer[] older = new Integer[end];
+            for (int i = 0; i < end; i++) {
+                older[i] = i;
+            }
+            Arrays.sort(older, (a, b) -> mass[a] != mass[b] ? Float.compare(mass[b], mass[a]) : Integer.compare(a, b));
+            int[] keep = new int[count + recentTokens];
+            for (int i = 0; i < count; i++) {
+                keep[i] = older[i];
+            }
+            Arrays.sort(keep, 0, count);
+            for (int i = 0; i < recentTokens; i++) {
+                keep[count + i] = end + i;
+            }
+            return keep;
+        }
+
+        /** Notes that the keys and values at position startPosition + i are those of batch[offset + i]. */
+        public void recordTokens(int[] batch, int offset, int length, int startPosition) {
+            int end = startPosition + length;
+            if (end > tokens.length) {
+                tokens = Arrays.copyOf(tokens, Math.min(Math.max(end, 2 * tokens.length), model.getConfig().contextLength));
+            }
+            System.arraycopy(batch, offset, tokens, startPosition, length);
+        }
+
+        /** @return the token at every position before the current position */
+        public int[] getTokens() {
+            return Arrays.copyOf(tokens, getCurrentContextPosition());
+        }
+
+        /**
+         * Writes the pages, position and token history of this session to the snapshot directory, page files first
+         * and the manifest last so a snapshot cut short is never restored. The buffer must not be advanced meanwhile.
+         */
+        public synchronized void snapshot() {
+            File directory = kvBufferCacheSettings.getSnapshotDirectory();
+            Preconditions.checkState(directory != null, "No snapshot directory");
+            List<KvSessionSnapshot.Page> written = new ArrayList<>();
+            try {
+                for (int l = 0; l < pages.length; l++) {
+                    for (int c = 0; c < pages[l].length; c++) {
+                        String name = session + "-L" + l + "C" + c + ".page";
+                        File file = new File(directory, name);
+                        KvBufferPage page = pages[l][c];
+                        TensorShape shape;
+                        if (page != null && !page.isClosed()) {
+                            AbstractTensor source = page.getTensor();
+                            shape = source.shape();
+                            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                                mapPageFile(raf, shape).copyFrom(source, 0, 0, Ints.checkedCast(source.size()));
+                            }
+                        } else if (spilled != null && spilled[l][c] != null) {
+                            shape = spilled[l][c].shape;
+                            if (!spilled[l][c].file.equals(file)) {
+                                Files.copy(spilled[l][c].file.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                            }
+                        } else {
+                            continue;
+                        }
+                        int[] dims = new int[shape.dims()];
+                        for (int i = 0; i < dims.length; i++) {
+                            dims[i] = shape.dim(i);
+                        }
+                        written.add(new KvSessionSnapshot.Page(l, c, dims, name));
+                    }
+                }
+                KvSessionSnapshot manifest = new KvSessionSnapshot(session, modelFingerprint(), kvDType,
+                        getCurrentContextPosition(), getTokens(), pageContext.layersPerPage,
+                        pageContext.contextLengthPerPage, written);
+                File tmp = new File(directory, session + ".manifest.tmp");
+                JsonUtils.om.writeValue(tmp, manifest);
+                Files.move(tmp.toPath(), new File(directory, session + ".manifest").toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+            logger.debug("Snapshot session {} at position {}, {} pages", session, getCurrentContextPosition(), written.size());
+        }
+
+        /**
+         * Picks the session up where its snapshot left it, when there is one written for this model and page layout.
+         * Its pages are read back from the page files as they are used.
+         */
+        private void restore() {
+            File file = new File(kvBufferCacheSettings.getSnapshotDirectory(), session + ".manifest");
+            if (!file.exists()) {
+                return;
+            }
+            KvSessionSnapshot snapshot;
+            try {
+                snapshot = JsonUtils.om.readValue(file, KvSessionSnapshot.class);
+            } catch (IOException e) {
+                logger.warn("Ignoring the unreadable snapshot of session {}", session, e);
+                return;
+            }
+            if (!modelFingerprint().equals(snapshot.modelFingerprint) || snapshot.dType != kvDType
+                    || snapshot.layersPerPage != pageContext.layersPerPage
+                    || snapshot.contextLengthPerPage != pageContext.contextLengthPerPage) {
+                logger.warn("Ignoring the snapshot of session {}, it was written for another model or page layout", session);
+                return;
+            }
+            spilled = new SpilledPage[pages.length][pages[0].length];
+            for (KvSessionSnapshot.Page page : snapshot.pages) {
+                spilled[page.layerPage][page.contextPage] = new SpilledPage(
+                        new File(kvBufferCacheSettings.getSnapshotDirectory(), page.file), TensorShape.of(page.shape), false);
+            }
+            recordTokens(snapshot.tokens, 0, snapshot.tokens.length, 0);
+            setCurrentContextPosition(snapshot.position);
+            logger.debug("Restored session {} at position {}", session, snapshot.position);
+        }
+
+        /** Rotates a key row back by delta positions, a quantized row is rotated as floats and quantized again. */
+        private void ropeShift(AbstractTensor key, int delta, RopeTable rope, int offset, int length) {
+            TensorOperations ops = model.getConfigurableTensorProvider().get();
+            if (key.dType() == model.getWorkingDType()) {
+                ops.ropeShift(key, delta, rope, offset, length);
+                return;
+            }
+            try (AbstractTensor dense = model.makeDenseTensor(1, model.getConfig().kvLength)) {
+                for (int j = offset; j < offset + length; j++) {
+                    dense.set(key.get(0, j), 0, j);
+                }
+                ops.ropeShift(dense, delta, rope, offset, length);
+                try (AbstractTensor quantized = ops.quantize(dense, key.dType(), offset, length)) {
+                    key.copyFrom(quantized, quantized.getOffset(0, offset), key.getOffset(0, offset), length);
+                }
+            }
+        }
+
+        /**
+         * Reserves the pool memory of the pages positions 0..positions take that this buffer does not hold yet, so a
+         * generation admitted with it does not run out of kv memory on the way. Idle sessions are evicted to make
+         * room. Pages copied on write (shared with a fork) are not reserved, they are committed when copied.
+         * @return false when the budget can not hold them, nothing is reserved then. Always true without a budget
+         */
+        public boolean tryReserve(int positions) {
+            if (blockPool == null) {
+                return true;
+            }
+            long needed = bytesUptoPosition(positions) - heldBytes() - reservedBytes;
+            if (needed <= 0) {
+                return true;
+            }
+            if (!blockPool.reserve(needed)) {
+                return false;
+            }
+            reservedBytes += needed;
+            return true;
+        }
+
+        /** @return the bytes of the pages positions 0..positions take in every layer */
+        private long bytesUptoPosition(int positions) {
+            if (regions != null) {
+                // a region is copied when it grows, the last copy holds the region it grows out of as well. That one
+                // is not half of it when the last doubling stopped at the context length
+                int target = Math.min(positions, pageContext.contextLengthPerPage);
+                int capacity = regionCapacity(0, 1);
+                int previous = 0;
+                while (capacity < target) {
+                    previous = capacity;
+                    capacity = regionCapacity(capacity, capacity + 1);
+                }
+                long bytes = KvBlockPool.bytes(kvDType, pageContext.shapeFor(capacity));
+                if (previous > 0) {
+                    bytes += KvBlockPool.bytes(kvDType, pageContext.shapeFor(previous));
+                }
+                return pageContext.numberOfLayerPages * bytes;
+            }
+            long pageBytes = KvBlockPool.bytes(kvDType, pageContext.pageShape);
+            int contextPages = (positions + pageContext.contextLengthPerPage - 1) / pageContext.contextLengthPerPage;
+            long bytes = 0;
+            for (int l = 0; l < pageContext.numberOfLayerPages; l++) {
+                bytes += Math.min(contextPages, pageContext.contextPagesInUse[l]) * pageBytes;
+            }
+            return bytes;
+        }
+
+        private long heldBytes() {
+            long bytes = 0;
+            for (KvBufferPage[] layerPages : pages) {
+                for (KvBufferPage page : layerPages) {
+                    if (page != null && !page.isClosed()) {
+                        bytes += KvBlockPool.bytes(kvDType, page.getTensor().shape());
+                    }
+                }
+            }
+            return bytes;
+        }
+
+        /** A page of the given shape, from the block pool when there is a budget. */
+        private KvBufferPage allocatePage(String pageId, TensorShape shape) {
+            if (blockPool == null) {
+                return new KvBufferPage(pageContext, pageId, shape);
+            }
+            long bytes = KvBlockPool.bytes(kvDType, shape);
+            if (reservedBytes >= bytes) {
+                reservedBytes -= bytes;
+            } else {
+                if (!blockPool.reserve(bytes - reservedBytes)) {
+                    throw new IllegalStateException("The kv cache memory budget of " + blockPool.budgetBytes()
+                            + " bytes is exhausted, session " + session);
+                }
+                reservedBytes = 0;
+            }
+            return new KvBufferPage(blockPool.take(kvDType, shape));
+        }
+
+        void releaseReservation() {
+            if (blockPool != null && reservedBytes > 0) {
+                blockPool.unreserve(reservedBytes);
+                reservedBytes = 0;
+            }
+        }
+
+        /**
+         * Releases the pages and what is left of the reservation. A session buffer of a cache with a memory budget
+         * keeps its pages, it becomes idle until the session is used again or evicted.
+         */
         @Override
         public void close() {
+            releaseReservation();
+            if (retained) {
+                synchronized (kvBufferCache) {
+                    users--;
+                    lastUsed = ++clock;
+                }
+                maybeSpill();
+                return;
+            }
+            releasePages();
+        }
+
+        /** @return the readers of a page held in memory, 0 when there is none */
+        @VisibleForTesting
+        int pageReferences(int layerPageIndex, int contextPageIndex) {
+            KvBufferPage page = pages[layerPageIndex][contextPageIndex];
+            return page == null || page.isClosed() ? 0 : page.references();
+        }
+
+        boolean holdsPages() {
+            for (KvBufferPage[] layerPages : pages) {
+                for (KvBufferPage page : layerPages) {
+                    if (page != null && !page.isClosed()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Writes every page of this idle session to a page file in the spill directory and releases it. The mapped
+         * files are written back by the os in the background. The monitor of the buffer is held throughout, a session
+         * taken by {@link #getKvBuffer} waits for it.
+         * @return false when the session is in use again, nothing is written then
+         */
+        synchronized boolean spill() {
+            synchronized (kvBufferCache) {
+                if (users > 0) {
+                    return false;
+                }
+            }
+            if (spilled == null) {
+                spilled = new SpilledPage[pages.length][pages[0].length];
+            }
+            for (int l = 0; l < pages.length; l++) {
+                for (int c = 0; c < pages[l].length; c++) {
+                    KvBufferPage page = pages[l][c];
+                    if (page == null || page.isClosed()) {
+                        continue;
+                    }
+                    AbstractTensor source = page.getTensor();
+                    File file = Paths.get(kvBufferCacheSettings.getSpillDirectory().toString(),
+                            session + "-L" + l + "C" + c + ".spill").toFile();
+                    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                        mapPageFile(raf, source.shape()).copyFrom(source, 0, 0, Ints.checkedCast(source.size()));
+                    } catch (IOException e) {
+                        throw new IOError(e);
+                    }
+                    spilled[l][c] = new SpilledPage(file, source.shape(), true);
+                    page.release();
+                    pages[l][c] = null;
+                    spillWrites.mark();
+                }
+            }
+            logger.debug("Spilled idle session {}", session);
+            return true;
+        }
+
+        /**
+         * @return the page of layerPageIndex and contextPageIndex. A spilled page is read back first, with the spilled
+         * pages after it as the positions of a layer are read in order.
+         */
+        private KvBufferPage page(int layerPageIndex, int contextPageIndex) {
+            if (spilled != null && spilled[layerPageIndex][contextPageIndex] != null) {
+                int last = Math.min(contextPageIndex + SPILL_READ_AHEAD_PAGES, spilled[layerPageIndex].length - 1);
+                for (int c = contextPageIndex; c <= last; c++) {
+                    SpilledPage s = spilled[layerPageIndex][c];
+                    if (s == null) {
+                        continue;
+                    }
+                    KvBufferPage page = allocatePage("L" + layerPageIndex + "C" + c, s.shape);
+                    try (RandomAccessFile raf = new RandomAccessFile(s.file, "rw")) {
+                        AbstractTensor t = mapPageFile(raf, s.shape);
+                        page.getTensor().copyFrom(t, 0, 0, Ints.checkedCast(t.size()));
+                    } catch (IOException e) {
+                        throw new IOError(e);
+                    }
+                    if (s.owned) {
+                        s.file.delete();
+                    }
+                    spilled[layerPageIndex][c] = null;
+                    pages[layerPageIndex][c] = page;
+                    spillReads.mark();
+                }
+            }
+            return pages[layerPageIndex][contextPageIndex];
+        }
+
+        void releasePages() {
+            if (spilled != null) {
+                for (SpilledPage[] layerPages : spilled) {
+                    for (int i = 0; i < layerPages.length; i++) {
+                        if (layerPages[i] != null && layerPages[i].owned) {
+                            layerPages[i].file.delete();
+                        }
+                        layerPages[i] = null;
+                    }
+                }
+            }
             for (KvBufferPage[] layerPages : pages) {
                 if (layerPages != null) {
-                    for (KvBufferPage page : layerPages) {
-                        if (page != null) {
-                            try {
-                                page.close();
-                            } catch (IOException e) {
-                                logger.debug("Error closing page", e);
-                            }
+                    for (int i = 0; i < layerPages.length; i++) {
+                        if (layerPages[i] != null) {
+                            layerPages[i].release();
+                            layerPages[i] = null;
                         }
                     }
                 }
@@ -294,14 +1261,25 @@ public class KvBufferCache implements Closeable {
         private AbstractTensor getTensorForPosition(int layerIndex, int position, int index) {
             // Calculate page indices and relative indices
             int layerPageIndex = layerIndex / pageContext.layersPerPage;
-            int contextPageIndex = position / pageContext.contextLengthPerPage;
+            int contextPageIndex = pageContext.contextPageIndex(layerPageIndex, position);
             int relativeLayerIndex = layerIndex % pageContext.layersPerPage;
             int relativeContextIndex = position % pageContext.contextLengthPerPage;
 
-            KvBufferPage page = pages[layerPageIndex][contextPageIndex];
+            KvBufferPage page = page(layerPageIndex, contextPageIndex);
             if (page == null || page.isClosed()) {
-                page = new KvBufferPage(pageContext, "L" + layerPageIndex + "C" + contextPageIndex);
+                page = newPage(layerPageIndex, contextPageIndex, relativeContextIndex + 1);
+            } else if (page.capacity() <= relativeContextIndex) {
+                // a contiguous region is full, growing it also copies it when it was shared
+                page = grow(layerPageIndex, contextPageIndex, relativeContextIndex + 1);
+            } else if (page.references() > 1) {
+                // shared with a fork or the prefix cache, take a private copy before writing
+                AbstractTensor source = page.getTensor();
+                KvBufferPage copy = allocatePage("L" + layerPageIndex + "C" + contextPageIndex, source.shape());
+                copy.getTensor().copyFrom(source, 0, 0, Ints.checkedCast(source.size()));
+                page.release();
+                page = copy;
                 pages[layerPageIndex][contextPageIndex] = page;
+                copyOnWrites.mark();
             }
 
             return page.getTensor().slice(true, relativeLayerIndex, index, relativeContextIndex);
@@ -315,21 +1293,40 @@ public class KvBufferCache implements Closeable {
             return getTensorsUptoPosition(layerIndex, 1, upperBound);
         }
 
+        /**
+         * @return the pages of positions 0..upperBound, entry i holds positions i * pageLength up to the next page.
+         * Layers with a sliding window only have the pages still in their ring, the entries before are null. A
+         * contiguous region is handed out as blocks of at most REGION_BLOCK_POSITIONS, see {@link #regionBlock}.
+         */
         private AbstractTensor[] getTensorsUptoPosition(int layerIndex, int index, int upperBound) {
             int layerPageIndex = layerIndex / pageContext.layersPerPage;
-            int contextPageIndex = upperBound / pageContext.contextLengthPerPage;
+            int lastPage = upperBound / pageContext.contextLengthPerPage;
+            int firstPage = Math.max(0, lastPage - pageContext.contextPagesInUse[layerPageIndex] + 1);
             int relativeLayerIndex = layerIndex % pageContext.layersPerPage;
 
-            KvBufferPage[] layerPages = pages[layerPageIndex];
+            if (regions != null) {
+                KvBufferPage page = page(layerPageIndex, 0);
+                if (page == null || page.isClosed()) {
+                    page = newPage(layerPageIndex, 0, upperBound + 1);
+                } else if (page.capacity() <= upperBound) {
+                    page = grow(layerPageIndex, 0, upperBound + 1);
+                }
+                if (regionPages[layerPageIndex][index] != page) {
+                    AbstractTensor region = page.getTensor().slice(true, 0, index);
+                    regions[layerPageIndex][index] = region.split(page.capacity() / regionBlock(page.capacity()), 0);
+                    regionPages[layerPageIndex][index] = page;
+                }
+                return regions[layerPageIndex][index];
+            }
 
-            AbstractTensor[] tensors = new AbstractTensor[contextPageIndex + 1];
+            AbstractTensor[] tensors = new AbstractTensor[lastPage + 1];
 
-            for (int i = 0; i <= contextPageIndex; i++) {
-                KvBufferPage page = layerPages[i];
+            for (int i = firstPage; i <= lastPage; i++) {
+                int contextPageIndex = pageContext.contextPageIndex(layerPageIndex, i * pageContext.contextLengthPerPage);
+                KvBufferPage page = page(layerPageIndex, contextPageIndex);
 
                 if (page == null || page.isClosed()) {
-                    page = new KvBufferPage(pageContext, "L" + layerPageIndex + "C" + contextPageIndex);
-                    layerPages[i] = page;
+                    page = newPage(layerPageIndex, contextPageIndex, pageContext.contextLengthPerPage);
                 }
 
                 tensors[i] = page.getTensor().slice(true, relativeLayerIndex, index);
@@ -338,6 +1335,62 @@ public class KvBufferCache implements Closeable {
             return tensors;
         }
 
+        private KvBufferPage newPage(int layerPageIndex, int contextPageIndex, int positions) {
+            KvBufferPage page = allocatePage("L" + layerPageIndex + "C" + contextPageIndex, regions == null
+                    ? pageContext.pageShape
+                    : pageContext.shapeFor(regionCapacity(0, positions)));
+            pages[layerPageIndex][contextPageIndex] = page;
+            return page;
+        }
+
+        /**
+         * Replaces a contiguous region by one that holds at least positions positions, the positions written so far
+         * are copied over.
+         */
+        private KvBufferPage grow(int layerPageIndex, int contextPageIndex, int positions) {
+            KvBufferPage page = pages[layerPageIndex][contextPageIndex];
+            int capacity = regionCapacity(page.capacity(), positions);
+            KvBufferPage grown = allocatePage("L" + layerPageIndex + "C" + contextPageIndex + "-" + capacity,
+                    pageContext.shapeFor(capacity));
+            // the rows of a batch are written before the position moves past them, so copy every position held
+            for (int layer = 0; layer < pageContext.layersPerPage; layer++) {
+                for (int index = 0; index < 2; index++) {
+                    AbstractTensor from = page.getTensor().slice(true, layer, index);
+                    AbstractTensor to = grown.getTensor().slice(true, layer, index);
+                    to.copyFrom(from, 0, 0, Ints.checkedCast(from.size()));
+                }
+            }
+            long bytes = KvBlockPool.bytes(kvDType, page.getTensor().shape());
+            if (page.recycle()) {
+                // the region grown out of goes back to the reservation, for the next time it grows
+                reservedBytes += bytes;
+            }
+            pages[layerPageIndex][contextPageIndex] = grown;
+            return grown;
+        }
+
+        /**
+         * @return the positions of the blocks a region of capacity positions is split into, the longest that
+         * divides it up to REGION_BLOCK_POSITIONS
+         */
+        private static int regionBlock(int capacity) {
+            int block = Math.min(REGION_BLOCK_POSITIONS, capacity);
+            while (capacity % block != 0) {
+                block--;
+            }
+            return block;
+        }
+
+        /** @return the reserved positions, doubled until positions fit but never more than the context length */
+        private int regionCapacity(int capacity, int positions) {
+            int limit = pageContext.contextLengthPerPage;
+            capacity = Math.max(capacity, Math.min(kvBufferCacheSettings.getContiguousReservedPositions(), limit));
+            while (capacity < positions) {
+                capacity = Math.min(2 * capacity, limit);
+            }
+            return capacity;
+        }
+
         @Override
         public String toString() {
             return "KvBuffer{" +
@@ -1,12 +1,26 @@
 package io.teknek.deliverance.tensor;
 
+import com.google.common.base.Preconditions;
+import io.teknek.deliverance.DType;
+
 import javax.annotation.Nullable;
 import java.io.File;
+import java.util.Optional;
 
 public class KvBufferCacheSettings {
     private final Boolean useTensorCache;
     private final File workingDirectory;
     private final TensorCache dedicatedCache;
+    private int prefixBlockTokens;
+    private int prefixCacheBlocks;
+    private int contiguousReservedPositions;
+    private DType kvDType;
+    private long memoryBudgetBytes;
+    private File spillDirectory;
+    private double spillThreshold;
+    private File snapshotDirectory;
+    private File prefixStoreDirectory;
+    private long prefixStoreBytes;
 
     /**
      * Use the tensor cache shared with model
@@ -32,6 +46,150 @@ public class KvBufferCacheSettings {
         this.dedicatedCache = null;
     }
 
+    /**
+     * Share the keys and values of common prompt prefixes (system prompts, tool definitions) across sessions. Kv
+     * pages hold at most blockTokens positions and full pages are kept in a prefix tree of up to maxBlocks pages,
+     * least recently used pages that no session is reading are evicted first.
+     */
+    public KvBufferCacheSettings withPrefixCache(int blockTokens, int maxBlocks) {
+        Preconditions.checkArgument(blockTokens > 0 && maxBlocks > 0, "blockTokens and maxBlocks must be positive");
+        this.prefixBlockTokens = blockTokens;
+        this.prefixCacheBlocks = maxBlocks;
+        return this;
+    }
+
+    /**
+     * Keep the keys and values of every layer in one contiguous region instead of pages of a few positions, attention
+     * then reads the history of a layer as views of one tensor. reservedPositions are allocated when a layer is
+     * first written and the region doubles whenever it is full, up to the context length. Pages can not be shared
+     * with the prefix cache in this layout.
+     */
+    public KvBufferCacheSettings withContiguousLayout(int reservedPositions) {
+        Preconditions.checkArgument(reservedPositions > 0, "reservedPositions must be positive");
+        this.contiguousReservedPositions = reservedPositions;
+        return this;
+    }
+
+    public boolean isContiguousLayout() {
+        return contiguousReservedPositions > 0;
+    }
+
+    public int getContiguousReservedPositions() {
+        return contiguousReservedPositions;
+    }
+
+    /**
+     * Store keys and values quantized, {@link DType#I8} (Q8) or {@link DType#Q4} blocks with a scale per block, instead
+     * of the working type of the model. Q8 halves the memory of a float kv cache and Q4 quarters it again, attention
+     * reads the blocks directly. Needs a float working type and a head size that is a multiple of the block size,
+     * pages are kept in memory only.
+     */
+    public KvBufferCacheSettings withQuantizedKv(DType kvDType) {
+        Preconditions.checkArgument(kvDType == DType.I8 || kvDType == DType.Q4, "Only I8 and Q4 kv caches are supported");
+        Preconditions.checkState(isEphemeral(), "A quantized kv cache can not be kept in a working directory");
+        this.kvDType = kvDType;
+        return this;
+    }
+
+    /** @return the type keys and values are stored in, empty for the working type of the model */
+    public Optional<DType> getKvDType() {
+        return Optional.ofNullable(kvDType);
+    }
+
+    /**
+     * Keep the kv pages of every session of the model within budgetBytes. Generations reserve the memory of their
+     * prompt and tokens when they are admitted, sessions keep their pages between generations and the least recently
+     * used idle ones are evicted to make room. A generation that does not fit is rejected (or waits in the
+     * {@code ContinuousBatchScheduler}). Pages are kept in memory only.
+     */
+    public KvBufferCacheSettings withMemoryBudget(long budgetBytes) {
+        Preconditions.checkArgument(budgetBytes > 0, "budgetBytes must be positive");
+        Preconditions.checkState(isEphemeral(), "A memory budget can not be applied to a working directory");
+        this.memoryBudgetBytes = budgetBytes;
+        return this;
+    }
+
+    /** @return the bytes all kv pages may take, empty when unbounded */
+    public Optional<Long> getMemoryBudgetBytes() {
+        return memoryBudgetBytes > 0 ? Optional.of(memoryBudgetBytes) : Optional.empty();
+    }
+
+    /**
+     * Keep idle sessions on disk rather than forgetting them when memory runs short. Once the pages in use take more
+     * than spillThreshold of the memory budget, the least recently used idle sessions are written to memory mapped
+     * page files in directory in the background, and sessions are spilled instead of evicted when a generation needs
+     * their memory. A spilled page is read back, with the pages after it, when its session uses it again. Needs
+     * {@link #withMemoryBudget} and pages of the working type.
+     */
+    public KvBufferCacheSettings withSpillDirectory(File directory, double spillThreshold) {
+        Preconditions.checkState(memoryBudgetBytes > 0, "Spilling needs a memory budget");
+        Preconditions.checkArgument(spillThreshold > 0 && spillThreshold <= 1, "spillThreshold must be in (0, 1]");
+        this.spillDirectory = directory;
+        this.spillThreshold = spillThreshold;
+        return this;
+    }
+
+    @Nullable
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public double getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * Write the sessions that are idle when the cache is closed to directory, with their position, token history and
+     * a fingerprint of the model. A model started again with the same directory restores a session from its snapshot
+     * the first time the session is used, its pages are read back as they are needed. Needs {@link #withMemoryBudget},
+     * only then do sessions keep their pages between generations.
+     */
+    public KvBufferCacheSettings withSnapshotDirectory(File directory) {
+        Preconditions.checkState(memoryBudgetBytes > 0, "Snapshots need a memory budget");
+        this.snapshotDirectory = directory;
+        return this;
+    }
+
+    @Nullable
+    public File getSnapshotDirectory() {
+        return snapshotDirectory;
+    }
+
+    /**
+     * Also keep the full prefix blocks sessions publish in directory, up to maxBytes of files, so common prompt
+     * prefixes are still cached after a restart and can be shared by every model using the directory. A prompt
+     * continues through the stored blocks after its match in memory. Needs {@link #withPrefixCache}, its block size
+     * is part of the key of a stored block, and pages of the working type.
+     */
+    public KvBufferCacheSettings withPersistentPrefixCache(File directory, long maxBytes) {
+        Preconditions.checkState(isPrefixCacheEnabled(), "A persistent prefix cache needs the prefix cache");
+        Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+        this.prefixStoreDirectory = directory;
+        this.prefixStoreBytes = maxBytes;
+        return this;
+    }
+
+    @Nullable
+    public File getPrefixStoreDirectory() {
+        return prefixStoreDirectory;
+    }
+
+    public long getPrefixStoreBytes() {
+        return prefixStoreBytes;
+    }
+
+    public boolean isPrefixCacheEnabled() {
+        return prefixCacheBlocks > 0;
+    }
+
+    public int getPrefixBlockTokens() {
+        return prefixBlockTokens;
+    }
+
+    public int getPrefixCacheBlocks() {
+        return prefixCacheBlocks;
+    }
+
     public boolean isEphemeral() {
         return Boolean.TRUE.equals(useTensorCache);
     }
@@ -0,0 +1,204 @@
+package io.teknek.deliverance.tensor;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Kv pages of full token blocks shared between sessions. The keys and values of a position depend on every token
+ * before it, so pages are addressed by the whole token sequence up to the end of their block: a radix tree where
+ * each edge is one block of token ids. A new session walks the tree with its prompt and attaches the pages of the
+ * longest match read only, only the rest of the prompt has to be prefilled.
+ * <p>
+ * The tree holds one reference on every page and each {@link KvBufferCache.KvBuffer} using a page holds another.
+ * When there are more than maxBlocks blocks, the least recently used leaves nobody else references are released. Blocks
+ * still in use by a session are kept, so the tree can hold more than maxBlocks until the next publish after they are
+ * released.
+ */
+class KvPrefixCache {
+    private final int maxBlocks;
+    private final Node root = new Node(null, null, null);
+    private int blocks;
+    private int blockTokens;
+    private int layerPages;
+    private long clock;
+
+    private final Meter lookups;
+    private final Meter hitTokens;
+    private final Meter evictions;
+
+    KvPrefixCache(int maxBlocks, MetricRegistry metricRegistry) {
+        this.maxBlocks = maxBlocks;
+        this.lookups = metricRegistry.meter("kvcache.prefix.lookups");
+        this.hitTokens = metricRegistry.meter("kvcache.prefix.hit_tokens");
+        this.evictions = metricRegistry.meter("kvcache.prefix.evictions");
+        metricRegistry.gauge("kvcache.prefix.blocks", () -> () -> blocks);
+    }
+
+    /**
+     * Finds the longest cached prefix of tokens made of at most maxPrefixBlocks full blocks.
+     * @return a column of pages (one per layer page) for each matched block, every page retained for the caller
+     */
+    synchronized List<KvBufferCache.KvBufferPage[]> acquire(int[] tokens, int maxPrefixBlocks, int blockTokens,
+            int layerPages) {
+        lookups.mark();
+        List<KvBufferCache.KvBufferPage[]> columns = new ArrayList<>();
+        if (!checkGeometry(blockTokens, layerPages)) {
+            return columns;
+        }
+        Node node = root;
+        for (int b = 0; b < maxPrefixBlocks; b++) {
+            Node child = node.children.get(new BlockKey(tokens, b * blockTokens, blockTokens));
+            if (child == null) {
+                break;
+            }
+            child.lastUsed = ++clock;
+            for (KvBufferCache.KvBufferPage page : child.pages) {
+                page.retain();
+            }
+            columns.add(child.pages);
+            node = child;
+        }
+        hitTokens.mark((long) columns.size() * blockTokens);
+        return columns;
+    }
+
+    /**
+     * Adds the first fullBlocks blocks of tokens. Blocks already in the tree are kept, for new blocks the tree takes a
+     * reference on the page column columnForBlock returns. Pages must not be written again once published.
+     */
+    synchronized void publish(int[] tokens, int fullBlocks, int blockTokens, int layerPages,
+            IntFunction<KvBufferCache.KvBufferPage[]> columnForBlock) {
+        if (!checkGeometry(blockTokens, layerPages)) {
+            return;
+        }
+        Node node = root;
+        for (int b = 0; b < fullBlocks; b++) {
+            BlockKey key = new BlockKey(tokens, b * blockTokens, blockTokens);
+            Node child = node.children.get(key);
+            if (child == null) {
+                KvBufferCache.KvBufferPage[] column = columnForBlock.apply(b);
+                if (column == null) {
+                    break;
+                }
+                for (KvBufferCache.KvBufferPage page : column) {
+                    page.retain();
+                }
+                child = new Node(node, key, column);
+                node.children.put(key, child);
+                blocks++;
+            }
+            child.lastUsed = ++clock;
+            node = child;
+        }
+        while (blocks > maxBlocks && evictOne()) {
+            evictions.mark();
+        }
+    }
+
+    /** Releases the least recently used block nobody else references to make room in the memory budget. */
+    synchronized boolean evictLeastRecentlyUsed() {
+        if (evictOne()) {
+            evictions.mark();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean checkGeometry(int blockTokens, int layerPages) {
+        if (this.blockTokens == 0) {
+            this.blockTokens = blockTokens;
+            this.layerPages = layerPages;
+        }
+        return this.blockTokens == blockTokens && this.layerPages == layerPages;
+    }
+
+    private boolean evictOne() {
+        Node victim = null;
+        List<Node> stack = new ArrayList<>(root.children.values());
+        while (!stack.isEmpty()) {
+            Node n = stack.remove(stack.size() - 1);
+            if (n.children.isEmpty()) {
+                if (n.isUnused() && (victim == null || n.lastUsed < victim.lastUsed)) {
+                    victim = n;
+                }
+            } else {
+                stack.addAll(n.children.values());
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        victim.parent.children.remove(victim.key);
+        for (KvBufferCache.KvBufferPage page : victim.pages) {
+            page.release();
+        }
+        blocks--;
+        return true;
+    }
+
+    /** Releases every page held by the tree. */
+    synchronized void clear() {
+        List<Node> stack = new ArrayList<>(root.children.values());
+        while (!stack.isEmpty()) {
+            Node n = stack.remove(stack.size() - 1);
+            stack.addAll(n.children.values());
+            for (KvBufferCache.KvBufferPage page : n.pages) {
+                page.release();
+            }
+        }
+        root.children.clear();
+        blocks = 0;
+    }
+
+    private static class Node {
+        final Node parent;
+        final BlockKey key;
+        final KvBufferCache.KvBufferPage[] pages;
+        final Map<BlockKey, Node> children = new HashMap<>();
+        long lastUsed;
+
+        Node(Node parent, BlockKey key, KvBufferCache.KvBufferPage[] pages) {
+            this.parent = parent;
+            this.key = key;
+            this.pages = pages;
+        }
+
+        boolean isUnused() {
+            for (KvBufferCache.KvBufferPage page : pages) {
+                if (page.references() > 1) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class BlockKey {
+        private final int[] tokens;
+        private final int hash;
+
+        BlockKey(int[] source, int offset, int length) {
+            Preconditions.checkArgument(offset + length <= source.length, "block past the end of the tokens");
+            this.tokens = Arrays.copyOfRange(source, offset, offset + length);
+            this.hash = Arrays.hashCode(tokens);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BlockKey other && hash == other.hash && Arrays.equals(tokens, other.tokens);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package io.teknek.deliverance.tensor;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+import io.teknek.deliverance.DType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Kv page columns of full token blocks kept on disk, so common prompt prefixes (system prompts, templates, document
+ * headers) survive restarts and can be shared by replicas using the same directory. Like {@link KvPrefixCache} the
+ * keys and values of a block depend on every token before it, so block b is keyed by a hash chained over the model
+ * fingerprint, passed in by the cache, and the token ids of blocks 0..b. Layer page l of a block is the file {@code <key>-L<l>.kvblock}.
+ * <p>
+ * A buffer using a block copies it into pages of its own, the files are never written once they are in place.
+ * Writes happen on a background thread, the pages are retained until written. When the files take more than maxBytes
+ * the least recently used blocks are deleted.
+ */
+class KvPrefixStore {
+    private static final Logger logger = LoggerFactory.getLogger(KvPrefixStore.class);
+    private static final String SUFFIX = ".kvblock";
+
+    private final File directory;
+    private final long maxBytes;
+    private final DType dType;
+    /** the bytes of the files of every block, least recently used first */
+    private final LinkedHashMap<String, Long> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    /** the blocks queued or being written */
+    private final Set<String> writing = new HashSet<>();
+    private final ExecutorService writer;
+
+    private final Meter hits;
+    private final Meter writes;
+    private final Meter evictions;
+
+    KvPrefixStore(File directory, long maxBytes, DType dType, MetricRegistry metricRegistry) {
+        Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.dType = dType;
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "kv-prefix-store-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.hits = metricRegistry.meter("kvcache.prefix_store.hit_blocks");
+        this.writes = metricRegistry.meter("kvcache.prefix_store.writes");
+        this.evictions = metricRegistry.meter("kvcache.prefix_store.evictions");
+        metricRegistry.gauge("kvcache.prefix_store.bytes", () -> this::bytes);
+        load();
+    }
+
+    /** Indexes the blocks already in the directory, the least recently modified first. */
+    private void load() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File f : files) {
+            String key = f.getName().substring(0, f.getName().lastIndexOf("-L"));
+            blocks.merge(key, f.length(), Long::sum);
+            bytes += f.length();
+        }
+        logger.debug("Prefix store {} holds {} blocks, {} bytes", directory, blocks.size(), bytes);
+    }
+
+    /**
+     * @return the key of every full block of tokens up to blocks, entry b covers tokens [0, (b + 1) * blockTokens).
+     * The model fingerprint and the page geometry are part of the key as they decide what a block file holds.
+     */
+    String[] keys(String fingerprint, int[] tokens, int blocks, int blockTokens, int layerPages) {
+        String[] keys = new String[blocks];
+        byte[] previous = (fingerprint + "/" + dType + "/" + blockTokens + "/" + layerPages).getBytes(StandardCharsets.UTF_8);
+        for (int b = 0; b < blocks; b++) {
+            Hasher hasher = Hashing.sha256().newHasher().putBytes(previous);
+            for (int i = b * blockTokens; i < (b + 1) * blockTokens; i++) {
+                hasher.putInt(tokens[i]);
+            }
+            previous = hasher.hash().asBytes();
+            keys[b] = Hashing.sha256().hashBytes(previous).toString();
+        }
+        return keys;
+    }
+
+    /** @return true when the block is stored or being written */
+    synchronized boolean contains(String key) {
+        return blocks.containsKey(key) || writing.contains(key);
+    }
+
+    /**
+     * @return the layer pages of the block mapped copy on write, null when the block is not stored (or was deleted
+     * by another replica)
+     */
+    AbstractTensor[] read(String key, int layerPages, TensorShape pageShape) {
+        synchronized (this) {
+            if (blocks.get(key) == null) {
+                return null;
+            }
+        }
+        AbstractTensor[] column = new AbstractTensor[layerPages];
+        for (int l = 0; l < layerPages; l++) {
+            File file = file(key, l);
+            if (file.length() != pageShape.size() * dType.size()) {
+                return null;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                column[l] = KvBufferCache.mapPageFile(raf, pageShape, dType, FileChannel.MapMode.PRIVATE);
+            } catch (IOException e) {
+                logger.debug("Could not map {}", file, e);
+                return null;
+            }
+            file.setLastModified(System.currentTimeMillis());
+        }
+        hits.mark();
+        return column;
+    }
+
+    /** Writes the block in the background, the pages are retained until then and must not be written again. */
+    void write(String key, KvBufferCache.KvBufferPage[] column) {
+        synchronized (this) {
+            if (blocks.containsKey(key) || !writing.add(key)) {
+                return;
+            }
+        }
+        for (KvBufferCache.KvBufferPage page : column) {
+            page.retain();
+        }
+        writer.execute(() -> {
+            try {
+                long written = 0;
+                for (int l = 0; l < column.length; l++) {
+                    AbstractTensor source = column[l].getTensor();
+                    File tmp = new File(directory, key + "-L" + l + ".tmp");
+                    try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                        KvBufferCache.mapPageFile(raf, source.shape(), dType, FileChannel.MapMode.READ_WRITE)
+                                .copyFrom(source, 0, 0, Ints.checkedCast(source.size()));
+                    }
+                    // readers, here or in another replica, only ever see whole files
+                    Files.move(tmp.toPath(), file(key, l).toPath(), StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                    written += source.size() * dType.size();
+                }
+                synchronized (this) {
+                    Long previous = blocks.put(key, written);
+                    bytes += written - (previous == null ? 0 : previous);
+                    evict();
+                }
+                writes.mark();
+            } catch (IOException e) {
+                logger.warn("Could not store prefix block {}", key, e);
+            } finally {
+                synchronized (this) {
+                    writing.remove(key);
+                }
+                for (KvBufferCache.KvBufferPage page : column) {
+                    page.release();
+                }
+            }
+        });
+    }
+
+    private File file(String key, int layerPage) {
+        return new File(directory, key + "-L" + layerPage + SUFFIX);
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = blocks.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            File[] files = directory.listFiles((dir, name) -> name.startsWith(e.getKey() + "-L") && name.endsWith(SUFFIX));
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            bytes -= e.getValue();
+            it.remove();
+            evictions.mark();
+        }
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    void close() {
+        writer.shutdown();
+    }
+}
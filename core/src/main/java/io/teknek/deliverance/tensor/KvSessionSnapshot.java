@@ -0,0 +1,62 @@
+package io.teknek.deliverance.tensor;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.teknek.deliverance.DType;
+
+import java.util.List;
+
+/**
+ * The manifest of a session written by {@link KvBufferCache.KvBuffer#snapshot()}: where the session is, the tokens at
+ * each of its positions, what model and page layout the pages were written for and the page files holding them.
+ * Stored as {@code <session>.manifest} next to the {@code <session>-L<x>C<y>.page} files.
+ */
+class KvSessionSnapshot {
+    public final String session;
+    /** see {@link KvBufferCache#modelFingerprint()} */
+    public final String modelFingerprint;
+    public final DType dType;
+    public final int position;
+    public final int[] tokens;
+    public final int layersPerPage;
+    public final int contextLengthPerPage;
+    public final List<Page> pages;
+
+    @JsonCreator
+    KvSessionSnapshot(
+            @JsonProperty("session") String session,
+            @JsonProperty("modelFingerprint") String modelFingerprint,
+            @JsonProperty("dType") DType dType,
+            @JsonProperty("position") int position,
+            @JsonProperty("tokens") int[] tokens,
+            @JsonProperty("layersPerPage") int layersPerPage,
+            @JsonProperty("contextLengthPerPage") int contextLengthPerPage,
+            @JsonProperty("pages") List<Page> pages) {
+        this.session = session;
+        this.modelFingerprint = modelFingerprint;
+        this.dType = dType;
+        this.position = position;
+        this.tokens = tokens;
+        this.layersPerPage = layersPerPage;
+        this.contextLengthPerPage = contextLengthPerPage;
+        this.pages = pages;
+    }
+
+    static class Page {
+        public final int layerPage;
+        public final int contextPage;
+        public final int[] shape;
+        public final String file;
+
+        @JsonCreator
+        Page(@JsonProperty("layerPage") int layerPage,
+             @JsonProperty("contextPage") int contextPage,
+             @JsonProperty("shape") int[] shape,
+             @JsonProperty("file") String file) {
+            this.layerPage = layerPage;
+            this.contextPage = contextPage;
+            this.shape = shape;
+            this.file = file;
+        }
+    }
+}
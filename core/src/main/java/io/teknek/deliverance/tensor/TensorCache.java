@@ -2,11 +2,17 @@ package io.teknek.deliverance.tensor;
 
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
-import com.google.common.collect.Maps;
+import com.google.common.annotations.VisibleForTesting;
 
-import java.util.concurrent.ConcurrentMap;
+import java.lang.foreign.MemorySegment;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.Function;
 
 import io.teknek.deliverance.DType;
 import io.teknek.deliverance.tensor.impl.*;
@@ -16,24 +22,44 @@ import org.slf4j.LoggerFactory;
 
 /**
  * In LLMs a lot of buffers are used for inference.  Rather than allocating each one or using a fixed pool
- * this TensorCache allows a limited number of different shaped buffers to be reused across threads
+ * this TensorCache hands out tensors that are views over pooled off heap segments, reused across threads.
+ * <p>
+ * Segments come in power of two byte size classes, so a prefill of any batch length reuses the memory of the ones
+ * before it instead of adding buffers for every new shape. Each thread keeps a small magazine of free segments per
+ * class, backed by a shared lock free depot per class. All segments, in use or free, count against bytesCapacity in
+ * bytes. Once a new segment would not fit, free segments are trimmed from the depots, and when the memory is all in
+ * use the tensor is allocated outside the cache. Depots of classes nobody took from for a while are trimmed as well.
  */
 public class TensorCache implements TensorCacheIface{
 
     private static final Logger logger = LoggerFactory.getLogger(TensorCache.class);
+    /** the smallest class, a cache line */
+    private static final int MIN_CLASS = 6;
+    /** the largest class, a direct buffer holds less than 2GB */
+    private static final int MAX_CLASS = 30;
+    /** a magazine holds at most this many bytes or MAGAZINE_SEGMENTS segments, the rest goes to the depot */
+    private static final long MAGAZINE_BYTES = 1 << 20;
+    private static final int MAGAZINE_SEGMENTS = 16;
+    /** the depot of a class nobody took from for this long is trimmed */
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
 
     private final long bytesCapacity;
-    private final AtomicLong currentBytes;
-    private final ConcurrentMap<ShapeKey, MpmcUnboundedXaddArrayQueue<AbstractTensor>> availableByShape;
-
-    private final MetricRegistry metricRegistry;
-    private final Function<ShapeKey, MpmcUnboundedXaddArrayQueue<AbstractTensor>> queueFactory = s -> new MpmcUnboundedXaddArrayQueue<>(
-            128
-    );
+    /** the bytes of every segment, in use, in a magazine or in a depot */
+    private final AtomicLong allocatedBytes;
+    private final AtomicLong inUseBytes;
+    private final SizeClass[] classes;
+    private final ThreadLocal<ThreadMagazines> magazines;
+    /** the magazines of every thread, those of threads that ended are emptied into the depots by {@link #trim} */
+    private final ConcurrentLinkedQueue<ThreadMagazines> allMagazines;
+    private final AtomicBoolean trimming;
+    private volatile long lastTrim;
 
+    private final Meter get;
+    private final Meter getHit;
     private final Meter dirtyGet;
     private final Meter dirtyGetHit;
     private final Meter cacheFull;
+    private final Meter trimmedBytes;
 
     public TensorCache(MetricRegistry metricRegistry){
         this(100 * 1024 * 1024, metricRegistry);
@@ -41,16 +67,32 @@ public class TensorCache implements TensorCacheIface{
 
     public TensorCache(long bytesCapacity, MetricRegistry metricRegistry) {
         this.bytesCapacity = bytesCapacity;
-        this.currentBytes = new AtomicLong(0);
-        this.availableByShape = Maps.newConcurrentMap();
-        this.metricRegistry = metricRegistry;
+        this.allocatedBytes = new AtomicLong(0);
+        this.inUseBytes = new AtomicLong(0);
+        this.classes = new SizeClass[MAX_CLASS + 1];
+        for (int c = MIN_CLASS; c <= MAX_CLASS; c++) {
+            classes[c] = new SizeClass(1 << c);
+        }
+        this.allMagazines = new ConcurrentLinkedQueue<>();
+        this.magazines = ThreadLocal.withInitial(() -> {
+            ThreadMagazines m = new ThreadMagazines();
+            allMagazines.add(m);
+            return m;
+        });
+        this.trimming = new AtomicBoolean();
+        this.lastTrim = System.nanoTime();
+        get = metricRegistry.meter("tensorcache.get");
+        getHit = metricRegistry.meter("tensorcache.get.hit");
         dirtyGet = metricRegistry.meter("tensorcache.dirtyget");
         dirtyGetHit = metricRegistry.meter("tensorcache.getdirty.hit");
         cacheFull = metricRegistry.meter("tensorcache.full");
+        trimmedBytes = metricRegistry.meter("tensorcache.trimmed_bytes");
+        metricRegistry.gauge("tensorcache.allocated_bytes", () -> allocatedBytes::get);
+        metricRegistry.gauge("tensorcache.in_use_bytes", () -> inUseBytes::get);
     }
 
-    private AbstractTensor internalGet(DType dType, TensorShape shape){
-        AbstractTensor t = switch (dType) {
+    static AbstractTensor allocate(DType dType, TensorShape shape) {
+        return switch (dType) {
             case F32 -> new FloatBufferTensor(shape);
             case F16 -> new Float16BufferTensor(shape);
             case BF16 -> new BFloat16BufferTensor(shape);
@@ -58,30 +100,165 @@ public class TensorCache implements TensorCacheIface{
             case Q4 -> new Q4ByteBufferTensor(shape);
             default -> throw new RuntimeException("Unsupported tensor type: " + dType);
         };
-        if (currentBytes.addAndGet(t.size()) < bytesCapacity) {
-            t.setOwnerCache(this);
-        } else {
+    }
+
+    /** @return the bytes of the values of a tensor, the block scales of quantized types follow them */
+    private static long valueBytes(DType dType, TensorShape shape) {
+        return switch (dType) {
+            case I8 -> shape.size();
+            case Q4 -> shape.size() / 2;
+            default -> shape.size() * dType.size();
+        };
+    }
+
+    /** @return the bytes of the segment a tensor is a view of, the scales of quantized types start on a cache line */
+    private static long segmentBytes(DType dType, TensorShape shape) {
+        long bytes = valueBytes(dType, shape);
+        if (dType == DType.I8 || dType == DType.Q4) {
+            bytes = alignUp(bytes) + shape.size() / Q8ByteBufferTensor.BLOCK_SIZE * Float.BYTES;
+        }
+        return bytes;
+    }
+
+    private static long alignUp(long bytes) {
+        return (bytes + UnsafeDirectByteBuffer.CACHE_LINE_SIZE - 1) & -UnsafeDirectByteBuffer.CACHE_LINE_SIZE;
+    }
+
+    /** @return the class holding bytes, -1 when it is larger than any */
+    @VisibleForTesting
+    static int sizeClass(long bytes) {
+        int c = Math.max(MIN_CLASS, 64 - Long.numberOfLeadingZeros(Math.max(1, bytes) - 1));
+        return c <= MAX_CLASS ? c : -1;
+    }
+
+    /** A tensor of dType and shape over the first bytes of segment. */
+    private static AbstractTensor view(DType dType, TensorShape shape, ByteBuffer segment) {
+        int values = Math.toIntExact(valueBytes(dType, shape));
+        ByteBuffer b = segment.slice(0, values).order(ByteOrder.nativeOrder());
+        return switch (dType) {
+            case F32 -> new FloatBufferTensor("tmp", b.asFloatBuffer(), shape, true);
+            case F16 -> new Float16BufferTensor("tmp", b.asShortBuffer(), shape, true);
+            case BF16 -> new BFloat16BufferTensor("tmp", b.asShortBuffer(), shape, true);
+            case I8, Q4 -> {
+                TensorShape blockShape = shape.scaleLastDim(1.0f / Q8ByteBufferTensor.BLOCK_SIZE);
+                int scaleOffset = Math.toIntExact(alignUp(values));
+                FloatBufferTensor blockF = new FloatBufferTensor("tmp", segment
+                        .slice(scaleOffset, Math.toIntExact(blockShape.size() * Float.BYTES))
+                        .order(ByteOrder.nativeOrder()).asFloatBuffer(), blockShape, true);
+                b.order(ByteOrder.LITTLE_ENDIAN);
+                yield dType == DType.I8
+                        ? new Q8ByteBufferTensor("tmp", b, blockF, shape, true)
+                        : new Q4ByteBufferTensor("tmp", b, blockF, shape, true);
+            }
+            default -> throw new RuntimeException("Unsupported tensor type: " + dType);
+        };
+    }
+
+    /**
+     * @return a view over a pooled segment, cleared when clear is set, or a tensor outside the cache (its ownerCache
+     * is null) when the cache is full or the tensor larger than any class
+     */
+    private AbstractTensor internalGet(DType dType, TensorShape shape, boolean clear, Meter hit) {
+        long bytes = segmentBytes(dType, shape);
+        int c = sizeClass(bytes);
+        ByteBuffer segment = c < 0 ? null : take(classes[c], hit);
+        if (segment == null) {
             cacheFull.mark();
-            currentBytes.addAndGet(-t.size());
+            return allocate(dType, shape);
         }
+        if (clear) {
+            MemorySegment.ofBuffer(segment).asSlice(0, bytes).fill((byte) 0);
+        }
+        AbstractTensor t = view(dType, shape, segment);
+        t.setOwnerCache(this, segment);
+        inUseBytes.addAndGet(segment.capacity());
         return t;
     }
 
+    /** @return a free segment of the class, a new one when there is none and it fits, else null */
+    private ByteBuffer take(SizeClass sizeClass, Meter hit) {
+        ByteBuffer segment = magazines.get().of(sizeClass).pop();
+        if (segment == null) {
+            segment = sizeClass.depot.poll();
+            sizeClass.lastTaken = System.nanoTime();
+        }
+        if (segment != null) {
+            hit.mark();
+            return segment;
+        }
+        if (System.nanoTime() - lastTrim > IDLE_NANOS) {
+            trim(0);
+        }
+        if (!commit(sizeClass.bytes)) {
+            // the free segments of this thread can go too, those of other threads are theirs to take
+            magazines.get().drainTo(classes);
+            if (trim(sizeClass.bytes) == 0 || !commit(sizeClass.bytes)) {
+                return null;
+            }
+        }
+        return UnsafeDirectByteBuffer.allocateAlignedByteBuffer(sizeClass.bytes, UnsafeDirectByteBuffer.CACHE_LINE_SIZE);
+    }
+
+    private boolean commit(int bytes) {
+        long current;
+        do {
+            current = allocatedBytes.get();
+            if (current + bytes > bytesCapacity) {
+                return false;
+            }
+        } while (!allocatedBytes.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    /**
+     * Drops free segments, their memory is left to the gc: those of threads that ended, the depots of idle classes
+     * and, when needed is positive, depots from the largest class down until that many bytes fit the capacity.
+     * Segments in the magazines of live threads are left alone. Only one thread trims at a time.
+     * @return the bytes dropped, 0 when another thread is trimming
+     */
+    public long trim(long needed) {
+        if (!trimming.compareAndSet(false, true)) {
+            return 0;
+        }
+        try {
+            long now = System.nanoTime();
+            lastTrim = now;
+            for (Iterator<ThreadMagazines> it = allMagazines.iterator(); it.hasNext(); ) {
+                ThreadMagazines m = it.next();
+                Thread owner = m.owner.get();
+                if (owner == null || !owner.isAlive()) {
+                    m.drainTo(classes);
+                    it.remove();
+                }
+            }
+            long dropped = 0;
+            for (int c = MAX_CLASS; c >= MIN_CLASS; c--) {
+                SizeClass sizeClass = classes[c];
+                boolean idle = now - sizeClass.lastTaken > IDLE_NANOS;
+                while (idle || (needed > 0 && allocatedBytes.get() + needed > bytesCapacity)) {
+                    if (sizeClass.depot.poll() == null) {
+                        break;
+                    }
+                    allocatedBytes.addAndGet(-sizeClass.bytes);
+                    dropped += sizeClass.bytes;
+                }
+            }
+            if (dropped > 0) {
+                trimmedBytes.mark(dropped);
+                logger.debug("Trimmed {} bytes, {} allocated", dropped, allocatedBytes.get());
+            }
+            return dropped;
+        } finally {
+            trimming.set(false);
+        }
+    }
+
     /**
      * @return a tensor of a specific shape but possibly reused so it is up to the user to clear it out
      */
     public AbstractTensor<?,?> getDirty(DType dType, TensorShape shape){
         dirtyGet.mark();
-        MpmcUnboundedXaddArrayQueue<AbstractTensor> availableQueue = availableByShape.computeIfAbsent(
-                new ShapeKey(dType, shape),
-                queueFactory
-        );
-        AbstractTensor<?,?> t = availableQueue.poll();
-        if (t != null) {
-            dirtyGetHit.mark();
-            return t;
-        }
-        return internalGet(dType, shape);
+        return internalGet(dType, shape, false, dirtyGetHit);
     }
 
     /**
@@ -90,26 +267,103 @@ public class TensorCache implements TensorCacheIface{
      * the ownerCache will be null.
      */
     public AbstractTensor get(DType dType, TensorShape shape) {
-        metricRegistry.meter("tensorcache.get").mark();
-        MpmcUnboundedXaddArrayQueue<AbstractTensor> availableQueue = availableByShape.computeIfAbsent(
-                new ShapeKey(dType, shape),
-                queueFactory
-        );
-        AbstractTensor t = availableQueue.poll();
-        if (t != null) {
-            metricRegistry.meter("tensorcache.get.hit").mark();
-            t.clear();
-            return t;
-        }
-        return internalGet(dType, shape);
+        get.mark();
+        return internalGet(dType, shape, true, getHit);
     }
 
     /** give the tensor back to the cache from this point on it may be re-used. */
     public void release(AbstractTensor b) {
-        MpmcUnboundedXaddArrayQueue<AbstractTensor> availableQueue = availableByShape.computeIfAbsent(
-                new ShapeKey(b.dType(), b.shape()),
-                queueFactory
-        );
-        boolean added = availableQueue.offer(b);
+        if (!(b.getCacheSegment() instanceof ByteBuffer segment)) {
+            return;
+        }
+        // a tensor closed twice gives its segment back once
+        b.setOwnerCache(null, null);
+        inUseBytes.addAndGet(-segment.capacity());
+        SizeClass sizeClass = classes[Integer.numberOfTrailingZeros(segment.capacity())];
+        Magazine magazine = magazines.get().of(sizeClass);
+        if (!magazine.push(segment)) {
+            // a full magazine moves half of its segments to the depot, so a thread releasing what another takes does
+            // not go to the depot on every release
+            magazine.drainTo(sizeClass.depot, magazine.capacity / 2);
+            magazine.push(segment);
+        }
+    }
+
+    @VisibleForTesting
+    long allocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    @VisibleForTesting
+    long inUseBytes() {
+        return inUseBytes.get();
+    }
+
+    private static class SizeClass {
+        final int bytes;
+        final MpmcUnboundedXaddArrayQueue<ByteBuffer> depot = new MpmcUnboundedXaddArrayQueue<>(128);
+        volatile long lastTaken = System.nanoTime();
+
+        SizeClass(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    /** The free segments of one class a thread keeps to itself, only ever used by that thread. */
+    private static class Magazine {
+        final ByteBuffer[] segments;
+        final int capacity;
+        int count;
+
+        Magazine(int classBytes) {
+            this.capacity = (int) Math.max(1, Math.min(MAGAZINE_SEGMENTS, MAGAZINE_BYTES / classBytes));
+            this.segments = new ByteBuffer[capacity];
+        }
+
+        ByteBuffer pop() {
+            if (count == 0) {
+                return null;
+            }
+            ByteBuffer segment = segments[--count];
+            segments[count] = null;
+            return segment;
+        }
+
+        boolean push(ByteBuffer segment) {
+            if (count == capacity) {
+                return false;
+            }
+            segments[count++] = segment;
+            return true;
+        }
+
+        void drainTo(MpmcUnboundedXaddArrayQueue<ByteBuffer> depot, int keep) {
+            while (count > keep) {
+                depot.offer(pop());
+            }
+        }
+    }
+
+    private static class ThreadMagazines {
+        final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+        final Magazine[] byClass = new Magazine[MAX_CLASS + 1];
+
+        Magazine of(SizeClass sizeClass) {
+            int c = Integer.numberOfTrailingZeros(sizeClass.bytes);
+            Magazine m = byClass[c];
+            if (m == null) {
+                m = byClass[c] = new Magazine(sizeClass.bytes);
+            }
+            return m;
+        }
+
+        /** Gives every segment back to the depots, by the thread itself or once it ended. */
+        void drainTo(SizeClass[] classes) {
+            for (int c = MIN_CLASS; c <= MAX_CLASS; c++) {
+                if (byClass[c] != null) {
+                    byClass[c].drainTo(classes[c].depot, 0);
+                }
+            }
+        }
     }
 }
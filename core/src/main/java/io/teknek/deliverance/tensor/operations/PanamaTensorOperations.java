@@ -14,6 +14,9 @@ import jdk.incubator.vector.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
 public final class PanamaTensorOperations implements TensorOperations {
     private static final Logger logger = LoggerFactory.getLogger(PanamaTensorOperations.class);
     static final ByteVector Q4_BYTE_SUB_128 = ByteVector.broadcast(ByteVector.SPECIES_128, 8);
@@ -35,6 +38,11 @@ public final class PanamaTensorOperations implements TensorOperations {
     static final IntVector BF16_BYTE_SHIFT_128 = IntVector.broadcast(IntVector.SPECIES_128, 16);
     static final FloatVector F32_ROUND_UP_128 = FloatVector.broadcast(FloatVector.SPECIES_128, 0.5f);
 
+    // The offset of a scaled element in [-8, 8] to its Q4 nibble, 8 plus 0.5 for rounding
+    static final FloatVector F32_Q4_ROUND_512 = FloatVector.broadcast(FloatVector.SPECIES_512, 8.5f);
+    static final FloatVector F32_Q4_ROUND_256 = FloatVector.broadcast(FloatVector.SPECIES_256, 8.5f);
+    static final FloatVector F32_Q4_ROUND_128 = FloatVector.broadcast(FloatVector.SPECIES_128, 8.5f);
+
     static final VectorMask<Byte> BYTE_MASK_32 = VectorMask.fromValues(
             ByteVector.SPECIES_64,
             true,
@@ -105,9 +113,11 @@ public final class PanamaTensorOperations implements TensorOperations {
             case F32 -> switch (b.dType()) {
                 case F32 -> new GemmerF32(K, a, b, result, aColumnOffset, bColumnOffset, rOffset);
                 case BF16 -> new GemmerF32BF16(K, a, b, result, aColumnOffset, bColumnOffset, rOffset);
+                case I8 -> new GemmerF32Q8(K, a, b, result, aColumnOffset, bColumnOffset, rOffset);
                 case Q4 -> switch (vectorType) {
                     case AVX_256 -> new GemmerF32Q4_256(K, a, b, result, aColumnOffset, bColumnOffset, rOffset);
                     case AVX_512 -> new GemmerF32Q4_512(K, a, b, result, aColumnOffset, bColumnOffset, rOffset);
+                    case ARM_128 -> new GemmerF32Q4_arm(K, a, b, result, aColumnOffset, bColumnOffset, rOffset);
                     default -> throw new UnsupportedOperationException(vectorType.name());
                 };
                 default -> throw new UnsupportedOperationException(b.dType().name());
@@ -533,6 +543,65 @@ public final class PanamaTensorOperations implements TensorOperations {
         }
     }
 
+    private class GemmerF32Q4_arm extends Gemmer {
+        final BiIntConsumer matmul1x1;
+
+        final FloatBufferTensor a;
+        final Q4ByteBufferTensor b;
+
+        GemmerF32Q4_arm(int k, AbstractTensor ta, AbstractTensor tb, AbstractTensor c, int aColumnOffset, int bColumnOffset, int rOffset) {
+            super(k, ta, tb, c, aColumnOffset, bColumnOffset, rOffset);
+
+            this.a = (FloatBufferTensor) ta;
+            this.b = (Q4ByteBufferTensor) tb;
+
+            this.matmul1x1 = initMatmul1x1();
+        }
+
+        @Override
+        protected int pickKernel(int m0, int m, int n0, int n) {
+            kernel(m0, m, 1, n0, n, 1, matmul1x1);
+            return (1 << 4) | 1;
+        }
+
+        protected BiIntConsumer initMatmul1x1() {
+            return (i, j) -> {
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+                int alim = aoffset + k;
+                int blim = boffset + k;
+                int slen = Q4ByteBufferTensor.BLOCK_SIZE;
+                FloatVector acc = FloatVector.zero(FloatVector.SPECIES_128);
+
+                for (; aoffset < alim && boffset < blim; aoffset += slen, boffset += slen) {
+                    FloatVector scale = FloatVector.broadcast(FloatVector.SPECIES_128, b.getFactorForIndex(j, boffset));
+
+                    // Make 8 bytes -> 16 4bit -> 16 bytes, elements 0-7 and 16-23 then 8-15 and 24-31
+                    var b0 = b.getVector(ByteVector.SPECIES_64, j, boffset);
+                    var b1 = b.getVector(ByteVector.SPECIES_64, j, boffset + 16);
+                    var lo0 = b0.and(Q4_BYTE_MASK_64).sub(Q4_BYTE_SUB_64);
+                    var hi0 = b0.lanewise(VectorOperators.LSHR, Q4_BYTE_SHIFT_64).sub(Q4_BYTE_SUB_64);
+                    var lo1 = b1.and(Q4_BYTE_MASK_64).sub(Q4_BYTE_SUB_64);
+                    var hi1 = b1.lanewise(VectorOperators.LSHR, Q4_BYTE_SHIFT_64).sub(Q4_BYTE_SUB_64);
+
+                    // BLOCK_SIZE Floats
+                    var af0 = a.getVector(FloatVector.SPECIES_128, i, aoffset).mul(lo0.castShape(FloatVector.SPECIES_128, 0));
+                    var af1 = a.getVector(FloatVector.SPECIES_128, i, aoffset + 4).mul(lo0.castShape(FloatVector.SPECIES_128, 1));
+                    var af2 = a.getVector(FloatVector.SPECIES_128, i, aoffset + 8).mul(lo1.castShape(FloatVector.SPECIES_128, 0));
+                    var af3 = a.getVector(FloatVector.SPECIES_128, i, aoffset + 12).mul(lo1.castShape(FloatVector.SPECIES_128, 1));
+                    var af4 = a.getVector(FloatVector.SPECIES_128, i, aoffset + 16).mul(hi0.castShape(FloatVector.SPECIES_128, 0));
+                    var af5 = a.getVector(FloatVector.SPECIES_128, i, aoffset + 20).mul(hi0.castShape(FloatVector.SPECIES_128, 1));
+                    var af6 = a.getVector(FloatVector.SPECIES_128, i, aoffset + 24).mul(hi1.castShape(FloatVector.SPECIES_128, 0));
+                    var af7 = a.getVector(FloatVector.SPECIES_128, i, aoffset + 28).mul(hi1.castShape(FloatVector.SPECIES_128, 1));
+
+                    acc = af0.add(af1).add(af2.add(af3)).add(af4.add(af5).add(af6.add(af7))).fma(scale, acc);
+                }
+
+                c.set(acc.reduceLanes(VectorOperators.ADD), i, j + rOffset);
+            };
+        }
+    }
+
     private class GemmerI8Q4_arm extends Gemmer {
         final BiIntConsumer matmul1x1;
         final BiIntConsumer matmul1x4;
@@ -1524,6 +1593,110 @@ public final class PanamaTensorOperations implements TensorOperations {
         }
     }
 
+    /**
+     * Float rows against Q8 blocks, used for queries against a quantized kv cache. Every block of b is widened to
+     * floats and its dot product with a is scaled once per block.
+     */
+    private class GemmerF32Q8 extends Gemmer {
+        final BiIntConsumer matmul1x1;
+        final BiIntConsumer matmul1x4;
+
+        final FloatBufferTensor a;
+        final Q8ByteBufferTensor b;
+
+        GemmerF32Q8(int k, AbstractTensor ta, AbstractTensor tb, AbstractTensor c, int ith, int nth, int rOffset) {
+            super(k, ta, tb, c, ith, nth, rOffset);
+            Preconditions.checkArgument(nth % Q8ByteBufferTensor.BLOCK_SIZE == 0 && k % Q8ByteBufferTensor.BLOCK_SIZE == 0,
+                    "Q8 columns must be whole blocks");
+
+            this.a = (FloatBufferTensor) ta;
+            this.b = (Q8ByteBufferTensor) tb;
+
+            this.matmul1x1 = initMatmul1x1();
+            this.matmul1x4 = initMatmul1x4();
+        }
+
+        @Override
+        protected int pickKernel(int m0, int m, int n0, int n) {
+            short mc, nc;
+            if (n - n0 >= 4) {
+                mc = 1;
+                nc = 4;
+                kernel(m0, m, 1, n0, n, 4, matmul1x4);
+            } else {
+                mc = 1;
+                nc = 1;
+                kernel(m0, m, 1, n0, n, 1, matmul1x1);
+            }
+
+            return (mc << 4) | nc;
+        }
+
+        /** @return the dot product of the block of a at aoffset with the 32 bytes of b row j at boffset */
+        private FloatVector block(FloatVector af0, FloatVector af1, FloatVector af2, FloatVector af3, int j, int boffset) {
+            var b0 = b.getVector(ByteVector.SPECIES_64, j, boffset).castShape(FloatVector.SPECIES_256, 0);
+            var b1 = b.getVector(ByteVector.SPECIES_64, j, boffset + 8).castShape(FloatVector.SPECIES_256, 0);
+            var b2 = b.getVector(ByteVector.SPECIES_64, j, boffset + 16).castShape(FloatVector.SPECIES_256, 0);
+            var b3 = b.getVector(ByteVector.SPECIES_64, j, boffset + 24).castShape(FloatVector.SPECIES_256, 0);
+            return af0.mul(b0).add(af1.mul(b1)).add(af2.mul(b2)).add(af3.mul(b3));
+        }
+
+        protected BiIntConsumer initMatmul1x1() {
+            return (i, j) -> {
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+                int alim = aoffset + k;
+                int slen = Q8ByteBufferTensor.BLOCK_SIZE;
+                FloatVector acc = FloatVector.zero(FloatVector.SPECIES_256);
+
+                for (; aoffset < alim; aoffset += slen, boffset += slen) {
+                    FloatVector scale = FloatVector.broadcast(FloatVector.SPECIES_256, b.getFactorForIndex(j, boffset));
+                    var af0 = a.getVector(FloatVector.SPECIES_256, i, aoffset);
+                    var af1 = a.getVector(FloatVector.SPECIES_256, i, aoffset + 8);
+                    var af2 = a.getVector(FloatVector.SPECIES_256, i, aoffset + 16);
+                    var af3 = a.getVector(FloatVector.SPECIES_256, i, aoffset + 24);
+                    acc = block(af0, af1, af2, af3, j, boffset).fma(scale, acc);
+                }
+
+                c.set(acc.reduceLanes(VectorOperators.ADD), i, j + rOffset);
+            };
+        }
+
+        protected BiIntConsumer initMatmul1x4() {
+            return (i, j) -> {
+                int aoffset = aColumnOffset;
+                int boffset = bColumnOffset;
+                int alim = aoffset + k;
+                int slen = Q8ByteBufferTensor.BLOCK_SIZE;
+                FloatVector acc0 = FloatVector.zero(FloatVector.SPECIES_256);
+                FloatVector acc1 = FloatVector.zero(FloatVector.SPECIES_256);
+                FloatVector acc2 = FloatVector.zero(FloatVector.SPECIES_256);
+                FloatVector acc3 = FloatVector.zero(FloatVector.SPECIES_256);
+
+                // the block of a is loaded once for the four rows of b
+                for (; aoffset < alim; aoffset += slen, boffset += slen) {
+                    var af0 = a.getVector(FloatVector.SPECIES_256, i, aoffset);
+                    var af1 = a.getVector(FloatVector.SPECIES_256, i, aoffset + 8);
+                    var af2 = a.getVector(FloatVector.SPECIES_256, i, aoffset + 16);
+                    var af3 = a.getVector(FloatVector.SPECIES_256, i, aoffset + 24);
+                    acc0 = block(af0, af1, af2, af3, j, boffset)
+                            .fma(FloatVector.broadcast(FloatVector.SPECIES_256, b.getFactorForIndex(j, boffset)), acc0);
+                    acc1 = block(af0, af1, af2, af3, j + 1, boffset)
+                            .fma(FloatVector.broadcast(FloatVector.SPECIES_256, b.getFactorForIndex(j + 1, boffset)), acc1);
+                    acc2 = block(af0, af1, af2, af3, j + 2, boffset)
+                            .fma(FloatVector.broadcast(FloatVector.SPECIES_256, b.getFactorForIndex(j + 2, boffset)), acc2);
+                    acc3 = block(af0, af1, af2, af3, j + 3, boffset)
+                            .fma(FloatVector.broadcast(FloatVector.SPECIES_256, b.getFactorForIndex(j + 3, boffset)), acc3);
+                }
+
+                c.set(acc0.reduceLanes(VectorOperators.ADD), i, j + rOffset);
+                c.set(acc1.reduceLanes(VectorOperators.ADD), i, j + 1 + rOffset);
+                c.set(acc2.reduceLanes(VectorOperators.ADD), i, j + 2 + rOffset);
+                c.set(acc3.reduceLanes(VectorOperators.ADD), i, j + 3 + rOffset);
+            };
+        }
+    }
+
     private abstract class Gemmer {
         final int k;
         final AbstractTensor a;
@@ -1559,7 +1732,8 @@ public final class PanamaTensorOperations implements TensorOperations {
             mp = m0 + (m - m0) / mc * mc;
             np = n0 + (n - n0) / nc * nc;
             mnpack(mp, m, n0, np);
-            mnpack(m0, mp, np, n);
+            // the column remainder must cover every row, including the row remainder handled above
+            mnpack(m0, m, np, n);
         }
 
         protected abstract int pickKernel(int m0, int m, int n0, int n);
@@ -1591,6 +1765,12 @@ public final class PanamaTensorOperations implements TensorOperations {
                     default -> throw new UnsupportedOperationException();
                 };
                 case BF16 -> quantizeBF16((FloatBufferTensor) t, offset, length);
+                case Q4 -> switch (vectorType) {
+                    case AVX_512 -> quantizeQ4_512((FloatBufferTensor) t, offset, length);
+                    case AVX_256 -> quantizeQ4_256((FloatBufferTensor) t, offset, length);
+                    case ARM_128 -> quantizeQ4_arm((FloatBufferTensor) t, offset, length);
+                    default -> quantizeQ4((FloatBufferTensor) t, offset, length);
+                };
                 default -> throw new UnsupportedOperationException("F32 => " + qtype);
             };
             case BF16 -> switch (qtype) {
@@ -1607,6 +1787,157 @@ public final class PanamaTensorOperations implements TensorOperations {
         };
     }
 
+    /**
+     * Blocks of {@link Q4ByteBufferTensor#BLOCK_SIZE} floats to 4 bits each, element j of a block in the low nibble of
+     * byte j and element j + HALF_BLOCK in the high nibble, scaled by the value of the largest magnitude over -8.
+     */
+    public Q4ByteBufferTensor quantizeQ4(FloatBufferTensor ft, int offset, int length) {
+
+        // Up to caller to release
+        Q4ByteBufferTensor qft = (Q4ByteBufferTensor) tensorCache.getDirty(DType.Q4, ft.shape());
+        MemorySegment bytes = qft.getMemorySegment();
+
+        int batchSize = ft.shape().first();
+        for (int b = 0; b < batchSize; b++) {
+            for (int i = offset; i < offset + length; i += Q4ByteBufferTensor.BLOCK_SIZE) {
+                float max = 0.0f;
+                for (int j = 0; j < Q4ByteBufferTensor.BLOCK_SIZE; j++) {
+                    float v = ft.get(b, i + j);
+                    if (Math.abs(v) > Math.abs(max)) {
+                        max = v;
+                    }
+                }
+                float d = max / -8f;
+                float id = d != 0.0f ? 1.0f / d : 0.0f;
+
+                long byteOffset = qft.getMemorySegmentOffset(qft.getOffset(b, i));
+                for (int j = 0; j < Q4ByteBufferTensor.HALF_BLOCK; j++) {
+                    int lo = Math.min(15, (int) (ft.get(b, i + j) * id + 8.5f));
+                    int hi = Math.min(15, (int) (ft.get(b, i + j + Q4ByteBufferTensor.HALF_BLOCK) * id + 8.5f));
+                    bytes.set(ValueLayout.JAVA_BYTE, byteOffset + j, (byte) (lo | (hi << 4)));
+                }
+
+                qft.getBlockF().set(d, b, (int) (i * Q4ByteBufferTensor.I_BLOCK_SIZE));
+            }
+        }
+
+        return qft;
+    }
+
+    public Q4ByteBufferTensor quantizeQ4_512(FloatBufferTensor ft, final int offset, int length) {
+
+        // Up to caller to release
+        Q4ByteBufferTensor qft = (Q4ByteBufferTensor) tensorCache.getDirty(DType.Q4, ft.shape());
+        int batchSize = ft.shape().first();
+        for (int b = 0; b < batchSize; b++) {
+            for (int i = offset; i < offset + length; i += Q4ByteBufferTensor.BLOCK_SIZE) {
+                // the first half of the block goes to the low nibbles, the second half to the high nibbles
+                FloatVector lo = ft.getVector(FloatVector.SPECIES_512, b, i);
+                FloatVector hi = ft.getVector(FloatVector.SPECIES_512, b, i + 16);
+
+                float d = q4Scale(lo.max(hi).reduceLanes(VectorOperators.MAX), lo.min(hi).reduceLanes(VectorOperators.MIN));
+                var vid = FloatVector.broadcast(FloatVector.SPECIES_512, d != 0.0f ? 1.0f / d : 0.0f);
+
+                // Squash to bytes, positive so the conversion truncates to the floor
+                var blo = lo.fma(vid, F32_Q4_ROUND_512).min(15f).convertShape(VectorOperators.F2B, ByteVector.SPECIES_128, 0)
+                        .reinterpretAsBytes();
+                var bhi = hi.fma(vid, F32_Q4_ROUND_512).min(15f).convertShape(VectorOperators.F2B, ByteVector.SPECIES_128, 0)
+                        .reinterpretAsBytes();
+
+                qft.intoTensor(blo.or(bhi.lanewise(VectorOperators.LSHL, 4)), b, i);
+                qft.getBlockF().set(d, b, (int) (i * Q4ByteBufferTensor.I_BLOCK_SIZE));
+            }
+        }
+
+        return qft;
+    }
+
+    public Q4ByteBufferTensor quantizeQ4_256(FloatBufferTensor ft, final int offset, int length) {
+
+        // Up to caller to release
+        Q4ByteBufferTensor qft = (Q4ByteBufferTensor) tensorCache.getDirty(DType.Q4, ft.shape());
+        int batchSize = ft.shape().first();
+        for (int b = 0; b < batchSize; b++) {
+            for (int i = offset; i < offset + length; i += Q4ByteBufferTensor.BLOCK_SIZE) {
+                FloatVector fv0 = ft.getVector(FloatVector.SPECIES_256, b, i);
+                FloatVector fv1 = ft.getVector(FloatVector.SPECIES_256, b, i + 8);
+                FloatVector fv2 = ft.getVector(FloatVector.SPECIES_256, b, i + 16);
+                FloatVector fv3 = ft.getVector(FloatVector.SPECIES_256, b, i + 24);
+
+                float max = fv0.max(fv1).max(fv2.max(fv3)).reduceLanes(VectorOperators.MAX);
+                float min = fv0.min(fv1).min(fv2.min(fv3)).reduceLanes(VectorOperators.MIN);
+                float d = q4Scale(max, min);
+                var vid = FloatVector.broadcast(FloatVector.SPECIES_256, d != 0.0f ? 1.0f / d : 0.0f);
+
+                // Squash to bytes, positive so the conversion truncates to the floor
+                var b0 = fv0.fma(vid, F32_Q4_ROUND_256).min(15f).convertShape(VectorOperators.F2B, ByteVector.SPECIES_64, 0)
+                        .reinterpretAsBytes();
+                var b1 = fv1.fma(vid, F32_Q4_ROUND_256).min(15f).convertShape(VectorOperators.F2B, ByteVector.SPECIES_64, 0)
+                        .reinterpretAsBytes();
+                var b2 = fv2.fma(vid, F32_Q4_ROUND_256).min(15f).convertShape(VectorOperators.F2B, ByteVector.SPECIES_64, 0)
+                        .reinterpretAsBytes();
+                var b3 = fv3.fma(vid, F32_Q4_ROUND_256).min(15f).convertShape(VectorOperators.F2B, ByteVector.SPECIES_64, 0)
+                        .reinterpretAsBytes();
+
+                // elements 0-7 with 16-23, then 8-15 with 24-31
+                qft.intoTensor(b0.or(b2.lanewise(VectorOperators.LSHL, 4)), b, i);
+                qft.intoTensor(b1.or(b3.lanewise(VectorOperators.LSHL, 4)), b, i + 16);
+                qft.getBlockF().set(d, b, (int) (i * Q4ByteBufferTensor.I_BLOCK_SIZE));
+            }
+        }
+
+        return qft;
+    }
+
+    public Q4ByteBufferTensor quantizeQ4_arm(FloatBufferTensor ft, final int offset, int length) {
+
+        // Up to caller to release
+        Q4ByteBufferTensor qft = (Q4ByteBufferTensor) tensorCache.getDirty(DType.Q4, ft.shape());
+        int batchSize = ft.shape().first();
+        for (int b = 0; b < batchSize; b++) {
+            for (int i = offset; i < offset + length; i += Q4ByteBufferTensor.BLOCK_SIZE) {
+                FloatVector fv0 = ft.getVector(FloatVector.SPECIES_128, b, i);
+                FloatVector fv1 = ft.getVector(FloatVector.SPECIES_128, b, i + 4);
+                FloatVector fv2 = ft.getVector(FloatVector.SPECIES_128, b, i + 8);
+                FloatVector fv3 = ft.getVector(FloatVector.SPECIES_128, b, i + 12);
+                FloatVector fv4 = ft.getVector(FloatVector.SPECIES_128, b, i + 16);
+                FloatVector fv5 = ft.getVector(FloatVector.SPECIES_128, b, i + 20);
+                FloatVector fv6 = ft.getVector(FloatVector.SPECIES_128, b, i + 24);
+                FloatVector fv7 = ft.getVector(FloatVector.SPECIES_128, b, i + 28);
+
+                var max = fv0.max(fv1).max(fv2.max(fv3)).max(fv4.max(fv5).max(fv6.max(fv7)));
+                var min = fv0.min(fv1).min(fv2.min(fv3)).min(fv4.min(fv5).min(fv6.min(fv7)));
+                float d = q4Scale(max.reduceLanes(VectorOperators.MAX), min.reduceLanes(VectorOperators.MIN));
+                var vid = FloatVector.broadcast(FloatVector.SPECIES_128, d != 0.0f ? 1.0f / d : 0.0f);
+
+                // 4 floats fill the lower half of 8 bytes, part -1 the upper half
+                var b0 = q4Bytes_arm(fv0, vid, 0).or(q4Bytes_arm(fv1, vid, -1));
+                var b1 = q4Bytes_arm(fv2, vid, 0).or(q4Bytes_arm(fv3, vid, -1));
+                var b2 = q4Bytes_arm(fv4, vid, 0).or(q4Bytes_arm(fv5, vid, -1));
+                var b3 = q4Bytes_arm(fv6, vid, 0).or(q4Bytes_arm(fv7, vid, -1));
+
+                // elements 0-7 with 16-23, then 8-15 with 24-31
+                qft.intoTensor(b0.or(b2.lanewise(VectorOperators.LSHL, 4)), b, i);
+                qft.intoTensor(b1.or(b3.lanewise(VectorOperators.LSHL, 4)), b, i + 16);
+                qft.getBlockF().set(d, b, (int) (i * Q4ByteBufferTensor.I_BLOCK_SIZE));
+            }
+        }
+
+        return qft;
+    }
+
+    private static ByteVector q4Bytes_arm(FloatVector fv, FloatVector vid, int part) {
+        return fv.fma(vid, F32_Q4_ROUND_128).min(15f).convertShape(VectorOperators.F2B, ByteVector.SPECIES_64, part)
+                .reinterpretAsBytes();
+    }
+
+    /**
+     * The scale of a Q4 block from its largest and smallest element: the element of the largest magnitude over -8.
+     */
+    private static float q4Scale(float max, float min) {
+        return (-min > max ? min : max) / -8f;
+    }
+
     public BFloat16BufferTensor quantizeBF16(FloatBufferTensor ft, final int offset, int length) {
 
         // Need this till we have a proper quantization
@@ -2456,6 +2787,43 @@ public final class PanamaTensorOperations implements TensorOperations {
         }
     }
 
+    @Override
+    public void rope(AbstractTensor xBatch, int[] positions, RopeTable table, int offset, int length) {
+        if (xBatch.dType() != DType.F32) {
+            TensorOperations.super.rope(xBatch, positions, table, offset, length);
+            return;
+        }
+        int headSize = table.headSize();
+        int half = headSize / 2;
+        Preconditions.checkArgument(positions.length == xBatch.shape().first(), "Expected a position for every row");
+        Preconditions.checkArgument(length % headSize == 0, "length must be whole heads");
+        int upperBound = FloatVector.SPECIES_PREFERRED.loopBound(half);
+        for (int bi = 0; bi < positions.length; bi++) {
+            FloatBufferTensor x = (FloatBufferTensor) xBatch.slice(bi);
+            FloatBufferTensor angles = (FloatBufferTensor) table.angles(positions[bi]);
+            for (int h = offset; h < offset + length; h += headSize) {
+                int j = 0;
+                for (; j < upperBound; j += FloatVector.SPECIES_PREFERRED.length()) {
+                    FloatVector fcr = angles.getVector(FloatVector.SPECIES_PREFERRED, 0, j);
+                    FloatVector fci = angles.getVector(FloatVector.SPECIES_PREFERRED, 0, j + half);
+                    FloatVector x0 = x.getVector(FloatVector.SPECIES_PREFERRED, 0, h + j);
+                    FloatVector x1 = x.getVector(FloatVector.SPECIES_PREFERRED, 0, h + j + half);
+                    x.intoTensor(x0.mul(fcr).sub(x1.mul(fci)), 0, h + j);
+                    x.intoTensor(x0.mul(fci).add(x1.mul(fcr)), 0, h + j + half);
+                }
+                // tail
+                for (; j < half; j++) {
+                    float fcr = angles.get(0, j);
+                    float fci = angles.get(0, j + half);
+                    float x0 = x.get(0, h + j);
+                    float x1 = x.get(0, h + j + half);
+                    x.set(x0 * fcr - x1 * fci, 0, h + j);
+                    x.set(x0 * fci + x1 * fcr, 0, h + j + half);
+                }
+            }
+        }
+    }
+
     @Override
     public void scale(float factor, AbstractTensor aBatch, int offset, int length) {
 
@@ -2683,6 +3051,270 @@ public final class PanamaTensorOperations implements TensorOperations {
         }
     }
 
+    @Override
+    public void batchSaxpy(
+            AbstractTensor alpha,
+            AbstractTensor x,
+            AbstractTensor y,
+            int xoffset,
+            int yoffset,
+            int limit,
+            int aOffset,
+            int xOffset,
+            int batchSize
+    ) {
+        Preconditions.checkArgument(alpha.shape().first() == y.shape().first(), "Expected a row of alpha for every row of y");
+        if (x.dType() == DType.F32 && y.dType() == DType.F32) {
+            batchSaxpyF32(alpha, (FloatBufferTensor) x, (FloatBufferTensor) y, xoffset, yoffset, limit, aOffset, xOffset, batchSize);
+        } else if ((x.dType() == DType.I8 || x.dType() == DType.Q4) && y.dType() == DType.F32) {
+            batchSaxpyQuantized(alpha, x, (FloatBufferTensor) y, xoffset, yoffset, limit, aOffset, xOffset, batchSize);
+        } else {
+            TensorOperations.super.batchSaxpy(alpha, x, y, xoffset, yoffset, limit, aOffset, xOffset, batchSize);
+        }
+    }
+
+    /**
+     * Four rows of x at a time are applied to every row of y before moving on, so they are read from memory once
+     * and from cache for the other rows.
+     */
+    public void batchSaxpyF32(
+            AbstractTensor alpha,
+            FloatBufferTensor x,
+            FloatBufferTensor y,
+            int xoffset,
+            int yoffset,
+            int limit,
+            int aOffset,
+            int xOffset,
+            int batchSize
+    ) {
+        int rows = y.shape().first();
+        int upperBound = FloatVector.SPECIES_PREFERRED.loopBound(limit);
+        int len = FloatVector.SPECIES_PREFERRED.length();
+
+        // Use Nearest multiple of 4
+        int aLimit = aOffset + batchSize - (batchSize % 4);
+        int a = aOffset;
+        int xi = xOffset;
+
+        for (; a < aLimit; a += 4, xi += 4) {
+            for (int r = 0; r < rows; r++) {
+                FloatVector a0 = FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, alpha.get(r, a + 0));
+                FloatVector a1 = FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, alpha.get(r, a + 1));
+                FloatVector a2 = FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, alpha.get(r, a + 2));
+                FloatVector a3 = FloatVector.broadcast(FloatVector.SPECIES_PREFERRED, alpha.get(r, a + 3));
+
+                for (int c = 0; c < upperBound; c += len) {
+                    FloatVector x0 = x.getVector(FloatVector.SPECIES_PREFERRED, xi + 0, xoffset + c);
+                    FloatVector x1 = x.getVector(FloatVector.SPECIES_PREFERRED, xi + 1, xoffset + c);
+                    FloatVector x2 = x.getVector(FloatVector.SPECIES_PREFERRED, xi + 2, xoffset + c);
+                    FloatVector x3 = x.getVector(FloatVector.SPECIES_PREFERRED, xi + 3, xoffset + c);
+
+                    FloatVector vy = y.getVector(FloatVector.SPECIES_PREFERRED, r, yoffset + c);
+                    vy = x0.fma(a0, vy);
+                    vy = x1.fma(a1, vy);
+                    vy = x2.fma(a2, vy);
+                    vy = x3.fma(a3, vy);
+                    y.intoTensor(vy, r, yoffset + c);
+                }
+            }
+            // tail
+            for (int c = upperBound; c < limit; c++) {
+                for (int r = 0; r < rows; r++) {
+                    float v = y.get(r, yoffset + c);
+                    for (int k = 0; k < 4; k++) {
+                        v += alpha.get(r, a + k) * x.get(xi + k, xoffset + c);
+                    }
+                    y.set(v, r, yoffset + c);
+                }
+            }
+        }
+
+        // tail
+        for (; a < aOffset + batchSize; a++, xi++) {
+            for (int r = 0; r < rows; r++) {
+                saxpyF32(alpha.get(r, a), (FloatBufferTensor) x.slice(xi), (FloatBufferTensor) y.slice(r), xoffset, yoffset, limit);
+            }
+        }
+    }
+
+    /**
+     * batchSaxpy over the rows of a Q8 or Q4 x, the weighted values of a quantized kv cache. Every block of a row of x
+     * is widened to floats once and added to every row of y with its scale folded into the weight.
+     */
+    public void batchSaxpyQuantized(
+            AbstractTensor alpha,
+            AbstractTensor x,
+            FloatBufferTensor y,
+            int xoffset,
+            int yoffset,
+            int limit,
+            int aOffset,
+            int xOffset,
+            int batchSize
+    ) {
+        int blockSize = Q8ByteBufferTensor.BLOCK_SIZE;
+        Preconditions.checkArgument(xoffset % blockSize == 0 && limit % blockSize == 0, "x columns must be whole blocks");
+        switch (vectorType) {
+            case AVX_512 -> batchSaxpyQuantized_512(alpha, x, y, xoffset, yoffset, limit, aOffset, xOffset, batchSize);
+            case AVX_256 -> batchSaxpyQuantized_256(alpha, x, y, xoffset, yoffset, limit, aOffset, xOffset, batchSize);
+            case ARM_128 -> batchSaxpyQuantized_arm(alpha, x, y, xoffset, yoffset, limit, aOffset, xOffset, batchSize);
+            default -> throw new UnsupportedOperationException(vectorType.name());
+        }
+    }
+
+    private void batchSaxpyQuantized_512(
+            AbstractTensor alpha,
+            AbstractTensor x,
+            FloatBufferTensor y,
+            int xoffset,
+            int yoffset,
+            int limit,
+            int aOffset,
+            int xOffset,
+            int batchSize
+    ) {
+        int blockSize = Q8ByteBufferTensor.BLOCK_SIZE;
+        int rows = y.shape().first();
+        Q4ByteBufferTensor q4 = x.dType() == DType.Q4 ? (Q4ByteBufferTensor) x : null;
+        Q8ByteBufferTensor q8 = x.dType() == DType.I8 ? (Q8ByteBufferTensor) x : null;
+        FloatBufferTensor blockF = q4 != null ? q4.getBlockF() : q8.getBlockF();
+
+        for (int a = aOffset, xi = xOffset; a < aOffset + batchSize; a++, xi++) {
+            for (int c = 0; c < limit; c += blockSize) {
+                FloatVector x0, x1;
+                if (q4 != null) {
+                    // 16 bytes, the low nibbles are the first half of the block and the high nibbles the second
+                    var bx = q4.getVector(ByteVector.SPECIES_128, xi, xoffset + c);
+                    var lo = bx.and(Q4_BYTE_MASK_128).sub(Q4_BYTE_SUB_128);
+                    var hi = bx.lanewise(VectorOperators.LSHR, Q4_BYTE_SHIFT_128).sub(Q4_BYTE_SUB_128);
+                    x0 = (FloatVector) lo.castShape(FloatVector.SPECIES_512, 0);
+                    x1 = (FloatVector) hi.castShape(FloatVector.SPECIES_512, 0);
+                } else {
+                    x0 = (FloatVector) q8.getVector(ByteVector.SPECIES_128, xi, xoffset + c).castShape(FloatVector.SPECIES_512, 0);
+                    x1 = (FloatVector) q8.getVector(ByteVector.SPECIES_128, xi, xoffset + c + 16).castShape(FloatVector.SPECIES_512, 0);
+                }
+                float scale = blockF.get(xi, (xoffset + c) / blockSize);
+
+                for (int r = 0; r < rows; r++) {
+                    FloatVector w = FloatVector.broadcast(FloatVector.SPECIES_512, alpha.get(r, a) * scale);
+                    int yo = yoffset + c;
+                    y.intoTensor(x0.fma(w, y.getVector(FloatVector.SPECIES_512, r, yo)), r, yo);
+                    y.intoTensor(x1.fma(w, y.getVector(FloatVector.SPECIES_512, r, yo + 16)), r, yo + 16);
+                }
+            }
+        }
+    }
+
+    private void batchSaxpyQuantized_256(
+            AbstractTensor alpha,
+            AbstractTensor x,
+            FloatBufferTensor y,
+            int xoffset,
+            int yoffset,
+            int limit,
+            int aOffset,
+            int xOffset,
+            int batchSize
+    ) {
+        int blockSize = Q8ByteBufferTensor.BLOCK_SIZE;
+        int rows = y.shape().first();
+        Q4ByteBufferTensor q4 = x.dType() == DType.Q4 ? (Q4ByteBufferTensor) x : null;
+        Q8ByteBufferTensor q8 = x.dType() == DType.I8 ? (Q8ByteBufferTensor) x : null;
+        FloatBufferTensor blockF = q4 != null ? q4.getBlockF() : q8.getBlockF();
+
+        for (int a = aOffset, xi = xOffset; a < aOffset + batchSize; a++, xi++) {
+            for (int c = 0; c < limit; c += blockSize) {
+                FloatVector x0, x1, x2, x3;
+                if (q4 != null) {
+                    // 16 bytes, the low nibbles are the first half of the block and the high nibbles the second
+                    var bx = q4.getVector(ByteVector.SPECIES_128, xi, xoffset + c);
+                    var lo = bx.and(Q4_BYTE_MASK_128).sub(Q4_BYTE_SUB_128);
+                    var hi = bx.lanewise(VectorOperators.LSHR, Q4_BYTE_SHIFT_128).sub(Q4_BYTE_SUB_128);
+                    x0 = (FloatVector) lo.castShape(FloatVector.SPECIES_256, 0);
+                    x1 = (FloatVector) lo.castShape(FloatVector.SPECIES_256, 1);
+                    x2 = (FloatVector) hi.castShape(FloatVector.SPECIES_256, 0);
+                    x3 = (FloatVector) hi.castShape(FloatVector.SPECIES_256, 1);
+                } else {
+                    x0 = (FloatVector) q8.getVector(ByteVector.SPECIES_64, xi, xoffset + c).castShape(FloatVector.SPECIES_256, 0);
+                    x1 = (FloatVector) q8.getVector(ByteVector.SPECIES_64, xi, xoffset + c + 8).castShape(FloatVector.SPECIES_256, 0);
+                    x2 = (FloatVector) q8.getVector(ByteVector.SPECIES_64, xi, xoffset + c + 16).castShape(FloatVector.SPECIES_256, 0);
+                    x3 = (FloatVector) q8.getVector(ByteVector.SPECIES_64, xi, xoffset + c + 24).castShape(FloatVector.SPECIES_256, 0);
+                }
+                float scale = blockF.get(xi, (xoffset + c) / blockSize);
+
+                for (int r = 0; r < rows; r++) {
+                    FloatVector w = FloatVector.broadcast(FloatVector.SPECIES_256, alpha.get(r, a) * scale);
+                    int yo = yoffset + c;
+                    y.intoTensor(x0.fma(w, y.getVector(FloatVector.SPECIES_256, r, yo)), r, yo);
+                    y.intoTensor(x1.fma(w, y.getVector(FloatVector.SPECIES_256, r, yo + 8)), r, yo + 8);
+                    y.intoTensor(x2.fma(w, y.getVector(FloatVector.SPECIES_256, r, yo + 16)), r, yo + 16);
+                    y.intoTensor(x3.fma(w, y.getVector(FloatVector.SPECIES_256, r, yo + 24)), r, yo + 24);
+                }
+            }
+        }
+    }
+
+    private void batchSaxpyQuantized_arm(
+            AbstractTensor alpha,
+            AbstractTensor x,
+            FloatBufferTensor y,
+            int xoffset,
+            int yoffset,
+            int limit,
+            int aOffset,
+            int xOffset,
+            int batchSize
+    ) {
+        int blockSize = Q8ByteBufferTensor.BLOCK_SIZE;
+        int rows = y.shape().first();
+        Q4ByteBufferTensor q4 = x.dType() == DType.Q4 ? (Q4ByteBufferTensor) x : null;
+        Q8ByteBufferTensor q8 = x.dType() == DType.I8 ? (Q8ByteBufferTensor) x : null;
+        FloatBufferTensor blockF = q4 != null ? q4.getBlockF() : q8.getBlockF();
+
+        for (int a = aOffset, xi = xOffset; a < aOffset + batchSize; a++, xi++) {
+            for (int c = 0; c < limit; c += blockSize) {
+                ByteVector b0, b1, b2, b3;
+                if (q4 != null) {
+                    // 8 bytes at a time, the low nibbles are the first half of the block and the high nibbles the second
+                    var bx0 = q4.getVector(ByteVector.SPECIES_64, xi, xoffset + c);
+                    var bx1 = q4.getVector(ByteVector.SPECIES_64, xi, xoffset + c + 16);
+                    b0 = bx0.and(Q4_BYTE_MASK_64).sub(Q4_BYTE_SUB_64);
+                    b1 = bx1.and(Q4_BYTE_MASK_64).sub(Q4_BYTE_SUB_64);
+                    b2 = bx0.lanewise(VectorOperators.LSHR, Q4_BYTE_SHIFT_64).sub(Q4_BYTE_SUB_64);
+                    b3 = bx1.lanewise(VectorOperators.LSHR, Q4_BYTE_SHIFT_64).sub(Q4_BYTE_SUB_64);
+                } else {
+                    b0 = q8.getVector(ByteVector.SPECIES_64, xi, xoffset + c);
+                    b1 = q8.getVector(ByteVector.SPECIES_64, xi, xoffset + c + 8);
+                    b2 = q8.getVector(ByteVector.SPECIES_64, xi, xoffset + c + 16);
+                    b3 = q8.getVector(ByteVector.SPECIES_64, xi, xoffset + c + 24);
+                }
+                var x0 = (FloatVector) b0.castShape(FloatVector.SPECIES_128, 0);
+                var x1 = (FloatVector) b0.castShape(FloatVector.SPECIES_128, 1);
+                var x2 = (FloatVector) b1.castShape(FloatVector.SPECIES_128, 0);
+                var x3 = (FloatVector) b1.castShape(FloatVector.SPECIES_128, 1);
+                var x4 = (FloatVector) b2.castShape(FloatVector.SPECIES_128, 0);
+                var x5 = (FloatVector) b2.castShape(FloatVector.SPECIES_128, 1);
+                var x6 = (FloatVector) b3.castShape(FloatVector.SPECIES_128, 0);
+                var x7 = (FloatVector) b3.castShape(FloatVector.SPECIES_128, 1);
+                float scale = blockF.get(xi, (xoffset + c) / blockSize);
+
+                for (int r = 0; r < rows; r++) {
+                    FloatVector w = FloatVector.broadcast(FloatVector.SPECIES_128, alpha.get(r, a) * scale);
+                    int yo = yoffset + c;
+                    y.intoTensor(x0.fma(w, y.getVector(FloatVector.SPECIES_128, r, yo)), r, yo);
+                    y.intoTensor(x1.fma(w, y.getVector(FloatVector.SPECIES_128, r, yo + 4)), r, yo + 4);
+                    y.intoTensor(x2.fma(w, y.getVector(FloatVector.SPECIES_128, r, yo + 8)), r, yo + 8);
+                    y.intoTensor(x3.fma(w, y.getVector(FloatVector.SPECIES_128, r, yo + 12)), r, yo + 12);
+                    y.intoTensor(x4.fma(w, y.getVector(FloatVector.SPECIES_128, r, yo + 16)), r, yo + 16);
+                    y.intoTensor(x5.fma(w, y.getVector(FloatVector.SPECIES_128, r, yo + 20)), r, yo + 20);
+                    y.intoTensor(x6.fma(w, y.getVector(FloatVector.SPECIES_128, r, yo + 24)), r, yo + 24);
+                    y.intoTensor(x7.fma(w, y.getVector(FloatVector.SPECIES_128, r, yo + 28)), r, yo + 28);
+                }
+            }
+        }
+    }
+
     public void saxpyBF16(
             AbstractTensor alpha,
             AbstractTensor xt,
@@ -4,6 +4,7 @@ import com.codahale.metrics.MetricRegistry;
 import io.teknek.deliverance.DType;
 import io.teknek.deliverance.model.AbstractModel;
 import io.teknek.deliverance.model.ModelSupport;
+import io.teknek.deliverance.model.bert.BertReference;
 import io.teknek.deliverance.safetensors.fetch.ModelFetcher;
 import io.teknek.deliverance.tensor.KvBufferCacheSettings;
 import io.teknek.deliverance.tensor.TensorCache;
@@ -14,6 +15,7 @@ import org.junit.jupiter.api.Test;
 import java.io.File;
 import java.util.Arrays;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 public class EmbeddingTest {
@@ -30,10 +32,8 @@ public class EmbeddingTest {
             long [] ids = model.getTokenizer().encode(text);
             assertEquals("[101, 2023, 2003, 1037, 3231, 6254, 2055, 3698, 4083, 102]", Arrays.toString(ids));
             float[] embedding = model.embed(text, PoolingType.AVG);
-            //  [0] = -9.4317534E-4
-            //  [1] = 0.0065326607
-            assertEquals(-9.4317534E-4, embedding[0], 0.0000001);
-            assertEquals(0.0065326607, embedding[1], 0.0000001);
+            // mean pooled and normalized like sentence-transformers
+            assertArrayEquals(new BertReference(model).average(tokens(ids)), embedding, 1e-4f);
         }
     }
 
@@ -48,8 +48,11 @@ public class EmbeddingTest {
             long [] ids = model.getTokenizer().encode(text);
             assertEquals("[101, 2023, 2003, 1037, 3231, 6254, 2055, 3698, 4083, 102]", Arrays.toString(ids));
             float[] embedding = model.embed(text, PoolingType.MODEL);
-            assertEquals(0.043238960206508636, embedding[0], 0.0000001);
-            assertEquals(-0.051459357142448425, embedding[1], 0.0000001);
+            assertArrayEquals(new BertReference(model).pooled(tokens(ids)), embedding, 1e-4f);
         }
-    }   
+    }
+
+    private static int[] tokens(long[] ids) {
+        return Arrays.stream(ids).mapToInt(Math::toIntExact).toArray();
+    }
 }
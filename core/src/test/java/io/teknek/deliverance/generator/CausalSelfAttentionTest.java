@@ -0,0 +1,605 @@
+package io.teknek.deliverance.generator;
+
+import com.codahale.metrics.MetricRegistry;
+import io.teknek.deliverance.DType;
+import io.teknek.deliverance.math.ActivationFunction;
+import io.teknek.deliverance.model.AbstractModel;
+import io.teknek.deliverance.model.TinyLlama;
+import io.teknek.deliverance.safetensors.Config;
+import io.teknek.deliverance.safetensors.DistributedContext;
+import io.teknek.deliverance.tensor.AbstractTensor;
+import io.teknek.deliverance.tensor.KvBufferCache;
+import io.teknek.deliverance.tensor.KvBufferCacheSettings;
+import io.teknek.deliverance.tensor.impl.FloatBufferTensor;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The attention kernels against a plain softmax attention computed in doubles, over keys and values the tests write
+ * into the kv buffer themselves. The configs have no rope so a query is only its projection.
+ */
+public class CausalSelfAttentionTest {
+    private static final int HEAD_SIZE = 16;
+    /** positions of a kv page, every tile of a prefill spans several */
+    private static final int PAGE = 8;
+
+    private final Random random = new Random(11);
+
+    @Test
+    void tiledPrefillMatchesSoftmaxAttention() {
+        // three tiles, from the start of a page and from the middle of one after earlier positions
+        assertTiledMatches(new TestConfig(256, 4, 2, 256, null), 0, 75);
+        assertTiledMatches(new TestConfig(256, 4, 2, 256, null), 13, 70);
+    }
+
+    @Test
+    void tiledPrefillWithSlidingWindowAndSoftCapping() {
+        // the window starts inside a page and moves through the tile, the rows of a tile see different keys
+        assertTiledMatches(new TestConfig(256, 4, 2, 20, null), 0, 75);
+        assertTiledMatches(new TestConfig(256, 4, 2, 20, null), 37, 40);
+        assertTiledMatches(new TestConfig(256, 4, 2, 256, 0.7f), 5, 70);
+        assertTiledMatches(new TestConfig(256, 4, 4, 20, 0.7f), 0, 75);
+    }
+
+    @Test
+    void slidingWindowRingWrapsAround() {
+        // a window of 20 keeps 20 + jlama.max_batch_size - 1 positions in a ring of pages, the context is several
+        // rings long
+        TestConfig config = new TestConfig(4096, 4, 2, 20, null);
+        AbstractModel model = model(config);
+        CausalSelfAttention attention = attention(model);
+        int ringPages = (20 + AbstractModel.MAX_BATCH_SIZE - 1 + PAGE - 1) / PAGE + 1;
+        long pageBytes = 2L * PAGE * config.kvLength * Float.BYTES;
+        // the budget holds the ring but not the pages of the whole context
+        KvBufferCache cache = new KvBufferCache(model, settings().withMemoryBudget((ringPages + 1) * pageBytes));
+        KvBufferCache.KvBuffer buffer = cache.getKvBuffer("ring");
+        assertTrue(buffer.tryReserve(config.contextLength));
+        assertEquals(ringPages * pageBytes, committedBytes(model));
+
+        int positions = 3 * ringPages * PAGE + 100;
+        float[][] keys = random(positions, config.kvLength, 1.0f);
+        float[][] values = random(positions, config.kvLength, 1.0f);
+        // decodes every 37 positions, on every page of the ring and through its wraps
+        for (int p = 0; p < positions; p++) {
+            write(buffer, p, keys[p], values[p]);
+            if (p % 37 == 0) {
+                assertDecodeMatches(attention, buffer, config, p, keys, values);
+            }
+        }
+        // prefills as long as a batch over the ring wrapping around, the oldest key they read is the furthest back a
+        // ring goes
+        int rows = AbstractModel.MAX_BATCH_SIZE;
+        int start = 2 * ringPages * PAGE - rows / 2;
+        float[][] queries = random(rows, config.attentionLength, 2.0f);
+        try (AbstractTensor queryBatch = tensor(queries);
+                AbstractTensor valueBatch = new FloatBufferTensor(rows, config.attentionLength)) {
+            // the keys of the rows were overwritten by later positions, they are written again
+            for (int p = start - 20; p < start + rows; p++) {
+                write(buffer, p, keys[p], values[p]);
+            }
+            attention.attendTiled(queryBatch, valueBatch, 0, rows, start, buffer);
+            for (int r = 0; r < rows; r++) {
+                for (int h = 0; h < config.numberOfHeads; h++) {
+                    float[] expected = reference(config, queries[r], h, start + r, keys, values);
+                    for (int j = 0; j < HEAD_SIZE; j++) {
+                        assertEquals(expected[j], valueBatch.get(r, h * HEAD_SIZE + j), 1e-4f,
+                                "position " + (start + r) + " head " + h);
+                    }
+                }
+            }
+        }
+        // the ring never took a page more
+        assertEquals(ringPages * pageBytes, committedBytes(model));
+        buffer.close();
+    }
+
+    @Test
+    void contiguousRegionsMatchPagesAcrossGrows() {
+        // regions of 100 positions double to 800, then stop at the context length of 1200
+        TestConfig config = new TestConfig(1200, 4, 2, 1200, null);
+        AbstractModel model = model(config);
+        CausalSelfAttention attention = attention(model);
+        long positionBytes = 2L * config.kvLength * Float.BYTES;
+        // the budget holds a region of the whole context and the one of 800 it grows out of, nothing more
+        KvBufferCache cache = new KvBufferCache(model, new KvBufferCacheSettings(true).withContiguousLayout(100)
+                .withMemoryBudget((1200 + 800) * positionBytes));
+        KvBufferCache.KvBuffer region = cache.getKvBuffer("region");
+        assertTrue(region.tryReserve(config.contextLength));
+        assertFalse(cache.getKvBuffer("other").tryReserve(1));
+        KvBufferCache.KvBuffer pages = new KvBufferCache(model, settings()).getEphemeralKvBuffer();
+
+        float[][] keys = random(1150, config.kvLength, 1.0f);
+        float[][] values = random(1150, config.kvLength, 1.0f);
+        // prefills of the rows written before them, every one but the first grows the region while it is written
+        int[] starts = { 0, 70, 150, 390, 420, 1150 };
+        int[] capacities = { 100, 200, 400, 800, 1200 };
+        // the longest block up to 256 positions dividing the region
+        int[] blocks = { 100, 200, 200, 200, 240 };
+        for (int c = 0; c + 1 < starts.length; c++) {
+            int start = starts[c];
+            int rows = starts[c + 1] - start;
+            for (int p = start; p < start + rows; p++) {
+                write(region, p, keys[p], values[p]);
+                write(pages, p, keys[p], values[p]);
+            }
+            AbstractTensor[] kvp = region.getKeyTensorsUptoPosition(0, start + rows - 1);
+            // the views are kept until the region grows again, positions written before the grow were copied
+            assertSame(kvp, region.getKeyTensorsUptoPosition(0, start + rows - 1));
+            assertEquals(capacities[c], kvp.length * kvp[0].shape().first());
+            assertEquals(blocks[c], kvp[0].shape().first());
+
+            float[][] queries = random(rows, config.attentionLength, 2.0f);
+            try (AbstractTensor queryBatch = tensor(queries);
+                    AbstractTensor fromRegion = new FloatBufferTensor(rows, config.attentionLength);
+                    AbstractTensor fromPages = new FloatBufferTensor(rows, config.attentionLength)) {
+                attention.attendTiled(queryBatch, fromRegion, 0, rows, start, region);
+                attention.attendTiled(queryBatch, fromPages, 0, rows, start, pages);
+                for (int r = 0; r < rows; r++) {
+                    for (int h = 0; h < config.numberOfHeads; h++) {
+                        float[] expected = reference(config, queries[r], h, start + r, keys, values);
+                        for (int j = 0; j < HEAD_SIZE; j++) {
+                            String at = "position " + (start + r) + " head " + h;
+                            assertEquals(fromPages.get(r, h * HEAD_SIZE + j), fromRegion.get(r, h * HEAD_SIZE + j),
+                                    1e-5f, at);
+                            assertEquals(expected[j], fromRegion.get(r, h * HEAD_SIZE + j), 1e-4f, at);
+                        }
+                    }
+                }
+            }
+            int last = start + rows - 1;
+            assertDecodeMatches(attention, region, config, last, keys, values);
+            assertSplitsMatch(attention, region, config, random(config.attentionLength, 2.0f), 0, last, 3, keys,
+                    values);
+        }
+        // the region of 800 went back to the reservation when it grew, the budget is never exceeded
+        assertEquals((1200 + 800) * positionBytes, committedBytes(model));
+        region.close();
+        pages.close();
+    }
+
+    @Test
+    void batchMixingSessionsMatchesSoftmaxAttention() {
+        TestConfig config = new TestConfig(256, 4, 2, 256, null);
+        AbstractModel model = model(config);
+        int length = config.attentionLength;
+        float[][] wq = random(config.attentionLength, config.embeddingLength, 0.5f);
+        float[][] wk = random(config.kvLength, config.embeddingLength, 0.5f);
+        float[][] wv = random(config.kvLength, config.embeddingLength, 0.5f);
+        float[][] identity = new float[config.embeddingLength][length];
+        for (int i = 0; i < length; i++) {
+            identity[i][i] = 1.0f;
+        }
+        CausalSelfAttention attention = new CausalSelfAttention(model, 0, tensor(wq), tensor(wk), tensor(wv),
+                tensor(identity), model.getConfigurableTensorProvider());
+
+        KvBufferCache cache = new KvBufferCache(model, settings());
+        KvBufferCache.KvBuffer a = cache.getEphemeralKvBuffer();
+        KvBufferCache.KvBuffer b = cache.getEphemeralKvBuffer();
+        KvBufferCache.KvBuffer c = cache.getEphemeralKvBuffer();
+        // c decodes after 30 positions written earlier
+        float[][][] keys = new float[3][64][];
+        float[][][] values = new float[3][64][];
+        for (int p = 0; p < 30; p++) {
+            keys[2][p] = random(config.kvLength, 1.0f);
+            values[2][p] = random(config.kvLength, 1.0f);
+            write(c, p, keys[2][p], values[2][p]);
+        }
+
+        // a prompt of a in two tiles, a short prompt of b, a decode row of c and the next row of a on its own
+        int batch = 40 + 5 + 1 + 1;
+        int[] sessions = new int[batch];
+        int[] positions = new int[batch];
+        KvBufferCache.KvBuffer[] buffers = new KvBufferCache.KvBuffer[batch];
+        for (int i = 0; i < batch; i++) {
+            sessions[i] = i < 40 ? 0 : i < 45 ? 1 : i == 45 ? 2 : 0;
+            positions[i] = i < 40 ? i : i < 45 ? i - 40 : i == 45 ? 30 : 40;
+            buffers[i] = new KvBufferCache.KvBuffer[] { a, b, c }[sessions[i]];
+        }
+        float[][] input = random(batch, config.embeddingLength, 1.0f);
+        float[][] queries = new float[batch][];
+        for (int i = 0; i < batch; i++) {
+            queries[i] = multiply(wq, input[i]);
+            keys[sessions[i]][positions[i]] = multiply(wk, input[i]);
+            values[sessions[i]][positions[i]] = multiply(wv, input[i]);
+        }
+
+        try (AbstractTensor output = attention.forward(tensor(input), positions, buffers, Optional.empty())) {
+            for (int i = 0; i < batch; i++) {
+                for (int h = 0; h < config.numberOfHeads; h++) {
+                    float[] expected = reference(config, queries[i], h, positions[i], keys[sessions[i]],
+                            values[sessions[i]]);
+                    for (int j = 0; j < HEAD_SIZE; j++) {
+                        assertEquals(expected[j], output.get(i, h * HEAD_SIZE + j), 1e-4f,
+                                "row " + i + " head " + h);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void quantizedKvMatchesFloatKv() {
+        // outputs are up to 2.5, a Q8 element is within a 127th of the largest of its block and a Q4 one within
+        // an eighth, for the keys that error is scaled up by the query
+        assertQuantizedMatches(DType.I8, settings(), 0.1f);
+        assertQuantizedMatches(DType.Q4, settings(), 0.75f);
+        // a region of 16 positions grows to the context of 128 while the prompt is written, the blocks and their
+        // scales are copied into each larger region
+        assertQuantizedMatches(DType.I8, new KvBufferCacheSettings(true).withContiguousLayout(16), 0.1f);
+        assertQuantizedMatches(DType.Q4, new KvBufferCacheSettings(true).withContiguousLayout(16), 0.75f);
+    }
+
+    /**
+     * A prompt written and attended in tiles, decode rows and the rows of a fork and of the buffer it was forked
+     * from, through a kv cache of kvDType and one of floats. The output of the quantized cache is the attention over
+     * the keys and values read back from it and within tolerance of the output of the float cache.
+     */
+    private void assertQuantizedMatches(DType kvDType, KvBufferCacheSettings settings, float tolerance) {
+        // heads of 32, whole blocks of either format
+        TestConfig config = new TestConfig(128, 4, 2, 128, null, 1, 0, 32);
+        AbstractModel model = model(config);
+        float[][] wq = random(config.attentionLength, config.embeddingLength, 0.5f);
+        float[][] wk = random(config.kvLength, config.embeddingLength, 0.25f);
+        float[][] wv = random(config.kvLength, config.embeddingLength, 0.25f);
+        float[][] identity = new float[config.embeddingLength][config.attentionLength];
+        for (int i = 0; i < config.attentionLength; i++) {
+            identity[i][i] = 1.0f;
+        }
+        CausalSelfAttention attention = new CausalSelfAttention(model, 0, tensor(wq), tensor(wk), tensor(wv),
+                tensor(identity), model.getConfigurableTensorProvider());
+        KvBufferCache.KvBuffer floats = new KvBufferCache(model, settings()).getEphemeralKvBuffer();
+        KvBufferCache.KvBuffer quantized = new KvBufferCache(model, settings.withQuantizedKv(kvDType))
+                .getEphemeralKvBuffer();
+
+        int prompt = 75;
+        assertRowsMatch(attention, kvDType, config, wq, random(prompt, config.embeddingLength, 1.0f), 0, floats,
+                quantized, tolerance);
+        for (int p = prompt; p < prompt + 3; p++) {
+            assertRowsMatch(attention, kvDType, config, wq, random(1, config.embeddingLength, 1.0f), p, floats,
+                    quantized, tolerance);
+        }
+        // position 78 is in the middle of a page, the first write of either buffer copies the page they share
+        KvBufferCache.KvBuffer floatFork = floats.fork();
+        KvBufferCache.KvBuffer quantizedFork = quantized.fork();
+        for (int p = prompt + 3; p < prompt + 5; p++) {
+            assertRowsMatch(attention, kvDType, config, wq, random(1, config.embeddingLength, 1.0f), p, floatFork,
+                    quantizedFork, tolerance);
+            assertRowsMatch(attention, kvDType, config, wq, random(1, config.embeddingLength, 1.0f), p, floats,
+                    quantized, tolerance);
+        }
+        floatFork.close();
+        quantizedFork.close();
+        floats.close();
+        quantized.close();
+    }
+
+    /** Writes and attends the rows of input at positions start.. of both buffers */
+    private static void assertRowsMatch(CausalSelfAttention attention, DType kvDType, TestConfig config,
+            float[][] wq, float[][] input, int start, KvBufferCache.KvBuffer floats, KvBufferCache.KvBuffer quantized,
+            float tolerance) {
+        int rows = input.length;
+        int[] positions = new int[rows];
+        KvBufferCache.KvBuffer[] floatBuffers = new KvBufferCache.KvBuffer[rows];
+        KvBufferCache.KvBuffer[] quantizedBuffers = new KvBufferCache.KvBuffer[rows];
+        for (int r = 0; r < rows; r++) {
+            positions[r] = start + r;
+            floatBuffers[r] = floats;
+            quantizedBuffers[r] = quantized;
+        }
+        try (AbstractTensor expected = attention.forward(tensor(input), positions, floatBuffers, Optional.empty());
+                AbstractTensor output = attention.forward(tensor(input), positions, quantizedBuffers, Optional.empty())) {
+            float[][] keys = read(quantized, start + rows, true);
+            float[][] values = read(quantized, start + rows, false);
+            int headSize = config.headSize;
+            for (int r = 0; r < rows; r++) {
+                float[] query = multiply(wq, input[r]);
+                for (int h = 0; h < config.numberOfHeads; h++) {
+                    float[] dequantized = reference(config, query, h, start + r, keys, values);
+                    String at = kvDType + " position " + (start + r) + " head " + h;
+                    for (int j = 0; j < headSize; j++) {
+                        float value = output.get(r, h * headSize + j);
+                        assertEquals(dequantized[j], value, 1e-4f, at);
+                        assertEquals(expected.get(r, h * headSize + j), value, tolerance, at);
+                    }
+                }
+            }
+        }
+    }
+
+    /** the keys or values of positions 0..positions of layer 0, dequantized */
+    private static float[][] read(KvBufferCache.KvBuffer buffer, int positions, boolean keys) {
+        float[][] rows = new float[positions][];
+        for (int p = 0; p < positions; p++) {
+            AbstractTensor row = keys ? buffer.getKeyTensorForPosition(0, p) : buffer.getValTensorForPosition(0, p);
+            rows[p] = new float[row.shape().last()];
+            for (int i = 0; i < rows[p].length; i++) {
+                rows[p][i] = row.get(0, i);
+            }
+        }
+        return rows;
+    }
+
+    @Test
+    void splitDecodeMatchesASingleSplit() {
+        TestConfig config = new TestConfig(1200, 4, 2, 1200, null);
+        AbstractModel model = model(config);
+        CausalSelfAttention attention = attention(model);
+        KvBufferCache.KvBuffer buffer = new KvBufferCache(model, settings()).getEphemeralKvBuffer();
+        float[][] keys = random(1100, config.kvLength, 1.0f);
+        float[][] values = random(1100, config.kvLength, 1.0f);
+        for (int p = 0; p < keys.length; p++) {
+            write(buffer, p, keys[p], values[p]);
+        }
+        float[] query = random(config.attentionLength, 2.0f);
+        // more keys than two splits of MIN_SPLIT_KEYS, the last of 34 splits of 32 over 1055 keys is empty
+        assertSplitsMatch(attention, buffer, config, query, 0, 1099, 2, keys, values);
+        assertSplitsMatch(attention, buffer, config, query, 0, 1099, 3, keys, values);
+        assertSplitsMatch(attention, buffer, config, query, 0, 1054, 34, keys, values);
+        assertSplitsMatch(attention, buffer, config, query, 70, 1099, 5, keys, values);
+    }
+
+    @Test
+    void groupedQueryHeadsMatchAttentionPerHead() {
+        // 6 query heads in groups of 3, the middle of 3 shards computes heads 2 and 3, one of each group
+        for (int shard = 0; shard < 3; shard++) {
+            assertShardMatches(new TestConfig(256, 6, 2, 256, null, 3, shard));
+        }
+        assertShardMatches(new TestConfig(256, 6, 2, 256, null, 1, 0));
+        assertShardMatches(new TestConfig(256, 6, 3, 30, 0.7f, 3, 1));
+    }
+
+    /**
+     * A prefill and a decode row of the shard of config, its heads must be those of attention per head and the
+     * heads of other shards left alone. The keys are in a buffer of the whole model.
+     */
+    private void assertShardMatches(TestConfig config) {
+        AbstractModel model = model(config);
+        CausalSelfAttention attention = attention(model);
+        TestConfig whole = new TestConfig(config.contextLength, config.numberOfHeads, config.numberOfKeyValueHeads,
+                config.attentionWindow(0), config.attnLogitSoftCapping);
+        KvBufferCache.KvBuffer buffer = new KvBufferCache(model(whole), settings()).getEphemeralKvBuffer();
+        int start = 3;
+        int rows = 40;
+        int decode = 60;
+        float[][] keys = random(decode + 1, config.kvLength, 1.0f);
+        float[][] values = random(decode + 1, config.kvLength, 1.0f);
+        for (int p = 0; p <= decode; p++) {
+            write(buffer, p, keys[p], values[p]);
+        }
+        float[][] queries = random(rows + 1, config.attentionLength, 2.0f);
+        int headStart = config.dctx().headStart;
+        int headEnd = config.dctx().headEnd;
+        try (AbstractTensor queryBatch = tensor(queries);
+                AbstractTensor valueBatch = new FloatBufferTensor(rows + 1, config.attentionLength)) {
+            attention.attendTiled(queryBatch, valueBatch, 0, rows, start, buffer);
+            attention.attend(queryBatch.slice(rows), valueBatch.slice(rows), decode, buffer);
+            for (int r = 0; r <= rows; r++) {
+                int position = r < rows ? start + r : decode;
+                for (int h = 0; h < config.numberOfHeads; h++) {
+                    float[] expected = h >= headStart && h < headEnd
+                            ? reference(config, queries[r], h, position, keys, values)
+                            : new float[HEAD_SIZE];
+                    for (int j = 0; j < HEAD_SIZE; j++) {
+                        assertEquals(expected[j], valueBatch.get(r, h * HEAD_SIZE + j), 1e-4f,
+                                "shard " + config.dctx() + " position " + position + " head " + h);
+                    }
+                }
+            }
+        }
+    }
+
+    private void assertDecodeMatches(CausalSelfAttention attention, KvBufferCache.KvBuffer buffer, TestConfig config,
+            int position, float[][] keys, float[][] values) {
+        float[] query = random(config.attentionLength, 2.0f);
+        try (AbstractTensor q = tensor(new float[][] { query });
+                AbstractTensor out = new FloatBufferTensor(1, config.attentionLength)) {
+            attention.attend(q, out, position, buffer);
+            for (int h = 0; h < config.numberOfHeads; h++) {
+                float[] expected = reference(config, query, h, position, keys, values);
+                for (int j = 0; j < HEAD_SIZE; j++) {
+                    assertEquals(expected[j], out.get(0, h * HEAD_SIZE + j), 1e-4f, "position " + position + " head " + h);
+                }
+            }
+        }
+    }
+
+    private static long committedBytes(AbstractModel model) {
+        return ((Number) model.getMetricRegistry().getGauges().get("kvcache.pool.committed_bytes").getValue()).longValue();
+    }
+
+    private static void assertSplitsMatch(CausalSelfAttention attention, KvBufferCache.KvBuffer buffer,
+            TestConfig config, float[] query, int lo, int position, int splits, float[][] keys, float[][] values) {
+        AbstractTensor[] kvp = buffer.getKeyTensorsUptoPosition(0, position);
+        AbstractTensor[] vvp = buffer.getValTensorsUptoPosition(0, position);
+        try (AbstractTensor q = tensor(new float[][] { query });
+                AbstractTensor single = new FloatBufferTensor(1, config.attentionLength);
+                AbstractTensor split = new FloatBufferTensor(1, config.attentionLength)) {
+            attention.attendSplit(q, single, lo, position, kvp, vvp, 1, null);
+            attention.attendSplit(q, split, lo, position, kvp, vvp, splits, null);
+            // the reference only knows windows, lo is the start of one as long as position - lo
+            TestConfig windowed = new TestConfig(config.contextLength, config.numberOfHeads,
+                    config.numberOfKeyValueHeads, position + 1 - lo, null);
+            for (int h = 0; h < config.numberOfHeads; h++) {
+                float[] expected = reference(windowed, query, h, position, keys, values);
+                for (int j = 0; j < HEAD_SIZE; j++) {
+                    assertEquals(single.get(0, h * HEAD_SIZE + j), split.get(0, h * HEAD_SIZE + j), 1e-5f,
+                            splits + " splits head " + h);
+                    assertEquals(expected[j], split.get(0, h * HEAD_SIZE + j), 1e-4f, splits + " splits head " + h);
+                }
+            }
+        }
+    }
+
+    /** Writes positions 0..start+rows, attends rows start.. in tiles and checks them against the reference */
+    private void assertTiledMatches(TestConfig config, int start, int rows) {
+        AbstractModel model = model(config);
+        CausalSelfAttention attention = attention(model);
+        KvBufferCache.KvBuffer buffer = new KvBufferCache(model, settings()).getEphemeralKvBuffer();
+        float[][] keys = random(start + rows, config.kvLength, 1.0f);
+        float[][] values = random(start + rows, config.kvLength, 1.0f);
+        for (int p = 0; p < start + rows; p++) {
+            write(buffer, p, keys[p], values[p]);
+        }
+        float[][] queries = random(rows, config.attentionLength, 2.0f);
+        try (AbstractTensor queryBatch = tensor(queries);
+                AbstractTensor valueBatch = new FloatBufferTensor(rows, config.attentionLength)) {
+            attention.attendTiled(queryBatch, valueBatch, 0, rows, start, buffer);
+            for (int r = 0; r < rows; r++) {
+                for (int h = 0; h < config.numberOfHeads; h++) {
+                    float[] expected = reference(config, queries[r], h, start + r, keys, values);
+                    for (int j = 0; j < HEAD_SIZE; j++) {
+                        assertEquals(expected[j], valueBatch.get(r, h * HEAD_SIZE + j), 1e-4f,
+                                "position " + (start + r) + " head " + h);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Softmax attention of one head of query, at position, over the keys and values of the window before it.
+     */
+    static float[] reference(Config config, float[] query, int head, int position, float[][] keys,
+            float[][] values) {
+        int headSize = config.headSize;
+        int kvOffset = config.maybeMapToGroupHead(head) * headSize;
+        int lo = Math.max(0, position - config.attentionWindow(0) + 1);
+        double scale = 1.0 / Math.sqrt(headSize);
+        double[] scores = new double[position + 1 - lo];
+        double max = Double.NEGATIVE_INFINITY;
+        for (int p = lo; p <= position; p++) {
+            double score = 0;
+            for (int i = 0; i < headSize; i++) {
+                score += query[head * headSize + i] * keys[p][kvOffset + i];
+            }
+            score *= scale;
+            if (config.attnLogitSoftCapping != null) {
+                score = Math.tanh(score / config.attnLogitSoftCapping) * config.attnLogitSoftCapping;
+            }
+            scores[p - lo] = score;
+            max = Math.max(max, score);
+        }
+        double sum = 0;
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = Math.exp(scores[i] - max);
+            sum += scores[i];
+        }
+        float[] out = new float[headSize];
+        for (int i = 0; i < headSize; i++) {
+            double v = 0;
+            for (int p = lo; p <= position; p++) {
+                v += scores[p - lo] / sum * values[p][kvOffset + i];
+            }
+            out[i] = (float) v;
+        }
+        return out;
+    }
+
+    static AbstractModel model(Config config) {
+        return TinyLlama.build(config, 7, settings(), new MetricRegistry(), 0);
+    }
+
+    static KvBufferCacheSettings settings() {
+        return new KvBufferCacheSettings(true).withPrefixCache(PAGE, 64);
+    }
+
+    /** attention of layer 0, the kernels under test do not read the weights */
+    static CausalSelfAttention attention(AbstractModel model) {
+        Config c = model.getConfig();
+        return new CausalSelfAttention(model, 0, new FloatBufferTensor(c.attentionLength, c.embeddingLength),
+                new FloatBufferTensor(c.kvLength, c.embeddingLength), new FloatBufferTensor(c.kvLength, c.embeddingLength),
+                new FloatBufferTensor(c.embeddingLength, c.attentionLength), model.getConfigurableTensorProvider());
+    }
+
+    static void write(KvBufferCache.KvBuffer buffer, int position, float[] key, float[] value) {
+        AbstractTensor k = buffer.getKeyTensorForPosition(0, position);
+        AbstractTensor v = buffer.getValTensorForPosition(0, position);
+        for (int i = 0; i < key.length; i++) {
+            k.set(key[i], 0, i);
+            v.set(value[i], 0, i);
+        }
+    }
+
+    float[] random(int length, float range) {
+        float[] x = new float[length];
+        for (int i = 0; i < length; i++) {
+            x[i] = (random.nextFloat() * 2 - 1) * range;
+        }
+        return x;
+    }
+
+    float[][] random(int rows, int columns, float range) {
+        float[][] x = new float[rows][];
+        for (int r = 0; r < rows; r++) {
+            x[r] = random(columns, range);
+        }
+        return x;
+    }
+
+    static AbstractTensor tensor(float[][] rows) {
+        AbstractTensor t = new FloatBufferTensor(rows.length, rows[0].length);
+        for (int r = 0; r < rows.length; r++) {
+            for (int i = 0; i < rows[r].length; i++) {
+                t.set(rows[r][i], r, i);
+            }
+        }
+        return t;
+    }
+
+    private static float[] multiply(float[][] weights, float[] x) {
+        float[] y = new float[weights.length];
+        for (int r = 0; r < weights.length; r++) {
+            double sum = 0;
+            for (int i = 0; i < x.length; i++) {
+                sum += weights[r][i] * x[i];
+            }
+            y[r] = (float) sum;
+        }
+        return y;
+    }
+
+    /**
+     * heads of HEAD_SIZE unless given, no rope, one layer whose window can be shorter than the context, computed by
+     * one of shards nodes
+     */
+    static class TestConfig extends Config {
+        private final int window;
+        private final DistributedContext dctx;
+
+        TestConfig(int contextLength, int heads, int kvHeads, int window, Float attnLogitSoftCapping) {
+            this(contextLength, heads, kvHeads, window, attnLogitSoftCapping, 1, 0);
+        }
+
+        TestConfig(int contextLength, int heads, int kvHeads, int window, Float attnLogitSoftCapping, int shards,
+                int shard) {
+            this(contextLength, heads, kvHeads, window, attnLogitSoftCapping, shards, shard, HEAD_SIZE);
+        }
+
+        TestConfig(int contextLength, int heads, int kvHeads, int window, Float attnLogitSoftCapping, int shards,
+                int shard, int headSize) {
+            super(contextLength, heads * headSize, 2 * heads * headSize, heads, kvHeads, 1, 1e-5f,
+                    TinyLlama.VOCABULARY, 1, List.of(2), ActivationFunction.Type.SILU, null, null, null, headSize,
+                    null, attnLogitSoftCapping, null, null, null, null);
+            this.window = window;
+            this.dctx = DistributedContext.builder(this).setNumModelShards(shards).setModelShard(shard).build();
+        }
+
+        @Override
+        public DistributedContext dctx() {
+            return dctx;
+        }
+
+        @Override
+        public int attentionWindow(int layerIndex) {
+            return Math.min(window, contextLength);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package io.teknek.deliverance.generator;
+
+import io.teknek.deliverance.model.AbstractModel;
+import io.teknek.deliverance.tensor.AbstractTensor;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+import java.util.Random;
+
+import static io.teknek.deliverance.generator.CausalSelfAttentionTest.TestConfig;
+import static io.teknek.deliverance.generator.CausalSelfAttentionTest.model;
+import static io.teknek.deliverance.generator.CausalSelfAttentionTest.reference;
+import static io.teknek.deliverance.generator.CausalSelfAttentionTest.tensor;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Encoder attention of padded sequences against a plain softmax attention computed in doubles over the keys of each
+ * sequence alone. The output projection is the identity so the output is the attention itself.
+ */
+public class EncoderSelfAttentionTest {
+    private static final int HEAD_SIZE = 16;
+
+    private final Random random = new Random(13);
+
+    @Test
+    void paddedSequencesAttendToTheirOwnKeysOnly() {
+        assertPaddedMatches(new TestConfig(64, 4, 4, 64, null), 9, new int[] { 9, 3, 5, 1 });
+        // grouped query heads and soft capping
+        assertPaddedMatches(new TestConfig(64, 4, 2, 64, 0.7f), 7, new int[] { 2, 7, 6 });
+    }
+
+    private void assertPaddedMatches(TestConfig config, int sequenceLength, int[] lengths) {
+        AbstractModel model = model(config);
+        float[][] wq = random(config.attentionLength, config.embeddingLength);
+        float[][] wk = random(config.kvLength, config.embeddingLength);
+        float[][] wv = random(config.kvLength, config.embeddingLength);
+        float[][] identity = new float[config.embeddingLength][config.attentionLength];
+        for (int i = 0; i < config.attentionLength; i++) {
+            identity[i][i] = 1.0f;
+        }
+        EncoderSelfAttention attention = new EncoderSelfAttention(model, 0, Optional.empty(), Optional.empty(),
+                Optional.empty(), tensor(wq), tensor(wk), tensor(wv), Optional.empty(), tensor(identity),
+                model.getConfigurableTensorProvider());
+
+        // the padding rows are random too, a key or value leaking out of them changes the attention
+        float[][] input = random(lengths.length * sequenceLength, config.embeddingLength);
+        try (AbstractTensor output = attention.forward(tensor(input), sequenceLength, lengths, Optional.empty())) {
+            for (int s = 0; s < lengths.length; s++) {
+                int first = s * sequenceLength;
+                float[][] keys = new float[lengths[s]][];
+                float[][] values = new float[lengths[s]][];
+                float[][] alone = new float[lengths[s]][];
+                for (int r = 0; r < lengths[s]; r++) {
+                    keys[r] = multiply(wk, input[first + r]);
+                    values[r] = multiply(wv, input[first + r]);
+                    alone[r] = input[first + r];
+                }
+                try (AbstractTensor single = attention.forward(tensor(alone), lengths[s], new int[] { lengths[s] },
+                        Optional.empty())) {
+                    for (int r = 0; r < sequenceLength; r++) {
+                        float[] query = multiply(wq, input[first + r]);
+                        for (int h = 0; h < config.numberOfHeads; h++) {
+                            // a row sees every key of its sequence, a padding row is left at zero
+                            float[] expected = r < lengths[s]
+                                    ? reference(config, query, h, lengths[s] - 1, keys, values)
+                                    : new float[HEAD_SIZE];
+                            for (int j = 0; j < HEAD_SIZE; j++) {
+                                String row = "sequence " + s + " row " + r + " head " + h;
+                                assertEquals(expected[j], output.get(first + r, h * HEAD_SIZE + j), 1e-4f, row);
+                                if (r < lengths[s]) {
+                                    assertEquals(single.get(r, h * HEAD_SIZE + j), output.get(first + r, h * HEAD_SIZE + j),
+                                            1e-5f, row);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private float[][] random(int rows, int columns) {
+        float[][] x = new float[rows][columns];
+        for (int r = 0; r < rows; r++) {
+            for (int i = 0; i < columns; i++) {
+                x[r][i] = (random.nextFloat() * 2 - 1) * 0.5f;
+            }
+        }
+        return x;
+    }
+
+    private static float[] multiply(float[][] weights, float[] x) {
+        float[] y = new float[weights.length];
+        for (int r = 0; r < weights.length; r++) {
+            double sum = 0;
+            for (int i = 0; i < x.length; i++) {
+                sum += weights[r][i] * x[i];
+            }
+            y[r] = (float) sum;
+        }
+        return y;
+    }
+}
@@ -0,0 +1,145 @@
+package io.teknek.deliverance.generator;
+
+import io.teknek.deliverance.model.GenerateEvent;
+import io.teknek.deliverance.safetensors.prompt.PromptContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GenerationPublisherTest {
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /** Emits tokens 0 until ntokens, checking the cancellation before each one like the decode loop does */
+    static class CountingGenerator implements Generator {
+        final AtomicInteger produced = new AtomicInteger();
+        final CountDownLatch producedEight = new CountDownLatch(8);
+
+        @Override
+        public Response generate(UUID session, PromptContext promptContext, GeneratorParameters generatorParameters,
+                                 GenerateEvent onTokenWithTimings) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < generatorParameters.ntokens.get(); i++) {
+                if (generatorParameters.cancelled.get().getAsBoolean()) {
+                    return new Response(text.toString(), text.toString(), FinishReason.CANCELLED, 1, i, 0, 0);
+                }
+                produced.incrementAndGet();
+                producedEight.countDown();
+                onTokenWithTimings.emit(i, "" + i, "" + i, 0);
+                text.append(i);
+            }
+            return new Response(text.toString(), text.toString(), FinishReason.MAX_TOKENS, 1,
+                    generatorParameters.ntokens.get(), 0, 0);
+        }
+
+        @Override
+        public void close() { }
+    }
+
+    static class Collector implements Flow.Subscriber<GeneratedToken> {
+        final List<Integer> tokens = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final CountDownLatch received;
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+
+        Collector() {
+            this(0);
+        }
+
+        /** @param tokens count down {@link #received} with each of the first tokens delivered */
+        Collector(int tokens) {
+            this.received = new CountDownLatch(tokens);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(GeneratedToken item) {
+            tokens.add(item.token);
+            received.countDown();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+
+    @Test
+    void deliversOnlyWhatWasRequested() throws Exception {
+        CountingGenerator generator = new CountingGenerator();
+        GenerationPublisher publisher = new GenerationPublisher(generator, UUID.randomUUID(), PromptContext.of("x"),
+                new GeneratorParameters().withNtokens(100), executor, 4);
+        Collector collector = new Collector();
+        publisher.subscribe(collector);
+        collector.subscription.request(3);
+        assertTrue(generator.producedEight.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(0, 1, 2), collector.tokens);
+        // 3 delivered, 4 buffered and the generator waits with the 8th for demand
+        assertEquals(8, generator.produced.get());
+
+        collector.subscription.request(Long.MAX_VALUE);
+        assertTrue(collector.done.await(5, TimeUnit.SECONDS));
+        assertEquals(100, collector.tokens.size());
+        assertEquals(FinishReason.MAX_TOKENS, publisher.response().get(5, TimeUnit.SECONDS).finishReason);
+    }
+
+    @Test
+    void cancelStopsTheGeneration() throws Exception {
+        CountingGenerator generator = new CountingGenerator();
+        GeneratorParameters parameters = new GeneratorParameters().withNtokens(100);
+        GenerationPublisher publisher = new GenerationPublisher(generator, UUID.randomUUID(), PromptContext.of("x"),
+                parameters, executor, 2);
+        Collector collector = new Collector(5);
+        publisher.subscribe(collector);
+        collector.subscription.request(5);
+        assertTrue(collector.received.await(5, TimeUnit.SECONDS));
+        collector.subscription.cancel();
+        Response response = publisher.response().get(5, TimeUnit.SECONDS);
+        assertEquals(FinishReason.CANCELLED, response.finishReason);
+        assertTrue(generator.produced.get() < 100);
+        assertEquals(5, collector.tokens.size());
+        // the publisher cancels a copy of the parameters
+        assertTrue(parameters.cancelled.isEmpty());
+    }
+
+    @Test
+    void secondSubscriberIsRejected() throws Exception {
+        GenerationPublisher publisher = new GenerationPublisher(new CountingGenerator(), UUID.randomUUID(),
+                PromptContext.of("x"), new GeneratorParameters().withNtokens(3), executor);
+        Collector first = new Collector();
+        publisher.subscribe(first);
+        first.subscription.request(10);
+        Collector second = new Collector();
+        publisher.subscribe(second);
+        assertTrue(second.error instanceof IllegalStateException);
+        assertTrue(first.done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(0, 1, 2), first.tokens);
+    }
+}
@@ -0,0 +1,145 @@
+package io.teknek.deliverance.generator;
+
+import io.teknek.deliverance.math.ActivationFunction;
+import io.teknek.deliverance.model.llama.LlamaConfig;
+import io.teknek.deliverance.safetensors.Config;
+import io.teknek.deliverance.tensor.AbstractTensor;
+import io.teknek.deliverance.tensor.impl.FloatBufferTensor;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SamplerTest {
+    private static final int VOCAB = 37;
+
+    private static Config config() {
+        return new LlamaConfig(16, 8, 16, 1, 1, 1, 1e-5f, VOCAB, 1, List.of(2),
+                ActivationFunction.Type.SILU, 10000.0, null);
+    }
+
+    private static AbstractTensor logits() {
+        AbstractTensor logits = new FloatBufferTensor(1, VOCAB);
+        for (int i = 0; i < VOCAB; i++) {
+            // a permutation of 0..VOCAB-1 scaled down, no two tokens tie
+            logits.set((i * 7 % VOCAB) / 4.0f, 0, i);
+        }
+        return logits;
+    }
+
+    @Test
+    void selectLargestPartitionsTheTopK() {
+        float[] values = {3, 9, 1, 7, 5, 8, 2, 6, 4, 0};
+        int[] indexes = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+        Sampler.selectLargest(values, indexes, values.length, 3);
+        float[] top = Arrays.copyOf(values, 3);
+        Arrays.sort(top);
+        assertArrayEquals(new float[]{7, 8, 9}, top);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], new float[]{3, 9, 1, 7, 5, 8, 2, 6, 4, 0}[indexes[i]]);
+        }
+    }
+
+    @Test
+    void selectLargestWithManyEqualValues() {
+        // mostly ties, a two way partition on > moves one element a pass here
+        int n = 200_000;
+        float[] values = new float[n];
+        int[] indexes = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = i % 1000 == 0 ? 2 : i % 3 == 0 ? 1 : 0;
+            indexes[i] = i;
+        }
+        Sampler.selectLargest(values, indexes, n, 300);
+        float[] top = Arrays.copyOf(values, 300);
+        Arrays.sort(top);
+        assertEquals(1, top[0]);
+        assertEquals(2, top[100]);
+        assertEquals(100, Arrays.stream(indexes, 0, 300).filter(i -> i % 1000 != 0).count());
+        for (int i = 0; i < n; i++) {
+            float expected = indexes[i] % 1000 == 0 ? 2 : indexes[i] % 3 == 0 ? 1 : 0;
+            assertEquals(expected, values[i]);
+        }
+    }
+
+    @Test
+    void zeroTemperatureIsArgmax() {
+        AbstractTensor logits = logits();
+        int best = 0;
+        for (int i = 1; i < VOCAB; i++) {
+            if (logits.get(0, i) > logits.get(0, best)) best = i;
+        }
+        assertEquals(best, new Sampler(config(), 0.0f).sample(logits, 0.5f));
+    }
+
+    @Test
+    void zeroTopPIsArgmax() {
+        AbstractTensor logits = logits();
+        int best = new Sampler(config(), 0.0f).sample(logits, 0.5f);
+        Sampler sampler = new Sampler(config(), 1.0f, 0, 0.0f, 0.0f);
+        assertEquals(best, sampler.sample(logits, 0.0f));
+        assertEquals(best, sampler.sample(logits, 0.99f));
+        float[] p = sampler.distribution(logits);
+        assertEquals(1.0f, p[best]);
+        assertEquals(1, nonZero(p));
+    }
+
+    @Test
+    void distributionMatchesSoftmax() {
+        AbstractTensor logits = logits();
+        float[] p = new Sampler(config(), 0.7f).distribution(logits);
+        double sum = 0;
+        for (int i = 0; i < VOCAB; i++) {
+            sum += Math.exp(logits.get(0, i) / 0.7);
+        }
+        for (int i = 0; i < VOCAB; i++) {
+            assertEquals(Math.exp(logits.get(0, i) / 0.7) / sum, p[i], 1e-5);
+        }
+    }
+
+    @Test
+    void filtersOnlyKeepTheMostLikelyTokens() {
+        AbstractTensor logits = logits();
+        float[] full = new Sampler(config(), 1.0f).distribution(logits);
+        Integer[] order = new Integer[VOCAB];
+        for (int i = 0; i < VOCAB; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Float.compare(full[b], full[a]));
+
+        float[] topK = new Sampler(config(), 1.0f, 5, 1.0f, 0.0f).distribution(logits);
+        assertEquals(5, nonZero(topK));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(topK[order[i]] > 0);
+        }
+
+        float[] topP = new Sampler(config(), 1.0f, 0, 0.6f, 0.0f).distribution(logits);
+        float mass = 0;
+        int kept = nonZero(topP);
+        for (int i = 0; i < kept; i++) {
+            assertTrue(topP[order[i]] > 0);
+            mass += full[order[i]];
+        }
+        assertTrue(mass >= 0.6f && mass - full[order[kept - 1]] < 0.6f);
+
+        float[] minP = new Sampler(config(), 1.0f, 0, 1.0f, 0.2f).distribution(logits);
+        for (int i = 0; i < VOCAB; i++) {
+            assertEquals(full[i] >= 0.2f * full[order[0]], minP[i] > 0, "token " + i);
+        }
+
+        for (float u = 0.0f; u < 1.0f; u += 0.05f) {
+            int token = new Sampler(config(), 1.0f, 5, 0.6f, 0.2f).sample(logits, u);
+            assertTrue(topK[token] > 0 && topP[token] > 0 && minP[token] > 0);
+        }
+    }
+
+    private static int nonZero(float[] p) {
+        int n = 0;
+        for (float v : p) {
+            if (v > 0) n++;
+        }
+        return n;
+    }
+}
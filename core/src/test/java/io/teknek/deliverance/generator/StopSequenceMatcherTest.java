@@ -0,0 +1,61 @@
+package io.teknek.deliverance.generator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class StopSequenceMatcherTest {
+
+    @Test
+    void matchSpansFeeds() {
+        StopSequenceMatcher m = new StopSequenceMatcher(List.of("</answer>"));
+        assertEquals(-1, m.feed("the answer is 4</"));
+        assertEquals(2, m.pending());
+        assertEquals(-1, m.feed("ans"));
+        assertEquals(5, m.pending());
+        assertEquals(4, m.feed("wer> trailing"));
+        assertEquals(9, m.matchLength());
+    }
+
+    @Test
+    void partialMatchThatFailsIsReleased() {
+        StopSequenceMatcher m = new StopSequenceMatcher(List.of("STOP"));
+        assertEquals(-1, m.feed("ST"));
+        assertEquals(2, m.pending());
+        assertEquals(-1, m.feed("A"));
+        assertEquals(0, m.pending());
+        assertEquals(-1, m.feed("SSTO"));
+        assertEquals(3, m.pending());
+        assertEquals(1, m.feed("P"));
+    }
+
+    @Test
+    void firstEndingMatchWinsAndLongestEndingThere() {
+        StopSequenceMatcher m = new StopSequenceMatcher(List.of("abcd", "bc", "xbc"));
+        assertEquals(3, m.feed("abcd"));
+        assertEquals(2, m.matchLength());
+
+        m = new StopSequenceMatcher(List.of("bc", "xbc"));
+        assertEquals(4, m.feed("axbc"));
+        assertEquals(3, m.matchLength());
+    }
+
+    @Test
+    void copyContinuesIndependently() {
+        StopSequenceMatcher m = new StopSequenceMatcher(List.of("s\n", "User:"));
+        assertEquals(-1, m.feed("hello\nUs"));
+        StopSequenceMatcher c = m.copy();
+        assertEquals(1, m.feed("\n"));
+        assertEquals(3, c.feed("er:"));
+        assertEquals(5, c.matchLength());
+    }
+
+    @Test
+    void noStops() {
+        StopSequenceMatcher m = new StopSequenceMatcher(List.of("", "z"));
+        assertEquals(-1, m.feed("abc"));
+        assertEquals(0, m.pending());
+    }
+}
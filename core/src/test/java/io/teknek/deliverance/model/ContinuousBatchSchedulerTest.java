@@ -0,0 +1,123 @@
+package io.teknek.deliverance.model;
+
+import com.codahale.metrics.MetricRegistry;
+import io.teknek.deliverance.generator.FinishReason;
+import io.teknek.deliverance.generator.GeneratorParameters;
+import io.teknek.deliverance.generator.Response;
+import io.teknek.deliverance.model.llama.LlamaModel;
+import io.teknek.deliverance.safetensors.prompt.PromptContext;
+import io.teknek.deliverance.tensor.KvBufferCacheSettings;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ContinuousBatchSchedulerTest {
+
+    private static final String[] PROMPTS = {
+            "what is up",
+            "tell me a joke about a cat and a dog",
+            "zzz",
+            "a longer prompt that takes more than one prefill chunk of the step budget",
+            "what is up"
+    };
+
+    @Test
+    void batchedSessionsMatchStandaloneGenerations() throws Exception {
+        LlamaModel model = TinyLlama.build(4, 2, 2, 256);
+        List<String> expected = standalone(model);
+        try (ContinuousBatchScheduler scheduler = new ContinuousBatchScheduler(model, PROMPTS.length)) {
+            List<CompletableFuture<Response>> futures = new ArrayList<>();
+            for (String prompt : PROMPTS) {
+                futures.add(scheduler.submit(UUID.randomUUID(), PromptContext.of(prompt),
+                        new GeneratorParameters().withNtokens(120), new DoNothingGenerateEvent()));
+            }
+            for (int i = 0; i < PROMPTS.length; i++) {
+                assertEquals(expected.get(i), tokens(futures.get(i).get()), PROMPTS[i]);
+            }
+        }
+    }
+
+    @Test
+    void chunkedPrefillMatchesStandaloneGenerations() throws Exception {
+        LlamaModel model = TinyLlama.build(4, 2, 2, 256);
+        List<String> expected = standalone(model);
+        // 8 rows a step and at most 3 prompt tokens of a session, the long prompt is prefilled over many steps
+        // that also decode the short sessions
+        AtomicInteger emitted = new AtomicInteger();
+        int[] emittedBeforeLongPrompt = {-1};
+        try (ContinuousBatchScheduler scheduler = new ContinuousBatchScheduler(model, 4, 8, 3)) {
+            List<CompletableFuture<Response>> futures = new ArrayList<>();
+            for (int i = 0; i < PROMPTS.length; i++) {
+                boolean longPrompt = i == 3;
+                futures.add(scheduler.submit(UUID.randomUUID(), PromptContext.of(PROMPTS[i]),
+                        new GeneratorParameters().withNtokens(120), (next, raw, cleaned, timing) -> {
+                            if (longPrompt && emittedBeforeLongPrompt[0] < 0) {
+                                emittedBeforeLongPrompt[0] = emitted.get();
+                            }
+                            emitted.incrementAndGet();
+                        }));
+            }
+            for (int i = 0; i < PROMPTS.length; i++) {
+                assertEquals(expected.get(i), tokens(futures.get(i).get()), PROMPTS[i]);
+            }
+        }
+        long promptTokens = 0;
+        for (String prompt : PROMPTS) {
+            promptTokens += prompt.length() + 1; // and the bos token
+        }
+        assertEquals(promptTokens, model.getMetricRegistry().meter("scheduler.prefill_tokens").getCount());
+        assertEquals(8, model.getMetricRegistry().histogram("scheduler.batch_size").getSnapshot().getMax());
+        // the long prompt needs 25 chunks, the sessions admitted with it decoded while it was prefilled
+        assertTrue(emittedBeforeLongPrompt[0] > 10, "decoded before the long prompt " + emittedBeforeLongPrompt[0]);
+    }
+
+    @Test
+    void requestThatExactlyFitsTheBudgetIsAdmitted() throws Exception {
+        // pages of 4 positions of both layers. ntokens is the position the generation stops at, the prompt and 64
+        // tokens are written to positions 0..63, 16 pages
+        long pageBytes = 2L * 2 * 4 * 32 * Float.BYTES;
+        for (int pages : new int[] { 16, 15 }) {
+            LlamaModel model = TinyLlama.build(4, 2, 2, 256, new KvBufferCacheSettings(true).withPrefixCache(4, 64)
+                    .withMemoryBudget(pages * pageBytes), new MetricRegistry());
+            try (ContinuousBatchScheduler scheduler = new ContinuousBatchScheduler(model, 1)) {
+                CompletableFuture<Response> future = scheduler.submit(UUID.randomUUID(),
+                        PromptContext.of("once upon a time"), new GeneratorParameters().withNtokens(64),
+                        new DoNothingGenerateEvent());
+                if (pages == 16) {
+                    Response response = future.get();
+                    assertEquals(FinishReason.MAX_TOKENS, response.finishReason);
+                    // the bos token, the prompt and a position for every decoded token, all 16 pages
+                    assertEquals(64, 1 + response.promptTokens + response.generatedTokens);
+                    assertEquals(pages * pageBytes, ((Number) model.getMetricRegistry().getGauges()
+                            .get("kvcache.pool.committed_bytes").getValue()).longValue());
+                } else {
+                    ExecutionException e = assertThrows(ExecutionException.class, future::get);
+                    assertTrue(e.getCause().getMessage().startsWith("Not enough kv cache memory"),
+                            e.getCause().getMessage());
+                }
+            }
+        }
+    }
+
+    private static List<String> standalone(LlamaModel model) {
+        List<String> expected = new ArrayList<>();
+        for (String prompt : PROMPTS) {
+            expected.add(tokens(model.generate(UUID.randomUUID(), PromptContext.of(prompt),
+                    new GeneratorParameters().withNtokens(120), new DoNothingGenerateEvent())));
+        }
+        return expected;
+    }
+
+    private static String tokens(Response response) {
+        return response.generatedTokens + ":" + response.responseText;
+    }
+}
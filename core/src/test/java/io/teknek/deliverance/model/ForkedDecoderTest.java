@@ -0,0 +1,59 @@
+package io.teknek.deliverance.model;
+
+import io.teknek.deliverance.generator.GeneratorParameters;
+import io.teknek.deliverance.generator.Response;
+import io.teknek.deliverance.model.llama.LlamaModel;
+import io.teknek.deliverance.safetensors.prompt.PromptContext;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ForkedDecoderTest {
+
+    private static final String PROMPT = "tell me a joke about a cat and a dog";
+
+    @Test
+    void topKIsLargestFirst(){
+        float[] values = {0.1f, 0.7f, -2f, 0.3f, 0.9f, 0.2f};
+        assertArrayEquals(new int[]{4, 1, 3}, ForkedDecoder.topK(values, 3));
+        assertArrayEquals(new int[]{4}, ForkedDecoder.topK(values, 1));
+    }
+
+    @Test
+    void topKLargerThanValues(){
+        float[] values = {0.5f, 1.5f};
+        assertArrayEquals(new int[]{1, 0}, ForkedDecoder.topK(values, 5));
+    }
+
+    @Test
+    void beamOfWidthOneIsGreedy(){
+        LlamaModel model = TinyLlama.build(4, 2, 2, 256);
+        Response greedy = model.generate(UUID.randomUUID(), PromptContext.of(PROMPT),
+                new GeneratorParameters().withNtokens(120), new DoNothingGenerateEvent());
+        List<Response> beams = model.generateCompletions(UUID.randomUUID(), PromptContext.of(PROMPT),
+                new GeneratorParameters().withNtokens(120).withBeamWidth(1), new DoNothingGenerateEvent());
+        assertEquals(1, beams.size());
+        assertEquals(greedy.responseText, beams.get(0).responseText);
+        assertEquals(greedy.generatedTokens, beams.get(0).generatedTokens);
+    }
+
+    @Test
+    void greedySamplesDoNotSeeEachOthersTokens(){
+        // every branch writes its tokens to the same positions of forks of one buffer
+        LlamaModel model = TinyLlama.build(4, 2, 2, 256);
+        Response greedy = model.generate(UUID.randomUUID(), PromptContext.of(PROMPT),
+                new GeneratorParameters().withNtokens(120), new DoNothingGenerateEvent());
+        List<Response> samples = model.generateCompletions(UUID.randomUUID(), PromptContext.of(PROMPT),
+                new GeneratorParameters().withNtokens(120).withN(3), new DoNothingGenerateEvent());
+        assertEquals(3, samples.size());
+        for (Response sample : samples) {
+            assertEquals(greedy.responseText, sample.responseText);
+        }
+        // the prompt is shared, each branch copies the page its first token is written to
+        assertEquals(3, model.getMetricRegistry().meter("kvcache.copy_on_write").getCount());
+    }
+}
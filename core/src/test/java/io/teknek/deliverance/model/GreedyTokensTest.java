@@ -0,0 +1,66 @@
+package io.teknek.deliverance.model;
+
+import com.codahale.metrics.MetricRegistry;
+import io.teknek.deliverance.model.llama.LlamaModel;
+import io.teknek.deliverance.tensor.AbstractTensor;
+import io.teknek.deliverance.tensor.KvBufferCache;
+import io.teknek.deliverance.tensor.KvBufferCacheSettings;
+import io.teknek.deliverance.tensor.impl.FloatBufferTensor;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The fused argmax of {@link AbstractModel#greedyTokens} is computed per vocabulary chunk of the output projection
+ * and merged across chunks, it has to pick what sampling the full row of logits at temperature 0 picks.
+ */
+public class GreedyTokensTest {
+    private static final int ROWS = 40;
+
+    @Test
+    void fusedArgmaxMatchesSamplingTheLogits() {
+        LlamaModel model = model();
+        assertRowsMatch(model);
+    }
+
+    @Test
+    void tiesAcrossChunksPickTheLowestToken() {
+        LlamaModel model = model();
+        AbstractTensor weights = model.sampleOutput.getOutputLogitsWeights();
+        // tokens 10, 50 and 95 have the same logits, in the first, fourth and last chunk (the last two past the last
+        // full vector of their chunk), every other token is 0 so either the three tie or the zeros tie in every chunk
+        for (int t = 0; t < TinyLlama.VOCABULARY; t++) {
+            for (int e = 0; e < TinyLlama.EMBEDDING; e++) {
+                weights.set(t == 10 || t == 50 || t == 95 ? (e % 5 - 2) * 0.1f : 0.0f, t, e);
+            }
+        }
+        int[] greedy = assertRowsMatch(model);
+        for (int token : greedy) {
+            assertEquals(token == 10 ? 10 : 0, token);
+        }
+    }
+
+    /** a vocabulary of 97 in 7 chunks, of 13 and 19 tokens that do not fill the last vector */
+    private static LlamaModel model() {
+        return TinyLlama.build(4, 2, 2, 64, 7, new KvBufferCacheSettings(true), new MetricRegistry(), 7);
+    }
+
+    /** @return the greedy tokens of a prefill of ROWS positions, after checking each against its row of logits */
+    private static int[] assertRowsMatch(LlamaModel model) {
+        int[] tokens = new int[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            tokens[i] = (i * 31 + 5) % TinyLlama.VOCABULARY;
+        }
+        KvBufferCache.KvBuffer buffer = model.kvBufferCache.getEphemeralKvBuffer();
+        try (AbstractTensor output = model.batchForward(tokens, 0, buffer)) {
+            int[] greedy = model.greedyTokens(output);
+            for (int r = 0; r < ROWS; r++) {
+                try (AbstractTensor logits = new FloatBufferTensor(1, TinyLlama.VOCABULARY)) {
+                    model.computeLogits(output.slice(r), logits);
+                    assertEquals(model.sampleLogits(logits, 0.0f, 0.0f), greedy[r], "row " + r);
+                }
+            }
+            return greedy;
+        }
+    }
+}
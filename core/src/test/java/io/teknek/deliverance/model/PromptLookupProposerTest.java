@@ -0,0 +1,27 @@
+package io.teknek.deliverance.model;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+public class PromptLookupProposerTest {
+
+    @Test
+    void proposesTokensThatFollowedTheSuffix(){
+        int[] tokens = {5, 6, 7, 8, 9, 1, 6, 7};
+        assertArrayEquals(new int[]{8, 9}, PromptLookupProposer.lookup(tokens, tokens.length, 2, 2));
+        assertArrayEquals(new int[]{8, 9, 1, 6, 7}, PromptLookupProposer.lookup(tokens, tokens.length, 2, 10));
+    }
+
+    @Test
+    void noMatch(){
+        int[] tokens = {5, 6, 7, 8, 9, 1, 2, 3};
+        assertArrayEquals(new int[0], PromptLookupProposer.lookup(tokens, tokens.length, 2, 4));
+    }
+
+    @Test
+    void onlyValidTokensAreSearched(){
+        int[] tokens = {1, 2, 3, 1, 2, 0, 0};
+        assertArrayEquals(new int[]{3, 1, 2}, PromptLookupProposer.lookup(tokens, 5, 2, 4));
+    }
+}
@@ -0,0 +1,93 @@
+package io.teknek.deliverance.model;
+
+import com.codahale.metrics.MetricRegistry;
+import io.teknek.deliverance.generator.GeneratorParameters;
+import io.teknek.deliverance.generator.Response;
+import io.teknek.deliverance.model.llama.LlamaModel;
+import io.teknek.deliverance.safetensors.prompt.PromptContext;
+import io.teknek.deliverance.tensor.KvBufferCacheSettings;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SpeculativeDecoderTest {
+
+    private static final String PROMPT = "tell me a joke about a cat and a dog";
+
+    @Test
+    void greedyMatchesPlainDecoding() {
+        LlamaModel model = TinyLlama.build(4, 2, 2, 256);
+        LlamaModel draft = TinyLlama.build(4, 2, 1, 256, 8, new KvBufferCacheSettings(true), new MetricRegistry());
+        List<Integer> expected = new ArrayList<>();
+        Response plain = model.generate(UUID.randomUUID(), PromptContext.of(PROMPT),
+                new GeneratorParameters().withNtokens(120), (next, raw, cleaned, timing) -> expected.add(next));
+
+        List<Integer> actual = new ArrayList<>();
+        Response speculative = model.generate(UUID.randomUUID(), PromptContext.of(PROMPT),
+                new GeneratorParameters().withNtokens(120).withTokenProposer(DraftModelProposer.factory(draft), 4),
+                (next, raw, cleaned, timing) -> actual.add(next));
+        assertEquals(expected, actual);
+        assertEquals(plain.responseText, speculative.responseText);
+        MetricRegistry metrics = model.getMetricRegistry();
+        // a draft with other weights proposes tokens the model rejects
+        assertTrue(metrics.meter("speculative.proposed_tokens").getCount()
+                > metrics.meter("speculative.accepted_tokens").getCount());
+    }
+
+    @Test
+    void rejectedTokensAreRolledBack() {
+        LlamaModel model = TinyLlama.build(4, 2, 2, 256);
+        List<Integer> expected = new ArrayList<>();
+        model.generate(UUID.randomUUID(), PromptContext.of(PROMPT), new GeneratorParameters().withNtokens(120),
+                (next, raw, cleaned, timing) -> expected.add(next));
+
+        // proposes the next two tokens of the plain generation followed by a wrong one, whose keys and values are
+        // written by the verification pass and have to be overwritten by the token that replaces it
+        TokenProposer.Factory twoRightOneWrong = target -> (ctx, maxTokens) -> {
+            int generated = ctx.getTokenCount() - ctx.getPromptTokens().length;
+            int n = Math.min(3, Math.min(maxTokens, expected.size() - generated));
+            int[] proposed = new int[n];
+            for (int i = 0; i < n; i++) {
+                proposed[i] = expected.get(generated + i);
+            }
+            if (n == 3) {
+                proposed[2] = (proposed[2] + 1) % TinyLlama.VOCABULARY;
+            }
+            return new TokenProposer.Proposal(proposed, null);
+        };
+        List<Integer> actual = new ArrayList<>();
+        model.generate(UUID.randomUUID(), PromptContext.of(PROMPT),
+                new GeneratorParameters().withNtokens(120).withTokenProposer(twoRightOneWrong, 3),
+                (next, raw, cleaned, timing) -> actual.add(next));
+        assertEquals(expected, actual);
+        MetricRegistry metrics = model.getMetricRegistry();
+        assertTrue(metrics.meter("speculative.accepted_tokens").getCount() > 0);
+        assertTrue(metrics.meter("speculative.proposed_tokens").getCount()
+                > metrics.meter("speculative.accepted_tokens").getCount());
+    }
+
+    @Test
+    void draftUsesThePositionsOfTheTarget() {
+        // the draft has the weights of the model, it only proposes what the model would generate when it reads the
+        // first turn of the session at the same positions
+        KvBufferCacheSettings settings = new KvBufferCacheSettings(true).withMemoryBudget(64 << 20);
+        LlamaModel model = TinyLlama.build(4, 2, 2, 256, settings, new MetricRegistry());
+        LlamaModel draft = TinyLlama.build(4, 2, 2, 256);
+        UUID session = UUID.randomUUID();
+        model.generate(session, PromptContext.of("what is up"), new GeneratorParameters().withNtokens(40),
+                new DoNothingGenerateEvent());
+        Response second = model.generate(session, PromptContext.of("and then"),
+                new GeneratorParameters().withNtokens(120).withTokenProposer(DraftModelProposer.factory(draft), 4),
+                new DoNothingGenerateEvent());
+        assertTrue(second.generatedTokens > 1, second.generatedTokens + " " + second.promptTokens + " " + second.responseText + " " + second.finishReason);
+        MetricRegistry metrics = model.getMetricRegistry();
+        assertTrue(metrics.meter("speculative.proposed_tokens").getCount() > 0);
+        assertEquals(metrics.meter("speculative.proposed_tokens").getCount(),
+                metrics.meter("speculative.accepted_tokens").getCount());
+    }
+}
@@ -0,0 +1,56 @@
+package io.teknek.deliverance.model;
+
+import com.codahale.metrics.MetricRegistry;
+import io.teknek.deliverance.DType;
+import io.teknek.deliverance.math.ActivationFunction;
+import io.teknek.deliverance.model.bert.BertConfig;
+import io.teknek.deliverance.model.bert.BertModel;
+import io.teknek.deliverance.tensor.KvBufferCacheSettings;
+import io.teknek.deliverance.tensor.TensorCache;
+import io.teknek.deliverance.tensor.operations.ConfigurableTensorProvider;
+
+import java.util.Optional;
+
+/**
+ * A BERT encoder with random weights small enough to run in unit tests, the encoder counterpart of
+ * {@link TinyLlama}. Every character of an input is a token.
+ */
+public class TinyBert {
+
+    public static BertModel build(int heads, int layers, int contextLength, long seed) {
+        BertConfig config = new BertConfig(contextLength, TinyLlama.EMBEDDING, 2 * TinyLlama.EMBEDDING, heads, layers,
+                1e-5f, ActivationFunction.Type.GELU, TinyLlama.VOCABULARY, null, null, null);
+        int embedding = config.embeddingLength;
+        int hidden = config.hiddenLength;
+        TinyLlama.RandomWeights weights = new TinyLlama.RandomWeights(seed);
+        weights.put("embeddings.word_embeddings.weight", TinyLlama.VOCABULARY, embedding);
+        weights.put("embeddings.token_type_embeddings.weight", 2, embedding);
+        weights.put("embeddings.position_embeddings.weight", contextLength, embedding);
+        weights.put("embeddings.LayerNorm.weight", embedding);
+        weights.put("embeddings.LayerNorm.bias", embedding);
+        for (int i = 0; i < layers; i++) {
+            String b = "encoder.layer." + i + ".";
+            for (String projection : new String[] { "query", "key", "value" }) {
+                weights.put(b + "attention.self." + projection + ".weight", embedding, embedding);
+                weights.put(b + "attention.self." + projection + ".bias", embedding);
+            }
+            weights.put(b + "attention.output.dense.weight", embedding, embedding);
+            weights.put(b + "attention.output.dense.bias", embedding);
+            weights.put(b + "attention.output.LayerNorm.weight", embedding);
+            weights.put(b + "attention.output.LayerNorm.bias", embedding);
+            weights.put(b + "intermediate.dense.weight", hidden, embedding);
+            weights.put(b + "intermediate.dense.bias", hidden);
+            weights.put(b + "output.dense.weight", embedding, hidden);
+            weights.put(b + "output.dense.bias", embedding);
+            weights.put(b + "output.LayerNorm.weight", embedding);
+            weights.put(b + "output.LayerNorm.bias", embedding);
+        }
+        weights.put("pooler.dense.weight", embedding, embedding);
+        weights.put("pooler.dense.bias", embedding);
+        MetricRegistry metricRegistry = new MetricRegistry();
+        TensorCache tensorCache = new TensorCache(metricRegistry);
+        return new BertModel(AbstractModel.InferenceType.FULL_EMBEDDING, config, weights, new TinyLlama.CharTokenizer(),
+                DType.F32, DType.F32, Optional.empty(), new ConfigurableTensorProvider(tensorCache), metricRegistry,
+                tensorCache, new KvBufferCacheSettings(true), new NoOpTokenizerRenderer());
+    }
+}
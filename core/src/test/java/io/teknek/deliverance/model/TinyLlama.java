@@ -0,0 +1,212 @@
+package io.teknek.deliverance.model;
+
+import com.codahale.metrics.MetricRegistry;
+import io.teknek.deliverance.DType;
+import io.teknek.deliverance.math.ActivationFunction;
+import io.teknek.deliverance.model.llama.LlamaConfig;
+import io.teknek.deliverance.model.llama.LlamaModel;
+import io.teknek.deliverance.safetensors.Config;
+import io.teknek.deliverance.safetensors.DistributedContext;
+import io.teknek.deliverance.safetensors.WeightLoader;
+import io.teknek.deliverance.safetensors.prompt.PromptSupport;
+import io.teknek.deliverance.tensor.AbstractTensor;
+import io.teknek.deliverance.tensor.KvBufferCacheSettings;
+import io.teknek.deliverance.tensor.TensorCache;
+import io.teknek.deliverance.tensor.TensorInfo;
+import io.teknek.deliverance.tensor.impl.FloatBufferTensor;
+import io.teknek.deliverance.tensor.operations.ConfigurableTensorProvider;
+import io.teknek.deliverance.tensor.operations.TensorOperations;
+import io.teknek.deliverance.tokenizer.Tokenizer;
+import io.teknek.deliverance.tokenizer.TokenizerModel;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Random;
+
+/**
+ * A llama model with random weights small enough to run in unit tests. Every character of a prompt is a token, so
+ * tests can compare the tokens of generations without a real tokenizer or weights on disk.
+ */
+public class TinyLlama {
+    public static final int VOCABULARY = 97;
+    public static final int EMBEDDING = 64;
+
+    public static LlamaModel build(int heads, int kvHeads, int layers, int contextLength) {
+        return build(heads, kvHeads, layers, contextLength, new KvBufferCacheSettings(true), new MetricRegistry());
+    }
+
+    public static LlamaModel build(int heads, int kvHeads, int layers, int contextLength,
+            KvBufferCacheSettings kvBufferCacheSettings, MetricRegistry metricRegistry) {
+        return build(heads, kvHeads, layers, contextLength, 7, kvBufferCacheSettings, metricRegistry);
+    }
+
+    /**
+     * @param seed the random weights, models of one seed are the same
+     */
+    public static LlamaModel build(int heads, int kvHeads, int layers, int contextLength, long seed,
+            KvBufferCacheSettings kvBufferCacheSettings, MetricRegistry metricRegistry) {
+        return build(heads, kvHeads, layers, contextLength, seed, kvBufferCacheSettings, metricRegistry, 0);
+    }
+
+    /**
+     * @param parallelSplitSize the number of chunks parallel operations split their work into, 0 for the cores of
+     *                          the machine. More chunks than cores put chunk boundaries into the small tensors of
+     *                          a tiny model on any machine.
+     */
+    public static LlamaModel build(int heads, int kvHeads, int layers, int contextLength, long seed,
+            KvBufferCacheSettings kvBufferCacheSettings, MetricRegistry metricRegistry, int parallelSplitSize) {
+        LlamaConfig config = new LlamaConfig(contextLength, EMBEDDING, 2 * EMBEDDING, heads, kvHeads, layers, 1e-5f,
+                VOCABULARY, 1, List.of(2), ActivationFunction.Type.SILU, 10000.0, null);
+        return build(config, seed, kvBufferCacheSettings, metricRegistry, parallelSplitSize);
+    }
+
+    /**
+     * A model of any geometry, for tests of a single layer with a config of their own. The vocabulary of config has
+     * to be {@link #VOCABULARY}.
+     */
+    public static LlamaModel build(Config config, long seed, KvBufferCacheSettings kvBufferCacheSettings,
+            MetricRegistry metricRegistry, int parallelSplitSize) {
+        int embedding = config.embeddingLength;
+        int hidden = config.hiddenLength;
+        RandomWeights weights = new RandomWeights(seed);
+        weights.put("model.embed_tokens.weight", VOCABULARY, embedding);
+        weights.put("lm_head.weight", VOCABULARY, embedding);
+        weights.put("model.norm.weight", embedding);
+        for (int i = 0; i < config.numberOfLayers; i++) {
+            String b = "model.layers." + i + ".";
+            weights.put(b + "self_attn.q_proj.weight", config.attentionLength, embedding);
+            weights.put(b + "self_attn.k_proj.weight", config.kvLength, embedding);
+            weights.put(b + "self_attn.v_proj.weight", config.kvLength, embedding);
+            weights.put(b + "self_attn.o_proj.weight", embedding, config.attentionLength);
+            weights.put(b + "mlp.gate_proj.weight", hidden, embedding);
+            weights.put(b + "mlp.down_proj.weight", embedding, hidden);
+            weights.put(b + "mlp.up_proj.weight", hidden, embedding);
+            weights.put(b + "input_layernorm.weight", embedding);
+            weights.put(b + "post_attention_layernorm.weight", embedding);
+        }
+        TensorCache tensorCache = new TensorCache(metricRegistry);
+        ConfigurableTensorProvider provider = new ConfigurableTensorProvider(tensorCache);
+        if (parallelSplitSize > 0) {
+            provider = new ConfigurableTensorProvider(splitInto(provider.get(), parallelSplitSize));
+        }
+        return new LlamaModel(AbstractModel.InferenceType.FULL_GENERATION, config, weights, new CharTokenizer(),
+                DType.F32, DType.F32, Optional.empty(), provider, metricRegistry,
+                tensorCache, kvBufferCacheSettings, new NoOpTokenizerRenderer());
+    }
+
+    private static TensorOperations splitInto(TensorOperations operations, int parallelSplitSize) {
+        return (TensorOperations) Proxy.newProxyInstance(TensorOperations.class.getClassLoader(),
+                new Class<?>[] { TensorOperations.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("parallelSplitSize")) {
+                        return parallelSplitSize;
+                    }
+                    try {
+                        return method.invoke(operations, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    static class RandomWeights implements WeightLoader {
+        private final Map<String, AbstractTensor> tensors = new HashMap<>();
+        private final Map<String, TensorInfo> tensorInfo = new HashMap<>();
+        private final Random random;
+
+        RandomWeights(long seed) {
+            this.random = new Random(seed);
+        }
+
+        void put(String name, int... shape) {
+            boolean norm = name.contains("norm") || name.endsWith("LayerNorm.weight");
+            FloatBufferTensor t = new FloatBufferTensor(shape);
+            int[] cursor = new int[t.dims()];
+            do {
+                t.set((random.nextFloat() - 0.5f) * (norm ? 0.2f : 0.6f) + (norm ? 1f : 0f), cursor);
+            } while (t.iterate(cursor));
+            tensors.put(name, t);
+            tensorInfo.put(name, null);
+        }
+
+        @Override
+        public Map<String, String> metadata() {
+            return Map.of();
+        }
+
+        @Override
+        public Map<String, TensorInfo> tensorInfoMap() {
+            return tensorInfo;
+        }
+
+        @Override
+        public AbstractTensor load(String name, DistributedContext dctx, boolean sparseRows, boolean sparseColumns) {
+            AbstractTensor t = tensors.get(name);
+            if (t == null) {
+                throw new NoSuchElementException(name);
+            }
+            return t;
+        }
+
+        @Override
+        public DType getModelDType() {
+            return DType.F32;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    static class CharTokenizer implements Tokenizer {
+        private final TokenizerModel model = new TokenizerModel("BPE", null, false, false, Map.of("a", 0L), false, null);
+
+        @Override
+        public List<String> tokenize(String sentence) {
+            return List.of(sentence.split(""));
+        }
+
+        @Override
+        public long[] encode(String sentence) {
+            return sentence.chars().mapToLong(c -> c % VOCABULARY).toArray();
+        }
+
+        @Override
+        public String decode(long id) {
+            return String.valueOf((char) ('!' + id));
+        }
+
+        @Override
+        public String decode(long[] ids) {
+            StringBuilder sb = new StringBuilder();
+            for (long id : ids) {
+                sb.append(decode(id));
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public TokenizerModel getModel() {
+            return model;
+        }
+
+        @Override
+        public String preProcess(String sentence) {
+            return sentence;
+        }
+
+        @Override
+        public Optional<PromptSupport> promptSupport() {
+            return Optional.empty();
+        }
+
+        @Override
+        public String tokenForResponse(String token) {
+            return token;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package io.teknek.deliverance.model.bert;
+
+import io.teknek.deliverance.embedding.PoolingType;
+import io.teknek.deliverance.model.TinyBert;
+import io.teknek.deliverance.tensor.AbstractTensor;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class BertModelTest {
+
+    private final BertModel model = TinyBert.build(4, 2, 64, 5);
+
+    @Test
+    void embeddingsMatchTheReference() {
+        BertReference reference = new BertReference(model);
+        for (String input : List.of("a", "an encoder", "every token attends to every token")) {
+            int[] tokens = tokens(input);
+            assertArrayEquals(reference.average(tokens), model.embed(input, PoolingType.AVG), 1e-4f, input);
+            assertArrayEquals(reference.pooled(tokens), model.embed(input, PoolingType.MODEL), 1e-4f, input);
+        }
+    }
+
+    @Test
+    void paddedSequencesEncodeLikeSequencesOnTheirOwn() {
+        int[][] sequences = { tokens("seven t"), tokens("abc"), tokens("fives") };
+        try (AbstractTensor batch = model.encode(sequences, 7)) {
+            for (int s = 0; s < sequences.length; s++) {
+                try (AbstractTensor alone = model.encode(new int[][] { sequences[s] }, sequences[s].length)) {
+                    for (int r = 0; r < sequences[s].length; r++) {
+                        for (int i = 0; i < model.getConfig().embeddingLength; i++) {
+                            assertEquals(alone.get(r, i), batch.get(s * 7 + r, i), 1e-5f, "sequence " + s + " row " + r);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void batchedEmbeddingsAreInInputOrder() {
+        // sorted longest first they are encoded in groups of up to jlama.max_batch_size rows, the longest inputs
+        // take a group each
+        List<String> inputs = List.of("short", "a much longer input than the others, of sixty tokens or so ....",
+                "mid length input", "x", "another input of some fifty tokens, in its own group",
+                "four", "a third long input spanning some forty tokens");
+        List<float[]> batched = model.embed(inputs, PoolingType.AVG);
+        assertEquals(inputs.size(), batched.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            assertArrayEquals(model.embed(inputs.get(i), PoolingType.AVG), batched.get(i), 1e-5f, inputs.get(i));
+        }
+        assertFalse(Arrays.equals(batched.get(0), batched.get(1)));
+    }
+
+    private int[] tokens(String input) {
+        return Arrays.stream(model.getTokenizer().encode(input)).mapToInt(t -> (int) t).toArray();
+    }
+}
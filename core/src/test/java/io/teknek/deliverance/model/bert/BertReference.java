@@ -0,0 +1,178 @@
+package io.teknek.deliverance.model.bert;
+
+import io.teknek.deliverance.model.AbstractModel;
+import io.teknek.deliverance.safetensors.Config;
+import io.teknek.deliverance.safetensors.WeightLoader;
+import io.teknek.deliverance.tensor.AbstractTensor;
+
+/**
+ * A BERT forward pass in doubles written from the definition of the Hugging Face BertModel: embeddings of the word,
+ * position and token type 0 normed, then per layer bidirectional attention, LayerNorm(x + attention),
+ * LayerNorm(x + feed forward). Only GELU is the tanh approximation the model evaluates. It reads the weights of a
+ * loaded model, tests compare the model against it instead of against numbers recorded from an earlier run.
+ */
+public class BertReference {
+    private static final String[] PREFIXES = { "", "bert." };
+
+    private final Config config;
+    private final WeightLoader weights;
+
+    public BertReference(AbstractModel model) {
+        this.config = model.getConfig();
+        this.weights = model.getWeights();
+    }
+
+    /**
+     * @return the last hidden state [tokens.length, embeddingLength]
+     */
+    public double[][] encode(int[] tokens) {
+        int n = tokens.length;
+        int e = config.embeddingLength;
+        double[][] h = new double[n][e];
+        AbstractTensor we = load("embeddings.word_embeddings.weight");
+        AbstractTensor wte = load("embeddings.token_type_embeddings.weight");
+        AbstractTensor wpe = load("embeddings.position_embeddings.weight");
+        for (int p = 0; p < n; p++) {
+            for (int i = 0; i < e; i++) {
+                h[p][i] = we.get(tokens[p], i) + wte.get(0, i) + wpe.get(p, i);
+            }
+            h[p] = layerNorm(h[p], "embeddings.LayerNorm");
+        }
+        for (int l = 0; l < config.numberOfLayers; l++) {
+            String b = "encoder.layer." + l + ".";
+            double[][] attention = attention(h, b + "attention.");
+            for (int p = 0; p < n; p++) {
+                double[] a = linear(attention[p], b + "attention.output.dense");
+                for (int i = 0; i < e; i++) {
+                    a[i] += h[p][i];
+                }
+                a = layerNorm(a, b + "attention.output.LayerNorm");
+                double[] intermediate = linear(a, b + "intermediate.dense");
+                for (int i = 0; i < intermediate.length; i++) {
+                    double x = intermediate[i];
+                    intermediate[i] = 0.5 * x * (1 + Math.tanh(Math.sqrt(2 / Math.PI) * (x + 0.044715 * x * x * x)));
+                }
+                double[] out = linear(intermediate, b + "output.dense");
+                for (int i = 0; i < e; i++) {
+                    out[i] += a[i];
+                }
+                h[p] = layerNorm(out, b + "output.LayerNorm");
+            }
+        }
+        return h;
+    }
+
+    /**
+     * The mean of the hidden states l2 normalized, the pooling and normalization of sentence-transformers.
+     */
+    public float[] average(int[] tokens) {
+        double[][] h = encode(tokens);
+        double[] mean = new double[config.embeddingLength];
+        for (double[] row : h) {
+            for (int i = 0; i < mean.length; i++) {
+                mean[i] += row[i] / h.length;
+            }
+        }
+        double norm = 0;
+        for (double v : mean) {
+            norm += v * v;
+        }
+        float[] out = new float[mean.length];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (float) (mean[i] / Math.sqrt(norm));
+        }
+        return out;
+    }
+
+    /**
+     * The BERT pooler, tanh of the dense layer over the hidden state of the first ([CLS]) token.
+     */
+    public float[] pooled(int[] tokens) {
+        double[] pooled = linear(encode(tokens)[0], "pooler.dense");
+        float[] out = new float[pooled.length];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (float) Math.tanh(pooled[i]);
+        }
+        return out;
+    }
+
+    private double[][] attention(double[][] h, String prefix) {
+        int n = h.length;
+        int headSize = config.headSize;
+        double[][] q = new double[n][];
+        double[][] k = new double[n][];
+        double[][] v = new double[n][];
+        for (int p = 0; p < n; p++) {
+            q[p] = linear(h[p], prefix + "self.query");
+            k[p] = linear(h[p], prefix + "self.key");
+            v[p] = linear(h[p], prefix + "self.value");
+        }
+        double[][] out = new double[n][config.embeddingLength];
+        for (int head = 0; head < config.numberOfHeads; head++) {
+            int o = head * headSize;
+            for (int p = 0; p < n; p++) {
+                double[] scores = new double[n];
+                double max = Double.NEGATIVE_INFINITY;
+                for (int j = 0; j < n; j++) {
+                    for (int i = 0; i < headSize; i++) {
+                        scores[j] += q[p][o + i] * k[j][o + i];
+                    }
+                    scores[j] /= Math.sqrt(headSize);
+                    max = Math.max(max, scores[j]);
+                }
+                double sum = 0;
+                for (int j = 0; j < n; j++) {
+                    scores[j] = Math.exp(scores[j] - max);
+                    sum += scores[j];
+                }
+                for (int j = 0; j < n; j++) {
+                    for (int i = 0; i < headSize; i++) {
+                        out[p][o + i] += scores[j] / sum * v[j][o + i];
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    private double[] linear(double[] x, String name) {
+        AbstractTensor w = load(name + ".weight");
+        AbstractTensor bias = load(name + ".bias");
+        double[] y = new double[w.shape().first()];
+        for (int r = 0; r < y.length; r++) {
+            double sum = bias.get(0, r);
+            for (int i = 0; i < x.length; i++) {
+                sum += w.get(r, i) * x[i];
+            }
+            y[r] = sum;
+        }
+        return y;
+    }
+
+    private double[] layerNorm(double[] x, String name) {
+        AbstractTensor w = load(name + ".weight");
+        AbstractTensor bias = load(name + ".bias");
+        double mean = 0;
+        for (double v : x) {
+            mean += v / x.length;
+        }
+        double variance = 0;
+        for (double v : x) {
+            variance += (v - mean) * (v - mean) / x.length;
+        }
+        double[] y = new double[x.length];
+        for (int i = 0; i < x.length; i++) {
+            y[i] = (x[i] - mean) / Math.sqrt(variance + config.layerNormEps) * w.get(0, i) + bias.get(0, i);
+        }
+        return y;
+    }
+
+    private AbstractTensor load(String name) {
+        for (String prefix : PREFIXES) {
+            if (weights.isWeightPresent(prefix + name)) {
+                return weights.load(prefix + name);
+            }
+        }
+        throw new IllegalArgumentException(name + " not found");
+    }
+}
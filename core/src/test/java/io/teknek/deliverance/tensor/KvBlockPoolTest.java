@@ -0,0 +1,64 @@
+package io.teknek.deliverance.tensor;
+
+import com.codahale.metrics.MetricRegistry;
+import io.teknek.deliverance.DType;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KvBlockPoolTest {
+
+    @Test
+    void evictsUntilTheReservationFits() {
+        TensorShape shape = TensorShape.of(2, 16);
+        long page = KvBlockPool.bytes(DType.F32, shape);
+        assertEquals(128, page);
+        Deque<AbstractTensor> idle = new ArrayDeque<>();
+        KvBlockPool[] pool = new KvBlockPool[1];
+        MetricRegistry metrics = new MetricRegistry();
+        pool[0] = new KvBlockPool(3 * page, () -> {
+            if (idle.isEmpty()) {
+                return false;
+            }
+            pool[0].give(idle.poll());
+            return true;
+        }, metrics);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(pool[0].reserve(page));
+            idle.add(pool[0].take(DType.F32, shape));
+        }
+        assertEquals(3 * page, pool[0].committedBytes());
+
+        // the oldest idle page is evicted and its tensor reused
+        AbstractTensor oldest = idle.peek();
+        oldest.set(1f, 0, 0);
+        assertTrue(pool[0].reserve(page));
+        AbstractTensor t = pool[0].take(DType.F32, shape);
+        assertSame(oldest, t);
+        assertEquals(0f, t.get(0, 0));
+        assertEquals(1, metrics.meter("kvcache.pool.evictions").getCount());
+
+        // more than the budget can never fit, everything idle is evicted trying
+        assertFalse(pool[0].reserve(2 * page + 1));
+        assertTrue(idle.isEmpty());
+        assertEquals(page, pool[0].committedBytes());
+        assertEquals(1, metrics.meter("kvcache.pool.rejections").getCount());
+
+        // free tensors of another shape are dropped when a new page needs their memory
+        assertEquals(2 * page, pool[0].freeBytes());
+        TensorShape wide = TensorShape.of(4, 16);
+        assertTrue(pool[0].reserve(2 * page));
+        pool[0].take(DType.F32, wide);
+        assertEquals(0, pool[0].freeBytes());
+        pool[0].give(t);
+        assertEquals(2 * page, pool[0].committedBytes());
+        assertEquals(page, pool[0].freeBytes());
+    }
+}
@@ -0,0 +1,381 @@
+package io.teknek.deliverance.tensor;
+
+import com.codahale.metrics.MetricRegistry;
+import io.teknek.deliverance.DType;
+import io.teknek.deliverance.math.ActivationFunction;
+import io.teknek.deliverance.generator.FinishReason;
+import io.teknek.deliverance.generator.GeneratorParameters;
+import io.teknek.deliverance.generator.Response;
+import io.teknek.deliverance.model.TinyLlama;
+import io.teknek.deliverance.model.llama.LlamaConfig;
+import io.teknek.deliverance.model.llama.LlamaModel;
+import io.teknek.deliverance.safetensors.prompt.PromptContext;
+import io.teknek.deliverance.tensor.impl.Q8ByteBufferTensor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KvBufferCacheTest {
+
+    private final LlamaModel model = TinyLlama.build(4, 2, 2, 64);
+    private final MetricRegistry metrics = model.getMetricRegistry();
+
+    @Test
+    void forksSharePagesUntilTheyAreWritten() {
+        KvBufferCache cache = new KvBufferCache(model, new KvBufferCacheSettings(true));
+        KvBufferCache.KvBuffer parent = cache.getEphemeralKvBuffer();
+        prefill(parent, tokens(10, 10));
+        float[][] prompt = keys(parent, 1, 10);
+
+        KvBufferCache.KvBuffer fork = parent.fork();
+        assertEquals(10, fork.getCurrentContextPosition());
+        assertArrayEquals(parent.getTokens(), fork.getTokens());
+        assertEquals(2, parent.pageReferences(0, 0));
+        assertEquals(2, fork.pageReferences(0, 0));
+
+        // the fork writes the next position into a copy, the parent still sees its page as it was
+        model.forward(70, 10, fork, Optional.empty()).close();
+        assertEquals(1, metrics.meter("kvcache.copy_on_write").getCount());
+        assertEquals(1, parent.pageReferences(0, 0));
+        assertEquals(1, fork.pageReferences(0, 0));
+        assertKeysEqual(prompt, keys(fork, 1, 10));
+        assertKeysEqual(prompt, keys(parent, 1, 10));
+        assertFalse(Arrays.equals(keys(parent, 1, 11)[10], keys(fork, 1, 11)[10]));
+
+        // a write to the parent does not copy again, nothing shares its page any more
+        model.forward(71, 10, parent, Optional.empty()).close();
+        assertEquals(1, metrics.meter("kvcache.copy_on_write").getCount());
+        fork.close();
+        parent.close();
+    }
+
+    @Test
+    void shiftedKeysEqualKeysComputedAtTheirNewPositions() {
+        KvBufferCache cache = new KvBufferCache(model, new KvBufferCacheSettings(true));
+        KvBufferCache.KvBuffer buffer = cache.getEphemeralKvBuffer();
+        int[] tokens = tokens(40, 10);
+        prefill(buffer, tokens);
+        float[][] before = keys(buffer, 0, 40);
+        buffer.shiftContext(4, 16);
+        assertEquals(24, buffer.getCurrentContextPosition());
+
+        // the sinks stay where they were, the last 20 positions move down to 4..23
+        int[] kept = new int[24];
+        System.arraycopy(tokens, 0, kept, 0, 4);
+        System.arraycopy(tokens, 20, kept, 4, 20);
+        assertArrayEquals(kept, buffer.getTokens());
+        float[][] shifted = keys(buffer, 0, 24);
+        assertKeysEqual(Arrays.copyOf(before, 4), Arrays.copyOf(shifted, 4));
+
+        // the keys of the first layer only depend on the token and its position, rotating them back by the 16
+        // positions they moved is the same as computing them at the new positions
+        KvBufferCache.KvBuffer recomputed = cache.getEphemeralKvBuffer();
+        prefill(recomputed, kept);
+        assertKeysEqual(keys(recomputed, 0, 24), shifted);
+        assertFalse(Arrays.equals(before[20], shifted[4]));
+    }
+
+    @Test
+    void shiftedQuantizedKeysAreRotatedAsFloats() {
+        // heads of 32, whole blocks of either format
+        LlamaModel wide = TinyLlama.build(2, 2, 2, 64);
+        for (DType kvDType : new DType[] { DType.I8, DType.Q4 }) {
+            KvBufferCache cache = new KvBufferCache(wide, new KvBufferCacheSettings(true).withQuantizedKv(kvDType));
+            KvBufferCache.KvBuffer buffer = cache.getEphemeralKvBuffer();
+            int[] tokens = tokens(40, 10);
+            prefill(wide, buffer, tokens);
+            float[][] before = keys(buffer, 0, 40);
+            buffer.shiftContext(4, 16);
+
+            int[] kept = new int[24];
+            System.arraycopy(tokens, 0, kept, 0, 4);
+            System.arraycopy(tokens, 20, kept, 4, 20);
+            KvBufferCache.KvBuffer recomputed = cache.getEphemeralKvBuffer();
+            prefill(wide, recomputed, kept);
+            float[][] shifted = keys(buffer, 0, 24);
+            assertKeysEqual(Arrays.copyOf(before, 4), Arrays.copyOf(shifted, 4));
+            // a moved key is quantized at its old position and again rotated, the recomputed one once. Either
+            // quantization is off by up to a step, the first one rotated with its pair by up to sqrt(2) steps
+            assertKeysClose(keys(recomputed, 0, 24), shifted, 4 * (kvDType == DType.I8 ? 1 / 127f : 1 / 8f),
+                    kvDType.name());
+            assertFalse(Arrays.equals(before[20], shifted[4]));
+            buffer.close();
+            recomputed.close();
+        }
+    }
+
+    @Test
+    void attentionSinksRunPastTheContextLength() {
+        // no token limit, the generation is cancelled once it went past the context of 64 a few times (the random
+        // weights sample no eos from this prompt)
+        AtomicInteger emitted = new AtomicInteger();
+        Response response = model.generate(UUID.randomUUID(), PromptContext.of("once upon a time"),
+                new GeneratorParameters().withAttentionSinks(4).withNtokens(Integer.MAX_VALUE)
+                        .withCancellation(() -> emitted.get() >= 200),
+                (next, raw, cleaned, timing) -> emitted.incrementAndGet());
+        assertEquals(FinishReason.CANCELLED, response.finishReason);
+        assertEquals(200, response.generatedTokens);
+    }
+
+    @Test
+    void heavyHittersKeepTheHeaviestOlderPositionsAndTheRecentOnes() {
+        KvBufferCache cache = new KvBufferCache(model, new KvBufferCacheSettings(true));
+        KvBufferCache.KvBuffer buffer = cache.getEphemeralKvBuffer();
+        buffer.trackAttention();
+        int[] tokens = tokens(20, 10);
+        prefill(buffer, tokens);
+        float[][][] values = {values(buffer, 0, 20), values(buffer, 1, 20)};
+
+        // replaces the attention of the prefill, 1 and 5 tie for the last heavy hitter and the earliest is kept, 18
+        // is one of the 4 recent positions and does not take the place of a heavy hitter
+        float[][] mass = new float[2][20];
+        mass[0][3] = mass[0][7] = 2;
+        mass[0][1] = mass[0][5] = 1;
+        mass[0][18] = 5;
+        mass[1][12] = 3;
+        mass[1][0] = 2;
+        mass[1][9] = 1;
+        for (int layer = 0; layer < 2; layer++) {
+            for (int p = 0; p < 20; p++) {
+                buffer.clearAttention(layer, p);
+            }
+            buffer.addAttention(layer, 0, mass[layer]);
+        }
+        assertEquals(13, buffer.compactHeavyHitters(4, 3));
+        assertEquals(7, buffer.getCurrentContextPosition());
+
+        int[][] kept = {{1, 3, 7, 16, 17, 18, 19}, {0, 9, 12, 16, 17, 18, 19}};
+        int[] keptTokens = new int[7];
+        for (int i = 0; i < 7; i++) {
+            keptTokens[i] = tokens[kept[0][i]];
+        }
+        // the token history follows the first layer
+        assertArrayEquals(keptTokens, buffer.getTokens());
+        for (int layer = 0; layer < 2; layer++) {
+            float[][] moved = values(buffer, layer, 7);
+            for (int i = 0; i < 7; i++) {
+                assertArrayEquals(values[layer][kept[layer][i]], moved[i], "layer " + layer + " position " + i);
+            }
+        }
+        // the moved keys of the first layer are rotated to their new positions
+        KvBufferCache.KvBuffer recomputed = cache.getEphemeralKvBuffer();
+        prefill(recomputed, keptTokens);
+        assertKeysEqual(keys(recomputed, 0, 7), keys(buffer, 0, 7));
+        // nothing to drop
+        assertEquals(0, buffer.compactHeavyHitters(4, 3));
+    }
+
+    @Test
+    void heavyHittersRunPastTheContextLengthWithoutPublishingCompactedPages() {
+        LlamaModel prefixModel = TinyLlama.build(4, 2, 2, 64, new KvBufferCacheSettings(true)
+                .withPrefixCache(4, 64).withMemoryBudget(8 << 20), new MetricRegistry());
+        MetricRegistry prefixMetrics = prefixModel.getMetricRegistry();
+        // a session that is never compacted publishes the full pages of its prompt and of what it generated, bos
+        // and zzz then the 11 tokens written before the last one is sampled are 3 pages
+        prefixModel.generate(UUID.randomUUID(), PromptContext.of("zzz"), new GeneratorParameters().withNtokens(12),
+                (next, raw, cleaned, timing) -> { });
+        assertEquals(3, blocks(prefixMetrics));
+
+        // no token limit, compacted to 12 positions every 4 tokens (the random weights sample no eos from this prompt
+        // with it). The page of the prompt is published when it is
+        // prefilled, once compacted position i no longer holds token i and nothing more is published
+        AtomicInteger emitted = new AtomicInteger();
+        Response response = prefixModel.generate(UUID.randomUUID(), PromptContext.of("hello"),
+                new GeneratorParameters().withHeavyHitterKv(4, 8).withNtokens(Integer.MAX_VALUE)
+                        .withCancellation(() -> emitted.get() >= 200),
+                (next, raw, cleaned, timing) -> emitted.incrementAndGet());
+        assertEquals(FinishReason.CANCELLED, response.finishReason);
+        assertEquals(200, response.generatedTokens);
+        // bos and hello are one page
+        assertEquals(4, blocks(prefixMetrics));
+    }
+
+    @Test
+    void spilledSessionsAreReadBackWhenResumed(@TempDir File directory) {
+        // pages of 4 positions of both layers, the budget holds 8 of them
+        long pageBytes = 2L * 2 * 4 * model.getConfig().kvLength * Float.BYTES;
+        KvBufferCache cache = new KvBufferCache(model, new KvBufferCacheSettings(true).withPrefixCache(4, 64)
+                .withMemoryBudget(8 * pageBytes).withSpillDirectory(directory, 1));
+        KvBufferCache.KvBuffer idle = cache.getKvBuffer("idle");
+        prefill(idle, tokens(24, 10));
+        float[][][] before = {keys(idle, 0, 24), values(idle, 0, 24), keys(idle, 1, 24), values(idle, 1, 24)};
+        idle.close();
+        assertEquals(6 * pageBytes, committedBytes());
+
+        // the 6 pages another session reserves do not fit next to the idle session, which is spilled to make room
+        KvBufferCache.KvBuffer other = cache.getKvBuffer("other");
+        assertTrue(other.tryReserve(24));
+        assertEquals(6, metrics.meter("kvcache.spill.page_writes").getCount());
+        assertEquals(6, files(directory));
+        assertEquals(6 * pageBytes, committedBytes());
+        other.close();
+        assertEquals(0, committedBytes());
+
+        // resumed at its position, the pages it reads back are taken from its reservation
+        KvBufferCache.KvBuffer resumed = cache.getKvBuffer("idle");
+        assertSame(idle, resumed);
+        assertEquals(24, resumed.getCurrentContextPosition());
+        assertTrue(resumed.tryReserve(24));
+        assertEquals(6 * pageBytes, committedBytes());
+        // the first page is read with the 4 after it, their files are deleted
+        resumed.getKeyTensorForPosition(0, 0);
+        assertEquals(5, metrics.meter("kvcache.spill.page_reads").getCount());
+        assertEquals(1, files(directory));
+        float[][][] after = {keys(resumed, 0, 24), values(resumed, 0, 24), keys(resumed, 1, 24),
+                values(resumed, 1, 24)};
+        assertEquals(6, metrics.meter("kvcache.spill.page_reads").getCount());
+        assertEquals(0, files(directory));
+        for (int i = 0; i < before.length; i++) {
+            assertKeysEqual(before[i], after[i]);
+        }
+        assertEquals(6 * pageBytes, committedBytes());
+        resumed.close();
+        assertEquals(6 * pageBytes, committedBytes());
+
+        // the spill files of a session are deleted with it
+        assertTrue(resumed.spill());
+        assertEquals(6, files(directory));
+        cache.close();
+        assertEquals(0, files(directory));
+    }
+
+    @Test
+    void snapshotsAreOnlyRestoredIntoTheSameModel(@TempDir File directory) {
+        KvBufferCacheSettings settings = new KvBufferCacheSettings(true).withMemoryBudget(8 << 20)
+                .withSnapshotDirectory(directory);
+        KvBufferCache cache = new KvBufferCache(model, settings);
+        KvBufferCache.KvBuffer buffer = cache.getKvBuffer("session");
+        int[] tokens = tokens(20, 10);
+        prefill(buffer, tokens);
+        float[][][] before = {keys(buffer, 0, 20), values(buffer, 0, 20), keys(buffer, 1, 20), values(buffer, 1, 20)};
+        buffer.close();
+        // an idle session is written out when the cache is closed
+        cache.close();
+
+        // the same weights loaded again pick the session up where it was
+        KvBufferCache same = new KvBufferCache(TinyLlama.build(4, 2, 2, 64, 7, new KvBufferCacheSettings(true),
+                new MetricRegistry()), settings);
+        KvBufferCache.KvBuffer restored = same.getKvBuffer("session");
+        assertEquals(20, restored.getCurrentContextPosition());
+        assertArrayEquals(tokens, restored.getTokens());
+        float[][][] after = {keys(restored, 0, 20), values(restored, 0, 20), keys(restored, 1, 20),
+                values(restored, 1, 20)};
+        for (int i = 0; i < before.length; i++) {
+            assertKeysEqual(before[i], after[i]);
+        }
+        restored.close();
+
+        // other weights of the same geometry start the session over
+        KvBufferCache other = new KvBufferCache(TinyLlama.build(4, 2, 2, 64, 8, new KvBufferCacheSettings(true),
+                new MetricRegistry()), settings);
+        KvBufferCache.KvBuffer ignored = other.getKvBuffer("session");
+        assertEquals(0, ignored.getCurrentContextPosition());
+        ignored.close();
+    }
+
+    @Test
+    void fingerprintsTellTheRotaryEmbeddingApart() {
+        KvBufferCacheSettings settings = new KvBufferCacheSettings(true);
+        String fingerprint = new KvBufferCache(model, settings).modelFingerprint();
+        assertEquals(fingerprint, new KvBufferCache(TinyLlama.build(4, 2, 2, 64), settings).modelFingerprint());
+        assertNotEquals(fingerprint, new KvBufferCache(rope(500000.0, null), settings).modelFingerprint());
+        assertNotEquals(fingerprint, new KvBufferCache(rope(10000.0, Map.of("rope_type", "linear", "factor", "2")),
+                settings).modelFingerprint());
+    }
+
+    /** the model of the test with another rotary embedding */
+    private static LlamaModel rope(double theta, Map<String, String> scaling) {
+        LlamaConfig config = new LlamaConfig(64, TinyLlama.EMBEDDING, 2 * TinyLlama.EMBEDDING, 4, 2, 2, 1e-5f,
+                TinyLlama.VOCABULARY, 1, List.of(2), ActivationFunction.Type.SILU, theta, scaling);
+        return TinyLlama.build(config, 7, new KvBufferCacheSettings(true), new MetricRegistry(), 0);
+    }
+
+    static int[] tokens(int length, int first) {
+        int[] tokens = new int[length];
+        for (int i = 0; i < length; i++) {
+            tokens[i] = first + i;
+        }
+        return tokens;
+    }
+
+    private void prefill(KvBufferCache.KvBuffer buffer, int[] tokens) {
+        prefill(model, buffer, tokens);
+    }
+
+    private static void prefill(LlamaModel model, KvBufferCache.KvBuffer buffer, int[] tokens) {
+        model.batchForward(tokens, 0, buffer).close();
+        buffer.setCurrentContextPosition(tokens.length);
+    }
+
+    private long committedBytes() {
+        return ((Number) metrics.getGauges().get("kvcache.pool.committed_bytes").getValue()).longValue();
+    }
+
+    private static int files(File directory) {
+        return directory.listFiles().length;
+    }
+
+    private static long blocks(MetricRegistry metrics) {
+        return ((Number) metrics.getGauges().get("kvcache.prefix.blocks").getValue()).longValue();
+    }
+
+    /** the keys of positions 0..positions in layer, read without writing to the pages */
+    private static float[][] keys(KvBufferCache.KvBuffer buffer, int layer, int positions) {
+        return read(buffer.getKeyTensorsUptoPosition(layer, positions - 1), positions);
+    }
+
+    /** the values of positions 0..positions in layer, read without writing to the pages */
+    private static float[][] values(KvBufferCache.KvBuffer buffer, int layer, int positions) {
+        return read(buffer.getValTensorsUptoPosition(layer, positions - 1), positions);
+    }
+
+    private static float[][] read(AbstractTensor[] pages, int positions) {
+        float[][] keys = new float[positions][];
+        int pageLength = pages[0].shape().first();
+        for (int p = 0; p < positions; p++) {
+            AbstractTensor page = pages[p / pageLength];
+            keys[p] = new float[page.shape().last()];
+            for (int i = 0; i < keys[p].length; i++) {
+                keys[p][i] = page.get(p % pageLength, i);
+            }
+        }
+        return keys;
+    }
+
+    private static void assertKeysEqual(float[][] expected, float[][] actual) {
+        for (int p = 0; p < expected.length; p++) {
+            assertArrayEquals(expected[p], actual[p], 1e-5f, "position " + p);
+        }
+    }
+
+    /** every element within tolerance times the largest element of its block */
+    private static void assertKeysClose(float[][] expected, float[][] actual, float tolerance, String message) {
+        int blockSize = Q8ByteBufferTensor.BLOCK_SIZE;
+        for (int p = 0; p < expected.length; p++) {
+            for (int b = 0; b < expected[p].length; b += blockSize) {
+                float max = 0;
+                for (int i = b; i < b + blockSize; i++) {
+                    max = Math.max(max, Math.abs(expected[p][i]));
+                }
+                for (int i = b; i < b + blockSize; i++) {
+                    assertEquals(expected[p][i], actual[p][i], tolerance * max,
+                            message + " position " + p + " element " + i);
+                }
+            }
+        }
+    }
+}
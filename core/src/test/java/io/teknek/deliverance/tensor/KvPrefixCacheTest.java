@@ -0,0 +1,192 @@
+package io.teknek.deliverance.tensor;
+
+import com.codahale.metrics.MetricRegistry;
+import io.teknek.deliverance.model.TinyLlama;
+import io.teknek.deliverance.model.llama.LlamaModel;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KvPrefixCacheTest {
+    private static final int BLOCK = 4;
+
+    private final LlamaModel model = TinyLlama.build(4, 2, 2, 64);
+    private final MetricRegistry metrics = model.getMetricRegistry();
+
+    @Test
+    void reusesTheLongestFullBlockPrefix() {
+        KvBufferCache cache = new KvBufferCache(model, new KvBufferCacheSettings(true).withPrefixCache(BLOCK, 16));
+        int[] a = tokens(14, 10);
+        KvBufferCache.KvBuffer first = cache.getKvBuffer("first");
+        prefill(first, a, 0);
+        first.publishPrefix(a, a.length);
+        assertEquals(3, blocks());
+
+        // diverges in the third block, the first two are reused and the rest is prefilled
+        int[] b = a.clone();
+        b[9] = 50;
+        KvBufferCache.KvBuffer second = cache.getKvBuffer("second");
+        assertEquals(2 * BLOCK, second.attachCachedPrefix(b, b.length));
+        assertEquals(2 * BLOCK, second.getCurrentContextPosition());
+        prefill(second, b, 2 * BLOCK);
+        KvBufferCache.KvBuffer fresh = cache.getEphemeralKvBuffer();
+        prefill(fresh, b, 0);
+        for (int layer = 0; layer < 2; layer++) {
+            for (int p = 0; p < b.length; p++) {
+                assertKeysEqual(fresh, second, layer, p);
+            }
+        }
+
+        // every full block that leaves a token to prefill
+        assertEquals(3 * BLOCK, cache.getKvBuffer("third").attachCachedPrefix(a, 13));
+        // the prompt is the whole third block, its last token is prefilled again for a hidden state to sample from
+        assertEquals(2 * BLOCK, cache.getKvBuffer("fourth").attachCachedPrefix(a, 12));
+        // only an empty buffer attaches a prefix
+        assertEquals(0, first.attachCachedPrefix(a, a.length));
+    }
+
+    @Test
+    void sharedPagesAreCountedAndEvictedLeastRecentlyUsedFirst() {
+        KvBufferCache cache = new KvBufferCache(model, new KvBufferCacheSettings(true).withPrefixCache(BLOCK, 3));
+        int[] a = tokens(14, 10);
+        KvBufferCache.KvBuffer first = cache.getKvBuffer("first");
+        prefill(first, a, 0);
+        first.publishPrefix(a, a.length);
+        // the buffer and the tree
+        assertEquals(2, first.pageReferences(0, 0));
+        first.close();
+
+        KvBufferCache.KvBuffer reader = cache.getKvBuffer("reader");
+        assertEquals(2 * BLOCK, reader.attachCachedPrefix(a, 9));
+        assertEquals(2, reader.pageReferences(0, 0));
+        assertEquals(2, reader.pageReferences(0, 1));
+
+        // two more blocks go over the limit of three, only the third block of a is a leaf nobody reads
+        int[] e = tokens(9, 60);
+        KvBufferCache.KvBuffer other = cache.getKvBuffer("other");
+        prefill(other, e, 0);
+        other.publishPrefix(e, e.length);
+        other.close();
+        assertEquals(4, blocks());
+        assertEquals(1, metrics.meter("kvcache.prefix.evictions").getCount());
+        assertEquals(2 * BLOCK, cache.getKvBuffer("a").attachCachedPrefix(a, a.length));
+        assertEquals(2 * BLOCK, cache.getKvBuffer("e").attachCachedPrefix(e, e.length));
+
+        // once nobody reads them the least recently used blocks go at the next publish, the blocks of a
+        reader.close();
+        cache.getKvBuffer("a").close();
+        cache.getKvBuffer("e").close();
+        int[] f = tokens(5, 80);
+        KvBufferCache.KvBuffer last = cache.getKvBuffer("last");
+        prefill(last, f, 0);
+        last.publishPrefix(f, f.length);
+        assertEquals(3, blocks());
+        assertEquals(3, metrics.meter("kvcache.prefix.evictions").getCount());
+        assertEquals(0, cache.getKvBuffer("a2").attachCachedPrefix(a, a.length));
+        assertEquals(2 * BLOCK, cache.getKvBuffer("e2").attachCachedPrefix(e, e.length));
+    }
+
+    @Test
+    void writingASharedPageCopiesIt() {
+        KvBufferCache cache = new KvBufferCache(model, new KvBufferCacheSettings(true).withPrefixCache(BLOCK, 16));
+        int[] a = tokens(14, 10);
+        KvBufferCache.KvBuffer first = cache.getKvBuffer("first");
+        prefill(first, a, 0);
+        first.publishPrefix(a, a.length);
+        float[] published = keys(first, 0, 5);
+
+        KvBufferCache.KvBuffer second = cache.getKvBuffer("second");
+        second.attachCachedPrefix(a, a.length);
+        assertEquals(3, first.pageReferences(0, 1));
+        // a rollback into the shared block, then another token at position 5
+        second.setCurrentContextPosition(5);
+        model.forward(70, 5, second, Optional.empty()).close();
+
+        assertEquals(1, metrics.meter("kvcache.copy_on_write").getCount());
+        assertEquals(2, first.pageReferences(0, 1));
+        assertEquals(1, second.pageReferences(0, 1));
+        assertEquals(Arrays.toString(published), Arrays.toString(keys(first, 0, 5)));
+        assertNotEquals(Arrays.toString(published), Arrays.toString(keys(second, 0, 5)));
+        // the positions before it were copied
+        assertEquals(Arrays.toString(keys(first, 0, 4)), Arrays.toString(keys(second, 0, 4)));
+    }
+
+    @Test
+    void storedBlocksAreOnlyReusedByTheSameModel(@TempDir File directory) throws InterruptedException {
+        KvBufferCacheSettings settings = new KvBufferCacheSettings(true).withPrefixCache(BLOCK, 16)
+                .withPersistentPrefixCache(directory, 1 << 20);
+        KvBufferCache cache = new KvBufferCache(model, settings);
+        int[] a = tokens(14, 10);
+        KvBufferCache.KvBuffer first = cache.getKvBuffer("first");
+        prefill(first, a, 0);
+        first.publishPrefix(a, a.length);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (metrics.meter("kvcache.prefix_store.writes").getCount() < 3) {
+            assertTrue(System.currentTimeMillis() < deadline, "blocks written in time");
+            Thread.sleep(1);
+        }
+        cache.close();
+
+        // started again with the same weights the blocks are read from the directory
+        LlamaModel same = TinyLlama.build(4, 2, 2, 64);
+        KvBufferCache.KvBuffer second = new KvBufferCache(same, settings).getKvBuffer("second");
+        assertEquals(3 * BLOCK, second.attachCachedPrefix(a, a.length));
+        assertEquals(3, same.getMetricRegistry().meter("kvcache.prefix_store.hit_blocks").getCount());
+        prefill(second, a, 3 * BLOCK);
+        KvBufferCache.KvBuffer fresh = new KvBufferCache(same, new KvBufferCacheSettings(true).withPrefixCache(BLOCK, 16))
+                .getEphemeralKvBuffer();
+        prefill(fresh, a, 0);
+        for (int layer = 0; layer < 2; layer++) {
+            for (int p = 0; p < a.length; p++) {
+                assertKeysEqual(fresh, second, layer, p);
+            }
+        }
+
+        // other weights of the same geometry miss
+        LlamaModel other = TinyLlama.build(4, 2, 2, 64, 8, new KvBufferCacheSettings(true), new MetricRegistry());
+        assertEquals(0, new KvBufferCache(other, settings).getKvBuffer("third").attachCachedPrefix(a, a.length));
+    }
+
+    private long blocks() {
+        return ((Number) metrics.getGauges().get("kvcache.prefix.blocks").getValue()).longValue();
+    }
+
+    private void prefill(KvBufferCache.KvBuffer buffer, int[] tokens, int from) {
+        model.batchForward(Arrays.copyOfRange(tokens, from, tokens.length), from, buffer).close();
+        buffer.setCurrentContextPosition(tokens.length);
+    }
+
+    private static int[] tokens(int length, int first) {
+        int[] tokens = new int[length];
+        for (int i = 0; i < length; i++) {
+            tokens[i] = first + i;
+        }
+        return tokens;
+    }
+
+    /** the key of position in layer, read without writing to the page */
+    private static float[] keys(KvBufferCache.KvBuffer buffer, int layer, int position) {
+        AbstractTensor page = buffer.getKeyTensorsUptoPosition(layer, position)[position / BLOCK];
+        float[] keys = new float[page.shape().last()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = page.get(position % BLOCK, i);
+        }
+        return keys;
+    }
+
+    private static void assertKeysEqual(KvBufferCache.KvBuffer expected, KvBufferCache.KvBuffer actual, int layer,
+            int position) {
+        float[] e = keys(expected, layer, position);
+        float[] a = keys(actual, layer, position);
+        for (int i = 0; i < e.length; i++) {
+            assertEquals(e[i], a[i], 1e-5f, "layer " + layer + " position " + position);
+        }
+    }
+}
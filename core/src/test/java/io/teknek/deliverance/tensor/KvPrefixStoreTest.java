@@ -0,0 +1,171 @@
+package io.teknek.deliverance.tensor;
+
+import com.codahale.metrics.MetricRegistry;
+import io.teknek.deliverance.DType;
+import io.teknek.deliverance.model.TinyLlama;
+import io.teknek.deliverance.tensor.impl.FloatBufferTensor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KvPrefixStoreTest {
+    /** 2 layers of keys and values of 4 positions per layer page, and 2 layer pages per block */
+    private static final TensorShape PAGE = TensorShape.of(2, 2, 4, 16);
+    private static final int LAYER_PAGES = 2;
+    private static final long BLOCK_BYTES = LAYER_PAGES * PAGE.size() * Float.BYTES;
+
+    private final KvBufferCache cache = new KvBufferCache(TinyLlama.build(4, 2, 2, 64), new KvBufferCacheSettings(true));
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final Random random = new Random(3);
+
+    @TempDir
+    File directory;
+
+    @Test
+    void writtenBlocksAreReadBack() throws InterruptedException {
+        KvPrefixStore store = new KvPrefixStore(directory, 1 << 20, DType.F32, metrics);
+        String key = store.keys("model", KvBufferCacheTest.tokens(4, 10), 1, 4, LAYER_PAGES)[0];
+        KvBufferCache.KvBufferPage[] column = column();
+        store.write(key, column);
+        awaitWrites(1);
+        assertTrue(store.contains(key));
+        assertEquals(BLOCK_BYTES, store.bytes());
+        // the pages are released once written
+        assertEquals(1, column[0].references());
+        // every layer page is renamed into place, no temporary file is left behind
+        assertEquals(Set.of(key + "-L0.kvblock", key + "-L1.kvblock"), files());
+
+        AbstractTensor[] read = store.read(key, LAYER_PAGES, PAGE);
+        assertPagesEqual(column, read);
+        // mapped copy on write, a buffer writing to its copy leaves the file as it was
+        read[0].set(99, 0, 0, 0, 0);
+        assertPagesEqual(column, store.read(key, LAYER_PAGES, PAGE));
+        assertEquals(2, metrics.meter("kvcache.prefix_store.hit_blocks").getCount());
+
+        // a store started again on the directory, or another replica, finds the block
+        KvPrefixStore restarted = new KvPrefixStore(directory, 1 << 20, DType.F32, new MetricRegistry());
+        assertEquals(BLOCK_BYTES, restarted.bytes());
+        assertPagesEqual(column, restarted.read(key, LAYER_PAGES, PAGE));
+        store.close();
+        restarted.close();
+    }
+
+    @Test
+    void keysFollowTheFingerprintAndEveryTokenBefore() throws InterruptedException {
+        KvPrefixStore store = new KvPrefixStore(directory, 1 << 20, DType.F32, metrics);
+        int[] tokens = KvBufferCacheTest.tokens(8, 10);
+        String[] keys = store.keys("model", tokens, 2, 4, LAYER_PAGES);
+        store.write(keys[0], column());
+        store.write(keys[1], column());
+        awaitWrites(2);
+
+        // the same tokens for another model miss
+        String[] other = store.keys("other model", tokens, 2, 4, LAYER_PAGES);
+        for (int b = 0; b < 2; b++) {
+            assertNotEquals(keys[b], other[b]);
+            assertFalse(store.contains(other[b]));
+            assertNull(store.read(other[b], LAYER_PAGES, PAGE));
+        }
+        // so do blocks of another page geometry
+        assertNotEquals(keys[0], store.keys("model", tokens, 2, 4, 1)[0]);
+        // a token of the second block only changes the key of the second block
+        int[] changed = tokens.clone();
+        changed[5] = 50;
+        String[] changedKeys = store.keys("model", changed, 2, 4, LAYER_PAGES);
+        assertEquals(keys[0], changedKeys[0]);
+        assertNotEquals(keys[1], changedKeys[1]);
+        store.close();
+    }
+
+    @Test
+    void leastRecentlyUsedBlocksAreDeletedBeyondMaxBytes() throws InterruptedException {
+        KvPrefixStore store = new KvPrefixStore(directory, 2 * BLOCK_BYTES, DType.F32, metrics);
+        String[] keys = store.keys("model", KvBufferCacheTest.tokens(12, 10), 3, 4, LAYER_PAGES);
+        store.write(keys[0], column());
+        awaitWrites(1);
+        store.write(keys[1], column());
+        awaitWrites(2);
+        // the first block is read, the second is now the least recently used
+        store.read(keys[0], LAYER_PAGES, PAGE);
+        store.write(keys[2], column());
+        awaitWrites(3);
+
+        assertTrue(store.contains(keys[0]));
+        assertFalse(store.contains(keys[1]));
+        assertTrue(store.contains(keys[2]));
+        assertEquals(2 * BLOCK_BYTES, store.bytes());
+        assertEquals(1, metrics.meter("kvcache.prefix_store.evictions").getCount());
+        assertEquals(Set.of(keys[0] + "-L0.kvblock", keys[0] + "-L1.kvblock", keys[2] + "-L0.kvblock",
+                keys[2] + "-L1.kvblock"), files());
+        store.close();
+    }
+
+    @Test
+    void writesCutShortAreNotRead() throws IOException {
+        KvPrefixStore writer = new KvPrefixStore(directory, 1 << 20, DType.F32, metrics);
+        String[] keys = writer.keys("model", KvBufferCacheTest.tokens(8, 10), 2, 4, LAYER_PAGES);
+        writer.close();
+        // a temporary file that was never renamed is not a block, neither is a block file of the wrong size
+        Files.write(new File(directory, keys[0] + "-L0.tmp").toPath(), new byte[(int) (PAGE.size() * Float.BYTES)]);
+        Files.write(new File(directory, keys[1] + "-L0.kvblock").toPath(), new byte[16]);
+        Files.write(new File(directory, keys[1] + "-L1.kvblock").toPath(), new byte[16]);
+        KvPrefixStore store = new KvPrefixStore(directory, 1 << 20, DType.F32, new MetricRegistry());
+        assertFalse(store.contains(keys[0]));
+        assertEquals(32, store.bytes());
+        assertNull(store.read(keys[1], LAYER_PAGES, PAGE));
+        store.close();
+    }
+
+    /** the layer pages of a block of random keys and values */
+    private KvBufferCache.KvBufferPage[] column() {
+        KvBufferCache.KvBufferPage[] column = new KvBufferCache.KvBufferPage[LAYER_PAGES];
+        for (int l = 0; l < LAYER_PAGES; l++) {
+            FloatBufferTensor t = new FloatBufferTensor(PAGE);
+            int[] cursor = new int[t.dims()];
+            do {
+                t.set(random.nextFloat(), cursor);
+            } while (t.iterate(cursor));
+            column[l] = cache.new KvBufferPage(t);
+        }
+        return column;
+    }
+
+    private void awaitWrites(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (metrics.meter("kvcache.prefix_store.writes").getCount() < count) {
+            assertTrue(System.currentTimeMillis() < deadline, "blocks written in time");
+            Thread.sleep(1);
+        }
+    }
+
+    private Set<String> files() {
+        return Set.of(directory.list());
+    }
+
+    private static void assertPagesEqual(KvBufferCache.KvBufferPage[] expected, AbstractTensor[] actual) {
+        for (int l = 0; l < expected.length; l++) {
+            AbstractTensor e = expected[l].getTensor();
+            float[] a = new float[Math.toIntExact(e.size())];
+            float[] b = new float[a.length];
+            int[] cursor = new int[e.dims()];
+            int i = 0;
+            do {
+                a[i] = e.get(cursor);
+                b[i++] = actual[l].get(cursor);
+            } while (e.iterate(cursor));
+            assertArrayEquals(a, b, "layer page " + l);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package io.teknek.deliverance.tensor;
+
+import com.codahale.metrics.MetricRegistry;
+import io.teknek.deliverance.DType;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class TensorCacheTest {
+
+    @Test
+    void sizeClasses() {
+        assertEquals(6, TensorCache.sizeClass(1));
+        assertEquals(6, TensorCache.sizeClass(64));
+        assertEquals(7, TensorCache.sizeClass(65));
+        assertEquals(10, TensorCache.sizeClass(1024));
+        assertEquals(30, TensorCache.sizeClass(1 << 30));
+        assertEquals(-1, TensorCache.sizeClass((1L << 30) + 1));
+    }
+
+    @Test
+    void shapesOfOneClassShareMemory() {
+        MetricRegistry metrics = new MetricRegistry();
+        TensorCache cache = new TensorCache(1 << 20, metrics);
+        AbstractTensor t = cache.get(DType.F32, TensorShape.of(3, 100));
+        assertEquals(2048, cache.allocatedBytes());
+        assertEquals(2048, cache.inUseBytes());
+        t.set(5f, 2, 99);
+        t.close();
+        assertEquals(0, cache.inUseBytes());
+
+        // another batch length of the same class reuses the segment, cleared
+        AbstractTensor u = cache.get(DType.F32, TensorShape.of(5, 100));
+        assertEquals(2048, cache.allocatedBytes());
+        assertEquals(1, metrics.meter("tensorcache.get.hit").getCount());
+        assertEquals(0f, u.get(2, 99));
+        u.close();
+        // closing twice gives the segment back once
+        u.close();
+        assertEquals(0, cache.inUseBytes());
+
+        AbstractTensor q = cache.get(DType.I8, TensorShape.of(2, 64));
+        assertEquals(TensorShape.of(2, 64), q.shape());
+        q.close();
+        assertEquals(2048 + 256, cache.allocatedBytes());
+    }
+
+    @Test
+    void staysWithinCapacity() {
+        MetricRegistry metrics = new MetricRegistry();
+        TensorCache cache = new TensorCache(4096, metrics);
+        AbstractTensor a = cache.get(DType.F32, TensorShape.of(512));
+        AbstractTensor b = cache.get(DType.F32, TensorShape.of(512));
+        assertEquals(4096, cache.allocatedBytes());
+
+        // nothing free, the tensor is allocated outside the cache
+        AbstractTensor c = cache.get(DType.F32, TensorShape.of(16));
+        assertNull(c.originCache);
+        assertEquals(1, metrics.meter("tensorcache.full").getCount());
+
+        // free segments of another class are dropped to make room
+        a.close();
+        b.close();
+        AbstractTensor d = cache.get(DType.F32, TensorShape.of(16));
+        assertNotNull(d.originCache);
+        assertEquals(2048 + 64, cache.allocatedBytes());
+    }
+
+    @Test
+    void magazinesOfEndedThreadsAreTrimmed() throws InterruptedException {
+        TensorCache cache = new TensorCache(1 << 20, new MetricRegistry());
+        Thread t = new Thread(() -> cache.get(DType.F32, TensorShape.of(1000)).close());
+        t.start();
+        t.join();
+        assertEquals(4096, cache.allocatedBytes());
+        assertEquals(4096, cache.trim(1 << 20));
+        assertEquals(0, cache.allocatedBytes());
+    }
+}
@@ -1,6 +1,7 @@
 package io.teknek.deliverance.tensor.operations;
 
 import com.codahale.metrics.MetricRegistry;
+import io.teknek.deliverance.DType;
 import io.teknek.deliverance.tensor.*;
 import io.teknek.deliverance.tensor.impl.FloatBufferTensor;
 import io.teknek.deliverance.tensor.impl.Q4ByteBufferTensor;
@@ -69,4 +70,245 @@ public class PanamaTensorOperationsTest {
         PanamaTensorOperations p = new PanamaTensorOperations(MachineSpec.VECTOR_TYPE, new TensorCache(new MetricRegistry()));
         assertEquals(control, p.dotProduct(q8, q4, size), control * .01f);
     }
+
+    @Test
+    void batchDotProductCoversRowAndColumnRemainder(){
+        int rows = 4;
+        int cols = 97;
+        int size = 64;
+        Random r = new Random(7);
+        AbstractTensor a = new FloatBufferTensor(rows, size);
+        AbstractTensor b = new FloatBufferTensor(cols, size);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < size; j++) {
+                a.set(r.nextFloat(-1, 1), i, j);
+            }
+        }
+        for (int i = 0; i < cols; i++) {
+            for (int j = 0; j < size; j++) {
+                b.set(r.nextFloat(-1, 1), i, j);
+            }
+        }
+        AbstractTensor control = new FloatBufferTensor(rows, cols);
+        AbstractTensor result = new FloatBufferTensor(rows, cols);
+        new NaiveTensorOperations().batchDotProduct(control, a, b, 0, 0, size);
+        PanamaTensorOperations p = new PanamaTensorOperations(MachineSpec.VECTOR_TYPE, new TensorCache(new MetricRegistry()));
+        p.batchDotProduct(result, a, b, 0, 0, size);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                assertEquals(control.get(i, j), result.get(i, j), 0.0001f, "row " + i + " col " + j);
+            }
+        }
+    }
+
+    @Test
+    void dotProductChunkIntoSparseResult(){
+        int rows = 3;
+        int cols = 97;
+        int size = 64;
+        Random r = new Random(11);
+        AbstractTensor a = new FloatBufferTensor(rows, size);
+        AbstractTensor b = new FloatBufferTensor(cols, size);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < size; j++) {
+                a.set(r.nextFloat(-1, 1), i, j);
+            }
+        }
+        for (int i = 0; i < cols; i++) {
+            for (int j = 0; j < size; j++) {
+                b.set(r.nextFloat(-1, 1), i, j);
+            }
+        }
+        AbstractTensor control = new FloatBufferTensor(rows, cols);
+        PanamaTensorOperations p = new PanamaTensorOperations(MachineSpec.VECTOR_TYPE, new TensorCache(new MetricRegistry()));
+        p.batchDotProduct(control, a, b, 0, 0, size);
+        int chunkStart = 40;
+        int chunkSize = 37;
+        AbstractTensor chunk = new FloatBufferTensor(TensorShape.sparseColumn(new int[] { rows, cols },
+                SparseOffset.of(chunkStart, chunkSize)));
+        assertEquals(rows * chunkSize, chunk.size());
+        p.dotProductChunk(chunk, a, b, 0, size, chunkStart, chunkSize);
+        for (int i = 0; i < rows; i++) {
+            for (int j = chunkStart; j < chunkStart + chunkSize; j++) {
+                assertEquals(control.get(i, j), chunk.get(i, j), 0.0001f, "row " + i + " col " + j);
+            }
+        }
+    }
+
+    @Test
+    void ropeMatchesScalarRotation(){
+        int headSize = 70; // half is not a multiple of the vector length, covers the tail
+        int heads = 3;
+        int[] positions = { 0, 5, 1023, 1024, 2047 };
+        RopeTable table = new RopeTable(headSize, 2048, 10000.0, 1.0);
+        Random r = new Random(5);
+        AbstractTensor x = new FloatBufferTensor(positions.length, heads * headSize);
+        AbstractTensor control = new FloatBufferTensor(positions.length, heads * headSize);
+        for (int i = 0; i < positions.length; i++) {
+            for (int j = 0; j < heads * headSize; j++) {
+                float v = r.nextFloat(-1, 1);
+                x.set(v, i, j);
+                control.set(v, i, j);
+            }
+        }
+        PanamaTensorOperations p = new PanamaTensorOperations(MachineSpec.VECTOR_TYPE, new TensorCache(new MetricRegistry()));
+        // only the last two heads
+        p.rope(x, positions, table, headSize, 2 * headSize);
+        int half = headSize / 2;
+        for (int i = 0; i < positions.length; i++) {
+            for (int h = 0; h < heads; h++) {
+                for (int j = 0; j < half; j++) {
+                    float x0 = control.get(i, h * headSize + j);
+                    float x1 = control.get(i, h * headSize + j + half);
+                    double angle = positions[i] * (1.0 / Math.pow(10000.0, 2.0 * j / headSize));
+                    float e0 = h == 0 ? x0 : (float) (x0 * Math.cos(angle) - x1 * Math.sin(angle));
+                    float e1 = h == 0 ? x1 : (float) (x0 * Math.sin(angle) + x1 * Math.cos(angle));
+                    assertEquals(e0, x.get(i, h * headSize + j), 0.001f, "row " + i + " head " + h + " pair " + j);
+                    assertEquals(e1, x.get(i, h * headSize + j + half), 0.001f, "row " + i + " head " + h + " pair " + j);
+                }
+            }
+        }
+    }
+
+    @Test
+    void ropeShiftMovesRowsBack(){
+        int headSize = 70;
+        int heads = 2;
+        int delta = 300;
+        int[] positions = { 300, 301, 1500, 2047 };
+        int[] shifted = new int[positions.length];
+        RopeTable table = new RopeTable(headSize, 2048, 10000.0, 1.0);
+        Random r = new Random(6);
+        AbstractTensor x = new FloatBufferTensor(positions.length, heads * headSize);
+        AbstractTensor control = new FloatBufferTensor(positions.length, heads * headSize);
+        for (int i = 0; i < positions.length; i++) {
+            shifted[i] = positions[i] - delta;
+            for (int j = 0; j < heads * headSize; j++) {
+                float v = r.nextFloat(-1, 1);
+                x.set(v, i, j);
+                control.set(v, i, j);
+            }
+        }
+        PanamaTensorOperations p = new PanamaTensorOperations(MachineSpec.VECTOR_TYPE, new TensorCache(new MetricRegistry()));
+        p.rope(x, positions, table, 0, heads * headSize);
+        p.ropeShift(x, delta, table, 0, heads * headSize);
+        p.rope(control, shifted, table, 0, heads * headSize);
+        for (int i = 0; i < positions.length; i++) {
+            for (int j = 0; j < heads * headSize; j++) {
+                assertEquals(control.get(i, j), x.get(i, j), 0.001f, "row " + i + " col " + j);
+            }
+        }
+    }
+
+    @Test
+    void batchSaxpyMatchesScalar(){
+        int rows = 5;
+        int keys = 23; // not a multiple of 4, covers the tail
+        int width = 70;
+        int xRowOffset = 3;
+        int aOffset = 2;
+        Random r = new Random(9);
+        AbstractTensor alpha = new FloatBufferTensor(rows, aOffset + keys);
+        AbstractTensor x = new FloatBufferTensor(xRowOffset + keys, width + 8);
+        AbstractTensor y = new FloatBufferTensor(rows, width + 4);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < aOffset + keys; j++) {
+                alpha.set(r.nextFloat(-1, 1), i, j);
+            }
+            for (int j = 0; j < width + 4; j++) {
+                y.set(r.nextFloat(-1, 1), i, j);
+            }
+        }
+        for (int i = 0; i < xRowOffset + keys; i++) {
+            for (int j = 0; j < width + 8; j++) {
+                x.set(r.nextFloat(-1, 1), i, j);
+            }
+        }
+        float[][] control = new float[rows][width];
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < width; j++) {
+                control[i][j] = y.get(i, 4 + j);
+                for (int k = 0; k < keys; k++) {
+                    control[i][j] += alpha.get(i, aOffset + k) * x.get(xRowOffset + k, 8 + j);
+                }
+            }
+        }
+        PanamaTensorOperations p = new PanamaTensorOperations(MachineSpec.VECTOR_TYPE, new TensorCache(new MetricRegistry()));
+        p.batchSaxpy(alpha, x, y, 8, 4, width, aOffset, xRowOffset, keys);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < width; j++) {
+                assertEquals(control[i][j], y.get(i, 4 + j), 0.0001f, "row " + i + " col " + j);
+            }
+        }
+    }
+
+    @Test
+    void quantizedKvKernelsMatchScalar(){
+        int rows = 3;
+        int keys = 10;
+        int width = 128;
+        int offset = 32;
+        int limit = 64;
+        Random r = new Random(11);
+        AbstractTensor queries = new FloatBufferTensor(rows, limit);
+        AbstractTensor keysF = new FloatBufferTensor(keys, width);
+        AbstractTensor alpha = new FloatBufferTensor(rows, keys);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < limit; j++) {
+                queries.set(r.nextFloat(-1, 1), i, j);
+            }
+            for (int j = 0; j < keys; j++) {
+                alpha.set(r.nextFloat(0, 1), i, j);
+            }
+        }
+        for (int i = 0; i < keys; i++) {
+            for (int j = 0; j < width; j++) {
+                keysF.set(r.nextFloat(-1, 1), i, j);
+            }
+        }
+        // every vector width, the ones this machine lacks run emulated
+        for (MachineSpec.Type type : new MachineSpec.Type[] { MachineSpec.Type.AVX_512, MachineSpec.Type.AVX_256,
+                MachineSpec.Type.ARM_128 }) {
+            assertQuantizedKvKernelsMatch(new PanamaTensorOperations(type, new TensorCache(new MetricRegistry())),
+                    type + " ", queries, keysF, alpha, offset, limit);
+        }
+    }
+
+    private static void assertQuantizedKvKernelsMatch(PanamaTensorOperations p, String message, AbstractTensor queries,
+            AbstractTensor keysF, AbstractTensor alpha, int offset, int limit) {
+        int rows = queries.shape().first();
+        int keys = keysF.shape().first();
+        int width = keysF.shape().last();
+        for (DType qtype : new DType[] { DType.I8, DType.Q4 }) {
+            AbstractTensor q = p.quantize(keysF, qtype, 0, width);
+            // quantized the same way as the block format of the tensor itself
+            AbstractTensor control = qtype == DType.I8 ? new Q8ByteBufferTensor(keysF) : new Q4ByteBufferTensor(keysF);
+            for (int i = 0; i < keys; i++) {
+                for (int j = 0; j < width; j++) {
+                    assertEquals(control.get(i, j), q.get(i, j), 0.02f, message + qtype + " row " + i + " col " + j);
+                }
+            }
+
+            AbstractTensor scores = new FloatBufferTensor(rows, keys);
+            p.batchDotProduct(scores, queries, q, 0, offset, limit, 0, 0, keys);
+            AbstractTensor y = new FloatBufferTensor(rows, limit);
+            p.batchSaxpy(alpha, q, y, offset, 0, limit, 0, 0, keys);
+            for (int i = 0; i < rows; i++) {
+                for (int k = 0; k < keys; k++) {
+                    float dot = 0;
+                    for (int j = 0; j < limit; j++) {
+                        dot += queries.get(i, j) * q.get(k, offset + j);
+                    }
+                    assertEquals(dot, scores.get(i, k), 0.001f, message + qtype + " score " + i + " " + k);
+                }
+                for (int j = 0; j < limit; j++) {
+                    float v = 0;
+                    for (int k = 0; k < keys; k++) {
+                        v += alpha.get(i, k) * q.get(k, offset + j);
+                    }
+                    assertEquals(v, y.get(i, j), 0.001f, message + qtype + " value " + i + " " + j);
+                }
+            }
+        }
+    }
 }
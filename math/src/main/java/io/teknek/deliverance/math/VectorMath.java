@@ -28,7 +28,7 @@ public class VectorMath {
         if (splits == 1) {
             action.accept(offset, length);
         } else {
-            int remainder = length % chunkSize;
+            int remainder = length - splits * chunkSize;
 
             int fsplits = splits;
             int fchunkSize = chunkSize;
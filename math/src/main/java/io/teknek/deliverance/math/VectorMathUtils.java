@@ -17,25 +17,6 @@ public class VectorMathUtils {
         return result;
     }
 
-    public static float[][] precomputeFreqsCis(int dim, int end, double theta, double scaling_factor) {
-        float[] freqs = new float[dim / 2];
-        float step = 0.0f;
-        for (int i = 0; i < freqs.length; i++, step += 2.0f) {
-            freqs[i] = (float) ((1.0 / FastMath.pow(theta, step / dim)) / scaling_factor);
-        }
-        float[] t = new float[end];
-        for (int i = 0; i < end; i++) {
-            t[i] = i;
-        }
-        float[] freqs_cis = outerProduct(t, freqs);
-
-        float[][] r = new float[freqs_cis.length][];
-        for (int i = 0; i < freqs_cis.length; i++) {
-            r[i] = new float[]{(float) FastMath.cos(freqs_cis[i]), (float) FastMath.sin(freqs_cis[i])};
-        }
-        return r;
-    }
-
     public static float cosineSimilarity(float[] a, float[] b) {
         float dotProduct = 0.0f;
         float aMagnitude = 0.0f;
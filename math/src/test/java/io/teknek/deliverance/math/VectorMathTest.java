@@ -35,4 +35,15 @@ public class VectorMathTest {
         verifyNoMoreInteractions(b);
     }
 
+    @Test
+    void testPchunkRemainderLargerThanChunk(){
+        BiIntConsumer b = mock(BiIntConsumer.class);
+        VectorMath.pchunk(0, 10, b, 4);
+        verify(b).accept(0,2);
+        verify(b).accept(2,2);
+        verify(b).accept(4,2);
+        verify(b).accept(6,4);
+        verifyNoMoreInteractions(b);
+    }
+
 }
@@ -3,8 +3,7 @@ package io.teknek.deliverance.safetensors;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.ImmutableBiMap;
 import io.teknek.deliverance.math.ActivationFunction;
-
-import io.teknek.deliverance.math.VectorMathUtils;
+import io.teknek.deliverance.tensor.RopeTable;
 
 import java.util.List;
 import java.util.Map;
@@ -39,7 +38,7 @@ public class Config {
     public final int vocabularySize;
     public final int bosToken;
     public final List<Integer> eosTokens;
-    public final Optional<float[][]> ropeFreqs;
+    public final Optional<RopeTable> ropeTable;
     public final Optional<BiMap<String, Integer>> classifcationLabels;
 
     private volatile DistributedContext dctx;
@@ -252,11 +251,9 @@ public class Config {
         this.isGQA = numberOfKeyValueHeads < numberOfHeads;
         this.activationFunction = activationFunction;
 
-        this.ropeFreqs = ropeFreqsTheta == null
+        this.ropeTable = ropeFreqsTheta == null
                 ? Optional.empty()
-                : Optional.of(
-                VectorMathUtils.precomputeFreqsCis(headSize, contextLength, ropeFreqsTheta, ropeScalingFactor == null ? 1.0 : ropeScalingFactor)
-        );
+                : Optional.of(new RopeTable(headSize, contextLength, ropeFreqsTheta, ropeScalingFactor == null ? 1.0 : ropeScalingFactor));
 
         this.classifcationLabels = classifcationLabels == null ? Optional.empty() : Optional.of(ImmutableBiMap.copyOf(classifcationLabels));
 
@@ -282,6 +279,23 @@ public class Config {
         return Math.floorDiv(head, headGroupSize);
     }
 
+    /**
+     * @return how many of the latest positions, up to and including its own, a query attends to in layerIndex. Models
+     * with sliding window layers override this, every position is visible by default.
+     */
+    public int attentionWindow(int layerIndex) {
+        return contextLength;
+    }
+
+    public boolean hasSlidingWindowLayers() {
+        for (int i = 0; i < numberOfLayers; i++) {
+            if (attentionWindow(i) < contextLength) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public boolean isClassifier() {
         return classifcationLabels.isPresent();
     }
@@ -24,18 +24,27 @@ public abstract class AbstractTensor<V extends Vector<?>, T extends Number> impl
     protected final AbstractTensor[] sliceCache;
     protected final int stride;
     protected volatile TensorCacheIface originCache = null;
+    /** the pooled memory of originCache this tensor is a view of, null when the cache does not pool it */
+    private volatile Object cacheSegment;
 
 
     protected AbstractTensor(DType dType, TensorShape shape, boolean cacheSlices) {
         Preconditions.checkArgument(shape != null && shape.dims() > 0);
-        this.uid = UUID.randomUUID().toString();
         this.dType = dType;
         this.shape = shape;
         this.sliceCache = cacheSlices ? new AbstractTensor[shape.first()] : null;
         this.stride = shape.first() > 1 && dims() == 2 ? getOffset(shape.sparseRowOffset() + 1, shape.sparseColumnOffset()) : 0;
     }
 
+    /** @return a random id made on first use, tensors of the tensor cache are made on every get and rarely need one */
     public String getUid() {
+        if (uid == null) {
+            synchronized (this) {
+                if (uid == null) {
+                    uid = UUID.randomUUID().toString();
+                }
+            }
+        }
         return uid;
     }
 
@@ -241,7 +250,16 @@ public abstract class AbstractTensor<V extends Vector<?>, T extends Number> impl
     }
 
     void setOwnerCache(TensorCacheIface cache) {
+        setOwnerCache(cache, null);
+    }
+
+    void setOwnerCache(TensorCacheIface cache, Object segment) {
         this.originCache = cache;
+        this.cacheSegment = segment;
+    }
+
+    Object getCacheSegment() {
+        return cacheSegment;
     }
 
 
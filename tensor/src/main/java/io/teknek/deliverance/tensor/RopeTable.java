@@ -0,0 +1,87 @@
+package io.teknek.deliverance.tensor;
+
+import com.google.common.base.Preconditions;
+import io.teknek.deliverance.tensor.impl.FloatBufferTensor;
+import net.jafama.FastMath;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The rotary position embedding angles of every position, headSize/2 cosines followed by headSize/2 sines per
+ * position. They are kept off heap in blocks of BLOCK_POSITIONS positions and a block is only computed the first time
+ * one of its positions is used, so a long context model does not pay for its whole context at load time.
+ */
+public class RopeTable {
+    public static final int BLOCK_POSITIONS = 1024;
+
+    private final int headSize;
+    private final int contextLength;
+    private final float[] frequencies;
+    private final AtomicReferenceArray<AbstractTensor> blocks;
+
+    public RopeTable(int headSize, int contextLength, double theta, double scalingFactor) {
+        Preconditions.checkArgument(headSize % 2 == 0, "headSize must be even");
+        this.headSize = headSize;
+        this.contextLength = contextLength;
+        this.frequencies = new float[headSize / 2];
+        float step = 0.0f;
+        for (int i = 0; i < frequencies.length; i++, step += 2.0f) {
+            frequencies[i] = (float) ((1.0 / FastMath.pow(theta, step / headSize)) / scalingFactor);
+        }
+        this.blocks = new AtomicReferenceArray<>((contextLength + BLOCK_POSITIONS - 1) / BLOCK_POSITIONS);
+    }
+
+    public int headSize() {
+        return headSize;
+    }
+
+    public int contextLength() {
+        return contextLength;
+    }
+
+    /** @return the angle per position of each pair of dimensions, set by the theta and the scaling factor */
+    public float[] frequencies() {
+        return frequencies.clone();
+    }
+
+    /**
+     * @return a [1, headSize] tensor, the cosines of the angles at position in 0..headSize/2 and their sines in
+     * headSize/2..headSize
+     */
+    public AbstractTensor angles(int position) {
+        Preconditions.checkElementIndex(position, contextLength, "position");
+        int index = position / BLOCK_POSITIONS;
+        AbstractTensor block = blocks.get(index);
+        if (block == null) {
+            block = computeBlock(index);
+            if (!blocks.compareAndSet(index, null, block)) {
+                block = blocks.get(index);
+            }
+        }
+        return block.slice(position % BLOCK_POSITIONS);
+    }
+
+    public float cos(int position, int i) {
+        return angles(position).get(0, i);
+    }
+
+    public float sin(int position, int i) {
+        return angles(position).get(0, i + headSize / 2);
+    }
+
+    private AbstractTensor computeBlock(int index) {
+        int half = headSize / 2;
+        int start = index * BLOCK_POSITIONS;
+        int positions = Math.min(BLOCK_POSITIONS, contextLength - start);
+        AbstractTensor block = new FloatBufferTensor(positions, headSize);
+        for (int p = 0; p < positions; p++) {
+            float t = start + p;
+            for (int i = 0; i < half; i++) {
+                float angle = t * frequencies[i];
+                block.set((float) FastMath.cos(angle), p, i);
+                block.set((float) FastMath.sin(angle), p, i + half);
+            }
+        }
+        return block;
+    }
+}
@@ -193,6 +193,9 @@ public class Q8ByteBufferTensor extends AbstractTensor<ByteVector, Byte> {
         Preconditions.checkArgument(!b.isReadOnly(), "Read-only");
         segment.asSlice(getMemorySegmentOffset(destOffset), length)
                 .copyFrom(src.getMemorySegment().asSlice(src.getMemorySegmentOffset(srcOffset), length));
+
+        Q8ByteBufferTensor srcQ8 = (Q8ByteBufferTensor) src;
+        blockF.copyFrom(srcQ8.blockF, srcOffset / BLOCK_SIZE, destOffset / BLOCK_SIZE, length / BLOCK_SIZE);
     }
 
     @Override
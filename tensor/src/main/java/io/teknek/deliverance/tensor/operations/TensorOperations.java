@@ -3,6 +3,7 @@ package io.teknek.deliverance.tensor.operations;
 import com.google.common.base.Preconditions;
 import io.teknek.deliverance.DType;
 import io.teknek.deliverance.tensor.AbstractTensor;
+import io.teknek.deliverance.tensor.RopeTable;
 import io.teknek.deliverance.tensor.TensorShape;
 import io.teknek.deliverance.tensor.impl.FloatBufferTensor;
 
@@ -95,11 +96,81 @@ public interface TensorOperations {
         }
     }
 
+    /**
+     * saxpy for every row of alpha into the same row of y over the same rows of x,
+     * Y[r, i] = (alpha[r, j] * X[j, i]) + Y[r, i]. Implementations read each row of x once for all the rows of y.
+     */
+    default void batchSaxpy(
+            AbstractTensor alpha,
+            AbstractTensor x,
+            AbstractTensor y,
+            int xoffset,
+            int yoffset,
+            int limit,
+            int aOffset,
+            int xRowOffset,
+            int batchSize
+    ) {
+        Preconditions.checkArgument(alpha.shape().first() == y.shape().first(), "Expected a row of alpha for every row of y");
+        for (int r = 0; r < y.shape().first(); r++) {
+            saxpy(alpha.slice(r), x, y.slice(r), xoffset, yoffset, limit, aOffset, xRowOffset, batchSize);
+        }
+    }
+
     /**
      * For each position multiply value by the scale factor
      */
     void scale(float factor, AbstractTensor x, int offset, int length);
 
+    /**
+     * Rotary position embedding of every row of xBatch, row i by the angles of positions[i]. The columns
+     * offset..offset+length are whole heads of table.headSize(), each rotated in the huggingface layout where element
+     * j pairs with element j + headSize/2.
+     */
+    default void rope(AbstractTensor xBatch, int[] positions, RopeTable table, int offset, int length) {
+        int headSize = table.headSize();
+        int half = headSize / 2;
+        Preconditions.checkArgument(positions.length == xBatch.shape().first(), "Expected a position for every row");
+        Preconditions.checkArgument(length % headSize == 0, "length must be whole heads");
+        for (int bi = 0; bi < positions.length; bi++) {
+            AbstractTensor angles = table.angles(positions[bi]);
+            for (int h = offset; h < offset + length; h += headSize) {
+                for (int j = 0; j < half; j++) {
+                    float fcr = angles.get(0, j);
+                    float fci = angles.get(0, j + half);
+                    float x0 = xBatch.get(bi, h + j);
+                    float x1 = xBatch.get(bi, h + j + half);
+                    xBatch.set(x0 * fcr - x1 * fci, bi, h + j);
+                    xBatch.set(x0 * fci + x1 * fcr, bi, h + j + half);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves every row of xBatch, already rotated by {@link #rope}, back by delta positions: a row rotated for position
+     * p ends up rotated for p - delta, as if it had been computed there.
+     */
+    default void ropeShift(AbstractTensor xBatch, int delta, RopeTable table, int offset, int length) {
+        int headSize = table.headSize();
+        int half = headSize / 2;
+        Preconditions.checkArgument(length % headSize == 0, "length must be whole heads");
+        AbstractTensor angles = table.angles(delta);
+        for (int bi = 0; bi < xBatch.shape().first(); bi++) {
+            for (int h = offset; h < offset + length; h += headSize) {
+                for (int j = 0; j < half; j++) {
+                    // the inverse rotation, by -delta
+                    float fcr = angles.get(0, j);
+                    float fci = angles.get(0, j + half);
+                    float x0 = xBatch.get(bi, h + j);
+                    float x1 = xBatch.get(bi, h + j + half);
+                    xBatch.set(x0 * fcr + x1 * fci, bi, h + j);
+                    xBatch.set(x1 * fcr - x0 * fci, bi, h + j + half);
+                }
+            }
+        }
+    }
+
     /**
      * Quantizes the tensor to the specified type (if supported)
      */
@@ -22,6 +22,8 @@ import org.springframework.context.annotation.Configuration;
 
 import java.io.File;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @Configuration
 public class Config {
@@ -39,6 +41,15 @@ public class Config {
         return new TensorCache(metricRegistry());
     }
 
+    /**
+     * Runs streamed generations, one thread each. Shut down with the context, generations still running see the
+     * interrupt and end as cancelled.
+     */
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService generationExecutor(){
+        return Executors.newCachedThreadPool();
+    }
+
     @Bean
     public ConfigurableTensorProvider provider(@Value("${deliverance.tensor.operations.type:simd}") String type){
         if ("simd".equalsIgnoreCase(type)) {
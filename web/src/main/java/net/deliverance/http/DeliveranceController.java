@@ -1,6 +1,8 @@
 package net.deliverance.http;
 
 import io.teknek.deliverance.embedding.PoolingType;
+import io.teknek.deliverance.generator.GeneratedToken;
+import io.teknek.deliverance.generator.GenerationPublisher;
 import io.teknek.deliverance.generator.GeneratorParameters;
 import io.teknek.deliverance.generator.Response;
 import io.teknek.deliverance.model.*;
@@ -8,6 +10,7 @@ import io.teknek.deliverance.safetensors.prompt.PromptSupport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -16,7 +19,8 @@ import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
@@ -29,6 +33,10 @@ public class DeliveranceController {
     @Autowired
     private Map<MultiModelConfig,AbstractModel> models;
 
+    @Autowired
+    @Qualifier("generationExecutor")
+    private ExecutorService generationExecutor;
+
     private Optional<Map.Entry<MultiModelConfig, AbstractModel>> findModel(String name){
         return models.entrySet().stream()
                 .filter(x-> x.getKey().getModelName()
@@ -77,34 +85,61 @@ public class DeliveranceController {
             return result;
         }
         GeneratorParameters params = new GeneratorParameters().withTemperature(0.1f);
+        if (request.getTopP() != null) {
+            params.withTopP(request.getTopP().floatValue());
+        }
+        if (request.getTopK() != null) {
+            params.withTopK(request.getTopK());
+        }
+        if (request.getMinP() != null) {
+            params.withMinP(request.getMinP().floatValue());
+        }
         AtomicInteger index = new AtomicInteger(0);
         builder.addSystemMessage("generate correct answers");
         LOGGER.info("submitted prompt {}", builder.build());
         if (request.getStream() != null && request.getStream()) {
             SseEmitter emitter = new SseEmitter(-1L);
-            CompletableFuture<Response> generate = CompletableFuture.supplyAsync( () -> {
-                return model.generate(sessionId, builder.build(), params, (int next, String tok, String token, float f) -> {
-                            try {
-                                emitter.send( messageDelta(sessionId, token, index));
-                            } catch (IOException  | RuntimeException e) {
-                                LOGGER.error("emitter issue", e);
-                                emitter.completeWithError(e);
-                            }
-                        }
-                );
-            }).handle((result2, throwable) -> {
-                if (throwable == null){
+            GenerationPublisher publisher = model.generateAsync(sessionId, builder.build(), params, generationExecutor);
+            // an abandoned request stops generating at the next token instead of running to the token limit
+            emitter.onTimeout(publisher::cancel);
+            emitter.onError(t -> publisher.cancel());
+            emitter.onCompletion(publisher::cancel);
+            publisher.subscribe(new Flow.Subscriber<>() {
+                private Flow.Subscription subscription;
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onNext(GeneratedToken token) {
                     try {
-                        emitter.send(sendComplete(sessionId, index));
+                        emitter.send(messageDelta(sessionId, token.text, index));
+                        subscription.request(1);
                     } catch (IOException | RuntimeException e) {
                         LOGGER.error("emitter issue", e);
-                        throw new RuntimeException(e);
+                        subscription.cancel();
+                        emitter.completeWithError(e);
                     }
-                    emitter.complete();
-                } else {
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
                     emitter.completeWithError(throwable);
                 }
-                return result2;
+
+                @Override
+                public void onComplete() {
+                    try {
+                        emitter.send(sendComplete(sessionId, index));
+                        emitter.complete();
+                    } catch (IOException | RuntimeException e) {
+                        LOGGER.error("emitter issue", e);
+                        emitter.completeWithError(e);
+                    }
+                }
             });
             return emitter;
         } else {